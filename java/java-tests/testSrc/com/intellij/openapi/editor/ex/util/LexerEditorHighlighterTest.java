@@ -0,0 +1,244 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.ide.highlighter.JavaFileHighlighter;
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.lexer.RestartableLexer;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  public void testEditsInsideJavaDoc() {
+    final StringBuilder text = new StringBuilder("class A {\n");
+    for (int i = 0; i < 10; i++) {
+      text.append("  /**\n   * Method {@link String} number ").append(i).append(" <b>bold</b> and <i>italic</i>\n")
+        .append("   * @param p the parameter {@code p}\n   */\n  void foo").append(i).append("(int p) {}\n");
+    }
+    text.append("}\n");
+    checkRandomEdits(new JavaFileHighlighter(LanguageLevel.HIGHEST), text.toString(),
+                     new String[]{" ", "\n", "*", "/", "/**", "*/", "{@link ", "}", "<", ">", "@param ", "word"});
+  }
+
+  public void testEditsInsideLongComments() {
+    final String text = "a /*" + StringUtil.repeat(" word", 300) + " */ b /*" + StringUtil.repeat(" word", 100) + " */ c";
+    checkRandomEdits(new WordsHighlighter(), text, new String[]{" ", "x", "*", "/", "/*", "*/"});
+  }
+
+  public void testCheckpointsShortenRelexing() {
+    final WordsHighlighter syntaxHighlighter = new WordsHighlighter();
+    final Document document = EditorFactory.getInstance().createDocument("a /*" + StringUtil.repeat(" word", 1000) + " */ b");
+    final LexerEditorHighlighter highlighter = createHighlighter(syntaxHighlighter, document);
+    document.addDocumentListener(highlighter, getTestRootDisposable());
+    final WordsLexer lexer = syntaxHighlighter.myLastLexer;
+
+    lexer.myTokenCount = 0;
+    document.insertString(document.getTextLength() / 2, "x");
+    // the comment is relexed from the checkpoint before the change to the one after it
+    assertTrue(String.valueOf(lexer.myTokenCount), lexer.myTokenCount < 100);
+    assertEquals(getTokens(createHighlighter(syntaxHighlighter, document)), getTokens(highlighter));
+  }
+
+  private void checkRandomEdits(SyntaxHighlighter syntaxHighlighter, String text, String[] insertions) {
+    final Document document = EditorFactory.getInstance().createDocument(text);
+    final LexerEditorHighlighter highlighter = createHighlighter(syntaxHighlighter, document);
+    document.addDocumentListener(highlighter, getTestRootDisposable());
+    final Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      final int offset = random.nextInt(document.getTextLength() + 1);
+      if (random.nextInt(3) == 0 && offset < document.getTextLength()) {
+        document.deleteString(offset, Math.min(document.getTextLength(), offset + random.nextInt(5) + 1));
+      }
+      else {
+        document.insertString(offset, insertions[random.nextInt(insertions.length)]);
+      }
+      assertEquals(document.getText(), getTokens(createHighlighter(syntaxHighlighter, document)), getTokens(highlighter));
+    }
+  }
+
+  private LexerEditorHighlighter createHighlighter(SyntaxHighlighter syntaxHighlighter, final Document document) {
+    final LexerEditorHighlighter highlighter =
+      new LexerEditorHighlighter(syntaxHighlighter, EditorColorsManager.getInstance().getGlobalScheme());
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return LightPlatformTestCase.getProject();
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    return highlighter;
+  }
+
+  private static List<String> getTokens(LexerEditorHighlighter highlighter) {
+    final List<String> tokens = new ArrayList<String>();
+    for (HighlighterIterator iterator = highlighter.createIterator(0); !iterator.atEnd(); iterator.advance()) {
+      tokens.add(iterator.getTokenType() + "[" + iterator.getStart() + "," + iterator.getEnd() + "]");
+    }
+    return tokens;
+  }
+
+  private static final IElementType WORD = new IElementType("WORD", Language.ANY);
+  private static final IElementType SPACE = new IElementType("SPACE", Language.ANY);
+  private static final IElementType OTHER = new IElementType("OTHER", Language.ANY);
+  private static final IElementType COMMENT_START = new IElementType("COMMENT_START", Language.ANY);
+  private static final IElementType COMMENT_END = new IElementType("COMMENT_END", Language.ANY);
+  private static final IElementType COMMENT_WORD = new IElementType("COMMENT_WORD", Language.ANY);
+  private static final IElementType COMMENT_SPACE = new IElementType("COMMENT_SPACE", Language.ANY);
+  private static final IElementType COMMENT_OTHER = new IElementType("COMMENT_OTHER", Language.ANY);
+
+  private static class WordsHighlighter extends SyntaxHighlighterBase {
+    private WordsLexer myLastLexer;
+
+    @Override
+    public Lexer getHighlightingLexer() {
+      myLastLexer = new WordsLexer();
+      return myLastLexer;
+    }
+
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Splits the text into words, spaces and other characters, and the same way inside block comments, which can be restarted.
+   */
+  private static class WordsLexer extends LexerBase implements RestartableLexer {
+    private static final int IN_COMMENT = 1;
+
+    private CharSequence myBuffer;
+    private int myEndOffset;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private IElementType myTokenType;
+    private int myTokenCount;
+
+    @Override
+    public void start(CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEndOffset = endOffset;
+      myTokenEnd = startOffset;
+      myState = initialState;
+      locateToken();
+    }
+
+    private void locateToken() {
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEndOffset) {
+        myTokenType = null;
+        return;
+      }
+      myTokenCount++;
+      final boolean inComment = myState == IN_COMMENT;
+      final char c = myBuffer.charAt(myTokenStart);
+      if (Character.isLetter(c) || c == ' ' || c == '\n') {
+        final boolean letter = Character.isLetter(c);
+        myTokenEnd = myTokenStart + 1;
+        while (myTokenEnd < myEndOffset && Character.isLetter(myBuffer.charAt(myTokenEnd)) == letter &&
+               (letter || myBuffer.charAt(myTokenEnd) == ' ' || myBuffer.charAt(myTokenEnd) == '\n')) {
+          myTokenEnd++;
+        }
+        myTokenType = letter ? (inComment ? COMMENT_WORD : WORD) : (inComment ? COMMENT_SPACE : SPACE);
+      }
+      else if (!inComment && c == '/' && myTokenStart + 1 < myEndOffset && myBuffer.charAt(myTokenStart + 1) == '*') {
+        myTokenEnd = myTokenStart + 2;
+        myTokenType = COMMENT_START;
+      }
+      else if (inComment && c == '*' && myTokenStart + 1 < myEndOffset && myBuffer.charAt(myTokenStart + 1) == '/') {
+        myTokenEnd = myTokenStart + 2;
+        myTokenType = COMMENT_END;
+      }
+      else {
+        myTokenEnd = myTokenStart + 1;
+        myTokenType = inComment ? COMMENT_OTHER : OTHER;
+      }
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      if (myTokenType == COMMENT_START) {
+        myState = IN_COMMENT;
+      }
+      else if (myTokenType == COMMENT_END) {
+        myState = 0;
+      }
+      locateToken();
+    }
+
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEndOffset;
+    }
+
+    @Override
+    public boolean isRestartableState(int state) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.java.stubs.index.JavaShortClassNameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+
+import java.util.Collection;
+
+public class StubIndexQueryCacheTest extends LightCodeInsightFixtureTestCase {
+  public void testRepeatedQueryIsCached() {
+    myFixture.addClass("package foo; public class Cached {}");
+    assertSize(1, findClasses("Cached"));
+
+    final int hits = getIndex().getQueryCacheHits();
+    final int misses = getIndex().getQueryCacheMisses();
+    assertSize(1, findClasses("Cached"));
+    assertEquals(hits + 1, getIndex().getQueryCacheHits());
+    assertEquals(misses, getIndex().getQueryCacheMisses());
+  }
+
+  public void testAddedFileInvalidatesCache() {
+    myFixture.addClass("package foo; public class Cached {}");
+    assertSize(1, findClasses("Cached"));
+
+    myFixture.addClass("package bar; public class Cached {}");
+    final int misses = getIndex().getQueryCacheMisses();
+    assertSize(2, findClasses("Cached"));
+    assertEquals(misses + 1, getIndex().getQueryCacheMisses());
+  }
+
+  public void testDeletedFileInvalidatesCache() {
+    final PsiClass aClass = myFixture.addClass("package foo; public class Cached {}");
+    assertSize(1, findClasses("Cached"));
+
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        aClass.getContainingFile().delete();
+      }
+    });
+    final int misses = getIndex().getQueryCacheMisses();
+    assertEmpty(findClasses("Cached"));
+    assertEquals(misses + 1, getIndex().getQueryCacheMisses());
+  }
+
+  public void testUnsavedDocumentChangeInvalidatesCache() {
+    final PsiFile file = myFixture.addClass("package foo; public class Cached {}").getContainingFile();
+    assertSize(1, findClasses("Cached"));
+    assertEmpty(findClasses("Renamed"));
+
+    // the unsaved document is indexed in memory, which changes the modification count of the storage as well
+    final Document document = PsiDocumentManager.getInstance(getProject()).getDocument(file);
+    assertNotNull(document);
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        document.setText(StringUtil.replace(document.getText(), "Cached", "Renamed"));
+        PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+      }
+    });
+    final int misses = getIndex().getQueryCacheMisses();
+    assertEmpty(findClasses("Cached"));
+    assertSize(1, findClasses("Renamed"));
+    assertEquals(misses + 2, getIndex().getQueryCacheMisses());
+  }
+
+  private Collection<PsiClass> findClasses(String name) {
+    return JavaShortClassNameIndex.getInstance().get(name, getProject(), GlobalSearchScope.allScope(getProject()));
+  }
+
+  private static StubIndexImpl getIndex() {
+    return (StubIndexImpl)StubIndex.getInstance();
+  }
+}
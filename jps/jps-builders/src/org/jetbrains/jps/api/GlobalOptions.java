@@ -10,4 +10,7 @@ public interface GlobalOptions {
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String BUILD_CACHE_DIR_OPTION = "build.cache.dir";
+  String USE_CONTENT_HASHES_OPTION = "use.content.hashes";
+  String USE_MAPPED_DEPENDENCY_GRAPH_OPTION = "use.mapped.dependency.graph";
 }
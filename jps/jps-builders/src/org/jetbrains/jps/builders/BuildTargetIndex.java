@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.impl.BuildTargetChunk;
 import org.jetbrains.jps.incremental.CompileContext;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -14,5 +15,7 @@ public interface BuildTargetIndex extends BuildTargetRegistry {
 
   List<BuildTargetChunk> getSortedTargetChunks(@NotNull CompileContext context);
 
+  Collection<BuildTarget<?>> getDependencies(@NotNull BuildTarget<?> target, @NotNull CompileContext context);
+
   Set<BuildTarget<?>> getDependenciesRecursively(@NotNull BuildTarget<?> target, @NotNull CompileContext context);
 }
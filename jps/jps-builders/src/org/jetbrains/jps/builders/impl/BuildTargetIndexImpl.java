@@ -141,6 +141,12 @@ public class BuildTargetIndexImpl implements BuildTargetIndex {
     return myAllTargets;
   }
 
+  @Override
+  public Collection<BuildTarget<?>> getDependencies(@NotNull BuildTarget<?> target, @NotNull CompileContext context) {
+    initializeChunks(context);
+    return myDependencies.get(target);
+  }
+
   @Override
   public Set<BuildTarget<?>> getDependenciesRecursively(@NotNull BuildTarget<?> target, @NotNull CompileContext context) {
     initializeChunks(context);
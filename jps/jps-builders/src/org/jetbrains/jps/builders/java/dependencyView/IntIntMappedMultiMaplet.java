@@ -0,0 +1,355 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.MappedBufferWrapper;
+import com.intellij.util.io.ReadOnlyMappedBufferWrapper;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Int multimap stored in a memory-mapped file as three int columns: sorted keys, offsets of the keys' values and the values
+ * themselves. Lookups are binary searches over the mapped keys, so the stored data doesn't occupy the heap. Modifications are
+ * collected in memory and merged into the file by a single sequential pass on flush.
+ * <p/>
+ * The merged data is written to a temporary file which then replaces the stored one. A temporary file left by an interrupted
+ * merge means the stored data may be lost or outdated, so opening the storage fails then and the build data is rebuilt.
+ *
+ * @see Mappings
+ */
+class IntIntMappedMultiMaplet extends IntIntMultiMaplet {
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 3;
+  private static final int MIN_CHANGED_KEYS_TO_COMPACT = 4096;
+
+  private final File myFile;
+  private final File myTempFile;
+  @Nullable
+  private MappedBufferWrapper myWrapper;
+  private ByteBuffer myBuffer;
+  private int myKeyCount;
+  /**
+   * New values of the modified keys, an empty set means the key is removed
+   */
+  private final TIntObjectHashMap<TIntHashSet> myChanges = new TIntObjectHashMap<TIntHashSet>();
+
+  public IntIntMappedMultiMaplet(final File file) throws IOException {
+    myFile = file;
+    myTempFile = getTempFile(file);
+    if (myTempFile.exists()) {
+      throw new IOException("Dependency graph data was not saved completely: " + myFile.getPath());
+    }
+    map();
+  }
+
+  static File getTempFile(final File file) {
+    return new File(file.getPath() + ".tmp");
+  }
+
+  private void map() throws IOException {
+    myKeyCount = 0;
+    if (!myFile.isFile()) {
+      return;
+    }
+    final MappedBufferWrapper wrapper = new ReadOnlyMappedBufferWrapper(myFile, 0) {};
+    final ByteBuffer buffer = wrapper.getBuffer();
+    final int size = buffer.capacity() / 4;
+    final int keyCount = size >= HEADER_SIZE ? buffer.getInt(4) : -1;
+    if (keyCount < 0 || buffer.getInt(0) != VERSION || size != HEADER_SIZE + 2 * keyCount + 1 + buffer.getInt(8)) {
+      wrapper.unmap();
+      throw new IOException("Corrupted dependency graph data: " + myFile.getPath());
+    }
+    myWrapper = wrapper;
+    myBuffer = buffer;
+    myKeyCount = keyCount;
+  }
+
+  private void unmap() {
+    final MappedBufferWrapper wrapper = myWrapper;
+    if (wrapper != null) {
+      myWrapper = null;
+      myBuffer = null;
+      myKeyCount = 0;
+      wrapper.unmap();
+    }
+  }
+
+  private int getInt(final int index) {
+    return myBuffer.getInt(index << 2);
+  }
+
+  private int getKey(final int keyIndex) {
+    return getInt(HEADER_SIZE + keyIndex);
+  }
+
+  private int getValuesStart(final int keyIndex) {
+    return getInt(HEADER_SIZE + myKeyCount + keyIndex);
+  }
+
+  private int getValueCount(final int keyIndex) {
+    return getValuesStart(keyIndex + 1) - getValuesStart(keyIndex);
+  }
+
+  private int getValue(final int valueIndex) {
+    return getInt(HEADER_SIZE + 2 * myKeyCount + 1 + valueIndex);
+  }
+
+  private int findKey(final int key) {
+    int low = 0;
+    int high = myKeyCount - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int middleKey = getKey(middle);
+      if (middleKey < key) {
+        low = middle + 1;
+      }
+      else if (middleKey > key) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private TIntHashSet readValues(final int keyIndex) {
+    final int start = getValuesStart(keyIndex);
+    final int end = getValuesStart(keyIndex + 1);
+    final TIntHashSet result = new TIntHashSet(end - start);
+    for (int i = start; i < end; i++) {
+      result.add(getValue(i));
+    }
+    return result;
+  }
+
+  private TIntHashSet getForUpdate(final int key) {
+    TIntHashSet values = myChanges.get(key);
+    if (values == null) {
+      final int index = findKey(key);
+      values = index >= 0 ? readValues(index) : new TIntHashSet();
+      myChanges.put(key, values);
+    }
+    return values;
+  }
+
+  @Override
+  public boolean containsKey(final int key) {
+    final TIntHashSet values = myChanges.get(key);
+    return values != null ? !values.isEmpty() : findKey(key) >= 0;
+  }
+
+  @Override
+  public TIntHashSet get(final int key) {
+    final TIntHashSet values = myChanges.get(key);
+    if (values != null) {
+      return values.isEmpty() ? null : values;
+    }
+    final int index = findKey(key);
+    return index >= 0 ? readValues(index) : null;
+  }
+
+  @Override
+  public void put(final int key, final int value) {
+    getForUpdate(key).add(value);
+  }
+
+  @Override
+  public void put(final int key, final TIntHashSet value) {
+    getForUpdate(key).addAll(value.toArray());
+  }
+
+  @Override
+  public void replace(final int key, final TIntHashSet value) {
+    final TIntHashSet values = new TIntHashSet();
+    if (value != null) {
+      values.addAll(value.toArray());
+    }
+    myChanges.put(key, values);
+  }
+
+  @Override
+  public void putAll(final IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        put(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replaceAll(final IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        replace(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void remove(final int key) {
+    myChanges.put(key, new TIntHashSet());
+  }
+
+  @Override
+  public void removeFrom(final int key, final int value) {
+    if (containsKey(key)) {
+      getForUpdate(key).remove(value);
+    }
+  }
+
+  @Override
+  public void removeAll(final int key, final TIntHashSet values) {
+    if (containsKey(key)) {
+      getForUpdate(key).removeAll(values.toArray());
+    }
+  }
+
+  @Override
+  public void forEachEntry(final TIntObjectProcedure<TIntHashSet> procedure) {
+    for (int i = 0; i < myKeyCount; i++) {
+      final int key = getKey(i);
+      if (!myChanges.containsKey(key) && !procedure.execute(key, readValues(i))) {
+        return;
+      }
+    }
+    myChanges.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        return values.isEmpty() || procedure.execute(key, values);
+      }
+    });
+  }
+
+  @Override
+  public void flush(final boolean memoryCachesOnly) {
+    // the whole file is rewritten, so the changes are let grow with the stored data to keep the rewrites rare
+    if (!memoryCachesOnly || myChanges.size() > Math.max(MIN_CHANGED_KEYS_TO_COMPACT, myKeyCount / 4)) {
+      compact();
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      compact();
+    }
+    finally {
+      unmap();
+      myChanges.clear();
+    }
+  }
+
+  private void compact() {
+    if (myChanges.isEmpty()) {
+      return;
+    }
+    try {
+      final int[] changedKeys = myChanges.keys();
+      Arrays.sort(changedKeys);
+
+      // merge stored and changed keys, the index of a key in the stored data or -1 if the key was changed
+      final TIntArrayList keys = new TIntArrayList(myKeyCount + changedKeys.length);
+      final TIntArrayList sources = new TIntArrayList(myKeyCount + changedKeys.length);
+      int valueCount = 0;
+      int i = 0;
+      int j = 0;
+      while (i < myKeyCount || j < changedKeys.length) {
+        if (j == changedKeys.length || (i < myKeyCount && getKey(i) < changedKeys[j])) {
+          keys.add(getKey(i));
+          sources.add(i);
+          valueCount += getValueCount(i);
+          i++;
+        }
+        else {
+          if (i < myKeyCount && getKey(i) == changedKeys[j]) {
+            i++;
+          }
+          final int size = myChanges.get(changedKeys[j]).size();
+          if (size > 0) {
+            keys.add(changedKeys[j]);
+            sources.add(-1);
+            valueCount += size;
+          }
+          j++;
+        }
+      }
+
+      FileUtil.createParentDirs(myTempFile);
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myTempFile)));
+      try {
+        output.writeInt(VERSION);
+        output.writeInt(keys.size());
+        output.writeInt(valueCount);
+        for (int k = 0; k < keys.size(); k++) {
+          output.writeInt(keys.get(k));
+        }
+        int offset = 0;
+        for (int k = 0; k < keys.size(); k++) {
+          output.writeInt(offset);
+          final int source = sources.get(k);
+          offset += source >= 0 ? getValueCount(source) : myChanges.get(keys.get(k)).size();
+        }
+        output.writeInt(offset);
+        for (int k = 0; k < keys.size(); k++) {
+          final int source = sources.get(k);
+          if (source >= 0) {
+            for (int v = getValuesStart(source), end = getValuesStart(source + 1); v < end; v++) {
+              output.writeInt(getValue(v));
+            }
+          }
+          else {
+            final int[] values = myChanges.get(keys.get(k)).toArray();
+            Arrays.sort(values);
+            for (int value : values) {
+              output.writeInt(value);
+            }
+          }
+        }
+      }
+      finally {
+        output.close();
+      }
+
+      unmap();
+      myChanges.clear();
+      // replaces the file atomically where the file system allows that
+      if (!myTempFile.renameTo(myFile)) {
+        // can't rename over an existing file on Windows, the temporary file is left if the process is killed meanwhile
+        FileUtil.delete(myFile);
+        if (!myTempFile.renameTo(myFile)) {
+          throw new IOException("Cannot rename " + myTempFile.getPath() + " to " + myFile.getPath());
+        }
+      }
+      map();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
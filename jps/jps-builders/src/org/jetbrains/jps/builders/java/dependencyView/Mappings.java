@@ -4,13 +4,17 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.io.IntInlineKeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -18,6 +22,8 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -30,11 +36,14 @@ public class Mappings {
 
   private final static String CLASS_TO_SUBCLASSES = "classToSubclasses.tab";
   private final static String CLASS_TO_CLASS = "classToClass.tab";
+  private final static String CLASS_TO_SUBCLASSES_GRAPH = "classToSubclasses.graph";
+  private final static String CLASS_TO_CLASS_GRAPH = "classToClass.graph";
   private final static String SOURCE_TO_CLASS = "sourceToClass.tab";
   private final static String CLASS_TO_SOURCE = "classToSource.tab";
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  private static BoundedTaskExecutor ourAnalyzerExecutor;
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -43,6 +52,7 @@ public class Mappings {
 
   private final boolean myIsDelta;
   private final boolean myDeltaIsTransient;
+  private final boolean myUseMappedGraph;
   private boolean myIsDifferentiated = false;
   private boolean myIsRebuild = false;
 
@@ -74,6 +84,13 @@ public class Mappings {
   @Nullable
   private Collection<String> myRemovedFiles;
 
+  /**
+   * Class files being analyzed on the pool with their source files, in the order they were passed to the callback
+   */
+  private final List<Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>>> myAnalyzedClasses =
+    new ArrayList<Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>>>();
+  private volatile boolean myAnalysisCancelled;
+
   private Mappings(final Mappings base) throws IOException {
     myLock = base.myLock;
     myIsDelta = true;
@@ -81,6 +98,7 @@ public class Mappings {
     myChangedFiles = new THashSet(FileUtil.FILE_HASHING_STRATEGY);
     myDeletedClasses = new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myDeltaIsTransient = base.myDeltaIsTransient;
+    myUseMappedGraph = base.myUseMappedGraph;
     myRootDir = new File(FileUtil.toSystemIndependentName(base.myRootDir.getAbsolutePath()) + File.separatorChar + "myDelta");
     myContext = base.myContext;
     myInitName = myContext.get("<init>");
@@ -97,6 +115,7 @@ public class Mappings {
     myChangedFiles = null;
     myDeletedClasses = null;
     myDeltaIsTransient = transientDelta;
+    myUseMappedGraph = Boolean.parseBoolean(System.getProperty(GlobalOptions.USE_MAPPED_DEPENDENCY_GRAPH_OPTION));
     myRootDir = rootDir;
     createImplementation();
     myInitName = myContext.get("<init>");
@@ -123,8 +142,8 @@ public class Mappings {
       if (myIsDelta) {
         myRootDir.mkdirs();
       }
-      myClassToSubclasses = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES), INT_KEY_DESCRIPTOR);
-      myClassToClassDependency = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_CLASS), INT_KEY_DESCRIPTOR);
+      myClassToSubclasses = createClassGraph(myRootDir, CLASS_TO_SUBCLASSES, CLASS_TO_SUBCLASSES_GRAPH, myUseMappedGraph);
+      myClassToClassDependency = createClassGraph(myRootDir, CLASS_TO_CLASS, CLASS_TO_CLASS_GRAPH, myUseMappedGraph);
       mySourceFileToClasses = new ObjectObjectPersistentMultiMaplet<File, ClassRepr>(
         DependencyContext.getTableFile(myRootDir, SOURCE_TO_CLASS), new FileKeyDescriptor(), ClassRepr.externalizer(myContext),
         ourClassSetConstructor
@@ -133,6 +152,46 @@ public class Mappings {
     }
   }
 
+  /**
+   * Opens either the memory-mapped or the hash map based storage of a class graph and moves the data stored in the other one
+   * into it, so switching the storage doesn't lose the dependencies. The data is saved in the new storage before the old one is
+   * deleted.
+   */
+  static IntIntMultiMaplet createClassGraph(final File rootDir, final String tableName, final String graphName, final boolean useMappedGraph)
+    throws IOException {
+    final File tableFile = new File(rootDir, tableName);
+    final File graphFile = new File(rootDir, graphName);
+    if (useMappedGraph) {
+      final IntIntMultiMaplet graph = new IntIntMappedMultiMaplet(graphFile);
+      if (tableFile.exists()) {
+        final IntIntMultiMaplet table = new IntIntPersistentMultiMaplet(tableFile, INT_KEY_DESCRIPTOR);
+        try {
+          graph.putAll(table);
+        }
+        finally {
+          table.close();
+        }
+        graph.flush(false);
+        PersistentHashMap.deleteFilesStartingWith(tableFile);
+      }
+      return graph;
+    }
+
+    final IntIntMultiMaplet table = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(rootDir, tableName), INT_KEY_DESCRIPTOR);
+    if (graphFile.exists()) {
+      final IntIntMultiMaplet graph = new IntIntMappedMultiMaplet(graphFile);
+      try {
+        table.putAll(graph);
+      }
+      finally {
+        graph.close();
+      }
+      table.flush(false);
+      FileUtil.delete(graphFile);
+    }
+    return table;
+  }
+
   public Mappings createDelta() {
     synchronized (myLock) {
       try {
@@ -1908,12 +1967,14 @@ public class Mappings {
   }
 
   public void differentiateOnRebuild(final Mappings delta) {
+    delta.mergeAnalyzedClasses();
     new Differential(delta).differentiate();
   }
 
   public void differentiateOnNonIncrementalMake(final Mappings delta,
                                                 final Collection<String> removed,
                                                 final Collection<File> filesToCompile) {
+    delta.mergeAnalyzedClasses();
     new Differential(delta, removed, filesToCompile).differentiate();
   }
 
@@ -1925,6 +1986,7 @@ public class Mappings {
      final Collection<File> affectedFiles,
      final DependentFilesFilter filter,
      @Nullable final Callbacks.ConstantAffectionResolver constantSearch) {
+    delta.mergeAnalyzedClasses();
     return new Differential(delta, removed, filesToCompile, compiledFiles, affectedFiles, filter, constantSearch).differentiate();
   }
 
@@ -1964,6 +2026,7 @@ public class Mappings {
   }
 
   public void integrate(final Mappings delta) {
+    delta.mergeAnalyzedClasses();
     synchronized (myLock) {
       try {
         assert (delta.isDifferentiated());
@@ -2111,30 +2174,18 @@ public class Mappings {
   public Callbacks.Backend getCallback() {
     return new Callbacks.Backend() {
       public void associate(final String classFileName, final String sourceFileName, final ClassReader cr) {
-        synchronized (myLock) {
-          final int classFileNameS = myContext.get(classFileName);
-          final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
-          final ClassRepr repr = result.first;
-          if (repr != null) {
-            final Set<UsageRepr.Usage> localUsages = result.second;
-            final File sourceFile = new File(sourceFileName);
-            final int className = repr.name;
-
-            myClassToSourceFile.put(className, sourceFile);
-            mySourceFileToClasses.put(sourceFile, repr);
-
-            for (final int s : repr.getSupers()) {
-              myClassToSubclasses.put(s, className);
-            }
-
-            for (final UsageRepr.Usage u : localUsages) {
-              final int owner = u.getOwner();
-
-              if (owner != className) {
-                myClassToClassDependency.put(owner, className);
-              }
+        final DependencyContext context = myContext;
+        final Future<Pair<ClassRepr, Set<UsageRepr.Usage>>> result = getAnalyzerExecutor().submit(new Callable<Pair<ClassRepr, Set<UsageRepr.Usage>>>() {
+          @Override
+          public Pair<ClassRepr, Set<UsageRepr.Usage>> call() {
+            if (myAnalysisCancelled) {
+              return Pair.<ClassRepr, Set<UsageRepr.Usage>>create(null, Collections.<UsageRepr.Usage>emptySet());
             }
+            return new ClassfileAnalyzer(context).analyze(context.get(classFileName), cr);
           }
+        });
+        synchronized (myLock) {
+          myAnalyzedClasses.add(Pair.create(new File(sourceFileName), result));
         }
       }
 
@@ -2176,14 +2227,102 @@ public class Mappings {
     };
   }
 
+  private static synchronized BoundedTaskExecutor getAnalyzerExecutor() {
+    if (ourAnalyzerExecutor == null) {
+      ourAnalyzerExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
+    }
+    return ourAnalyzerExecutor;
+  }
+
+  /**
+   * Waits for the analysis of the class files passed to the callback and adds the results in the order the files were passed,
+   * so the contents of the mappings don't depend on the order the analysis completes in
+   */
+  private void mergeAnalyzedClasses() {
+    final List<Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>>> analyzed;
+    synchronized (myLock) {
+      if (myAnalyzedClasses.isEmpty()) {
+        return;
+      }
+      analyzed = new ArrayList<Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>>>(myAnalyzedClasses);
+      myAnalyzedClasses.clear();
+    }
+
+    final List<Pair<ClassRepr, Set<UsageRepr.Usage>>> results = new ArrayList<Pair<ClassRepr, Set<UsageRepr.Usage>>>(analyzed.size());
+    try {
+      for (Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>> pair : analyzed) {
+        results.add(pair.second.get());
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+
+    synchronized (myLock) {
+      for (int i = 0; i < analyzed.size(); i++) {
+        final ClassRepr repr = results.get(i).first;
+        if (repr != null) {
+          final Set<UsageRepr.Usage> localUsages = results.get(i).second;
+          final File sourceFile = analyzed.get(i).first;
+          final int className = repr.name;
+
+          myClassToSourceFile.put(className, sourceFile);
+          mySourceFileToClasses.put(sourceFile, repr);
+
+          for (final int s : repr.getSupers()) {
+            myClassToSubclasses.put(s, className);
+          }
+
+          for (final UsageRepr.Usage u : localUsages) {
+            final int owner = u.getOwner();
+
+            if (owner != className) {
+              myClassToClassDependency.put(owner, className);
+            }
+          }
+        }
+      }
+    }
+  }
+
   @Nullable
   public Set<ClassRepr> getClasses(final String sourceFileName) {
+    mergeAnalyzedClasses();
     synchronized (myLock) {
       return (Set<ClassRepr>)mySourceFileToClasses.get(new File(sourceFileName));
     }
   }
 
+  /**
+   * Skips the analysis of the class files which hasn't started yet and waits for the running ones, so they don't use the storages
+   * after they are closed
+   */
+  private void cancelAnalyzedClasses() {
+    final List<Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>>> analyzed;
+    synchronized (myLock) {
+      myAnalysisCancelled = true;
+      analyzed = new ArrayList<Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>>>(myAnalyzedClasses);
+      myAnalyzedClasses.clear();
+    }
+
+    for (Pair<File, Future<Pair<ClassRepr, Set<UsageRepr.Usage>>>> pair : analyzed) {
+      try {
+        pair.second.get();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException ignored) {
+        // the results are discarded anyway
+      }
+    }
+  }
+
   public void close() {
+    cancelAnalyzedClasses();
     synchronized (myLock) {
       myClassToSubclasses.close();
       myClassToClassDependency.close();
@@ -304,8 +304,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             if (fileStamp == -1L) {
               fileStamp = FileSystemUtil.lastModified(file); // lazy init
             }
-            long stamp = timestamps.getStamp(file, descriptor.getTarget());
-            if (stamp != fileStamp) {
+            if (timestamps.isDirty(file, descriptor.getTarget(), fileStamp)) {
               pd.fsState.markDirty(null, file, descriptor, timestamps, saveEventStamp);
             }
           }
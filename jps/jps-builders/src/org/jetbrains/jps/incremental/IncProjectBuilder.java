@@ -6,12 +6,12 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ConcurrentHashSet;
-import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.containers.MultiMapBasedOnSet;
 import com.intellij.util.io.MappingFailedException;
 import com.intellij.util.io.PersistentEnumerator;
 import gnu.trove.THashSet;
+import gnu.trove.TLongArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.ModuleChunk;
@@ -31,6 +31,7 @@ import org.jetbrains.jps.cmdline.ProjectDescriptor;
 import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.java.ExternalJavacDescriptor;
 import org.jetbrains.jps.incremental.messages.*;
+import org.jetbrains.jps.incremental.storage.ChunkBuildTimes;
 import org.jetbrains.jps.incremental.storage.OneToManyPathsMapping;
 import org.jetbrains.jps.indices.ModuleExcludeIndex;
 import org.jetbrains.jps.model.java.JpsJavaExtensionService;
@@ -47,7 +48,6 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -475,84 +475,16 @@ public class IncProjectBuilder {
     final CompileScope scope = context.getScope();
     final ProjectDescriptor pd = context.getProjectDescriptor();
     BuildTargetIndex targetIndex = pd.getBuildTargetIndex();
+    final ChunkBuildStatistics statistics = new ChunkBuildStatistics();
     try {
       if (BuildRunner.PARALLEL_BUILD_ENABLED) {
-        final List<ChunkGroup> chunkGroups = buildChunkGroups(targetIndex, context);
-        for (ChunkGroup group : chunkGroups) {
-          final List<BuildTargetChunk> groupChunks = group.getChunks();
-          final int chunkCount = groupChunks.size();
-          if (chunkCount == 0) {
-            continue;
-          }
-          try {
-            if (chunkCount == 1) {
-              buildChunkIfAffected(createContextWrapper(context), scope, groupChunks.iterator().next());
-            }
-            else {
-              final CountDownLatch latch = new CountDownLatch(chunkCount);
-              final Ref<Throwable> exRef = new Ref<Throwable>(null);
-
-              if (LOG.isDebugEnabled()) {
-                final StringBuilder logBuilder = new StringBuilder("Building chunks in parallel: ");
-                for (BuildTargetChunk chunk : groupChunks) {
-                  logBuilder.append(chunk.toString()).append("; ");
-                }
-                LOG.debug(logBuilder.toString());
-              }
-
-              for (final BuildTargetChunk chunk : groupChunks) {
-                final CompileContext chunkLocalContext = createContextWrapper(context);
-                myParallelBuildExecutor.execute(new Runnable() {
-                  @Override
-                  public void run() {
-                    try {
-                      buildChunkIfAffected(chunkLocalContext, scope, chunk);
-                    }
-                    catch (Throwable e) {
-                      synchronized (exRef) {
-                        if (exRef.isNull()) {
-                          exRef.set(e);
-                        }
-                      }
-                      LOG.info(e);
-                    }
-                    finally {
-                      latch.countDown();
-                    }
-                  }
-                });
-              }
-
-              try {
-                latch.await();
-              }
-              catch (InterruptedException e) {
-                LOG.info(e);
-              }
-
-              final Throwable exception = exRef.get();
-              if (exception != null) {
-                if (exception instanceof ProjectBuildException) {
-                  throw (ProjectBuildException)exception;
-                }
-                else {
-                  throw new ProjectBuildException(exception);
-                }
-              }
-            }
-          }
-          finally {
-            context.updateCompilationStartStamp();
-            pd.dataManager.closeSourceToOutputStorages(groupChunks);
-            pd.dataManager.flush(true);
-          }
-        }
+        buildChunksInParallel(context, statistics);
       }
       else {
         // non-parallel build
         for (BuildTargetChunk chunk : targetIndex.getSortedTargetChunks(context)) {
           try {
-            buildChunkIfAffected(context, scope, chunk);
+            buildChunkIfAffected(context, scope, chunk, statistics);
           }
           finally {
             context.updateCompilationStartStamp();
@@ -565,11 +497,116 @@ public class IncProjectBuilder {
     catch (IOException e) {
       throw new ProjectBuildException(e);
     }
+    finally {
+      statistics.report();
+    }
+  }
+
+  /**
+   * Starts a chunk as soon as all chunks it depends on are built. Of the chunks ready to be built the one with the longest chain of
+   * dependent chunks is started first, the chains are measured with the chunk build times of previous builds.
+   */
+  private void buildChunksInParallel(final CompileContextImpl context, final ChunkBuildStatistics statistics) throws ProjectBuildException {
+    final CompileScope scope = context.getScope();
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final List<ChunkNode> nodes = buildChunkGraph(pd, context);
+    final PriorityQueue<ChunkNode> readyNodes = new PriorityQueue<ChunkNode>();
+    final Ref<Throwable> exRef = new Ref<Throwable>(null);
+    final int[] unfinishedCount = {nodes.size()};
+
+    // one runner is submitted for every ready chunk, it builds the most important chunk ready at the moment it is run
+    final Runnable runner = new Runnable() {
+      @Override
+      public void run() {
+        final ChunkNode node;
+        synchronized (readyNodes) {
+          node = readyNodes.poll();
+        }
+        if (node == null) {
+          return;
+        }
+        Throwable error = null;
+        try {
+          if (exRef.isNull()) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Building chunk " + node.myChunk + "; critical path: " + node.myCriticalPath);
+            }
+            buildChunkIfAffected(createContextWrapper(context), scope, node.myChunk, statistics);
+          }
+        }
+        catch (Throwable e) {
+          error = e;
+          LOG.info(e);
+        }
+        finally {
+          try {
+            pd.dataManager.closeSourceToOutputStorages(Collections.singleton(node.myChunk));
+            pd.dataManager.flush(true);
+          }
+          catch (IOException e) {
+            if (error == null) {
+              error = e;
+            }
+            LOG.info(e);
+          }
+          synchronized (readyNodes) {
+            if (error != null && exRef.isNull()) {
+              exRef.set(error);
+            }
+            // after a failure the remaining chunks are passed through without building
+            for (ChunkNode dependent : node.myDependents) {
+              if (--dependent.myUnfinishedDependencies == 0) {
+                readyNodes.add(dependent);
+                myParallelBuildExecutor.execute(this);
+              }
+            }
+            unfinishedCount[0]--;
+            readyNodes.notifyAll();
+          }
+        }
+      }
+    };
+
+    synchronized (readyNodes) {
+      for (ChunkNode node : nodes) {
+        if (node.myUnfinishedDependencies == 0) {
+          readyNodes.add(node);
+        }
+      }
+      for (int i = readyNodes.size(); i > 0; i--) {
+        myParallelBuildExecutor.execute(runner);
+      }
+      try {
+        while (unfinishedCount[0] > 0) {
+          readyNodes.wait();
+        }
+      }
+      catch (InterruptedException e) {
+        LOG.info(e);
+      }
+    }
+
+    final Throwable exception = exRef.get();
+    if (exception != null) {
+      if (exception instanceof ProjectBuildException) {
+        throw (ProjectBuildException)exception;
+      }
+      else {
+        throw new ProjectBuildException(exception);
+      }
+    }
   }
 
-  private void buildChunkIfAffected(CompileContext context, CompileScope scope, BuildTargetChunk chunk) throws ProjectBuildException {
+  private void buildChunkIfAffected(CompileContext context, CompileScope scope, BuildTargetChunk chunk, ChunkBuildStatistics statistics)
+    throws ProjectBuildException {
     if (isAffected(scope, chunk)) {
-      buildTargetsChunk(context, chunk);
+      final long start = System.currentTimeMillis();
+      final boolean doneSomething = buildTargetsChunk(context, chunk);
+      final long time = System.currentTimeMillis() - start;
+      statistics.add(chunk, time);
+      if (doneSomething) {
+        context.getProjectDescriptor().dataManager.getChunkBuildTimes().saveBuildTime(chunk, time);
+      }
     }
     else {
       updateDoneFraction(context, chunk.getTargets().size());
@@ -623,7 +660,10 @@ public class IncProjectBuilder {
     context.setDone(processed / myTotalTargetsWork);
   }
 
-  private void buildTargetsChunk(CompileContext context, final BuildTargetChunk chunk) throws ProjectBuildException {
+  /**
+   * @return true if something was built
+   */
+  private boolean buildTargetsChunk(CompileContext context, final BuildTargetChunk chunk) throws ProjectBuildException {
     boolean doneSomething;
     try {
       Utils.ERRORS_DETECTED_KEY.set(context, Boolean.FALSE);
@@ -682,6 +722,7 @@ public class IncProjectBuilder {
         Utils.REMOVED_SOURCES_KEY.set(context, null);
       }
     }
+    return doneSomething;
   }
 
   private static void createClasspathIndex(final BuildTargetChunk chunk) {
@@ -927,39 +968,64 @@ public class IncProjectBuilder {
     return doneSomething;
   }
 
-  private static List<ChunkGroup> buildChunkGroups(BuildTargetIndex index, CompileContext context) {
-    final List<BuildTargetChunk> allChunks = index.getSortedTargetChunks(context);
+  private static List<ChunkNode> buildChunkGraph(ProjectDescriptor pd, CompileContext context) {
+    final BuildTargetIndex index = pd.getBuildTargetIndex();
+    final List<BuildTargetChunk> chunks = index.getSortedTargetChunks(context);
+    final ChunkBuildTimes buildTimes = pd.dataManager.getChunkBuildTimes();
 
-    // building aux dependencies map
-    final Map<BuildTarget<?>, Set<BuildTarget<?>>> depsMap = new HashMap<BuildTarget<?>, Set<BuildTarget<?>>>();
-    for (BuildTarget target : index.getAllTargets()) {
-      depsMap.put(target, index.getDependenciesRecursively(target, context));
+    final List<ChunkNode> nodes = new ArrayList<ChunkNode>(chunks.size());
+    final Map<BuildTarget<?>, ChunkNode> nodesByTarget = new HashMap<BuildTarget<?>, ChunkNode>();
+    for (BuildTargetChunk chunk : chunks) {
+      final ChunkNode node = new ChunkNode(chunk, nodes.size(), buildTimes.getBuildTime(chunk));
+      nodes.add(node);
+      for (BuildTarget<?> target : chunk.getTargets()) {
+        nodesByTarget.put(target, node);
+      }
     }
 
-    final List<ChunkGroup> groups = new ArrayList<ChunkGroup>();
-    ChunkGroup currentGroup = new ChunkGroup();
-    groups.add(currentGroup);
-    for (BuildTargetChunk chunk : allChunks) {
-      if (dependsOnGroup(chunk, currentGroup, depsMap)) {
-        currentGroup = new ChunkGroup();
-        groups.add(currentGroup);
+    for (ChunkNode node : nodes) {
+      final Set<ChunkNode> dependencies = new HashSet<ChunkNode>();
+      for (BuildTarget<?> target : node.myChunk.getTargets()) {
+        for (BuildTarget<?> dependency : index.getDependencies(target, context)) {
+          final ChunkNode dependencyNode = nodesByTarget.get(dependency);
+          if (dependencyNode != null && dependencyNode != node) {
+            dependencies.add(dependencyNode);
+          }
+        }
+      }
+      for (ChunkNode dependency : dependencies) {
+        dependency.addDependent(node);
       }
-      currentGroup.addChunk(chunk);
     }
-    return groups;
+    computeCriticalPaths(nodes);
+    return nodes;
   }
 
+  /**
+   * Computes the longest path of build times from each chunk through its dependents, chunks never built before are considered
+   * average ones.
+   *
+   * @param nodes chunks sorted so that dependents go after their dependencies
+   */
+  static void computeCriticalPaths(List<ChunkNode> nodes) {
+    long knownTimesSum = 0;
+    int knownTimesCount = 0;
+    for (ChunkNode node : nodes) {
+      if (node.myBuildTime >= 0) {
+        knownTimesSum += node.myBuildTime;
+        knownTimesCount++;
+      }
+    }
+    final long defaultBuildTime = knownTimesCount > 0 ? Math.max(1, knownTimesSum / knownTimesCount) : 1;
 
-  private static boolean dependsOnGroup(BuildTargetChunk chunk, ChunkGroup group, Map<BuildTarget<?>, Set<BuildTarget<?>>> depsMap) {
-    for (BuildTargetChunk groupChunk : group.getChunks()) {
-      final Set<? extends BuildTarget<?>> groupChunkTargets = groupChunk.getTargets();
-      for (BuildTarget<?> target : chunk.getTargets()) {
-        if (ContainerUtil.intersects(depsMap.get(target), groupChunkTargets)) {
-          return true;
-        }
+    for (int i = nodes.size() - 1; i >= 0; i--) {
+      final ChunkNode node = nodes.get(i);
+      long longestDependentPath = 0;
+      for (ChunkNode dependent : node.myDependents) {
+        longestDependentPath = Math.max(longestDependentPath, dependent.myCriticalPath);
       }
+      node.myCriticalPath = (node.myBuildTime >= 0 ? node.myBuildTime : defaultBuildTime) + longestDependentPath;
     }
-    return false;
   }
 
   private static void onChunkBuildComplete(CompileContext context, @NotNull BuildTargetChunk chunk) throws IOException {
@@ -971,15 +1037,87 @@ public class IncProjectBuilder {
     BuildOperations.markTargetsUpToDate(context, chunk);
   }
 
-  private static class ChunkGroup {
+  static class ChunkNode implements Comparable<ChunkNode> {
+    private final BuildTargetChunk myChunk;
+    private final int myIndex;
+    private final long myBuildTime;
+    private final List<ChunkNode> myDependents = new ArrayList<ChunkNode>();
+    private int myUnfinishedDependencies;
+    private long myCriticalPath;
+
+    /**
+     * @param index position of the chunk in the sorted chunks list
+     * @param buildTime build time of the chunk in previous builds or -1 if it's unknown
+     */
+    ChunkNode(BuildTargetChunk chunk, int index, long buildTime) {
+      myChunk = chunk;
+      myIndex = index;
+      myBuildTime = buildTime;
+    }
+
+    void addDependent(ChunkNode dependent) {
+      myDependents.add(dependent);
+      dependent.myUnfinishedDependencies++;
+    }
+
+    long getCriticalPath() {
+      return myCriticalPath;
+    }
+
+    @Override
+    public int compareTo(ChunkNode o) {
+      if (myCriticalPath != o.myCriticalPath) {
+        return myCriticalPath > o.myCriticalPath ? -1 : 1;
+      }
+      return myIndex - o.myIndex;
+    }
+  }
+
+  /**
+   * Wall clock times of the chunk builds. Builders run javac, annotation processors and other tools in threads of their own,
+   * so the time is not split into cpu time of the build threads.
+   */
+  private static class ChunkBuildStatistics {
+    private static final int REPORTED_CHUNKS_COUNT = 10;
+
+    private final long myStartTime = System.currentTimeMillis();
     private final List<BuildTargetChunk> myChunks = new ArrayList<BuildTargetChunk>();
+    private final TLongArrayList myTimes = new TLongArrayList();
 
-    public void addChunk(BuildTargetChunk chunk) {
+    public synchronized void add(BuildTargetChunk chunk, long time) {
       myChunks.add(chunk);
+      myTimes.add(time);
     }
 
-    public List<BuildTargetChunk> getChunks() {
-      return myChunks;
+    public synchronized void report() {
+      if (myChunks.isEmpty()) {
+        return;
+      }
+      final long elapsed = Math.max(1, System.currentTimeMillis() - myStartTime);
+      long totalTime = 0;
+      for (int i = 0; i < myChunks.size(); i++) {
+        totalTime += myTimes.get(i);
+      }
+      LOG.info("Built " + myChunks.size() + " chunks in " + elapsed + " ms; chunks time: " + totalTime + " ms; parallelism: " +
+               String.format("%.2f", (double)totalTime / elapsed));
+
+      final Integer[] order = new Integer[myChunks.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer i1, Integer i2) {
+          final long t1 = myTimes.get(i1);
+          final long t2 = myTimes.get(i2);
+          return t1 > t2 ? -1 : t1 < t2 ? 1 : 0;
+        }
+      });
+      final int count = LOG.isDebugEnabled() ? order.length : Math.min(REPORTED_CHUNKS_COUNT, order.length);
+      for (int i = 0; i < count; i++) {
+        final int index = order[i];
+        LOG.info("  " + myChunks.get(index) + ": " + myTimes.get(index) + " ms");
+      }
     }
   }
 
@@ -997,9 +1135,14 @@ public class IncProjectBuilder {
     final Set<Object> deletedKeysSet = new ConcurrentHashSet<Object>();
     final Class<UserDataHolder> dataHolderInterface = UserDataHolder.class;
     final Class<MessageHandler> messageHandlerInterface = MessageHandler.class;
+    // chunks are built concurrently, so files changed after a chunk start are detected with the chunk's own start stamp
+    final long compilationStartStamp = System.currentTimeMillis();
     return (CompileContext)Proxy.newProxyInstance(loader, new Class[]{CompileContext.class}, new InvocationHandler() {
       @Override
       public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("getCompilationStartStamp".equals(method.getName())) {
+          return compilationStartStamp;
+        }
         final Class<?> declaringClass = method.getDeclaringClass();
         if (dataHolderInterface.equals(declaringClass)) {
           final Object firstArgument = args[0];
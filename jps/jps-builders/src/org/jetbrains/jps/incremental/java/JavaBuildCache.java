@@ -0,0 +1,495 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.DataExternalizer;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.ProjectPaths;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.BinaryContent;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.incremental.storage.AbstractStateStorage;
+import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+import org.jetbrains.jps.javac.OutputFileConsumer;
+import org.jetbrains.jps.javac.OutputFileObject;
+
+import javax.tools.JavaFileObject;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Local cache of javac outputs keyed by the state of a module target, i.e. by the contents of its source roots, the compilation
+ * options, the class post-processors and the classpath. When a target comes back to a state it has already been compiled in (e.g. after switching branches
+ * or reverting changes), class files of the sources to compile are restored from the cache and passed to the output sink the
+ * compiler would pass them to, so the output directory and the dependency mappings are updated as if the sources were compiled.
+ * <p/>
+ * A dependency module on the classpath is represented by the state hash of its target, jars and other directories by lengths and
+ * timestamps of their files. Module cycles, annotation processing and temporary source roots aren't supported.
+ * <p/>
+ * Content hashes of the sources are stored in the project's build data along with the lengths and timestamps of the files they were
+ * computed for, so only the sources changed since the previous build are read.
+ * <p/>
+ * Enabled by <code>-Dbuild.cache.dir=path</code>, a new instance should be created for each build.
+ */
+class JavaBuildCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.java.JavaBuildCache");
+  private static final int VERSION = 1;
+  private static final String NOT_CACHEABLE = "";
+  private static final String SOURCE_HASHES_STORAGE = "java-build-cache/source-hashes";
+
+  private final File myCacheDir;
+  // opened on the first use, i.e. after the build data is cleaned on rebuild
+  private SourceHashes mySourceHashes;
+  private final Map<ModuleBuildTarget, String> myStateHashes = new HashMap<ModuleBuildTarget, String>();
+  private final Set<ModuleBuildTarget> myTargetsInProgress = new HashSet<ModuleBuildTarget>();
+  private Map<File, List<ModuleBuildTarget>> myTargetsByOutputDir;
+
+  private JavaBuildCache(@NotNull File cacheDir) {
+    myCacheDir = cacheDir;
+  }
+
+  @Nullable
+  static JavaBuildCache create() {
+    final String path = System.getProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION);
+    return StringUtil.isEmpty(path) ? null : new JavaBuildCache(new File(path));
+  }
+
+  synchronized void close() {
+    if (mySourceHashes != null) {
+      try {
+        mySourceHashes.close();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      mySourceHashes = null;
+    }
+  }
+
+  /**
+   * @return hash of the state of the chunk's target or null if outputs of the chunk can't be cached
+   */
+  @Nullable
+  synchronized String getStateHash(@NotNull CompileContext context, @NotNull ModuleChunk chunk) {
+    if (chunk.getTargets().size() != 1) return null;
+    return getStateHash(context, chunk.representativeTarget());
+  }
+
+  @Nullable
+  private String getStateHash(@NotNull CompileContext context, @NotNull ModuleBuildTarget target) {
+    String hash = myStateHashes.get(target);
+    if (hash == null) {
+      if (!myTargetsInProgress.add(target)) {
+        return null; // a cycle
+      }
+      try {
+        hash = computeStateHash(context, target);
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        hash = null;
+      }
+      finally {
+        myTargetsInProgress.remove(target);
+      }
+      if (hash == null) {
+        hash = NOT_CACHEABLE;
+      }
+      myStateHashes.put(target, hash);
+    }
+    return hash.isEmpty() ? null : hash;
+  }
+
+  @Nullable
+  private String computeStateHash(@NotNull CompileContext context, @NotNull ModuleBuildTarget target) throws IOException {
+    if (target.getOutputDir() == null || context.getAnnotationProcessingProfile(target.getModule()).isEnabled()) {
+      return null;
+    }
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final ModuleChunk chunk = new ModuleChunk(Collections.singleton(target));
+    final MessageDigest digest = createDigest();
+    update(digest, String.valueOf(VERSION));
+    update(digest, target.getTargetType().getTypeId());
+    update(digest, target.getId());
+    for (String option : JavaBuilder.getCompilationOptions(context, chunk, null)) {
+      update(digest, option);
+    }
+    // the cached class files are post-processed already
+    for (ClassPostProcessor processor : JavaBuilder.getClassPostProcessors()) {
+      update(digest, processor.getClass().getName());
+    }
+
+    final ProjectPaths paths = context.getProjectPaths();
+    for (File file : paths.getPlatformCompilationClasspath(chunk, false)) {
+      if (!updateClasspathEntry(digest, context, target, file)) return null;
+    }
+    for (File file : paths.getCompilationClasspath(chunk, false)) {
+      if (!updateClasspathEntry(digest, context, target, file)) return null;
+    }
+
+    // not only java sources: classes compiled from other languages before javac are on the classpath in the target's output
+    final List<File> sources = new ArrayList<File>();
+    for (JavaSourceRootDescriptor rd : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      if (!rd.isTemp) {
+        collectFiles(pd, rd, pd.getBuildRootIndex().getRootFilter(rd, pd), rd.root, sources);
+      }
+    }
+    Collections.sort(sources);
+    final SourceHashes sourceHashes = getSourceHashes(pd);
+    for (File source : sources) {
+      update(digest, source.getPath());
+      digest.update(sourceHashes.getContentHash(source));
+    }
+    return toHexString(digest.digest());
+  }
+
+  @NotNull
+  private SourceHashes getSourceHashes(@NotNull ProjectDescriptor pd) throws IOException {
+    if (mySourceHashes == null) {
+      mySourceHashes = new SourceHashes(new File(pd.dataManager.getDataPaths().getDataStorageRoot(), SOURCE_HASHES_STORAGE));
+    }
+    return mySourceHashes;
+  }
+
+  private boolean updateClasspathEntry(@NotNull MessageDigest digest,
+                                       @NotNull CompileContext context,
+                                       @NotNull ModuleBuildTarget target,
+                                       @NotNull File file) {
+    update(digest, file.getPath());
+    final List<ModuleBuildTarget> owners = getTargetsByOutputDir(context.getProjectDescriptor()).get(file);
+    if (owners != null) {
+      // the target's own classes are determined by its sources, classes of targets it doesn't depend on shouldn't be referenced
+      final Set<BuildTarget<?>> dependencies = context.getProjectDescriptor().getBuildTargetIndex().getDependenciesRecursively(target, context);
+      for (ModuleBuildTarget owner : owners) {
+        if (!owner.equals(target) && dependencies.contains(owner)) {
+          final String hash = getStateHash(context, owner);
+          if (hash == null) {
+            return false;
+          }
+          update(digest, hash);
+        }
+      }
+    }
+    else if (file.isDirectory()) {
+      updateDirectory(digest, file, "");
+    }
+    else {
+      update(digest, file.length() + ":" + file.lastModified());
+    }
+    return true;
+  }
+
+  private static void updateDirectory(@NotNull MessageDigest digest, @NotNull File dir, @NotNull String relativePath) {
+    final File[] children = dir.listFiles();
+    if (children == null) return;
+    Arrays.sort(children);
+    for (File child : children) {
+      final String childPath = relativePath + "/" + child.getName();
+      if (child.isDirectory()) {
+        updateDirectory(digest, child, childPath);
+      }
+      else {
+        update(digest, childPath + ":" + child.length() + ":" + child.lastModified());
+      }
+    }
+  }
+
+  private static void collectFiles(@NotNull ProjectDescriptor pd,
+                                   @NotNull JavaSourceRootDescriptor rd,
+                                   @NotNull FileFilter filter,
+                                   @NotNull File file,
+                                   @NotNull List<File> result) {
+    if (pd.getIgnoredFileIndex().isIgnored(file.getName())) {
+      return;
+    }
+    final File[] children = file.listFiles();
+    if (children != null) {
+      if (!rd.getExcludedRoots().contains(file)) {
+        for (File child : children) {
+          collectFiles(pd, rd, filter, child, result);
+        }
+      }
+    }
+    else if (file.isFile() && filter.accept(file)) {
+      result.add(file);
+    }
+  }
+
+  @NotNull
+  private Map<File, List<ModuleBuildTarget>> getTargetsByOutputDir(@NotNull ProjectDescriptor pd) {
+    if (myTargetsByOutputDir == null) {
+      final Map<File, List<ModuleBuildTarget>> map = new THashMap<File, List<ModuleBuildTarget>>(FileUtil.FILE_HASHING_STRATEGY);
+      for (JavaModuleBuildTargetType type : JavaModuleBuildTargetType.ALL_TYPES) {
+        for (ModuleBuildTarget target : pd.getBuildTargetIndex().getAllTargets(type)) {
+          final File outputDir = target.getOutputDir();
+          if (outputDir != null) {
+            List<ModuleBuildTarget> targets = map.get(outputDir);
+            if (targets == null) {
+              targets = new ArrayList<ModuleBuildTarget>(1);
+              map.put(outputDir, targets);
+            }
+            targets.add(target);
+          }
+        }
+      }
+      myTargetsByOutputDir = map;
+    }
+    return myTargetsByOutputDir;
+  }
+
+  /**
+   * Passes the cached outputs of the files to the sink, nothing is passed unless every file has a cache entry.
+   *
+   * @return true if the outputs were restored
+   */
+  boolean restore(@NotNull ModuleChunk chunk, @NotNull String stateHash, @NotNull Collection<File> files, @NotNull OutputFileConsumer sink) {
+    final File outputDir = chunk.representativeTarget().getOutputDir();
+    if (outputDir == null) return false;
+    final List<OutputFileObject> outputs = new ArrayList<OutputFileObject>();
+    for (File file : files) {
+      if (!load(stateHash, file, outputDir, outputs)) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("No cached outputs for " + file.getPath() + " in state " + stateHash);
+        }
+        return false;
+      }
+    }
+    for (OutputFileObject output : outputs) {
+      sink.save(output);
+    }
+    return true;
+  }
+
+  /**
+   * Stores outputs of successfully compiled files, nothing is stored if the compiler produced anything but class files.
+   */
+  void store(@NotNull String stateHash, @NotNull Collection<File> files, @NotNull Recorder recorder) {
+    final Map<File, List<OutputFileObject>> outputs = recorder.getOutputs();
+    if (outputs == null) return;
+    final File dir = new File(myCacheDir, stateHash);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOG.info("Cannot create build cache directory " + dir.getPath());
+      return;
+    }
+    for (File file : files) {
+      final List<OutputFileObject> fileOutputs = outputs.get(file);
+      save(stateHash, file, recorder.myOutputDir, fileOutputs != null ? fileOutputs : Collections.<OutputFileObject>emptyList());
+    }
+  }
+
+  private boolean load(@NotNull String stateHash, @NotNull File source, @NotNull File outputDir, @NotNull List<OutputFileObject> result) {
+    final File entry = getEntryFile(stateHash, source);
+    if (!entry.isFile()) return false;
+    try {
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+      try {
+        if (input.readInt() != VERSION || !source.getPath().equals(input.readUTF())) {
+          return false;
+        }
+        for (int count = input.readInt(); count > 0; count--) {
+          final String relativePath = input.readUTF();
+          final String className = input.readUTF();
+          final byte[] bytes = new byte[input.readInt()];
+          input.readFully(bytes);
+          result.add(new OutputFileObject(null, outputDir, relativePath, new File(outputDir, relativePath), JavaFileObject.Kind.CLASS,
+                                          className, source.toURI(), new BinaryContent(bytes)));
+        }
+        return true;
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read build cache entry " + entry.getPath(), e);
+      return false;
+    }
+  }
+
+  private void save(@NotNull String stateHash, @NotNull File source, @NotNull File outputDir, @NotNull List<OutputFileObject> outputs) {
+    final File entry = getEntryFile(stateHash, source);
+    final File temp = new File(entry.getPath() + ".tmp");
+    try {
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        output.writeInt(VERSION);
+        output.writeUTF(source.getPath());
+        output.writeInt(outputs.size());
+        for (OutputFileObject fileObject : outputs) {
+          final BinaryContent content = fileObject.getContent();
+          assert content != null : fileObject;
+          output.writeUTF(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(outputDir, fileObject.getFile())));
+          output.writeUTF(StringUtil.notNullize(fileObject.getClassName()));
+          output.writeInt(content.getLength());
+          output.write(content.getBuffer(), content.getOffset(), content.getLength());
+        }
+      }
+      finally {
+        output.close();
+      }
+      if (!temp.renameTo(entry)) {
+        // can't rename over an existing file on Windows
+        FileUtil.delete(entry);
+        if (!temp.renameTo(entry)) FileUtil.delete(temp);
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot write build cache entry " + entry.getPath(), e);
+      FileUtil.delete(temp);
+    }
+  }
+
+  @NotNull
+  private File getEntryFile(@NotNull String stateHash, @NotNull File source) {
+    final String path = FileUtil.toSystemIndependentName(source.getPath());
+    return new File(new File(myCacheDir, stateHash), source.getName() + "." + Integer.toHexString(path.hashCode()));
+  }
+
+  @NotNull
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void update(@NotNull MessageDigest digest, @NotNull String value) {
+    try {
+      digest.update(value.getBytes("UTF-8"));
+      digest.update((byte)0);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  private static String toHexString(@NotNull byte[] bytes) {
+    final StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  private static class SourceHash {
+    private final long myLength;
+    private final long myTimestamp;
+    private final byte[] myHash;
+
+    private SourceHash(long length, long timestamp, @NotNull byte[] hash) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myHash = hash;
+    }
+  }
+
+  /**
+   * Content hashes of the sources, a hash is computed again only if the length or the timestamp of the file have changed.
+   */
+  private static class SourceHashes extends AbstractStateStorage<File, SourceHash> {
+    private SourceHashes(@NotNull File storePath) throws IOException {
+      super(storePath, new FileKeyDescriptor(), new SourceHashExternalizer());
+    }
+
+    @NotNull
+    private byte[] getContentHash(@NotNull File file) throws IOException {
+      final long length = file.length();
+      final long timestamp = file.lastModified();
+      final SourceHash stored = getState(file);
+      if (stored != null && stored.myLength == length && stored.myTimestamp == timestamp) {
+        return stored.myHash;
+      }
+      final MessageDigest digest = createDigest();
+      digest.update(FileUtil.loadFileBytes(file));
+      final byte[] hash = digest.digest();
+      update(file, new SourceHash(length, timestamp, hash));
+      return hash;
+    }
+  }
+
+  private static class SourceHashExternalizer implements DataExternalizer<SourceHash> {
+    public void save(DataOutput out, SourceHash value) throws IOException {
+      out.writeLong(value.myLength);
+      out.writeLong(value.myTimestamp);
+      out.writeInt(value.myHash.length);
+      out.write(value.myHash);
+    }
+
+    public SourceHash read(DataInput in) throws IOException {
+      final long length = in.readLong();
+      final long timestamp = in.readLong();
+      final byte[] hash = new byte[in.readInt()];
+      in.readFully(hash);
+      return new SourceHash(length, timestamp, hash);
+    }
+  }
+
+  /**
+   * Passes the compiler outputs to the delegate sink and remembers the class files produced from each source.
+   */
+  static class Recorder implements OutputFileConsumer {
+    private final File myOutputDir;
+    private final OutputFileConsumer myDelegate;
+    private final Map<File, List<OutputFileObject>> myOutputs = new THashMap<File, List<OutputFileObject>>(FileUtil.FILE_HASHING_STRATEGY);
+    private boolean myCacheable = true;
+
+    Recorder(@NotNull File outputDir, @NotNull OutputFileConsumer delegate) {
+      myOutputDir = outputDir;
+      myDelegate = delegate;
+    }
+
+    public void save(@NotNull OutputFileObject fileObject) {
+      record(fileObject);
+      myDelegate.save(fileObject);
+    }
+
+    private synchronized void record(@NotNull OutputFileObject fileObject) {
+      final File source = fileObject.getSourceFile();
+      if (fileObject.getKind() != JavaFileObject.Kind.CLASS || source == null || fileObject.getContent() == null ||
+          !FileUtil.isAncestor(myOutputDir, fileObject.getFile(), true)) {
+        myCacheable = false;
+        return;
+      }
+      List<OutputFileObject> outputs = myOutputs.get(source);
+      if (outputs == null) {
+        outputs = new ArrayList<OutputFileObject>();
+        myOutputs.put(source, outputs);
+      }
+      outputs.add(fileObject);
+    }
+
+    @Nullable
+    private synchronized Map<File, List<OutputFileObject>> getOutputs() {
+      return myCacheable ? myOutputs : null;
+    }
+  }
+}
@@ -80,12 +80,17 @@ public class JavaBuilder extends ModuleLevelBuilder {
     };
 
   private final Executor myTaskRunner;
+  private volatile JavaBuildCache myBuildCache;
   private static final List<ClassPostProcessor> ourClassProcessors = new ArrayList<ClassPostProcessor>();
 
   public static void registerClassPostProcessor(ClassPostProcessor processor) {
     ourClassProcessors.add(processor);
   }
 
+  static List<ClassPostProcessor> getClassPostProcessors() {
+    return Collections.unmodifiableList(ourClassProcessors);
+  }
+
   public JavaBuilder(Executor tasksExecutor) {
     super(BuilderCategory.TRANSLATOR);
     myTaskRunner = new SequentialTaskExecutor(tasksExecutor);
@@ -112,6 +117,16 @@ public class JavaBuilder extends ModuleLevelBuilder {
       }
     }
     IS_ENABLED.set(context, isJavacOrEclipse);
+    myBuildCache = JavaBuildCache.create();
+  }
+
+  @Override
+  public void buildFinished(CompileContext context) {
+    final JavaBuildCache buildCache = myBuildCache;
+    if (buildCache != null) {
+      buildCache.close();
+    }
+    myBuildCache = null;
   }
 
   public ExitCode build(final CompileContext context,
@@ -229,7 +244,21 @@ public class JavaBuilder extends ModuleLevelBuilder {
               LOG.debug("  " + file.getAbsolutePath());
             }
           }
-          compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          final JavaBuildCache buildCache = srcPath.isEmpty() ? myBuildCache : null;
+          final String stateHash = buildCache != null ? buildCache.getStateHash(context, chunk) : null;
+          if (stateHash != null && buildCache.restore(chunk, stateHash, files, outputSink)) {
+            LOG.info("Restored outputs of " + filesCount + " java files from build cache; module: " + chunkName);
+          }
+          else if (stateHash != null) {
+            final JavaBuildCache.Recorder recorder = new JavaBuildCache.Recorder(chunk.representativeTarget().getOutputDir(), outputSink);
+            compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, recorder);
+            if (compiledOk && diagnosticSink.getErrorCount() == 0) {
+              buildCache.store(stateHash, files, recorder);
+            }
+          }
+          else {
+            compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          }
         }
 
         context.checkCanceled();
@@ -475,7 +504,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     return cached;
   }
 
-  private static List<String> getCompilationOptions(CompileContext context, ModuleChunk chunk, @Nullable ProcessorConfigProfile profile) {
+  static List<String> getCompilationOptions(CompileContext context, ModuleChunk chunk, @Nullable ProcessorConfigProfile profile) {
     List<String> cached = JAVAC_OPTIONS.get(context);
     if (cached == null) {
       loadCommonJavacOptions(context);
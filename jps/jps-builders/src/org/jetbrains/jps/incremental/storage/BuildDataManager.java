@@ -22,10 +22,11 @@ import java.util.Map;
  *         Date: 10/7/11
  */
 public class BuildDataManager implements StorageOwner {
-  private static final int VERSION = 19;
+  private static final int VERSION = 20;
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.BuildDataManager");
   private static final String SRC_TO_FORM_STORAGE = "src-form";
   private static final String MAPPINGS_STORAGE = "mappings";
+  private static final String CHUNK_TIMES_FILE = "chunk-times.dat";
 
   private final Object mySourceToOutputLock = new Object();
   private final Map<BuildTarget<?>, SourceToOutputMappingImpl> mySourceToOutputs = new HashMap<BuildTarget<?>, SourceToOutputMappingImpl>();
@@ -43,6 +44,7 @@ public class BuildDataManager implements StorageOwner {
   private final BuildDataPaths myDataPaths;
   private final BuildTargetsState myTargetsState;
   private final File myVersionFile;
+  private final ChunkBuildTimes myChunkBuildTimes;
 
   public BuildDataManager(final BuildDataPaths dataPaths, BuildTargetsState targetsState, final boolean useMemoryTempCaches) throws IOException {
     myDataPaths = dataPaths;
@@ -50,6 +52,7 @@ public class BuildDataManager implements StorageOwner {
     mySrcToFormMap = new OneToManyPathsMapping(new File(getSourceToFormsRoot(), "data"));
     myMappings = new Mappings(getMappingsRoot(), useMemoryTempCaches);
     myVersionFile = new File(myDataPaths.getDataStorageRoot(), "version.dat");
+    myChunkBuildTimes = new ChunkBuildTimes(new File(myDataPaths.getDataStorageRoot(), CHUNK_TIMES_FILE));
   }
 
   public SourceToOutputMapping getSourceToOutputMap(final BuildTarget<?> target) throws IOException {
@@ -88,6 +91,10 @@ public class BuildDataManager implements StorageOwner {
     return myMappings;
   }
 
+  public ChunkBuildTimes getChunkBuildTimes() {
+    return myChunkBuildTimes;
+  }
+
   public void cleanTargetStorages(BuildTarget<?> target) throws IOException {
     try {
       synchronized (myTargetStoragesLock) {
@@ -166,6 +173,7 @@ public class BuildDataManager implements StorageOwner {
   public void close() throws IOException {
     try {
       myTargetsState.save();
+      myChunkBuildTimes.save();
       synchronized (myTargetStoragesLock) {
         try {
           myTargetStoragesOwner.close();
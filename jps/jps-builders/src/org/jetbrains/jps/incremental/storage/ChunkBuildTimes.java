@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Build times of target chunks measured in previous builds, parallel builds use them to start long chains of chunks first.
+ * A time is averaged over the builds in which the chunk had something to do, up-to-date chunks don't affect it.
+ */
+public class ChunkBuildTimes {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.ChunkBuildTimes");
+  private static final int VERSION = 1;
+
+  private final File myFile;
+  private Map<String, Long> myTimes;
+  private boolean myChanged;
+
+  public ChunkBuildTimes(@NotNull File file) {
+    myFile = file;
+  }
+
+  /**
+   * @return time in milliseconds or -1 if the chunk wasn't built yet
+   */
+  public synchronized long getBuildTime(@NotNull BuildTargetChunk chunk) {
+    final Long time = getTimes().get(getKey(chunk));
+    return time != null ? time : -1L;
+  }
+
+  public synchronized void saveBuildTime(@NotNull BuildTargetChunk chunk, long time) {
+    final String key = getKey(chunk);
+    final Map<String, Long> times = getTimes();
+    final Long oldTime = times.get(key);
+    times.put(key, oldTime != null ? (oldTime + time) / 2 : time);
+    myChanged = true;
+  }
+
+  /**
+   * Writes the times to a temporary file first, so that a build process killed while saving doesn't leave a truncated file.
+   */
+  public synchronized void save() {
+    if (!myChanged) return;
+    final File temp = new File(myFile.getPath() + ".tmp");
+    try {
+      FileUtil.createParentDirs(myFile);
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        output.writeInt(VERSION);
+        output.writeInt(myTimes.size());
+        for (Map.Entry<String, Long> entry : myTimes.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeLong(entry.getValue());
+        }
+      }
+      finally {
+        output.close();
+      }
+      if (!temp.renameTo(myFile)) {
+        // can't rename over an existing file on Windows
+        FileUtil.delete(myFile);
+        if (!temp.renameTo(myFile)) {
+          throw new IOException("Cannot rename " + temp.getPath() + " to " + myFile.getPath());
+        }
+      }
+      myChanged = false;
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      FileUtil.delete(temp);
+    }
+  }
+
+  @NotNull
+  private Map<String, Long> getTimes() {
+    if (myTimes == null) {
+      myTimes = new HashMap<String, Long>();
+      if (myFile.isFile()) {
+        try {
+          final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+          try {
+            if (input.readInt() == VERSION) {
+              for (int count = input.readInt(); count > 0; count--) {
+                final String key = input.readUTF();
+                myTimes.put(key, input.readLong());
+              }
+            }
+          }
+          finally {
+            input.close();
+          }
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          myTimes.clear();
+        }
+      }
+    }
+    return myTimes;
+  }
+
+  @NotNull
+  private static String getKey(@NotNull BuildTargetChunk chunk) {
+    final List<String> ids = new ArrayList<String>();
+    for (BuildTarget<?> target : chunk.getTargets()) {
+      ids.add(target.getTargetType().getTypeId() + ":" + target.getId());
+    }
+    Collections.sort(ids);
+    final StringBuilder key = new StringBuilder();
+    for (String id : ids) {
+      if (key.length() > 0) key.append(';');
+      key.append(id);
+    }
+    return key.toString();
+  }
+}
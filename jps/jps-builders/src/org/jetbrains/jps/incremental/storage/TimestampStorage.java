@@ -1,25 +1,34 @@
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
+import gnu.trove.THashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildTarget;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  private static final long NO_HASH = 0L;
   private final BuildTargetsState myTargetsState;
+  private final boolean myUseContentHashes;
+  // hashes of the changed files computed by isDirty(), saved with the stamps of the files after they are processed
+  private final Map<File, ComputedHash> myComputedHashes = new THashMap<File, ComputedHash>(FileUtil.FILE_HASHING_STRATEGY);
 
   public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
     super(storePath, new FileKeyDescriptor(), new StateExternalizer());
     myTargetsState = targetsState;
+    myUseContentHashes = Boolean.parseBoolean(System.getProperty(GlobalOptions.USE_CONTENT_HASHES_OPTION, "false"));
   }
 
   @Override
@@ -29,32 +38,116 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public void clean() throws IOException {
+    synchronized (myComputedHashes) {
+      myComputedHashes.clear();
+    }
     super.clean();
   }
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
+    final TimestampPerTarget stamp = findStamp(getState(file), myTargetsState.getBuildTargetId(target));
+    return stamp != null ? stamp.timestamp : -1L;
+  }
+
+  @Override
+  public boolean isDirty(File file, BuildTarget<?> target, long currentTimestamp) throws IOException {
     final TimestampPerTarget[] state = getState(file);
+    final int targetId = myTargetsState.getBuildTargetId(target);
+    final TimestampPerTarget stamp = findStamp(state, targetId);
+    if (stamp == null) {
+      return true;
+    }
+    if (stamp.timestamp == currentTimestamp) {
+      return false;
+    }
+    if (!myUseContentHashes) {
+      return true;
+    }
+    // the content is hashed only when the timestamp has changed, the hash is saved when the file is processed
+    final long hash = getContentHash(file, currentTimestamp);
+    if (stamp.hash == NO_HASH || hash == NO_HASH || hash != stamp.hash) {
+      return true;
+    }
+    // only touched: remember the new timestamp so that the content isn't hashed again
+    update(file, updateTimestamp(state, targetId, currentTimestamp, stamp.hash));
+    return false;
+  }
+
+  @Override
+  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
+    int targetId = myTargetsState.getBuildTargetId(buildTarget);
+    update(file, updateTimestamp(getState(file), targetId, timestamp, myUseContentHashes ? getComputedHash(file, timestamp) : NO_HASH));
+  }
+
+  private long getContentHash(File file, long timestamp) {
+    synchronized (myComputedHashes) {
+      final ComputedHash computed = myComputedHashes.get(file);
+      if (computed != null && computed.myTimestamp == timestamp) {
+        return computed.myHash;
+      }
+    }
+    final long hash = computeContentHash(file);
+    synchronized (myComputedHashes) {
+      myComputedHashes.put(file, new ComputedHash(timestamp, hash));
+    }
+    return hash;
+  }
+
+  /**
+   * @return hash computed by {@link #isDirty} for the file with this timestamp or {@link #NO_HASH}, a file which hasn't been checked
+   * is not read, so its hash is saved when its timestamp changes and it's processed again
+   */
+  private long getComputedHash(File file, long timestamp) {
+    synchronized (myComputedHashes) {
+      // not removed: the file may be processed for several targets
+      final ComputedHash computed = myComputedHashes.get(file);
+      return computed != null && computed.myTimestamp == timestamp ? computed.myHash : NO_HASH;
+    }
+  }
+
+  @Nullable
+  private static TimestampPerTarget findStamp(@Nullable TimestampPerTarget[] state, int targetId) {
     if (state != null) {
-      int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
-          return timestampPerTarget.timestamp;
+          return timestampPerTarget;
         }
       }
     }
-    return -1L;
+    return null;
   }
 
-  @Override
-  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
-    int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+  /**
+   * CRC32 and Adler32 of the file content packed into a long, {@link #NO_HASH} if the file can't be read.
+   */
+  private static long computeContentHash(File file) {
+    final CRC32 crc = new CRC32();
+    final Adler32 adler = new Adler32();
+    try {
+      final InputStream input = new FileInputStream(file);
+      try {
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) > 0) {
+          crc.update(buffer, 0, count);
+          adler.update(buffer, 0, count);
+        }
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException e) {
+      return NO_HASH;
+    }
+    final long hash = (crc.getValue() << 32) | adler.getValue();
+    return hash != NO_HASH ? hash : 1L;
   }
 
   @NotNull
-  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp) {
-    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp);
+  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp, long hash) {
+    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp, hash);
     if (oldState == null) {
       return new TimestampPerTarget[]{newItem};
     }
@@ -87,13 +180,25 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
     }
   }
 
+  private static class ComputedHash {
+    private final long myTimestamp;
+    private final long myHash;
+
+    private ComputedHash(long timestamp, long hash) {
+      myTimestamp = timestamp;
+      myHash = hash;
+    }
+  }
+
   public static class TimestampPerTarget {
     public final int targetId;
     public final long timestamp;
+    public final long hash;
 
-    public TimestampPerTarget(int targetId, long timestamp) {
+    public TimestampPerTarget(int targetId, long timestamp, long hash) {
       this.targetId = targetId;
       this.timestamp = timestamp;
+      this.hash = hash;
     }
   }
 
@@ -103,6 +208,7 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (TimestampPerTarget target : value) {
         out.writeInt(target.targetId);
         out.writeLong(target.timestamp);
+        out.writeLong(target.hash);
       }
     }
 
@@ -112,7 +218,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (int i = 0; i < size; i++) {
         int id = in.readInt();
         long timestamp = in.readLong();
-        targets[i] = new TimestampPerTarget(id, timestamp);
+        long hash = in.readLong();
+        targets[i] = new TimestampPerTarget(id, timestamp, hash);
       }
       return targets;
     }
@@ -19,4 +19,12 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  /**
+   * @return true if the file has changed since its stamp was saved. If content hashes are enabled
+   * (see {@link org.jetbrains.jps.api.GlobalOptions#USE_CONTENT_HASHES_OPTION}), a file with a changed timestamp is hashed, and
+   * it is considered changed only if the hash differs from the saved one. The hash is saved with the next stamp of the file, so a file
+   * whose timestamp has never changed is never read
+   */
+  boolean isDirty(File file, BuildTarget<?> target, long currentTimestamp) throws IOException;
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether;
+
+import org.jetbrains.jps.api.GlobalOptions;
+
+/**
+ * Runs the member change tests with the class graphs kept in the memory-mapped storage.
+ */
+public class MappedGraphMemberChangeTest extends MemberChangeTest {
+  @Override
+  protected void setUp() throws Exception {
+    System.setProperty(GlobalOptions.USE_MAPPED_DEPENDENCY_GRAPH_OPTION, "true");
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      super.tearDown();
+    }
+    finally {
+      System.clearProperty(GlobalOptions.USE_MAPPED_DEPENDENCY_GRAPH_OPTION);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+
+public class ContentHashesTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GlobalOptions.USE_CONTENT_HASHES_OPTION, "true");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.USE_CONTENT_HASHES_OPTION);
+    super.tearDown();
+  }
+
+  public void testTouchedFileIsNotRecompiled() {
+    String a = createFile("src/A.java", "class A {}");
+    createFile("src/B.java", "class B {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    // hashes are computed lazily: the file hasn't been hashed before its timestamp changed
+    change(a);
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A.java");
+
+    change(a);
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+
+    change(a, "class A { int x; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A.java");
+
+    change(a);
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+  }
+}
@@ -0,0 +1,79 @@
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+
+public class JavaBuildCacheTest extends JpsBuildTestCase {
+  private File myCacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myCacheDir = FileUtil.createTempDirectory("build-cache", null);
+    System.setProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION, myCacheDir.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION);
+    FileUtil.delete(myCacheDir);
+    super.tearDown();
+  }
+
+  public void testRestoreOutputsOfRevertedSources() {
+    String a = createFile("src/A.java", "public class A { class Inner {} }");
+    JpsModule m = addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+    assertStatesCount(1);
+
+    change(a, "public class A {}");
+    makeAll().assertSuccessful();
+    assertOutput(m, fs().file("A.class"));
+    assertStatesCount(2);
+
+    change(a, "public class A { class Inner {} }");
+    makeAll().assertSuccessful();
+    assertOutput(m, fs().file("A.class").file("A$Inner.class"));
+    assertStatesCount(2);
+  }
+
+  public void testTouchedSourceKeepsState() {
+    String a = createFile("src/A.java", "public class A {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+    assertStatesCount(1);
+
+    // the content is hashed again because the timestamp has changed
+    change(a);
+    makeAll().assertSuccessful();
+    assertStatesCount(1);
+  }
+
+  public void testDependencyChangeInvalidatesDependentState() {
+    String a = createFile("src/A.java", "public class A { B b; }");
+    String b = createFile("depSrc/B.java", "public class B {}");
+    JpsModule main = addModule("main", PathUtil.getParentPath(a));
+    JpsModule dep = addModule("dep", PathUtil.getParentPath(b));
+    main.getDependenciesList().addModuleDependency(dep);
+    rebuildAll();
+    assertStatesCount(2);
+
+    change(b, "public class B { int x; }");
+    change(a);
+    makeAll().assertSuccessful();
+    assertStatesCount(4);
+  }
+
+  private void assertStatesCount(int expected) {
+    File[] states = myCacheDir.listFiles();
+    assertNotNull(states);
+    assertEquals(expected, states.length);
+  }
+}
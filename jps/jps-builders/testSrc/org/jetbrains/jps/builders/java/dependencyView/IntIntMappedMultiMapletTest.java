@@ -0,0 +1,250 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.IntInlineKeyDescriptor;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectProcedure;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class IntIntMappedMultiMapletTest extends TestCase {
+  private static final String TABLE = "graph.tab";
+  private static final String GRAPH = "graph.graph";
+
+  private File myDir;
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("mapped-graph", null);
+    myFile = new File(myDir, GRAPH);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testChangesAreVisibleBeforeAndAfterCompaction() throws Exception {
+    IntIntMappedMultiMaplet maplet = new IntIntMappedMultiMaplet(myFile);
+    maplet.put(1, 10);
+    maplet.put(1, 11);
+    maplet.put(2, set(20, 21));
+    Map<Integer, Set<Integer>> expected = map(1, set(10, 11), 2, set(20, 21));
+    assertEquals(expected, toMap(maplet));
+
+    maplet.flush(false);
+    assertTrue(myFile.isFile());
+    assertEquals(expected, toMap(maplet));
+    assertTrue(maplet.containsKey(1));
+    assertFalse(maplet.containsKey(3));
+    assertNull(maplet.get(3));
+    maplet.close();
+
+    maplet = new IntIntMappedMultiMaplet(myFile);
+    assertEquals(expected, toMap(maplet));
+    maplet.close();
+  }
+
+  public void testMergeWithStoredData() throws Exception {
+    IntIntMappedMultiMaplet maplet = new IntIntMappedMultiMaplet(myFile);
+    for (int key = 0; key < 100; key += 2) {
+      maplet.put(key, set(key, key + 1000));
+    }
+    maplet.flush(false);
+
+    Map<Integer, Set<Integer>> expected = toMap(maplet);
+    // new keys go between and around the stored ones
+    for (int key = -5; key < 110; key += 3) {
+      maplet.put(key, key * 10);
+      add(expected, key, key * 10);
+    }
+    maplet.replace(4, set(7));
+    expected.put(4, new HashSet<Integer>(Arrays.asList(7)));
+    maplet.putAll(maplet(50, set(1, 2), 200, set(3)));
+    add(expected, 50, 1);
+    add(expected, 50, 2);
+    add(expected, 200, 3);
+    assertEquals(expected, toMap(maplet));
+
+    maplet.flush(false);
+    assertEquals(expected, toMap(maplet));
+    maplet.close();
+
+    maplet = new IntIntMappedMultiMaplet(myFile);
+    assertEquals(expected, toMap(maplet));
+    for (Map.Entry<Integer, Set<Integer>> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), toSet(maplet.get(entry.getKey())));
+    }
+    maplet.close();
+  }
+
+  public void testDeletions() throws Exception {
+    IntIntMappedMultiMaplet maplet = new IntIntMappedMultiMaplet(myFile);
+    maplet.put(1, set(10, 11));
+    maplet.put(2, set(20, 21));
+    maplet.put(3, set(30));
+    maplet.put(4, set(40, 41, 42));
+    maplet.flush(false);
+
+    maplet.remove(1);
+    maplet.removeFrom(2, 20);
+    maplet.removeFrom(3, 30);
+    maplet.removeAll(4, set(40, 42));
+    maplet.removeFrom(5, 50);
+    maplet.remove(6);
+    Map<Integer, Set<Integer>> expected = map(2, set(21), 4, set(41));
+    assertEquals(expected, toMap(maplet));
+    assertFalse(maplet.containsKey(1));
+    assertFalse(maplet.containsKey(3));
+    assertFalse(maplet.containsKey(5));
+    assertNull(maplet.get(1));
+    assertNull(maplet.get(3));
+
+    maplet.flush(false);
+    assertEquals(expected, toMap(maplet));
+    assertFalse(maplet.containsKey(3));
+
+    // a removed key can be added again
+    maplet.put(1, 12);
+    maplet.close();
+    maplet = new IntIntMappedMultiMaplet(myFile);
+    assertEquals(map(1, set(12), 2, set(21), 4, set(41)), toMap(maplet));
+    maplet.close();
+  }
+
+  public void testInterruptedCompactionForcesRebuild() throws Exception {
+    IntIntMappedMultiMaplet maplet = new IntIntMappedMultiMaplet(myFile);
+    maplet.put(1, 10);
+    maplet.close();
+    assertFalse(IntIntMappedMultiMaplet.getTempFile(myFile).exists());
+
+    FileUtil.writeToFile(IntIntMappedMultiMaplet.getTempFile(myFile), new byte[]{0, 0, 0, 1});
+    try {
+      new IntIntMappedMultiMaplet(myFile);
+      fail("leftover temporary file is not detected");
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  public void testCorruptedFile() throws Exception {
+    FileUtil.writeToFile(myFile, new byte[]{0, 0, 0, 1, 0, 0, 0, 5, 0, 0, 0, 0});
+    try {
+      new IntIntMappedMultiMaplet(myFile);
+      fail("corrupted data is not detected");
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  public void testMigrationFromTableToGraph() throws Exception {
+    IntIntMultiMaplet table = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myDir, TABLE), new IntInlineKeyDescriptor());
+    table.put(1, set(10, 11));
+    table.put(2, set(20));
+    table.close();
+
+    IntIntMultiMaplet graph = Mappings.createClassGraph(myDir, TABLE, GRAPH, true);
+    assertTrue(graph instanceof IntIntMappedMultiMaplet);
+    assertEquals(map(1, set(10, 11), 2, set(20)), toMap(graph));
+    graph.close();
+    assertFalse(new File(myDir, TABLE).exists());
+
+    // nothing to migrate the second time
+    graph = Mappings.createClassGraph(myDir, TABLE, GRAPH, true);
+    assertEquals(map(1, set(10, 11), 2, set(20)), toMap(graph));
+    graph.close();
+  }
+
+  public void testMigrationFromGraphToTable() throws Exception {
+    IntIntMultiMaplet graph = new IntIntMappedMultiMaplet(myFile);
+    graph.put(1, set(10, 11));
+    graph.put(2, set(20));
+    graph.close();
+
+    IntIntMultiMaplet table = Mappings.createClassGraph(myDir, TABLE, GRAPH, false);
+    assertTrue(table instanceof IntIntPersistentMultiMaplet);
+    assertEquals(map(1, set(10, 11), 2, set(20)), toMap(table));
+    table.close();
+    assertFalse(myFile.exists());
+
+    table = Mappings.createClassGraph(myDir, TABLE, GRAPH, false);
+    assertEquals(map(1, set(10, 11), 2, set(20)), toMap(table));
+    table.close();
+
+    // and back
+    graph = Mappings.createClassGraph(myDir, TABLE, GRAPH, true);
+    assertEquals(map(1, set(10, 11), 2, set(20)), toMap(graph));
+    graph.close();
+  }
+
+  private static TIntHashSet set(int... values) {
+    return new TIntHashSet(values);
+  }
+
+  private static Set<Integer> toSet(TIntHashSet values) {
+    assertNotNull(values);
+    final Set<Integer> result = new HashSet<Integer>();
+    for (int value : values.toArray()) {
+      result.add(value);
+    }
+    return result;
+  }
+
+  private static Map<Integer, Set<Integer>> map(Object... keysAndValues) {
+    final Map<Integer, Set<Integer>> result = new TreeMap<Integer, Set<Integer>>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      result.put((Integer)keysAndValues[i], toSet((TIntHashSet)keysAndValues[i + 1]));
+    }
+    return result;
+  }
+
+  private static IntIntMultiMaplet maplet(Object... keysAndValues) {
+    final IntIntMultiMaplet result = new IntIntTransientMultiMaplet();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      result.put((Integer)keysAndValues[i], (TIntHashSet)keysAndValues[i + 1]);
+    }
+    return result;
+  }
+
+  private static void add(Map<Integer, Set<Integer>> map, int key, int value) {
+    Set<Integer> values = map.get(key);
+    if (values == null) {
+      values = new HashSet<Integer>();
+      map.put(key, values);
+    }
+    values.add(value);
+  }
+
+  private static Map<Integer, Set<Integer>> toMap(IntIntMultiMaplet maplet) {
+    final Map<Integer, Set<Integer>> result = new TreeMap<Integer, Set<Integer>>();
+    maplet.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        assertNull(result.put(key, toSet(values)));
+        return true;
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassVisitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Checks that class files analyzed in parallel are added to the mappings the same way as the ones analyzed one by one
+ */
+public class MappingsAnalysisTest extends TestCase {
+  private static final Class[] CLASSES = {
+    Mappings.class, ClassRepr.class, MethodRepr.class, FieldRepr.class, UsageRepr.class, TypeRepr.class, ClassfileAnalyzer.class,
+    DependencyContext.class, IntIntMappedMultiMaplet.class, IntIntPersistentMultiMaplet.class, ArrayList.class, HashMap.class,
+    TreeMap.class, LinkedList.class, AbstractList.class, AbstractMap.class, Collections.class, String.class, Thread.class
+  };
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("mappings-analysis", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testParallelAnalysisGivesSameMappings() throws Exception {
+    final String sequential = buildMappings("sequential", false);
+    final String parallel = buildMappings("parallel", true);
+    assertTrue(sequential.contains(Mappings.class.getName().replace('.', '/')));
+    assertEquals(sequential, parallel);
+    // and doesn't depend on the order the analysis completes in
+    assertEquals(parallel, buildMappings("parallel2", true));
+  }
+
+  public void testAnalysisFailureIsRethrown() throws Exception {
+    final Mappings mappings = new Mappings(new File(myDir, "failure"), true);
+    try {
+      final Mappings delta = mappings.createDelta();
+      final Callbacks.Backend callback = delta.getCallback();
+      final RuntimeException failure = new RuntimeException("broken class file");
+      callback.associate("out/Broken.class", "src/Broken.java", new ClassReader(loadClass(String.class)) {
+        @Override
+        public void accept(ClassVisitor classVisitor, int flags) {
+          throw failure;
+        }
+      });
+      associate(callback, Mappings.class);
+      try {
+        delta.getClasses("src/Broken.java");
+        fail("analysis failure is not rethrown");
+      }
+      catch (RuntimeException e) {
+        assertSame(failure, e.getCause());
+      }
+      // the failed results are discarded
+      assertNull(delta.getClasses("src/Broken.java"));
+      delta.close();
+    }
+    finally {
+      mappings.close();
+    }
+  }
+
+  public void testCloseWithPendingAnalysis() throws Exception {
+    final Mappings mappings = new Mappings(new File(myDir, "close"), true);
+    try {
+      final Mappings delta = mappings.createDelta();
+      final Callbacks.Backend callback = delta.getCallback();
+      for (int i = 0; i < 10; i++) {
+        for (Class aClass : CLASSES) {
+          associate(callback, aClass);
+        }
+      }
+      delta.close();
+    }
+    finally {
+      mappings.close();
+    }
+  }
+
+  private String buildMappings(final String name, final boolean parallel) throws IOException {
+    final Mappings mappings = new Mappings(new File(myDir, name), true);
+    try {
+      final Mappings delta = mappings.createDelta();
+      final Callbacks.Backend callback = delta.getCallback();
+      for (Class aClass : CLASSES) {
+        associate(callback, aClass);
+        if (!parallel) {
+          // waits for the analysis of the class
+          assertNotNull(delta.getClasses(getSourceName(aClass)));
+        }
+      }
+      mappings.differentiateOnRebuild(delta);
+      mappings.integrate(delta);
+
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final PrintStream stream = new PrintStream(output);
+      mappings.toStream(stream);
+      stream.flush();
+      return output.toString();
+    }
+    finally {
+      mappings.close();
+    }
+  }
+
+  private static void associate(Callbacks.Backend callback, Class aClass) throws IOException {
+    callback.associate("out/" + aClass.getName().replace('.', '/') + ".class", getSourceName(aClass), new ClassReader(loadClass(aClass)));
+  }
+
+  private static String getSourceName(Class aClass) {
+    return "src/" + aClass.getName().replace('.', '/') + ".java";
+  }
+
+  private static byte[] loadClass(Class aClass) throws IOException {
+    final InputStream stream = aClass.getResourceAsStream("/" + aClass.getName().replace('.', '/') + ".class");
+    assertNotNull(aClass.getName(), stream);
+    try {
+      return FileUtil.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import junit.framework.TestCase;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+
+import java.util.*;
+
+public class ChunkCriticalPathTest extends TestCase {
+  private final List<IncProjectBuilder.ChunkNode> myNodes = new ArrayList<IncProjectBuilder.ChunkNode>();
+
+  public void testPathGoesThroughDependents() {
+    IncProjectBuilder.ChunkNode a = node(10);
+    IncProjectBuilder.ChunkNode b = node(20);
+    IncProjectBuilder.ChunkNode c = node(100);
+    IncProjectBuilder.ChunkNode d = node(5);
+    a.addDependent(b);
+    a.addDependent(d);
+    b.addDependent(c);
+    IncProjectBuilder.computeCriticalPaths(myNodes);
+
+    assertEquals(130, a.getCriticalPath());
+    assertEquals(120, b.getCriticalPath());
+    assertEquals(100, c.getCriticalPath());
+    assertEquals(5, d.getCriticalPath());
+  }
+
+  public void testLongChainStartsBeforeLongerChunk() {
+    IncProjectBuilder.ChunkNode chainStart = node(10);
+    IncProjectBuilder.ChunkNode chainEnd = node(100);
+    IncProjectBuilder.ChunkNode single = node(50);
+    chainStart.addDependent(chainEnd);
+    IncProjectBuilder.computeCriticalPaths(myNodes);
+
+    assertEquals(Arrays.asList(chainStart, single), getStartOrder(chainStart, single));
+  }
+
+  public void testUnknownTimeIsAverage() {
+    IncProjectBuilder.ChunkNode known1 = node(10);
+    IncProjectBuilder.ChunkNode known2 = node(50);
+    IncProjectBuilder.ChunkNode unknown = node(-1);
+    known1.addDependent(unknown);
+    IncProjectBuilder.computeCriticalPaths(myNodes);
+
+    assertEquals(30, unknown.getCriticalPath());
+    assertEquals(40, known1.getCriticalPath());
+    assertEquals(50, known2.getCriticalPath());
+  }
+
+  public void testNoKnownTimes() {
+    IncProjectBuilder.ChunkNode a = node(-1);
+    IncProjectBuilder.ChunkNode b = node(-1);
+    IncProjectBuilder.ChunkNode c = node(-1);
+    a.addDependent(c);
+    b.addDependent(c);
+    IncProjectBuilder.computeCriticalPaths(myNodes);
+
+    assertEquals(2, a.getCriticalPath());
+    assertEquals(2, b.getCriticalPath());
+    assertEquals(1, c.getCriticalPath());
+    // equal paths keep the order of the sorted chunks
+    assertEquals(Arrays.asList(a, b), getStartOrder(b, a));
+  }
+
+  private IncProjectBuilder.ChunkNode node(long buildTime) {
+    IncProjectBuilder.ChunkNode node =
+      new IncProjectBuilder.ChunkNode(new BuildTargetChunk(Collections.<BuildTarget<?>>emptySet()), myNodes.size(), buildTime);
+    myNodes.add(node);
+    return node;
+  }
+
+  private static List<IncProjectBuilder.ChunkNode> getStartOrder(IncProjectBuilder.ChunkNode... readyNodes) {
+    PriorityQueue<IncProjectBuilder.ChunkNode> queue = new PriorityQueue<IncProjectBuilder.ChunkNode>(Arrays.asList(readyNodes));
+    List<IncProjectBuilder.ChunkNode> order = new ArrayList<IncProjectBuilder.ChunkNode>();
+    while (!queue.isEmpty()) {
+      order.add(queue.poll());
+    }
+    return order;
+  }
+}
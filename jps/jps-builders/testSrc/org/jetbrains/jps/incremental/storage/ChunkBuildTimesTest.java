@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+import java.util.Collections;
+
+public class ChunkBuildTimesTest extends JpsBuildTestCase {
+  private File myDir;
+  private File myFile;
+  private BuildTargetChunk myProduction;
+  private BuildTargetChunk myTests;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("chunk-times", null);
+    myFile = new File(myDir, "times/chunks.dat");
+    JpsModule module = addModule("m");
+    myProduction = chunk(new ModuleBuildTarget(module, JavaModuleBuildTargetType.PRODUCTION));
+    myTests = chunk(new ModuleBuildTarget(module, JavaModuleBuildTargetType.TEST));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testUnknownChunk() {
+    ChunkBuildTimes times = new ChunkBuildTimes(myFile);
+    assertEquals(-1, times.getBuildTime(myProduction));
+    times.save();
+    assertFalse(myFile.exists());
+  }
+
+  public void testTimesAreAveragedAndSaved() {
+    ChunkBuildTimes times = new ChunkBuildTimes(myFile);
+    times.saveBuildTime(myProduction, 100);
+    times.saveBuildTime(myProduction, 200);
+    times.saveBuildTime(myTests, 30);
+    assertEquals(150, times.getBuildTime(myProduction));
+    times.save();
+    assertTrue(myFile.isFile());
+    assertFalse(new File(myFile.getPath() + ".tmp").exists());
+
+    ChunkBuildTimes loaded = new ChunkBuildTimes(myFile);
+    assertEquals(150, loaded.getBuildTime(myProduction));
+    assertEquals(30, loaded.getBuildTime(myTests));
+
+    // the saved file is replaced
+    loaded.saveBuildTime(myTests, 50);
+    loaded.save();
+    assertEquals(40, new ChunkBuildTimes(myFile).getBuildTime(myTests));
+    assertEquals(150, new ChunkBuildTimes(myFile).getBuildTime(myProduction));
+  }
+
+  public void testCorruptedFileIsIgnored() throws Exception {
+    FileUtil.writeToFile(myFile, new byte[]{0, 0, 0, 1, 0, 0, 0, 5, 1});
+    ChunkBuildTimes times = new ChunkBuildTimes(myFile);
+    assertEquals(-1, times.getBuildTime(myProduction));
+
+    times.saveBuildTime(myProduction, 10);
+    times.save();
+    assertEquals(10, new ChunkBuildTimes(myFile).getBuildTime(myProduction));
+  }
+
+  private static BuildTargetChunk chunk(BuildTarget<?> target) {
+    return new BuildTargetChunk(Collections.<BuildTarget<?>>singleton(target));
+  }
+}
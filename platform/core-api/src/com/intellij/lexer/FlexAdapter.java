@@ -16,14 +16,16 @@
 package com.intellij.lexer;
 
 import com.intellij.psi.tree.IElementType;
+import com.intellij.util.ArrayUtil;
 
 import java.io.IOException;
 
 /**
  * @author max
  */
-public class FlexAdapter extends LexerBase {
+public class FlexAdapter extends LexerBase implements RestartableLexer {
   private FlexLexer myFlex = null;
+  private final int[] myRestartableStates;
   private IElementType myTokenType = null;
   private CharSequence myText;
 
@@ -31,7 +33,16 @@ public class FlexAdapter extends LexerBase {
   private int myState;
 
   public FlexAdapter(final FlexLexer flex) {
+    this(flex, ArrayUtil.EMPTY_INT_ARRAY);
+  }
+
+  /**
+   * @param restartableStates the lexical states in which the flex lexer can be reset at a token start, i.e. the ones in which
+   *                          its tokens depend on nothing but the state, see {@link RestartableLexer}
+   */
+  public FlexAdapter(final FlexLexer flex, final int... restartableStates) {
     myFlex = flex;
+    myRestartableStates = restartableStates;
   }
 
   public FlexLexer getFlex() {
@@ -76,6 +87,11 @@ public class FlexAdapter extends LexerBase {
     myTokenType = null;
   }
 
+  @Override
+  public boolean isRestartableState(int state) {
+    return ArrayUtil.indexOf(myRestartableStates, state) >= 0;
+  }
+
   @Override
   public CharSequence getBufferSequence() {
     return myText;
@@ -18,7 +18,7 @@ package com.intellij.lexer;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.TokenSet;
 
-public class MergingLexerAdapter extends MergingLexerAdapterBase {
+public class MergingLexerAdapter extends MergingLexerAdapterBase implements RestartableLexer {
   public MergingLexerAdapter(final Lexer original, final TokenSet tokensToMerge){
     super(original, new MergeFunction() {
       @Override
@@ -36,4 +36,11 @@ public class MergingLexerAdapter extends MergingLexerAdapterBase {
       }
     });
   }
-}
\ No newline at end of file
+
+  @Override
+  public boolean isRestartableState(int state) {
+    // a merged token starts where the original one does, in the same state, so it's restartable if the original one is
+    final Lexer original = getOriginal();
+    return original instanceof RestartableLexer && ((RestartableLexer)original).isRestartableState(state);
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lexer;
+
+/**
+ * A lexer which can be restarted at a token start not only in its initial state but in some of the other states it reports there.
+ * Editor highlighters use such states to relex a change in a long-lived state (e.g. a big comment) from a token close to it.
+ * Lexers which keep more data than the state, e.g. the active layer of a {@link LayeredLexer}, must not report such states
+ * as restartable.
+ */
+public interface RestartableLexer {
+  /**
+   * @return true if {@link Lexer#start(CharSequence, int, int, int)} with the given state at the start of a token produces the same
+   * tokens as were produced when the lexer reported the state at that token
+   */
+  boolean isRestartableState(int state);
+}
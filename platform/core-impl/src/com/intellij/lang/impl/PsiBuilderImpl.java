@@ -36,6 +36,7 @@ import com.intellij.psi.text.BlockSupport;
 import com.intellij.psi.tree.*;
 import com.intellij.util.CharTable;
 import com.intellij.util.ExceptionUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.ThreeState;
 import com.intellij.util.TripleFunction;
 import com.intellij.util.containers.*;
@@ -46,6 +47,7 @@ import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.reflect.Field;
 import java.util.AbstractList;
@@ -90,6 +92,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   private static TokenSet ourAnyLanguageWhitespaceTokens = TokenSet.EMPTY;
 
+  // composites consisting of tokens only keep them packed until the children are accessed
+  private static boolean ourCompactTree = SystemProperties.getBooleanProperty("idea.compact.ast", false);
+  private static final int MIN_PACKED_TOKENS = 2;
+  private PackedLeaves.LeafFactory myLeafFactory;
+
   private Map<Key, Object> myUserData = null;
 
   private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<StartMarker>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
@@ -1219,14 +1226,18 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
         if (!marker.myDoneMarker.myCollapse) {
-          curMarker = marker;
-
           final CompositeElement childNode = createComposite(marker);
           curNode.rawAddChildrenWithoutNotifications(childNode);
-          curNode = childNode;
+          if (marker.myFirstChild == null && packLeaves(childNode, lexIndex, marker.myDoneMarker.myLexemeIndex)) {
+            lexIndex = marker.myDoneMarker.myLexemeIndex;
+          }
+          else {
+            curMarker = marker;
+            curNode = childNode;
 
-          item = marker.myFirstChild != null ? marker.myFirstChild : marker.myDoneMarker;
-          continue;
+            item = marker.myFirstChild != null ? marker.myFirstChild : marker.myDoneMarker;
+            continue;
+          }
         }
         else {
           lexIndex = collapseLeaves(curNode, marker);
@@ -1263,6 +1274,28 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     return curToken;
   }
 
+  private boolean packLeaves(final CompositeElement node, final int startToken, int endToken) {
+    endToken = Math.min(endToken, myLexemeCount);
+    if (!ourCompactTree || myCharTable == null || endToken - startToken < MIN_PACKED_TOKENS || node instanceof LazyParseableElement) {
+      return false;
+    }
+    for (int i = startToken; i < endToken; i++) {
+      final IElementType type = myLexTypes[i];
+      if (type instanceof ILeafElementType || type instanceof CustomParsingType || type instanceof ILazyParseableElementType) return false;
+    }
+
+    if (myLeafFactory == null) {
+      myLeafFactory = new PackedLeafFactory(myCharTable, myWhitespaces);
+    }
+    node.setPackedLeaves(new PackedLeaves(myLeafFactory, myText, myLexStarts, myLexTypes, startToken, endToken));
+    return true;
+  }
+
+  @TestOnly
+  public static void setCompactTree(boolean compactTree) {
+    ourCompactTree = compactTree;
+  }
+
   private int collapseLeaves(final CompositeElement ast, final StartMarker startMarker) {
     final int start = myLexStarts[startMarker.myLexemeIndex];
     final int end = myLexStarts[startMarker.myDoneMarker.myLexemeIndex];
@@ -1609,13 +1642,19 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   @NotNull
   private TreeElement createLeaf(final IElementType type, final int start, final int end) {
-    CharSequence text = myCharTable.intern(myText, start, end);
-    if (myWhitespaces.contains(type)) {
+    return createLeaf(type, myText, start, end, myCharTable, myWhitespaces);
+  }
+
+  @NotNull
+  private static TreeElement createLeaf(final IElementType type, final CharSequence baseText, final int start, final int end,
+                                        final CharTable charTable, final TokenSet whitespaces) {
+    CharSequence text = charTable.intern(baseText, start, end);
+    if (whitespaces.contains(type)) {
       return new PsiWhiteSpaceImpl(text);
     }
 
     if (type instanceof CustomParsingType) {
-      return (TreeElement)((CustomParsingType)type).parse(text, myCharTable);
+      return (TreeElement)((CustomParsingType)type).parse(text, charTable);
     }
 
     if (type instanceof ILazyParseableElementType) {
@@ -1625,6 +1664,24 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     return ASTFactory.leaf(type, text);
   }
 
+  /**
+   * Is referenced by the packed leaves of the tree, so it mustn't keep the builder with its token arrays and markers.
+   */
+  private static class PackedLeafFactory extends PackedLeaves.LeafFactory {
+    private final CharTable myCharTable;
+    private final TokenSet myWhitespaces;
+
+    private PackedLeafFactory(@NotNull CharTable charTable, @NotNull TokenSet whitespaces) {
+      myCharTable = charTable;
+      myWhitespaces = whitespaces;
+    }
+
+    @Override
+    protected TreeElement createLeaf(@NotNull IElementType type, @NotNull CharSequence text, int start, int end) {
+      return start < end ? PsiBuilderImpl.createLeaf(type, text, start, end, myCharTable, myWhitespaces) : null;
+    }
+  }
+
   /**
    * just to make removeRange method available.
    */
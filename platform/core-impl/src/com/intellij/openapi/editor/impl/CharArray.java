@@ -24,9 +24,11 @@ import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.CharSequenceBackedByArray;
+import com.intellij.util.text.ImmutableText;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
@@ -47,6 +49,14 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
   private static final boolean DEBUG_DEFERRED_PROCESSING = LOG.isDebugEnabled() || Boolean.getBoolean("idea.document.debug.bulk.processing");
+
+  /**
+   * Keep the text in a {@link ImmutableText rope} instead of the plain array: edits of huge documents don't shift the tail of the text
+   * and {@link #getImmutableCharSequence() snapshots} don't copy it. The array is built on a {@link #getChars()} request and dropped
+   * by the next edit, so the edits never shift the whole array.
+   */
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  private static boolean ourUseRope = Boolean.getBoolean("idea.document.rope");
   /**
    * We can't exclude possibility of situation when <code>'defer changes'</code> state is {@link #setDeferredChangeMode(boolean) entered}
    * but not exited, hence, we want to perform automatic flushing if necessary in order to avoid memory leaks. This constant holds
@@ -62,6 +72,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private volatile CharSequence myOriginalSequence;
   private volatile char[] myArray;
+  private volatile ImmutableText myRope; // not null in the rope mode, myArray is then just a copy of the text built for getChars()
   private volatile Reference<String> myStringRef; // buffers String value - for not to generate it every time
   private volatile int myBufferSize;
   private volatile int myDeferredShift;
@@ -98,11 +109,26 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    */
   private String myDebugTextOnBatchUpdateStart;
 
+  /**
+   * @return the previous value, the mode applies to the instances created afterwards
+   */
+  @TestOnly
+  static boolean setUseRope(boolean useRope) {
+    final boolean old = ourUseRope;
+    ourUseRope = useRope;
+    return old;
+  }
+
   // bufferSize == 0 means unbounded
   CharArray(final int bufferSize, @NotNull char[] data, int length) {
     myBufferSize = bufferSize;
     myDeferredChangesStorage = new TextChangesStorage();
-    myArray = Arrays.copyOf(data, length);
+    if (ourUseRope) {
+      myRope = ImmutableText.valueOf(new CharArrayCharSequence(data, 0, length));
+    }
+    else {
+      myArray = Arrays.copyOf(data, length);
+    }
     myCount = length;
 
     if (myDebug) {
@@ -167,7 +193,12 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private void setText(@NotNull CharSequence chars) {
     assertConsistency();
-    myOriginalSequence = chars.toString();
+    if (myRope != null) {
+      myRope = ImmutableText.valueOf(chars.toString());
+    }
+    else {
+      myOriginalSequence = chars.toString();
+    }
     myArray = null;
     myStringRef = null;
     myCount = chars.length();
@@ -200,7 +231,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (!myDebug) return;
     final CharSequence seqFromCharArray;
 
-    if (myArray != null) {
+    if (myRope != null) {
+      assert myCount == myRope.length();
+      seqFromCharArray = myArray == null ? myRope : new CharArrayCharSequence(myArray, myStart, myCount);
+    }
+    else if (myArray != null) {
       assert myCount <= myArray.length;
       seqFromCharArray = new CharArrayCharSequence(myArray, myStart, myCount);
     } else {
@@ -256,7 +291,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doReplace(int startOffset, int endOffset, @NotNull CharSequence newString) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      updateRope(myRope.replace(startOffset, endOffset, newString));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(newString, startOffset, endOffset));
       if (myDebug) {
         myDebugArray.doReplace(startOffset, endOffset, newString);
@@ -293,7 +331,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      updateRope(myRope.delete(startIndex, endIndex));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl("", startIndex, endIndex));
       if (myDebug) {
         myDebugArray.doRemove(startIndex, endIndex);
@@ -321,7 +362,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doInsert(@NotNull CharSequence s, final int startIndex) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      updateRope(myRope.insert(startIndex, s));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(s, startIndex));
       if (myDebug) {
         myDebugArray.doInsert(s, startIndex);
@@ -340,6 +384,14 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
   }
 
+  private void updateRope(@NotNull ImmutableText rope) {
+    // the array is built from the rope again on the next getChars() request
+    myArray = null;
+    myRope = rope;
+    myCount = rope.length();
+    myStringRef = null;
+  }
+
   /**
    * Stores given change at collection of deferred changes (merging it with others if necessary) and updates current object
    * state ({@link #length() length} etc).
@@ -385,12 +437,27 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     return originalSequence == null ? this : originalSequence;
   }
 
+  /**
+   * @return the current text which is not affected by the subsequent modifications. It is free in the rope mode
+   * and costs a copy of the text (shared with {@link #toString()}) otherwise.
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    ImmutableText rope = myRope;
+    if (rope != null) return rope;
+    CharSequence originalSequence = myOriginalSequence;
+    return originalSequence == null ? toString() : originalSequence;
+  }
+
   public String toString() {
     assertConsistency();
     String str = myStringRef == null ? null : myStringRef.get();
     if (str == null) {
       if (!myHasDeferredChanges) {
-        if (myOriginalSequence != null) {
+        if (myRope != null) {
+          str = myRope.toString();
+        }
+        else if (myOriginalSequence != null) {
           str = myOriginalSequence.toString();
         }
         else {
@@ -425,7 +492,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     i += myStart;
     final char result;
     if (!myHasDeferredChanges) {
-      if (myOriginalSequence != null) {
+      ImmutableText rope = myRope;
+      if (rope != null) {
+        result = rope.charAt(i);
+      }
+      else if (myOriginalSequence != null) {
         result = myOriginalSequence.charAt(i);
       }
       else {
@@ -451,6 +522,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     if (start == 0 && end == length()) return this;
+    if (myRope != null) {
+      return myRope.subSequence(start, end);
+    }
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
@@ -465,11 +539,15 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     char[] array = myArray;
     CharSequence originalSequence = myOriginalSequence;
-    if (myHasDeferredChanges || originalSequence != null && array == null) {
+    if (myHasDeferredChanges || (originalSequence != null || myRope != null) && array == null) {
       // slow track
       lock.lock();
       try {
         flushDeferredChanged();
+        if (myRope != null && myArray == null) {
+          myArray = myRope.toCharArray();
+        }
+        array = myArray;
         if (myOriginalSequence != null && myArray == null) {
           myArray = array = ArrayUtil.realloc(CharArrayUtil.fromSequence(myOriginalSequence), myOriginalSequence.length());
           myStringRef = null;
@@ -488,7 +566,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     flushDeferredChanged();
-    if (myOriginalSequence == null) {
+    if (myRope != null) {
+      myRope.getChars(0, myRope.length(), dst, dstOffset);
+    }
+    else if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
     }
     else {
@@ -520,7 +601,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private CharSequence doSubString(int start, int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    if (myRope != null) {
+      result = myRope.subSequence(start, end);
+    }
+    else if (myOriginalSequence == null) {
       result = myDeferredChangesStorage.substring(myArray, start + myStart, end + myStart);
     }
     else {
@@ -604,7 +688,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    * @param deferredChangeMode    flag that defines if <code>'defer changes'</code> mode should be used by the current object
    */
   public void setDeferredChangeMode(boolean deferredChangeMode) {
-    if (!DISABLE_DEFERRED_PROCESSING) {
+    // rope edits don't move the text, so there is nothing to defer
+    if (!DISABLE_DEFERRED_PROCESSING && myRope == null) {
       if (deferredChangeMode) {
         if (myDebug) {
           myDebugArray.setText(myDebugTextOnBatchUpdateStart = toString());
@@ -672,7 +757,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NonNls
   @NotNull
   public String dumpState() {
-    return "deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
+    return "rope: " + (myRope != null) + ", deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
            ", deferred shift: " + myDeferredShift+"); view offsets: [" + myStart+"; "+myCount+"]; deferred changes: "+myDeferredChangesStorage;
   }
   
@@ -644,6 +644,15 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * @return snapshot of the document text which may be safely passed to a background thread, it's not changed by subsequent
+   * modifications of the document
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    return myText.getImmutableCharSequence();
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
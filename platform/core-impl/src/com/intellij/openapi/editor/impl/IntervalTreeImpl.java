@@ -30,9 +30,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.ConcurrentModificationException;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -48,6 +46,13 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<T>();
   private int deadReferenceCount;
 
+  // the tree is rebuilt from scratch when at least that many nodes are inserted at once and they are not too few compared to the tree size
+  private static final int REBUILD_THRESHOLD = 16;
+  // the thread running runBatchUpdate(), guarded by the write lock
+  private Thread myBatchThread;
+  // nodes added in the batch which are not inserted to the tree yet, accessed from myBatchThread only
+  private List<IntervalNode<T>> myPendingNodes;
+
   protected static class IntervalNode<E extends MutableInterval> extends RedBlackTree.Node<E> implements MutableInterval {
     private volatile int myStart;
     private volatile int myEnd;
@@ -400,6 +405,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean process(@NotNull Processor<? super T> processor) {
+    flushPendingNodes();
     try {
       l.readLock().lock();
       checkMax(true);
@@ -426,6 +432,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+    flushPendingNodes();
     try {
       l.readLock().lock();
       checkMax(true);
@@ -469,6 +476,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   }
 
   public boolean processOverlappingWithOutside(int start, int end, @NotNull Processor<? super T> processor) {
+    flushPendingNodes();
     try {
       l.readLock().lock();
       checkMax(true);
@@ -510,6 +518,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processContaining(int offset, @NotNull Processor<? super T> processor) {
+    flushPendingNodes();
     try {
       l.readLock().lock();
       checkMax(true);
@@ -554,6 +563,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   DisposableIterator<T> overlappingIterator(final int startOffset, final int endOffset) {
     ProperTextRange.assertProperRange(startOffset, endOffset, "");
 
+    flushPendingNodes();
     l.readLock().lock();
 
     try {
@@ -747,10 +757,16 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   public IntervalTreeImpl.IntervalNode<T> addInterval(@NotNull T interval, int start, int end, boolean greedyToLeft, boolean greedyToRight, int layer) {
     try {
       l.writeLock().lock();
+      IntervalNode<T> newNode = createNewNode(interval, start, end, greedyToLeft, greedyToRight, layer);
+      if (myBatchThread == Thread.currentThread()) {
+        // will be inserted at once with all the other intervals added in the batch
+        setNode(interval, newNode);
+        myPendingNodes.add(newNode);
+        return newNode;
+      }
       checkMax(true);
       processReferenceQueue();
       modCount++;
-      IntervalNode<T> newNode = createNewNode(interval, start, end, greedyToLeft, greedyToRight, layer);
       IntervalNode<T> insertedNode = findOrInsert(newNode);
       if (insertedNode == newNode) {
         setNode(interval, insertedNode);
@@ -904,9 +920,163 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     assert e == getRoot(); // assert the node belongs to our tree
   }
 
+  /**
+   * Runs the action collecting the intervals it adds instead of inserting them one by one. They are put into the tree together
+   * when the action finishes (or earlier, if the tree is queried or changed otherwise by the same thread in the meantime). When
+   * there are many of them, the tree is rebuilt from the sorted nodes in linear time instead of rebalancing it after every insertion.
+   * The action itself runs without the lock, which is taken only to insert or remove nodes, so listeners notified by the action
+   * don't block the readers. Other threads don't see the collected intervals until they are inserted.
+   */
+  public void runBatchUpdate(@NotNull Runnable action) {
+    if (myBatchThread == Thread.currentThread()) {
+      // nested batch
+      action.run();
+      return;
+    }
+    l.writeLock().lock();
+    try {
+      assert myBatchThread == null : "Concurrent batch updates: " + myBatchThread;
+      myBatchThread = Thread.currentThread();
+      myPendingNodes = new ArrayList<IntervalNode<T>>();
+    }
+    finally {
+      l.writeLock().unlock();
+    }
+
+    try {
+      action.run();
+      flushPendingNodes();
+    }
+    finally {
+      l.writeLock().lock();
+      try {
+        myBatchThread = null;
+        myPendingNodes = null;
+      }
+      finally {
+        l.writeLock().unlock();
+      }
+    }
+  }
+
+  // inserts the nodes added in the current batch, does nothing unless called from the thread running the batch
+  protected void flushPendingNodes() {
+    if (myBatchThread != Thread.currentThread()) return;
+    List<IntervalNode<T>> nodes = myPendingNodes;
+    if (nodes.isEmpty()) return;
+    l.writeLock().lock();
+    try {
+      myPendingNodes = new ArrayList<IntervalNode<T>>();
+      checkMax(true);
+      processReferenceQueue();
+      modCount++;
+      if (nodes.size() >= REBUILD_THRESHOLD && nodes.size() >= nodeSize() / 4) {
+        rebuildWith(nodes);
+      }
+      else {
+        for (IntervalNode<T> node : nodes) {
+          if (!node.hasAliveKey(false)) continue;
+          IntervalNode<T> insertedNode = findOrInsert(node);
+          if (insertedNode != node) {
+            mergeInto(node, insertedNode);
+          }
+        }
+      }
+      checkMax(true);
+    }
+    finally {
+      l.writeLock().unlock();
+    }
+  }
+
+  private void mergeInto(@NotNull IntervalNode<T> node, @NotNull IntervalNode<T> target) {
+    for (Getter<T> getter : node.intervals) {
+      T interval = getter.get();
+      if (interval != null) {
+        target.addInterval(interval);
+      }
+    }
+  }
+
+  // builds the balanced tree of the existing nodes and the added ones in O(n + k log k)
+  private void rebuildWith(@NotNull List<IntervalNode<T>> added) {
+    assertUnderWriteLock();
+    List<IntervalNode<T>> existing = new ArrayList<IntervalNode<T>>(nodeSize());
+    collectNormalized(getRoot(), 0, existing);
+    Collections.sort(added, new Comparator<IntervalNode<T>>() {
+      @Override
+      public int compare(IntervalNode<T> o1, IntervalNode<T> o2) {
+        return compareNormalized(o1, o2);
+      }
+    });
+
+    List<IntervalNode<T>> nodes = new ArrayList<IntervalNode<T>>(existing.size() + added.size());
+    int i = 0;
+    int j = 0;
+    while (i < existing.size() || j < added.size()) {
+      // on equal positions the existing node goes first so that the added one is merged into it, as findOrInsert() does
+      IntervalNode<T> node = j == added.size() || i < existing.size() && compareNormalized(existing.get(i), added.get(j)) <= 0
+                             ? existing.get(i++)
+                             : added.get(j++);
+      node.isAttachedToTree = false;
+      if (!node.hasAliveKey(false)) continue; // gced
+      IntervalNode<T> last = nodes.isEmpty() ? null : nodes.get(nodes.size() - 1);
+      if (last != null && compareNormalized(last, node) == 0) {
+        for (Getter<T> getter : node.intervals) {
+          T interval = getter.get();
+          if (interval != null) {
+            last.intervals.add(getter);
+            setNode(interval, last);
+          }
+        }
+      }
+      else {
+        nodes.add(node);
+      }
+    }
+
+    keySize = 0;
+    buildFromSorted(nodes);
+    for (IntervalNode<T> node : nodes) {
+      node.setValid(true);
+      node.setCachedValues(0, true, modCount);
+      node.isAttachedToTree = true;
+      keySize += node.intervals.size();
+    }
+    correctMaxDown(getRoot());
+    verifyProperties();
+  }
+
+  // collects the nodes in order, making their offsets absolute
+  private void collectNormalized(IntervalNode<T> root, int deltaUpToRootExclusive, @NotNull List<IntervalNode<T>> result) {
+    if (root == null) return;
+    assert root.isValid();
+    int delta = deltaUpToRootExclusive + root.delta;
+    collectNormalized(root.getLeft(), delta, result);
+    root.setIntervalStart(root.intervalStart() + delta);
+    root.setIntervalEnd(root.intervalEnd() + delta);
+    root.delta = 0;
+    result.add(root);
+    collectNormalized(root.getRight(), delta, result);
+  }
+
+  private int compareNormalized(@NotNull IntervalNode<T> i1, @NotNull IntervalNode<T> i2) {
+    int start1 = i1.intervalStart();
+    int start2 = i2.intervalStart();
+    if (start1 != start2) return start1 - start2;
+    return compareEqualStartIntervals(i1, i2);
+  }
+
+  private int correctMaxDown(IntervalNode<T> node) {
+    if (node == null) return 0;
+    node.maxEnd = Math.max(node.intervalEnd(), Math.max(correctMaxDown(node.getLeft()), correctMaxDown(node.getRight())));
+    return node.maxEnd;
+  }
+
   @Override
   public boolean removeInterval(@NotNull T interval) {
     if (!interval.isValid()) return false;
+    flushPendingNodes();
     try {
       l.writeLock().lock();
       modCount++;
@@ -953,6 +1123,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public int size() {
+    flushPendingNodes();
     return keySize;
   }
 
@@ -1188,6 +1359,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   }
 
   public void changeData(T interval, int start, int end, boolean greedyToLeft, boolean greedyToRight, int layer) {
+    flushPendingNodes();
     try {
       l.writeLock().lock();
 
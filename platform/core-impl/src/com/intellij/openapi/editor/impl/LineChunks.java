@@ -0,0 +1,320 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lengths and flags of the document lines kept in chunks of about {@link #CHUNK_SIZE} lines. Line starts are stored relative
+ * to the chunk start and text lengths and line counts of the chunks are summed up by Fenwick trees, so
+ * <ul>
+ *   <li>line and offset lookups take O(log n);</li>
+ *   <li>changing a line length updates a single chunk and the trees, i.e. O(log n) as well;</li>
+ *   <li>replacing lines rebuilds only the chunks they belong to, the trees are rebuilt only when the number of chunks changes.</li>
+ * </ul>
+ * Not thread-safe.
+ *
+ * @see LineSet
+ */
+class LineChunks {
+  static final int CHUNK_SIZE = 128;
+  private static final int MAX_CHUNK_SIZE = 2 * CHUNK_SIZE;
+
+  private static final Chunk[] EMPTY_CHUNKS = new Chunk[0];
+
+  private Chunk[] myChunks = EMPTY_CHUNKS;
+  // 1-based Fenwick trees over the chunk text lengths and line counts
+  private int[] myLengthTree = new int[1];
+  private int[] myCountTree = new int[1];
+  private int myLineCount;
+  private int myTextLength;
+
+  private static class Chunk {
+    final int[] myStarts;
+    final byte[] myFlags;
+    int myLength;
+
+    Chunk(@NotNull int[] starts, @NotNull byte[] flags, int length) {
+      myStarts = starts;
+      myFlags = flags;
+      myLength = length;
+    }
+
+    int getLineCount() {
+      return myStarts.length;
+    }
+
+    int getLineLength(int index) {
+      return (index + 1 < myStarts.length ? myStarts[index + 1] : myLength) - myStarts[index];
+    }
+  }
+
+  int getLineCount() {
+    return myLineCount;
+  }
+
+  int getTextLength() {
+    return myTextLength;
+  }
+
+  void init(@NotNull int[] lengths, @NotNull byte[] flags) {
+    myChunks = split(lengths, flags);
+    myLineCount = lengths.length;
+    myTextLength = 0;
+    for (Chunk chunk : myChunks) {
+      myTextLength += chunk.myLength;
+    }
+    rebuildTrees();
+  }
+
+  int getLineStart(int line) {
+    final long position = locateLine(line);
+    final int chunkIndex = chunkIndex(position);
+    return chunkStart(chunkIndex) + myChunks[chunkIndex].myStarts[indexInChunk(position)];
+  }
+
+  int getLineEnd(int line) {
+    final long position = locateLine(line);
+    final int chunkIndex = chunkIndex(position);
+    final Chunk chunk = myChunks[chunkIndex];
+    final int index = indexInChunk(position);
+    return chunkStart(chunkIndex) + chunk.myStarts[index] + chunk.getLineLength(index);
+  }
+
+  int getFlags(int line) {
+    final long position = locateLine(line);
+    return myChunks[chunkIndex(position)].myFlags[indexInChunk(position)];
+  }
+
+  void setFlags(int line, int flags) {
+    final long position = locateLine(line);
+    myChunks[chunkIndex(position)].myFlags[indexInChunk(position)] = (byte)flags;
+  }
+
+  void clearFlags(int mask) {
+    for (Chunk chunk : myChunks) {
+      final byte[] flags = chunk.myFlags;
+      for (int i = 0; i < flags.length; i++) {
+        flags[i] &= ~mask;
+      }
+    }
+  }
+
+  /**
+   * @return index of the line which contains the given offset, the last line for the offset at the end of the text
+   */
+  int findLine(int offset) {
+    if (offset == myTextLength) return myLineCount - 1;
+
+    // descend the length tree accumulating the line counts of the skipped chunks
+    int chunkIndex = 0;
+    int remaining = offset;
+    int firstLine = 0;
+    for (int step = Integer.highestOneBit(myChunks.length); step > 0; step >>= 1) {
+      final int next = chunkIndex + step;
+      if (next <= myChunks.length && myLengthTree[next] <= remaining) {
+        chunkIndex = next;
+        remaining -= myLengthTree[next];
+        firstLine += myCountTree[next];
+      }
+    }
+
+    final int[] starts = myChunks[chunkIndex].myStarts;
+    int low = 0;
+    int high = starts.length - 1;
+    while (low < high) {
+      final int middle = (low + high + 1) >>> 1;
+      if (starts[middle] <= remaining) {
+        low = middle;
+      }
+      else {
+        high = middle - 1;
+      }
+    }
+    return firstLine + low;
+  }
+
+  void changeLineLength(int line, int delta) {
+    final long position = locateLine(line);
+    final int chunkIndex = chunkIndex(position);
+    final Chunk chunk = myChunks[chunkIndex];
+    final int[] starts = chunk.myStarts;
+    for (int i = indexInChunk(position) + 1; i < starts.length; i++) {
+      starts[i] += delta;
+    }
+    chunk.myLength += delta;
+    add(myLengthTree, chunkIndex, delta);
+    myTextLength += delta;
+  }
+
+  /**
+   * Replaces lines from <code>startLine</code> (inclusive) to <code>endLine</code> (exclusive) by the given ones.
+   */
+  void replaceLines(int startLine, int endLine, @NotNull int[] lengths, @NotNull byte[] flags) {
+    if (myChunks.length == 0) {
+      init(lengths, flags);
+      return;
+    }
+
+    // the chunks to rebuild; a line appended to the end goes to the last chunk
+    final int firstLocatedLine = Math.min(startLine, myLineCount - 1);
+    final int lastLocatedLine = endLine > startLine ? endLine - 1 : firstLocatedLine;
+    final long firstPosition = locateLine(firstLocatedLine);
+    final long lastPosition = lastLocatedLine == firstLocatedLine ? firstPosition : locateLine(lastLocatedLine);
+    final int firstChunk = chunkIndex(firstPosition);
+    int lastChunk = chunkIndex(lastPosition);
+    final int firstChunkLine = firstLocatedLine - indexInChunk(firstPosition);
+    final int lastChunkFirstLine = lastLocatedLine - indexInChunk(lastPosition);
+    int lastChunkEndLine = lastChunkFirstLine + myChunks[lastChunk].getLineCount();
+
+    final int prefix = startLine - firstChunkLine;
+    if (prefix + lengths.length + lastChunkEndLine - endLine < CHUNK_SIZE / 2 && lastChunk + 1 < myChunks.length) {
+      // don't let deletions leave tiny chunks behind
+      lastChunkEndLine += myChunks[++lastChunk].getLineCount();
+    }
+    final int suffix = lastChunkEndLine - endLine;
+    final int[] newLengths = new int[prefix + lengths.length + suffix];
+    final byte[] newFlags = new byte[newLengths.length];
+    copyLines(firstChunk, firstChunkLine, firstChunkLine, startLine, newLengths, newFlags, 0);
+    System.arraycopy(lengths, 0, newLengths, prefix, lengths.length);
+    System.arraycopy(flags, 0, newFlags, prefix, flags.length);
+    copyLines(chunkIndex(lastPosition), lastChunkFirstLine, endLine, lastChunkEndLine, newLengths, newFlags, prefix + lengths.length);
+
+    int oldLength = 0;
+    for (int i = firstChunk; i <= lastChunk; i++) {
+      oldLength += myChunks[i].myLength;
+    }
+    final Chunk[] replacement = split(newLengths, newFlags);
+    final int oldChunks = lastChunk - firstChunk + 1;
+    if (replacement.length == oldChunks) {
+      for (int i = 0; i < replacement.length; i++) {
+        final Chunk old = myChunks[firstChunk + i];
+        myChunks[firstChunk + i] = replacement[i];
+        add(myLengthTree, firstChunk + i, replacement[i].myLength - old.myLength);
+        add(myCountTree, firstChunk + i, replacement[i].getLineCount() - old.getLineCount());
+      }
+    }
+    else {
+      final Chunk[] chunks = new Chunk[myChunks.length - oldChunks + replacement.length];
+      System.arraycopy(myChunks, 0, chunks, 0, firstChunk);
+      System.arraycopy(replacement, 0, chunks, firstChunk, replacement.length);
+      System.arraycopy(myChunks, lastChunk + 1, chunks, firstChunk + replacement.length, myChunks.length - lastChunk - 1);
+      myChunks = chunks;
+      rebuildTrees();
+    }
+
+    myLineCount += lengths.length - (endLine - startLine);
+    int newLength = 0;
+    for (Chunk chunk : replacement) {
+      newLength += chunk.myLength;
+    }
+    myTextLength += newLength - oldLength;
+  }
+
+  private void copyLines(int chunkIndex, int chunkFirstLine, int startLine, int endLine,
+                         @NotNull int[] lengths, @NotNull byte[] flags, int offset) {
+    Chunk chunk = myChunks[chunkIndex];
+    for (int line = startLine; line < endLine; line++) {
+      while (line - chunkFirstLine >= chunk.getLineCount()) {
+        chunkFirstLine += chunk.getLineCount();
+        chunk = myChunks[++chunkIndex];
+      }
+      lengths[offset] = chunk.getLineLength(line - chunkFirstLine);
+      flags[offset] = chunk.myFlags[line - chunkFirstLine];
+      offset++;
+    }
+  }
+
+  @NotNull
+  private static Chunk[] split(@NotNull int[] lengths, @NotNull byte[] flags) {
+    final int count = lengths.length;
+    if (count == 0) return EMPTY_CHUNKS;
+    final int chunkCount = count <= MAX_CHUNK_SIZE ? 1 : (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    final Chunk[] chunks = new Chunk[chunkCount];
+    int line = 0;
+    for (int i = 0; i < chunkCount; i++) {
+      final int end = (int)((long)count * (i + 1) / chunkCount);
+      final int[] starts = new int[end - line];
+      final byte[] chunkFlags = new byte[end - line];
+      int length = 0;
+      for (int j = 0; j < starts.length; j++) {
+        starts[j] = length;
+        length += lengths[line + j];
+      }
+      System.arraycopy(flags, line, chunkFlags, 0, chunkFlags.length);
+      chunks[i] = new Chunk(starts, chunkFlags, length);
+      line = end;
+    }
+    return chunks;
+  }
+
+  private void rebuildTrees() {
+    final int n = myChunks.length;
+    myLengthTree = new int[n + 1];
+    myCountTree = new int[n + 1];
+    for (int i = 1; i <= n; i++) {
+      myLengthTree[i] += myChunks[i - 1].myLength;
+      myCountTree[i] += myChunks[i - 1].getLineCount();
+      final int parent = i + (i & -i);
+      if (parent <= n) {
+        myLengthTree[parent] += myLengthTree[i];
+        myCountTree[parent] += myCountTree[i];
+      }
+    }
+  }
+
+  private static void add(@NotNull int[] tree, int chunkIndex, int delta) {
+    if (delta == 0) return;
+    for (int i = chunkIndex + 1; i < tree.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  private int chunkStart(int chunkIndex) {
+    int result = 0;
+    for (int i = chunkIndex; i > 0; i -= i & -i) {
+      result += myLengthTree[i];
+    }
+    return result;
+  }
+
+  /**
+   * @return index of the chunk which contains the line packed with the index of the line within the chunk
+   */
+  private long locateLine(int line) {
+    if (line < 0 || line >= myLineCount) {
+      throw new IndexOutOfBoundsException("Wrong line: " + line + ". Available lines count: " + myLineCount);
+    }
+    int chunkIndex = 0;
+    int remaining = line;
+    for (int step = Integer.highestOneBit(myChunks.length); step > 0; step >>= 1) {
+      final int next = chunkIndex + step;
+      if (next <= myChunks.length && myCountTree[next] <= remaining) {
+        chunkIndex = next;
+        remaining -= myCountTree[next];
+      }
+    }
+    return ((long)chunkIndex << 32) | remaining;
+  }
+
+  private static int chunkIndex(long position) {
+    return (int)(position >>> 32);
+  }
+
+  private static int indexInChunk(long position) {
+    return (int)position;
+  }
+}
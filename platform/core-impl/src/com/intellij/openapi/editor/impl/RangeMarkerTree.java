@@ -180,6 +180,7 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
   }
 
   private void updateMarkersOnChange(@NotNull DocumentEvent e) {
+    flushPendingNodes();
     try {
       l.writeLock().lock();
       if (size() == 0) return;
@@ -364,6 +365,7 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
   }
 
   private void reTarget(int start, int end, int newBase) {
+    flushPendingNodes();
     l.writeLock().lock();
     try {
       checkMax(true);
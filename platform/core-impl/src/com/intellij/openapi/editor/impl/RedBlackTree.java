@@ -18,6 +18,7 @@ package com.intellij.openapi.editor.impl;
 import com.intellij.util.Processor;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
 
 /**
  * User: cdr
@@ -81,6 +82,31 @@ public abstract class RedBlackTree<K> {
     nodeSize++;
   }
 
+  /**
+   * Replaces the tree content with the given nodes, which must be sorted in the tree order and be distinct.
+   * Takes O(n) time instead of O(n log n) for inserting them one by one.
+   */
+  protected void buildFromSorted(@NotNull List<? extends Node<K>> nodes) {
+    modCount++;
+    int size = nodes.size();
+    // all levels but the deepest are full; the deepest level nodes are red, so that all paths contain the same number of black nodes
+    int redLevel = size > 1 ? 31 - Integer.numberOfLeadingZeros(size) : -1;
+    root = buildSubtree(nodes, 0, size, 0, redLevel, null);
+    nodeSize = size;
+    verifyProperties();
+  }
+
+  private static <K> Node<K> buildSubtree(@NotNull List<? extends Node<K>> nodes, int from, int to, int level, int redLevel, Node<K> parent) {
+    if (from >= to) return null;
+    int middle = (from + to) >>> 1;
+    Node<K> node = nodes.get(middle);
+    node.setParent(parent);
+    node.setLeft(buildSubtree(nodes, from, middle, level + 1, redLevel, node));
+    node.setRight(buildSubtree(nodes, middle + 1, to, level + 1, redLevel, node));
+    node.color = level == redLevel ? Color.RED : Color.BLACK;
+    return node;
+  }
+
   protected void insertCase1(Node<K> n) {
     if (n.getParent() == null) {
       n.color = Color.BLACK;
@@ -342,6 +342,9 @@ public class DebugUtil {
   }
 
   private static void checkSubtree(CompositeElement root) {
+    if (root.hasPackedLeaves()) {
+      root.getFirstChildNode(); // creates the leaves, so that they're checked as well
+    }
     if (root.rawFirstChild() == null) {
       if (root.rawLastChild() != null) {
         throw new IncorrectTreeStructureException(root, "firstChild == null, but lastChild != null");
@@ -110,6 +110,14 @@ public class AstBufferUtil {
         }
         assert lpe.isParsed();
       }
+      else if (!skipWhitespace && !skipComments) {
+        // packed leaves know nothing about whitespaces and comments, so they are created when those should be skipped
+        int packedResult = composite.copyTo(buffer, end);
+        if (packedResult >= 0) {
+          end = packedResult;
+          return;
+        }
+      }
 
       super.visitComposite(composite);
     }
@@ -56,6 +56,7 @@ public class CompositeElement extends TreeElement {
   private volatile int myCachedLength = NOT_CACHED;
   private volatile int myHC = -1;
   private volatile PsiElement myWrapper = null;
+  private volatile PackedLeaves myPackedLeaves = null;
   private static final boolean ASSERT_THREADING = true;//DebugUtil.CHECK || ApplicationManagerEx.getApplicationEx().isInternal() || ApplicationManagerEx.getApplicationEx().isUnitTestMode();
 
   public CompositeElement(@NotNull IElementType type) {
@@ -75,8 +76,12 @@ public class CompositeElement extends TreeElement {
       clone.lastChild = null;
       clone.myModificationsCount = 0;
       clone.myWrapper = null;
-      for (ASTNode child = rawFirstChild(); child != null; child = child.getTreeNext()) {
-        clone.rawAddChildrenWithoutNotifications((TreeElement)child.clone());
+      final PackedLeaves leaves = myPackedLeaves;
+      clone.myPackedLeaves = leaves;
+      if (leaves == null) {
+        for (ASTNode child = rawFirstChild(); child != null; child = child.getTreeNext()) {
+          clone.rawAddChildrenWithoutNotifications((TreeElement)child.clone());
+        }
       }
       clone.clearCaches();
     }
@@ -106,7 +111,8 @@ public class CompositeElement extends TreeElement {
   @Override
   public void clearCaches() {
     assertThreading();
-    myCachedLength = NOT_CACHED;
+    final PackedLeaves leaves = myPackedLeaves;
+    myCachedLength = leaves == null ? NOT_CACHED : leaves.getTextLength();
 
     myModificationsCount++;
     myHC = -1;
@@ -267,6 +273,13 @@ public class CompositeElement extends TreeElement {
         if (element instanceof LeafElement || TreeUtil.isCollapsedChameleon(element)) {
           result[0] += element.getNotCachedLength();
         }
+        else if (element instanceof CompositeElement) {
+          final PackedLeaves leaves = ((CompositeElement)element).myPackedLeaves;
+          if (leaves != null) {
+            result[0] += leaves.getTextLength();
+            return;
+          }
+        }
         super.visitNode(element);
       }
     });
@@ -352,6 +365,8 @@ public class CompositeElement extends TreeElement {
 
   @Override
   public boolean textContains(char c) {
+    final PackedLeaves leaves = myPackedLeaves;
+    if (leaves != null) return leaves.textContains(c);
     for (ASTNode child = getFirstChildNode(); child != null; child = child.getTreeNext()) {
       if (child.textContains(c)) return true;
     }
@@ -360,6 +375,8 @@ public class CompositeElement extends TreeElement {
 
   @Override
   protected int textMatches(@NotNull CharSequence buffer, int start) {
+    final PackedLeaves leaves = myPackedLeaves;
+    if (leaves != null) return leaves.textMatches(buffer, start);
     int curOffset = start;
     for (TreeElement child = getFirstChildNode(); child != null; child = child.getTreeNext()) {
       curOffset = child.textMatches(buffer, curOffset);
@@ -552,11 +569,17 @@ public class CompositeElement extends TreeElement {
   public int hc() {
     int hc = myHC;
     if (hc == -1) {
-      hc = 0;
-      TreeElement child = firstChild;
-      while (child != null) {
-        hc += child.hc();
-        child = child.getTreeNext();
+      final PackedLeaves leaves = myPackedLeaves;
+      if (leaves != null) {
+        hc = leaves.hc();
+      }
+      else {
+        hc = 0;
+        TreeElement child = firstChild;
+        while (child != null) {
+          hc += child.hc();
+          child = child.getTreeNext();
+        }
       }
       myHC = hc;
     }
@@ -631,14 +654,58 @@ public class CompositeElement extends TreeElement {
 
   @Override
   public TreeElement getFirstChildNode() {
+    ensureLeavesCreated();
     return firstChild;
   }
 
   @Override
   public TreeElement getLastChildNode() {
+    ensureLeavesCreated();
     return lastChild;
   }
 
+  /**
+   * Makes the composite consist of the given tokens, the leaves are created on the first access to the children.
+   * Must be called on a composite without children only.
+   */
+  public void setPackedLeaves(@NotNull PackedLeaves leaves) {
+    LOG.assertTrue(firstChild == null && myPackedLeaves == null, this);
+    myPackedLeaves = leaves;
+    myCachedLength = leaves.getTextLength();
+  }
+
+  public boolean hasPackedLeaves() {
+    return myPackedLeaves != null;
+  }
+
+  private void ensureLeavesCreated() {
+    final PackedLeaves leaves = myPackedLeaves;
+    if (leaves == null) return;
+
+    synchronized (leaves) {
+      if (myPackedLeaves == null) return;
+
+      TreeElement first = leaves.createLeaves();
+      TreeElement last = first;
+      for (TreeElement leaf = first; leaf != null; leaf = leaf.getTreeNext()) {
+        leaf.setTreeParent(this);
+        last = leaf;
+      }
+      firstChild = first;
+      lastChild = last;
+      // publishes the children to the threads which don't enter the lock
+      myPackedLeaves = null;
+    }
+  }
+
+  /**
+   * @return the end offset of the text copied to the buffer, or -1 if the text can't be obtained without walking the children
+   */
+  public int copyTo(@Nullable char[] buffer, int start) {
+    final PackedLeaves leaves = myPackedLeaves;
+    return leaves == null ? -1 : leaves.copyTo(buffer, start);
+  }
+
   void setFirstChildNode(TreeElement firstChild) {
     this.firstChild = firstChild;
     clearRelativeOffsets(firstChild);
@@ -866,6 +933,7 @@ public class CompositeElement extends TreeElement {
         return;
       }
       composite.createAndStorePsi();
+      if (composite.hasPackedLeaves()) return; // leaves are PSI themselves
       super.visitComposite(composite);
     }
   };
@@ -216,6 +216,7 @@ public class LazyParseableElement extends CompositeElement {
     return super.getLastChildNode();
   }
 
+  @Override
   public int copyTo(@Nullable char[] buffer, int start) {
     CharSequence text = myText();
     if (text == null) return -1;
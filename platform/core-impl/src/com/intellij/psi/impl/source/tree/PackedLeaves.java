@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.tree;
+
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.text.CharArrayCharSequence;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Leaves of a {@link CompositeElement} which haven't been created yet, i.e. the tokens the composite was built from.
+ * Text related queries are answered by the token data, the leaves themselves are created on the first access to the children
+ * of the composite. Only the text and the tokens of the composite are kept, so the packed leaves don't retain the whole file.
+ *
+ * @see CompositeElement#setPackedLeaves(PackedLeaves)
+ */
+public class PackedLeaves {
+  private final LeafFactory myFactory;
+  private final char[] myText;
+  // token start offsets in myText, followed by the text length
+  private final int[] myStarts;
+  private final IElementType[] myTypes;
+
+  /**
+   * Creates the leaves of all packed composites of a tree.
+   */
+  public abstract static class LeafFactory {
+    /**
+     * @return leaf for the given token or null if the token produces no leaf (e.g. it's empty)
+     */
+    @Nullable
+    protected abstract TreeElement createLeaf(@NotNull IElementType type, @NotNull CharSequence text, int start, int end);
+  }
+
+  /**
+   * Copies the tokens from startToken (inclusive) to endToken (exclusive) and their text.
+   *
+   * @param starts token start offsets in the text, the element at endToken must be the end offset of the last token
+   */
+  public PackedLeaves(@NotNull LeafFactory factory, @NotNull CharSequence text, @NotNull int[] starts, @NotNull IElementType[] types,
+                      int startToken, int endToken) {
+    myFactory = factory;
+    final int startOffset = starts[startToken];
+    final int count = endToken - startToken;
+    myText = new char[starts[endToken] - startOffset];
+    CharArrayUtil.getChars(text, myText, startOffset, 0, myText.length);
+    myStarts = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      myStarts[i] = starts[startToken + i] - startOffset;
+    }
+    myTypes = new IElementType[count];
+    System.arraycopy(types, startToken, myTypes, 0, count);
+  }
+
+  int getTextLength() {
+    return myText.length;
+  }
+
+  int hc() {
+    // the sum of the leaves' hash codes, see LeafElement#leafHC()
+    int hc = 0;
+    for (char c : myText) {
+      hc += c;
+    }
+    return hc;
+  }
+
+  int textMatches(@NotNull CharSequence buffer, int start) {
+    final int length = myText.length;
+    if (buffer.length() - start < length) {
+      return start == 0 ? Integer.MIN_VALUE : -start;
+    }
+    for (int i = 0; i < length; i++) {
+      final int k = i + start;
+      if (myText[i] != buffer.charAt(k)) {
+        return k == 0 ? Integer.MIN_VALUE : -k;
+      }
+    }
+    return start + length;
+  }
+
+  boolean textContains(char c) {
+    for (char each : myText) {
+      if (each == c) return true;
+    }
+    return false;
+  }
+
+  int copyTo(@Nullable char[] buffer, int start) {
+    final int length = myText.length;
+    if (buffer != null) {
+      System.arraycopy(myText, 0, buffer, start, length);
+    }
+    return start + length;
+  }
+
+  /**
+   * @return the first one of the created leaves linked to each other, the parent isn't set
+   */
+  @Nullable
+  TreeElement createLeaves() {
+    final CharSequence text = new CharArrayCharSequence(myText);
+    TreeElement first = null;
+    TreeElement last = null;
+    for (int i = 0; i < myTypes.length; i++) {
+      final TreeElement leaf = myFactory.createLeaf(myTypes[i], text, myStarts[i], myStarts[i + 1]);
+      if (leaf == null) continue;
+      if (last == null) {
+        first = leaf;
+      }
+      else {
+        last.setTreeNext(leaf);
+        leaf.setTreePrev(last);
+      }
+      last = leaf;
+    }
+    return first;
+  }
+
+}
@@ -228,6 +228,7 @@ public class TreeUtil {
       @Override
       protected void visitNode(final TreeElement element) {
         element.clearCaches();
+        if (element instanceof CompositeElement && ((CompositeElement)element).hasPackedLeaves()) return;
         super.visitNode(element);
       }
     });
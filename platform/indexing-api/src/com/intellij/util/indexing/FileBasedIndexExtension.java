@@ -74,4 +74,29 @@ public abstract class FileBasedIndexExtension<K, V> {
   public boolean isKeyHighlySelective() {
     return false;
   }
+
+  /**
+   * Whether index values should be kept in block compressed storage. Compression cuts the size of large indices on disk and the amount
+   * of I/O at the cost of some CPU time spent on (de)compression. Changing the returned value requires incrementing {@link #getVersion()}.
+   */
+  public boolean isValueStorageCompressed() {
+    return false;
+  }
+
+  /**
+   * Whether keys and values of the index do not depend on the local installation (file ids, enumerated names and so on),
+   * so the data built for a library jar can be reused on another machine for a jar with the same content.
+   */
+  public boolean isPortable() {
+    return false;
+  }
+
+  /**
+   * Describes the local setup the data of a {@link #isPortable() portable} index depends on besides {@link #getVersion()},
+   * e.g. the indexers plugins register for file types. Data built with a different description is not reused.
+   */
+  @NotNull
+  public String getPortableDataStamp() {
+    return getIndexer().getClass().getName();
+  }
 }
@@ -18,6 +18,7 @@ package com.intellij.psi.impl.cache.impl.id;
 
 import com.intellij.lang.cacheBuilder.CacheBuilderRegistry;
 import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.FileTypeRegistry;
 import com.intellij.openapi.fileTypes.LanguageFileType;
 import com.intellij.openapi.fileTypes.impl.CustomSyntaxTableFileType;
 import com.intellij.openapi.project.ProjectCoreUtil;
@@ -32,7 +33,9 @@ import org.jetbrains.annotations.NotNull;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Map;
 
 /**
@@ -92,6 +95,31 @@ public class IdIndex extends FileBasedIndexExtension<IdIndexEntry, Integer> {
     return 9; // TODO: version should enumerate all word scanner versions and build version upon that set
   }
 
+  @Override
+  public boolean isPortable() {
+    return true;
+  }
+
+  @NotNull
+  @Override
+  public String getPortableDataStamp() {
+    final FileType[] fileTypes = FileTypeRegistry.getInstance().getRegisteredFileTypes().clone();
+    Arrays.sort(fileTypes, new Comparator<FileType>() {
+      @Override
+      public int compare(FileType o1, FileType o2) {
+        return o1.getName().compareTo(o2.getName());
+      }
+    });
+    // words of a file depend on the scanner of its type, which plugins may provide
+    final StringBuilder stamp = new StringBuilder(super.getPortableDataStamp());
+    for (FileType fileType : fileTypes) {
+      if (isIndexable(fileType)) {
+        stamp.append(';').append(fileType.getName()).append('=').append(IdTableBuilding.getFileTypeIndexerStamp(fileType));
+      }
+    }
+    return stamp.toString();
+  }
+
   @Override
   public boolean dependsOnFileContent() {
     return true;
@@ -112,6 +112,24 @@ public class IdTableBuilding {
     return null;
   }
 
+  /**
+   * @return description of the indexer {@link #getFileTypeIndexer} returns for the file type, or null if there is none
+   */
+  @Nullable
+  public static String getFileTypeIndexerStamp(FileType fileType) {
+    final FileTypeIdIndexer indexer = getFileTypeIndexer(fileType);
+    if (indexer == null) {
+      return null;
+    }
+    if (fileType instanceof CustomSyntaxTableFileType) {
+      return indexer.getClass().getName() + ":" + ((CustomSyntaxTableFileType)fileType).getSyntaxTable().hashCode();
+    }
+    if (indexer instanceof WordsScannerFileTypeIdIndexerAdapter) {
+      return ((WordsScannerFileTypeIdIndexerAdapter)indexer).myScanner.getClass().getName();
+    }
+    return indexer.getClass().getName();
+  }
+
   private static WordsScanner createWordScanner(final CustomSyntaxTableFileType customSyntaxTableFileType) {
     return new DefaultWordsScanner(new CustomFileTypeLexer(customSyntaxTableFileType.getSyntaxTable(), true),
                                    TokenSet.create(CustomHighlighterTokenType.IDENTIFIER),
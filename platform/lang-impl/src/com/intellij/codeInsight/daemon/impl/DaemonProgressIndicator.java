@@ -54,6 +54,15 @@ public class DaemonProgressIndicator extends ProgressIndicatorBase {
     super.cancel();
   }
 
+  @Override
+  public void checkCanceled() {
+    super.checkCanceled();
+    if (PassExecutorService.runMoreImportantPasses(this)) {
+      // the daemon could have been canceled while they ran
+      super.checkCanceled();
+    }
+  }
+
   @Override
   public void start() {
     assert !isCanceled() : "canceled";
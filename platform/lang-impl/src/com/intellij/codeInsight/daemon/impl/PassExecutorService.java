@@ -41,28 +41,60 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiLock;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Consumer;
+import com.intellij.util.IJSwingUtilities;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.ContainerUtil;
 import gnu.trove.THashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Runs highlighting passes in job threads, each pass in its own job. The job priority of a pass orders it in the job queue: passes of
+ * the focused editor go before the ones of other editors, passes over the visible part of an editor before the ones over the whole file,
+ * and cheap passes before the expensive ones, judging by how long the passes of the same class took before.
+ * A long pass running in a job thread runs strictly more important passes which became ready meanwhile on its
+ * {@link ProgressIndicator#checkCanceled()} calls, so they needn't wait until a job thread is free. It doesn't happen under the PSI lock,
+ * and a pass run this way isn't interrupted itself.
+ *
  * @author cdr
  */
 public abstract class PassExecutorService implements Disposable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.codeInsight.daemon.impl.PassExecutorService");
 
+  // added to the job priority of a pass, the less the priority the sooner the pass runs
+  private static final int MAX_COST_PENALTY = 3;
+  private static final int WHOLE_FILE_PASS_PENALTY = MAX_COST_PENALTY + 1;
+  private static final int NOT_FOCUSED_EDITOR_PENALTY = 2 * WHOLE_FILE_PASS_PENALTY;
+  // passes which usually take less time to collect information are the cheapest ones, and each next cost penalty is for 10 times more
+  private static final long CHEAP_PASS_MILLIS = 10;
+
+  // average time the passes of a class took to collect information, in milliseconds
+  private static final ConcurrentMap<Class, Long> ourCollectTimes = new ConcurrentHashMap<Class, Long>();
+  // the pass collecting information in the current thread, null outside of collectInformation()
+  private static final ThreadLocal<ScheduledPass> ourRunningPass = new ThreadLocal<ScheduledPass>();
+  // number of the ready passes of all projects, lets checkCanceled() return at once when there are none
+  private static final AtomicInteger ourReadyPassesCount = new AtomicInteger();
+
+  // the job which runs the pass; if a preempted pass runs it first, the job finds it started and does nothing
   private final Map<ScheduledPass, Job<Void>> mySubmittedPasses = new ConcurrentHashMap<ScheduledPass, Job<Void>>();
+  // submitted passes which haven't started yet
+  private final PriorityBlockingQueue<ScheduledPass> myReadyPasses = new PriorityBlockingQueue<ScheduledPass>();
+  private final AtomicLong mySubmitCount = new AtomicLong();
   private final Project myProject;
   private volatile boolean isDisposed;
   private final AtomicInteger nextPassId = new AtomicInteger(100);
@@ -93,6 +125,7 @@ public abstract class PassExecutorService implements Disposable {
       }
     }
     mySubmittedPasses.clear();
+    while (pollReadyPass() != null);
   }
 
   public void submitPasses(Map<FileEditor, HighlightingPass[]> passesMap, DaemonProgressIndicator updateProgress, final int jobPriority) {
@@ -162,6 +195,7 @@ public abstract class PassExecutorService implements Disposable {
     final AtomicInteger threadsToStartCountdown = new AtomicInteger(0);
     for (List<FileEditor> fileEditors : documentToEditors.values()) {
       List<TextEditorHighlightingPass> passes = textPasses.get(fileEditors.get(0));
+      int editorsPriority = getEditorsPriority(fileEditors, jobPriority);
       threadsToStartCountdown.addAndGet(passes.size());
 
       // create one scheduled pass per unique id (possibly for multiple file editors. they all will be applied at the pass finish)
@@ -181,7 +215,7 @@ public abstract class PassExecutorService implements Disposable {
         }
         if (newId != passId) {
           createScheduledPass(fileEditors, currentPass, toBeSubmitted, passes, freePasses, dependentPasses, updateProgress, threadsToStartCountdown,
-                              jobPriority);
+                              editorsPriority);
           passId = newId;
         }
       }
@@ -258,6 +292,35 @@ public abstract class PassExecutorService implements Disposable {
     return predecessor;
   }
 
+  private static int getEditorsPriority(@NotNull List<FileEditor> fileEditors, int jobPriority) {
+    for (FileEditor fileEditor : fileEditors) {
+      if (IJSwingUtilities.hasFocus(fileEditor.getComponent())) return jobPriority;
+    }
+    return jobPriority + NOT_FOCUSED_EDITOR_PENALTY;
+  }
+
+  private int getPassPenalty(@NotNull List<FileEditor> fileEditors, @NotNull TextEditorHighlightingPass pass) {
+    boolean visibleRange = fileEditors.get(0) instanceof TextEditor &&
+                           TextEditorHighlightingPassRegistrarEx.getInstanceEx(myProject).isVisibleRangePass(pass.getId());
+    return (visibleRange ? 0 : WHOLE_FILE_PASS_PENALTY) + getCostPenalty(pass);
+  }
+
+  private static int getCostPenalty(@NotNull TextEditorHighlightingPass pass) {
+    Long time = ourCollectTimes.get(pass.getClass());
+    // passes which haven't run yet are considered cheap
+    if (time == null) return 0;
+    int penalty = 0;
+    for (long limit = CHEAP_PASS_MILLIS; time >= limit && penalty < MAX_COST_PENALTY; limit *= 10) {
+      penalty++;
+    }
+    return penalty;
+  }
+
+  private static void recordCollectTime(@NotNull TextEditorHighlightingPass pass, long millis) {
+    Long time = ourCollectTimes.get(pass.getClass());
+    ourCollectTimes.put(pass.getClass(), time == null ? millis : (3 * time + millis) / 4);
+  }
+
   private static TextEditorHighlightingPass findPassById(final int id, final List<TextEditorHighlightingPass> textEditorHighlightingPasses) {
     TextEditorHighlightingPass textEditorPass = null;
     for (TextEditorHighlightingPass found : textEditorHighlightingPasses) {
@@ -271,7 +334,18 @@ public abstract class PassExecutorService implements Disposable {
 
   private void submit(final ScheduledPass pass) {
     if (!pass.myUpdateProgress.isCanceled()) {
-      Job<Void> job = JobLauncher.getInstance().submitToJobThread(pass.myJobPriority, pass, new Consumer<Future>() {
+      pass.mySubmitIndex = mySubmitCount.incrementAndGet();
+      offerReadyPass(pass);
+      Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+          // a preempted pass could have run it already
+          if (takeReadyPass(pass)) {
+            pass.run();
+          }
+        }
+      };
+      Job<Void> job = JobLauncher.getInstance().submitToJobThread(pass.myJobPriority, runner, new Consumer<Future>() {
         @Override
         public void consume(Future future) {
           try {
@@ -292,7 +366,47 @@ public abstract class PassExecutorService implements Disposable {
     }
   }
 
-  private class ScheduledPass implements Runnable {
+  private void offerReadyPass(@NotNull ScheduledPass pass) {
+    myReadyPasses.offer(pass);
+    ourReadyPassesCount.incrementAndGet();
+  }
+
+  /**
+   * @return true if the pass hasn't started and the caller should run it
+   */
+  private boolean takeReadyPass(@NotNull ScheduledPass pass) {
+    if (!pass.myStarted.compareAndSet(false, true)) return false;
+    if (myReadyPasses.remove(pass)) {
+      ourReadyPassesCount.decrementAndGet();
+    }
+    return true;
+  }
+
+  @Nullable
+  private ScheduledPass pollReadyPass() {
+    ScheduledPass pass = myReadyPasses.poll();
+    if (pass != null) {
+      ourReadyPassesCount.decrementAndGet();
+    }
+    return pass;
+  }
+
+  /**
+   * Called on {@link DaemonProgressIndicator#checkCanceled()}: if a pass collects information under the indicator in the current thread,
+   * runs the ready passes which are more important than it.
+   *
+   * @return true if some passes have been run
+   */
+  static boolean runMoreImportantPasses(@NotNull DaemonProgressIndicator indicator) {
+    if (ourReadyPassesCount.get() == 0) return false;
+    ScheduledPass current = ourRunningPass.get();
+    if (current == null || current.myUpdateProgress != indicator || current.myPreempting) return false;
+    // don't make other threads wait for the lock while unrelated passes run
+    if (Thread.holdsLock(PsiLock.LOCK)) return false;
+    return current.runMoreImportantPasses();
+  }
+
+  private class ScheduledPass implements Runnable, Comparable<ScheduledPass> {
     private final List<FileEditor> myFileEditors;
     private final TextEditorHighlightingPass myPass;
     private final AtomicInteger myThreadsToStartCountdown;
@@ -301,6 +415,11 @@ public abstract class PassExecutorService implements Disposable {
     private final Collection<ScheduledPass> mySuccessorsOnCompletion = new ArrayList<ScheduledPass>();
     private final Collection<ScheduledPass> mySuccessorsOnSubmit = new ArrayList<ScheduledPass>();
     private final DaemonProgressIndicator myUpdateProgress;
+    private final AtomicBoolean myStarted = new AtomicBoolean();
+    private volatile long mySubmitIndex;
+    // accessed in the thread which runs the pass only
+    private boolean myPreempting;
+    private long myPreemptedTime;
 
     private ScheduledPass(@NotNull List<FileEditor> fileEditors,
                           @NotNull TextEditorHighlightingPass pass,
@@ -310,7 +429,7 @@ public abstract class PassExecutorService implements Disposable {
       myFileEditors = fileEditors;
       myPass = pass;
       myThreadsToStartCountdown = threadsToStartCountdown;
-      myJobPriority = jobPriority;
+      myJobPriority = jobPriority + getPassPenalty(fileEditors, pass);
       myRunningPredecessorsCount = new AtomicInteger(0);
       myUpdateProgress = progressIndicator;
     }
@@ -354,7 +473,19 @@ public abstract class PassExecutorService implements Disposable {
                 }
 
                 if (!myUpdateProgress.isCanceled()) {
-                  myPass.collectInformation(myUpdateProgress);
+                  ScheduledPass outerPass = ourRunningPass.get();
+                  ourRunningPass.set(ScheduledPass.this);
+                  long start = System.currentTimeMillis();
+                  myPreemptedTime = 0;
+                  try {
+                    myPass.collectInformation(myUpdateProgress);
+                  }
+                  finally {
+                    ourRunningPass.set(outerPass);
+                  }
+                  if (!myUpdateProgress.isCanceled()) {
+                    recordCollectTime(myPass, System.currentTimeMillis() - start - myPreemptedTime);
+                  }
                 }
               }
               catch (ProcessCanceledException e) {
@@ -394,6 +525,42 @@ public abstract class PassExecutorService implements Disposable {
       }
     }
 
+    private boolean runMoreImportantPasses() {
+      boolean ran = false;
+      while (true) {
+        ScheduledPass head = myReadyPasses.peek();
+        if (head == null || head.myJobPriority >= myJobPriority) return ran;
+        // its job could have taken it meanwhile
+        if (!takeReadyPass(head)) continue;
+        Job<Void> job = mySubmittedPasses.get(head);
+        if (job != null && job != JobImpl.NULL_JOB && job.isCanceled()) continue;
+
+        log(myUpdateProgress, myPass, "Preempted by " + head);
+        long start = System.currentTimeMillis();
+        head.myPreempting = true;
+        try {
+          head.run();
+        }
+        catch (RuntimeException e) {
+          // it's the preempting pass which has failed, not this one
+          LOG.error(e);
+        }
+        catch (Error e) {
+          LOG.error(e);
+        }
+        finally {
+          myPreemptedTime += System.currentTimeMillis() - start;
+        }
+        ran = true;
+      }
+    }
+
+    @Override
+    public int compareTo(@NotNull ScheduledPass o) {
+      if (myJobPriority != o.myJobPriority) return myJobPriority < o.myJobPriority ? -1 : 1;
+      return mySubmitIndex < o.mySubmitIndex ? -1 : mySubmitIndex == o.mySubmitIndex ? 0 : 1;
+    }
+
     @NonNls
     @Override
     public String toString() {
@@ -444,7 +611,8 @@ public abstract class PassExecutorService implements Disposable {
             ShowIntentionsPass ip = new ShowIntentionsPass(myProject, editor, -1);
             ip.setId(nextPassId.incrementAndGet());
             threadsToStartCountdown.incrementAndGet();
-            submit(new ScheduledPass(fileEditors, ip, updateProgress, threadsToStartCountdown, Job.DEFAULT_PRIORITY));
+            submit(new ScheduledPass(fileEditors, ip, updateProgress, threadsToStartCountdown,
+                                     getEditorsPriority(fileEditors, Job.DEFAULT_PRIORITY)));
           }
         }
       }
@@ -39,4 +39,9 @@ public abstract class TextEditorHighlightingPassRegistrarEx extends TextEditorHi
   @NotNull public abstract List<TextEditorHighlightingPass> instantiatePasses(@NotNull PsiFile psiFile, @NotNull Editor editor, @NotNull int[] passesToIgnore);
   @NotNull public abstract List<TextEditorHighlightingPass> instantiateMainPasses(@NotNull PsiFile psiFile,
                                                                                   @NotNull Document document);
+
+  /**
+   * @return true if the passes with the given id are created for the visible part of the editor only
+   */
+  public abstract boolean isVisibleRangePass(int passId);
 }
@@ -185,6 +185,12 @@ public class TextEditorHighlightingPassRegistrarImpl extends TextEditorHighlight
     return new ArrayList<TextEditorHighlightingPass>(ids);
   }
 
+  @Override
+  public boolean isVisibleRangePass(int passId) {
+    PassConfig passConfig = myRegisteredPassFactories.get(passId);
+    return passConfig != null && passConfig.passFactory instanceof VisibleHighlightingPassFactory;
+  }
+
   private void checkForCycles() {
     final TIntObjectHashMap<TIntHashSet> transitivePredecessors = new TIntObjectHashMap<TIntHashSet>();
 
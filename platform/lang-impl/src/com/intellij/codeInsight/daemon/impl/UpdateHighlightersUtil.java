@@ -268,31 +268,36 @@ public class UpdateHighlightersUtil {
 
     final Map<TextRange, RangeMarker> ranges2markersCache = new THashMap<TextRange, RangeMarker>(10);
     final boolean[] changed = {false};
-    RangeMarkerTree.sweep(new RangeMarkerTree.Generator<HighlightInfo>(){
+    ((MarkupModelEx)markup).runBatchUpdate(new Runnable() {
       @Override
-      public boolean generate(Processor<HighlightInfo> processor) {
-        return ContainerUtil.process(infos, processor);
-      }
-    }, new SweepProcessor<HighlightInfo>() {
-      @Override
-      public boolean process(int offset, HighlightInfo info, boolean atStart, Collection<HighlightInfo> overlappingIntervals) {
-        if (!atStart) return true;
-        if (!info.fromInjection && info.getEndOffset() < document.getTextLength() && (info.getEndOffset() <= startOffset || info.getStartOffset()>=endOffset)) return true; // injections are oblivious to restricting range
-
-        if (info.isFileLevelAnnotation && psiFile != null && psiFile.getViewProvider().isPhysical()) {
-          addFileLevelHighlight(project, group, info, psiFile);
-          changed[0] = true;
-          return true;
-        }
-        if (isWarningCoveredByError(info, overlappingIntervals, severityRegistrar)) {
-          return true;
-        }
-        if (info.getStartOffset() < range.getStartOffset() || info.getEndOffset() > range.getEndOffset()) {
-          createOrReuseHighlighterFor(info, colorsScheme, document, group, psiFile, (MarkupModelEx)markup, infosToRemove,
-                                        ranges2markersCache, severityRegistrar);
-          changed[0] = true;
-        }
-        return true;
+      public void run() {
+        RangeMarkerTree.sweep(new RangeMarkerTree.Generator<HighlightInfo>(){
+          @Override
+          public boolean generate(Processor<HighlightInfo> processor) {
+            return ContainerUtil.process(infos, processor);
+          }
+        }, new SweepProcessor<HighlightInfo>() {
+          @Override
+          public boolean process(int offset, HighlightInfo info, boolean atStart, Collection<HighlightInfo> overlappingIntervals) {
+            if (!atStart) return true;
+            if (!info.fromInjection && info.getEndOffset() < document.getTextLength() && (info.getEndOffset() <= startOffset || info.getStartOffset()>=endOffset)) return true; // injections are oblivious to restricting range
+
+            if (info.isFileLevelAnnotation && psiFile != null && psiFile.getViewProvider().isPhysical()) {
+              addFileLevelHighlight(project, group, info, psiFile);
+              changed[0] = true;
+              return true;
+            }
+            if (isWarningCoveredByError(info, overlappingIntervals, severityRegistrar)) {
+              return true;
+            }
+            if (info.getStartOffset() < range.getStartOffset() || info.getEndOffset() > range.getEndOffset()) {
+              createOrReuseHighlighterFor(info, colorsScheme, document, group, psiFile, (MarkupModelEx)markup, infosToRemove,
+                                            ranges2markersCache, severityRegistrar);
+              changed[0] = true;
+            }
+            return true;
+          }
+        });
       }
     });
     for (RangeHighlighter highlighter : infosToRemove.forAllInGarbageBin()) {
@@ -339,30 +344,35 @@ public class UpdateHighlightersUtil {
     final Map<TextRange, RangeMarker> ranges2markersCache = new THashMap<TextRange, RangeMarker>(10);
     final PsiFile psiFile = PsiDocumentManager.getInstance(project).getPsiFile(document);
     final boolean[] changed = {false};
-    RangeMarkerTree.sweep(new RangeMarkerTree.Generator<HighlightInfo>(){
-      @Override
-      public boolean generate(final Processor<HighlightInfo> processor) {
-        return ContainerUtil.process(highlights, processor);
-      }
-    }, new SweepProcessor<HighlightInfo>() {
+    markup.runBatchUpdate(new Runnable() {
       @Override
-      public boolean process(int offset, HighlightInfo info, boolean atStart, Collection<HighlightInfo> overlappingIntervals) {
-        if (!atStart) {
-          return true;
-        }
-        if (info.isFileLevelAnnotation && psiFile != null && psiFile.getViewProvider().isPhysical()) {
-          addFileLevelHighlight(project, group, info, psiFile);
-          changed[0] = true;
-          return true;
-        }
-        if (isWarningCoveredByError(info, overlappingIntervals, severityRegistrar)) {
-          return true;
-        }
-        if (info.getStartOffset() >= range.getStartOffset() && info.getEndOffset() <= range.getEndOffset() && psiFile != null) {
-          createOrReuseHighlighterFor(info, colorsScheme, document, group, psiFile, markup, infosToRemove, ranges2markersCache, severityRegistrar);
-          changed[0] = true;
-        }
-        return true;
+      public void run() {
+        RangeMarkerTree.sweep(new RangeMarkerTree.Generator<HighlightInfo>(){
+          @Override
+          public boolean generate(final Processor<HighlightInfo> processor) {
+            return ContainerUtil.process(highlights, processor);
+          }
+        }, new SweepProcessor<HighlightInfo>() {
+          @Override
+          public boolean process(int offset, HighlightInfo info, boolean atStart, Collection<HighlightInfo> overlappingIntervals) {
+            if (!atStart) {
+              return true;
+            }
+            if (info.isFileLevelAnnotation && psiFile != null && psiFile.getViewProvider().isPhysical()) {
+              addFileLevelHighlight(project, group, info, psiFile);
+              changed[0] = true;
+              return true;
+            }
+            if (isWarningCoveredByError(info, overlappingIntervals, severityRegistrar)) {
+              return true;
+            }
+            if (info.getStartOffset() >= range.getStartOffset() && info.getEndOffset() <= range.getEndOffset() && psiFile != null) {
+              createOrReuseHighlighterFor(info, colorsScheme, document, group, psiFile, markup, infosToRemove, ranges2markersCache, severityRegistrar);
+              changed[0] = true;
+            }
+            return true;
+          }
+        });
       }
     });
     for (RangeHighlighter highlighter : infosToRemove.forAllInGarbageBin()) {
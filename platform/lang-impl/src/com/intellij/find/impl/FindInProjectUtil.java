@@ -47,6 +47,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.util.text.RegExpTrigramPlanner;
 import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.wm.ToolWindowId;
@@ -65,6 +66,7 @@ import com.intellij.util.PatternUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexImpl;
 import gnu.trove.THashSet;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIterator;
@@ -384,6 +386,9 @@ public class FindInProjectUtil {
     if (psiDirectory == null || findModel.isWithSubdirectories() && fileIndex.isInContent(psiDirectory.getVirtualFile())) {
       final Pattern fileMaskRegExp = createFileMaskRegExp(findModel);
       // optimization
+      final Collection<PsiFile> filesForTrigramSearch = getFilesForRegExpTrigramSearch(findModel, project, psiDirectory, fileMaskRegExp, module);
+      if (filesForTrigramSearch != null) return filesForTrigramSearch;
+
       Pair<Boolean, Collection<PsiFile>> fastWords = getFilesForFastWordSearch(findModel, project, psiDirectory, fileMaskRegExp, module, fileIndex);
       final Collection<PsiFile> filesForFastWordSearch = fastWords.getSecond();
 
@@ -479,24 +484,14 @@ public class FindInProjectUtil {
 
     PsiManager pm = PsiManager.getInstance(project);
     CacheManager cacheManager = CacheManager.SERVICE.getInstance(project);
-    SearchScope customScope = findModel.getCustomScope();
-    GlobalSearchScope scope = psiDirectory != null
-                              ? GlobalSearchScopes.directoryScope(psiDirectory, true)
-                              : module != null
-                                ? module.getModuleContentScope()
-                                : customScope instanceof GlobalSearchScope
-                                  ? (GlobalSearchScope)customScope
-                                  : toGlobal(project, customScope);
-    if (scope == null) {
-      scope = ProjectScope.getContentScope(project);
-    }
+    GlobalSearchScope scope = getSearchScope(findModel, project, psiDirectory, module);
 
     Set<Integer> keys = new THashSet<Integer>(30);
     final Set<PsiFile> resultFiles = new THashSet<PsiFile>();
     boolean fast = false;
 
     String stringToFind = findModel.getStringToFind();
-    if (TrigramIndex.ENABLED) {
+    if (TrigramIndex.ENABLED && !findModel.isRegularExpressions()) {
       TIntHashSet trigrams = TrigramBuilder.buildTrigram(stringToFind);
       TIntIterator it = trigrams.iterator();
       while (it.hasNext()) {
@@ -513,7 +508,9 @@ public class FindInProjectUtil {
         }
 
         filterMaskedFiles(resultFiles, fileMaskRegExp);
-        if (resultFiles.isEmpty()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
+        if (resultFiles.isEmpty()) {
+          return new Pair<Boolean, Collection<PsiFile>>(true, getFilesTooLargeForIndex(project, scope, fileMaskRegExp));
+        }
       }
     }
 
@@ -570,9 +567,83 @@ public class FindInProjectUtil {
       filterMaskedFiles(resultFiles, fileMaskRegExp);
     }
 
+    if (!keys.isEmpty()) {
+      // the trigram index doesn't see large files, so they stay candidates whatever the lookups returned
+      resultFiles.addAll(getFilesTooLargeForIndex(project, scope, fileMaskRegExp));
+    }
     return new Pair<Boolean, Collection<PsiFile>>(fast, resultFiles);
   }
 
+  @NotNull
+  private static GlobalSearchScope getSearchScope(@NotNull FindModel findModel,
+                                                  @NotNull Project project,
+                                                  @Nullable PsiDirectory psiDirectory,
+                                                  @Nullable Module module) {
+    SearchScope customScope = findModel.getCustomScope();
+    GlobalSearchScope scope = psiDirectory != null
+                              ? GlobalSearchScopes.directoryScope(psiDirectory, true)
+                              : module != null
+                                ? module.getModuleContentScope()
+                                : customScope instanceof GlobalSearchScope
+                                  ? (GlobalSearchScope)customScope
+                                  : toGlobal(project, customScope);
+    return scope != null ? scope : ProjectScope.getContentScope(project);
+  }
+
+  /**
+   * @return files which contain all trigrams of at least one alternative of the regular expression,
+   * or null if the trigram index cannot narrow the search
+   */
+  @Nullable
+  private static Collection<PsiFile> getFilesForRegExpTrigramSearch(@NotNull FindModel findModel,
+                                                                    @NotNull Project project,
+                                                                    @Nullable PsiDirectory psiDirectory,
+                                                                    @Nullable Pattern fileMaskRegExp,
+                                                                    @Nullable Module module) {
+    if (!TrigramIndex.ENABLED || !findModel.isRegularExpressions() || DumbService.getInstance(project).isDumb()) return null;
+    SearchScope customScope = findModel.getCustomScope();
+    if (customScope != null && !(customScope instanceof GlobalSearchScope)) return null;
+
+    List<TIntHashSet> alternatives = RegExpTrigramPlanner.plan(findModel.getStringToFind());
+    if (alternatives == null) return null;
+
+    GlobalSearchScope scope = getSearchScope(findModel, project, psiDirectory, module);
+    Set<VirtualFile> hits = new THashSet<VirtualFile>();
+    for (TIntHashSet trigrams : alternatives) {
+      Set<Integer> keys = new THashSet<Integer>(trigrams.size());
+      for (TIntIterator it = trigrams.iterator(); it.hasNext(); ) {
+        keys.add(it.next());
+      }
+      FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
+    }
+
+    PsiManager pm = PsiManager.getInstance(project);
+    Set<PsiFile> resultFiles = new THashSet<PsiFile>();
+    for (VirtualFile hit : hits) {
+      ContainerUtil.addIfNotNull(resultFiles, pm.findFile(hit));
+    }
+    filterMaskedFiles(resultFiles, fileMaskRegExp);
+    resultFiles.addAll(getFilesTooLargeForIndex(project, scope, fileMaskRegExp));
+    return resultFiles;
+  }
+
+  /**
+   * @return files of the scope which are skipped by the indices because of their size, they have to be searched without filtering
+   */
+  @NotNull
+  private static Set<PsiFile> getFilesTooLargeForIndex(@NotNull Project project,
+                                                      @NotNull GlobalSearchScope scope,
+                                                      @Nullable Pattern fileMaskRegExp) {
+    final PsiManager pm = PsiManager.getInstance(project);
+    final Set<PsiFile> result = new THashSet<PsiFile>();
+    for (VirtualFile file : ((FileBasedIndexImpl)FileBasedIndex.getInstance()).getTooLargeFiles()) {
+      if (scope.contains(file) && (fileMaskRegExp == null || fileMaskRegExp.matcher(file.getName()).matches())) {
+        ContainerUtil.addIfNotNull(result, pm.findFile(file));
+      }
+    }
+    return result;
+  }
+
   private static void filterMaskedFiles(@NotNull final Set<PsiFile> resultFiles, @Nullable final Pattern fileMaskRegExp) {
     if (fileMaskRegExp != null) {
       for (Iterator<PsiFile> iterator = resultFiles.iterator(); iterator.hasNext();) {
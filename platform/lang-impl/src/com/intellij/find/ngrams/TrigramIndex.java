@@ -96,8 +96,18 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
     return true;
   }
 
+  @Override
+  public boolean isValueStorageCompressed() {
+    return true;
+  }
+
   @Override
   public int getVersion() {
-    return ENABLED ? 2 : 1;
+    return ENABLED ? 3 : 1;
+  }
+
+  @Override
+  public boolean isPortable() {
+    return true;
   }
 }
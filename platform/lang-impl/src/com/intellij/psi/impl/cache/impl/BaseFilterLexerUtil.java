@@ -16,15 +16,21 @@
 package com.intellij.psi.impl.cache.impl;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.psi.impl.cache.impl.id.FileTypeIdIndexer;
 import com.intellij.psi.impl.cache.impl.id.IdIndexEntry;
 import com.intellij.psi.impl.cache.impl.id.IdTableBuilding;
 import com.intellij.psi.impl.cache.impl.id.LexerBasedIdIndexer;
+import com.intellij.psi.impl.cache.impl.id.PlatformIdTableBuilding;
+import com.intellij.psi.impl.cache.impl.todo.LexerBasedTodoIndexer;
 import com.intellij.psi.impl.cache.impl.todo.TodoIndexEntry;
 import com.intellij.psi.search.IndexPattern;
+import com.intellij.util.indexing.DataIndexer;
 import com.intellij.util.indexing.FileContent;
 import com.intellij.util.indexing.IdDataConsumer;
+import com.intellij.util.indexing.IndexingStatistics;
 import gnu.trove.THashMap;
 
 import java.util.Collections;
@@ -33,22 +39,41 @@ import java.util.Map;
 public class BaseFilterLexerUtil {
   private static final Key<ScanContent> scanContentKey = Key.create("id.todo.scan.content");
 
+  /**
+   * Lexes the file once for both lexer based id and todo indexers of its file type: the indexer which comes first scans
+   * for both of them and leaves the result for the other one.
+   * <p/>
+   * These are the only indexers which consume a filter lexer token stream, so there is no general stage which lexes a file for all
+   * the indices: the stub index builds PSI with the parser definition of the language, the trigram index reads the text directly,
+   * and other indexers (including plugin ones) parse the content on their own. Feeding them tokens would mean rewriting them on top
+   * of a token stream API, for the savings of a single lexer pass. {@link IndexingStatistics} reports the lexer passes performed and
+   * shared, together with the time of every index, to see what is left to gain.
+   */
   public static ScanContent scanContent(FileContent content, IdAndToDoScannerBasedOnFilterLexer indexer) {
     ScanContent data = content.getUserData(scanContentKey);
     if (data != null) {
       content.putUserData(scanContentKey, null);
+      IndexingStatistics.lexerScanShared();
       return data;
     }
 
+    final FileType fileType = content.getFileType();
     final boolean needTodo = content.getFile().getFileSystem() instanceof LocalFileSystem;
-    final boolean needIdIndex = IdTableBuilding.getFileTypeIndexer(content.getFileType()) instanceof LexerBasedIdIndexer;
+    final FileTypeIdIndexer idIndexer = IdTableBuilding.getFileTypeIndexer(fileType);
+    final boolean needIdIndex = idIndexer instanceof LexerBasedIdIndexer;
+    // the result can be passed on only if both indexers are the lexer based ones of this file type, so they share the filter lexer
+    final DataIndexer<TodoIndexEntry, Integer, FileContent> todoIndexer =
+      needIdIndex && needTodo ? PlatformIdTableBuilding.getTodoIndexer(fileType, content.getFile()) : null;
+    final boolean shareable = todoIndexer instanceof LexerBasedTodoIndexer && (indexer == idIndexer || indexer == todoIndexer);
 
+    final long started = System.nanoTime();
     final IdDataConsumer consumer = needIdIndex? new IdDataConsumer():null;
     final OccurrenceConsumer todoOccurrenceConsumer = new OccurrenceConsumer(consumer, needTodo);
     final Lexer filterLexer = indexer.createLexer(todoOccurrenceConsumer);
     filterLexer.start(content.getContentAsText());
 
     while (filterLexer.getTokenType() != null) filterLexer.advance();
+    IndexingStatistics.lexerScanPerformed(System.nanoTime() - started);
 
     Map<TodoIndexEntry,Integer> todoMap = null;
     if (needTodo) {
@@ -65,7 +90,7 @@ public class BaseFilterLexerUtil {
       consumer != null? consumer.getResult():Collections.<IdIndexEntry, Integer>emptyMap(),
       todoMap != null ? todoMap: Collections.<TodoIndexEntry,Integer>emptyMap()
     );
-    if (needIdIndex && needTodo) content.putUserData(scanContentKey, data);
+    if (shareable) content.putUserData(scanContentKey, data);
     return data;
   }
 
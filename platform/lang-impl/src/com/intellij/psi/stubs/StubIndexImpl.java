@@ -45,10 +45,12 @@ import com.intellij.psi.util.PsiUtilCore;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.containers.SLRUMap;
 import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -59,6 +61,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
@@ -75,6 +78,9 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.StubIndexImpl");
   private final Map<StubIndexKey<?,?>, MyIndex<?>> myIndices = new THashMap<StubIndexKey<?,?>, MyIndex<?>>();
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
+  private static final int QUERY_CACHE_SIZE = 32;
+  private final AtomicInteger myQueryCacheHits = new AtomicInteger();
+  private final AtomicInteger myQueryCacheMisses = new AtomicInteger();
 
   private StubIndexState myPreviouslyRegistered;
 
@@ -133,7 +139,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
           new StubIdExternalizer(),
           extension.getCacheSize()
         );
-        final MemoryIndexStorage<K, StubIdList> memStorage = new MemoryIndexStorage<K, StubIdList>(storage);
+        final MyStorage<K> memStorage = new MyStorage<K>(storage);
         myIndices.put(indexKey, new MyIndex<K>(memStorage));
         break;
       }
@@ -216,11 +222,11 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
         // disable up-to-date check to avoid locks on attempt to acquire index write lock while holding at the same time the readLock for this index
         FileBasedIndexImpl.disableUpToDateCheckForCurrentThread();
         index.getReadLock().lock();
-        final ValueContainer<StubIdList> container = index.getData(key);
+        final StubIdsByFile stubIds = getStubIds(index, key);
 
         final FileBasedIndexImpl.ProjectIndexableFilesFilter projectFilesFilter = fileBasedIndex.projectIndexableFiles(project);
 
-        return container.forEach(new ValueContainer.ContainerAction<StubIdList>() {
+        return stubIds.forEach(new ValueContainer.ContainerAction<StubIdList>() {
           @Override
           public boolean perform(final int id, @NotNull final StubIdList value) {
             if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
@@ -343,6 +349,46 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     return true;
   }
 
+  /**
+   * Must be called under the index read lock, so that the index doesn't change between reading its modification count and its data.
+   */
+  @NotNull
+  private <K> StubIdsByFile getStubIds(@NotNull MyIndex<K> index, @NotNull K key) throws StorageException {
+    final int modificationCount = index.myMemoryStorage.getModificationCount();
+    synchronized (index.myQueryCache) {
+      final StubIdsByFile cached = index.myQueryCache.get(key);
+      if (cached != null && cached.myModificationCount == modificationCount) {
+        myQueryCacheHits.incrementAndGet();
+        return cached;
+      }
+    }
+    myQueryCacheMisses.incrementAndGet();
+
+    final TIntArrayList fileIds = new TIntArrayList();
+    final List<StubIdList> values = new ArrayList<StubIdList>();
+    index.getData(key).forEach(new ValueContainer.ContainerAction<StubIdList>() {
+      @Override
+      public boolean perform(int id, StubIdList value) {
+        fileIds.add(id);
+        values.add(value);
+        return true;
+      }
+    });
+    final StubIdsByFile stubIds = new StubIdsByFile(modificationCount, fileIds.toNativeArray(), values.toArray(new StubIdList[values.size()]));
+    synchronized (index.myQueryCache) {
+      index.myQueryCache.put(key, stubIds);
+    }
+    return stubIds;
+  }
+
+  public int getQueryCacheHits() {
+    return myQueryCacheHits.get();
+  }
+
+  public int getQueryCacheMisses() {
+    return myQueryCacheMisses.get();
+  }
+
   private static IElementType stubType(@NotNull final StubElement<?> stub) {
     if (stub instanceof PsiFileStub) {
       return ((PsiFileStub)stub).getType();
@@ -489,9 +535,81 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
+  /**
+   * Decoded index data for a key: the files containing the key and the ids of the stubs in them.
+   */
+  private static class StubIdsByFile {
+    private final int myModificationCount;
+    private final int[] myFileIds;
+    private final StubIdList[] myStubIds;
+
+    private StubIdsByFile(int modificationCount, @NotNull int[] fileIds, @NotNull StubIdList[] stubIds) {
+      myModificationCount = modificationCount;
+      myFileIds = fileIds;
+      myStubIds = stubIds;
+    }
+
+    private boolean forEach(@NotNull ValueContainer.ContainerAction<StubIdList> action) {
+      for (int i = 0; i < myFileIds.length; i++) {
+        if (!action.perform(myFileIds[i], myStubIds[i])) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Counts modifications of the index data to invalidate the cached query results. The count is incremented after the change,
+   * so a result read meanwhile is cached with the outdated count.
+   */
+  private static class MyStorage<K> extends MemoryIndexStorage<K, StubIdList> {
+    private final AtomicInteger myModificationCount = new AtomicInteger();
+
+    private MyStorage(@NotNull IndexStorage<K, StubIdList> backend) {
+      super(backend);
+    }
+
+    private int getModificationCount() {
+      return myModificationCount.get();
+    }
+
+    @Override
+    public void addValue(K key, int inputId, StubIdList value) throws StorageException {
+      super.addValue(key, inputId, value);
+      myModificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void removeAllValues(K key, int inputId) throws StorageException {
+      super.removeAllValues(key, inputId);
+      myModificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void setBufferingEnabled(boolean enabled) {
+      super.setBufferingEnabled(enabled);
+      myModificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void clearMemoryMap() {
+      super.clearMemoryMap();
+      myModificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void clear() throws StorageException {
+      super.clear();
+      myModificationCount.incrementAndGet();
+    }
+  }
+
   private static class MyIndex<K> extends MapReduceIndex<K, StubIdList, Void> {
-    public MyIndex(final IndexStorage<K, StubIdList> storage) {
+    private final MyStorage<K> myMemoryStorage;
+    private final SLRUMap<K, StubIdsByFile> myQueryCache = new SLRUMap<K, StubIdsByFile>(QUERY_CACHE_SIZE, QUERY_CACHE_SIZE);
+
+    public MyIndex(final MyStorage<K> storage) {
       super(null, null, storage);
+      myMemoryStorage = storage;
     }
 
     @Override
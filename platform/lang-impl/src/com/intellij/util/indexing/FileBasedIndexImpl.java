@@ -64,6 +64,7 @@ import com.intellij.util.*;
 import com.intellij.util.concurrency.Semaphore;
 import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.containers.IntPostingList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.storage.HeavyProcessLatch;
@@ -116,6 +117,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final FileDocumentManager myFileDocumentManager;
   private final FileTypeManager myFileTypeManager;
   private final ConcurrentHashSet<ID<?, ?>> myUpToDateIndices = new ConcurrentHashSet<ID<?, ?>>();
+  // indexable files skipped because of their size, updated when the files are scanned for indexing or changed
+  private final ConcurrentHashSet<VirtualFile> myTooLargeFiles = new ConcurrentHashSet<VirtualFile>();
   private final Map<Document, PsiFile> myTransactionMap = new THashMap<Document, PsiFile>();
 
   private static final int ALREADY_PROCESSED = 0x04;
@@ -126,6 +129,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   @Nullable private ScheduledFuture<?> myFlushingFuture;
   private volatile int myLocalModCount;
   private volatile int myFilesModCount;
+  @Nullable private LibraryIndexShards myLibraryShards;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"}) private volatile boolean myInitialized;
     // need this variable for memory barrier
@@ -283,6 +287,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         versionChanged |= registerIndexer(extension, currentVersionCorrupted);
       }
       FileUtil.delete(corruptionMarker);
+      myLibraryShards = LibraryIndexShards.create(this, extensions);
 
       String rebuildNotification = null;
       if (currentVersionCorrupted) {
@@ -390,7 +395,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           extension.getKeyDescriptor(),
           extension.getValueExternalizer(),
           extension.getCacheSize(),
-          extension.isKeyHighlySelective()
+          extension.isKeyHighlySelective(),
+          extension.isValueStorageCompressed()
         );
         final MemoryIndexStorage<K, V> memStorage = new MemoryIndexStorage<K, V>(storage);
         final UpdatableIndex<K, V, FileContent> index = createIndex(name, extension, memStorage);
@@ -1026,6 +1032,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     if (myUpdatingFiles.decrementAndGet() == 0) {
       ++myFilesModCount;
     }
+    if (myLibraryShards != null) {
+      myLibraryShards.exportPendingShards();
+    }
   }
 
   private final Lock myCalcIndexableFilesLock = new SequenceLock();
@@ -1175,10 +1184,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<IntPostingList> locals = new ArrayList<IntPostingList>();
+        final TIntArrayList local = new TIntArrayList();
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
+          local.resetQuick();
           final ValueContainer<V> container = index.getData(dataKey);
 
           for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
@@ -1188,24 +1197,18 @@ public class FileBasedIndexImpl extends FileBasedIndex {
               local.add(id);
             }
           }
+          if (local.isEmpty()) return true;
+          locals.add(IntPostingList.create(local));
         }
 
         if (locals.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
-          @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
-          }
-        });
-
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
+        final int[] ids = IntPostingList.intersect(locals);
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
-        while (ids.hasNext()) {
-          int id = ids.next();
+        for (int id : ids) {
           if (projectIndexableFilesFilter != null && !projectIndexableFilesFilter.contains(id)) continue;
           //VirtualFile file = IndexInfrastructure.findFileById(fs, id);
           VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
@@ -1235,25 +1238,6 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return true;
   }
 
-  @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
-        }
-      }
-    }
-    return result;
-  }
-
   @Override
   public <K> void scheduleRebuild(@NotNull final ID<K, ?> indexId, @NotNull final Throwable e) {
     LOG.info(e);
@@ -1711,12 +1695,16 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
         @Override
         public void run() {
+          final long started = System.nanoTime();
           try {
             index.update(inputId, currentFC);
           }
           catch (StorageException e) {
             exRef.set(e);
           }
+          finally {
+            if (currentFC != null) IndexingStatistics.indexUpdated(indexId, System.nanoTime() - started);
+          }
         }
       });
     }
@@ -1745,6 +1733,59 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     });
   }
 
+  /**
+   * Stores data built elsewhere for the file and marks the file as indexed, if it needs indexing.
+   * The data is stored the same way {@link #updateSingleIndex} stores the data built locally.
+   * @return true if the data was stored
+   */
+  <K, V> boolean importIndexedData(@NotNull final ID<K, V> indexId, @NotNull final VirtualFile file, @NotNull final Map<K, V> data)
+    throws StorageException {
+    final UpdatableIndex<K, V, FileContent> index = getIndex(indexId);
+    if (!(index instanceof MapReduceIndex)) {
+      return false;
+    }
+    final Ref<StorageException> exRef = new Ref<StorageException>(null);
+    final boolean imported = ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD || !file.isValid() || !shouldIndexFile(file, indexId)) {
+          return false;
+        }
+        myLocalModCount++;
+
+        final int inputId = Math.abs(getFileId(file));
+        final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+        try {
+          ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                ((MapReduceIndex<K, V, FileContent>)index).updateWithData(inputId, data);
+              }
+              catch (StorageException e) {
+                exRef.set(e);
+              }
+            }
+          });
+        }
+        finally {
+          lock.leave();
+        }
+        if (exRef.get() != null) {
+          return false;
+        }
+        IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+        return true;
+      }
+    });
+
+    final StorageException storageException = exRef.get();
+    if (storageException != null) {
+      throw storageException;
+    }
+    return imported;
+  }
+
   private boolean needsFileContentLoading(ID<?, ?> indexId) {
     return !myNotRequiringContentIndices.contains(indexId);
   }
@@ -1808,6 +1849,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     @Override
     public void fileDeleted(@NotNull final VirtualFileEvent event) {
       myFilesToUpdate.remove(event.getFile()); // no need to update it anymore
+      myTooLargeFiles.remove(event.getFile());
     }
 
     @Override
@@ -1880,7 +1922,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             }
           }
           // For 'normal indices' schedule the file for update and stop iteration if at least one index accepts it 
-          if (!isTooLarge(file)) {
+          if (!updateTooLargeFile(file)) {
             for (ID<?, ?> indexId : myIndices.keySet()) {
               if (needsFileContentLoading(indexId) && getInputFilter(indexId).acceptInput(file)) {
                 scheduleForUpdate(file);
@@ -2152,6 +2194,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         return true;
       }
       if (!file.isDirectory()) {
+        updateTooLargeFile(file);
         if (file instanceof NewVirtualFile && ((NewVirtualFile)file).getFlag(ALREADY_PROCESSED)) {
           return true;
         }
@@ -2162,6 +2205,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
             boolean oldStuff = true;
             if (!isTooLarge(file)) {
+              if (myLibraryShards != null) {
+                myLibraryShards.importShardFor(file);
+              }
               for (ID<?, ?> indexId : myIndices.keySet()) {
                 try {
                   if (needsFileContentLoading(indexId) && shouldIndexFile(file, indexId)) {
@@ -2225,7 +2271,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
            (isMock(file) || IndexingStamp.isFileIndexed(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId)));
   }
 
-  private boolean shouldIndexFile(final VirtualFile file, final ID<?, ?> indexId) {
+  boolean shouldIndexFile(final VirtualFile file, final ID<?, ?> indexId) {
     return getInputFilter(indexId).acceptInput(file) &&
            (isMock(file) || !IndexingStamp.isFileIndexed(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId)));
   }
@@ -2240,7 +2286,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return !(file instanceof NewVirtualFile);
   }
 
-  private boolean isTooLarge(@NotNull VirtualFile file) {
+  boolean isTooLarge(@NotNull VirtualFile file) {
     if (SingleRootFileViewProvider.isTooLargeForIntelligence(file)) {
       final FileType type = file.getFileType();
       return !myNoLimitCheckTypes.contains(type);
@@ -2248,6 +2294,29 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return false;
   }
 
+  private boolean updateTooLargeFile(@NotNull VirtualFile file) {
+    if (isTooLarge(file)) {
+      myTooLargeFiles.add(file);
+      return true;
+    }
+    myTooLargeFiles.remove(file);
+    return false;
+  }
+
+  /**
+   * @return indexable files which are not indexed because of their size
+   */
+  @NotNull
+  public List<VirtualFile> getTooLargeFiles() {
+    final List<VirtualFile> result = new ArrayList<VirtualFile>(myTooLargeFiles.size());
+    for (VirtualFile file : myTooLargeFiles) {
+      if (file.isValid()) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
   private boolean isTooLarge(@NotNull VirtualFile file, long contentSize) {
     if (SingleRootFileViewProvider.isTooLargeForIntelligence(file, contentSize)) {
       final FileType type = file.getFileType();
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent by every index on building data of the files and the number of the lexer passes which were shared by several indices.
+ * Only the lexer based id and todo indexers share a pass, see {@link com.intellij.psi.impl.cache.impl.BaseFilterLexerUtil#scanContent}.
+ */
+public class IndexingStatistics {
+  private static final ConcurrentHashMap<ID<?, ?>, IndexTiming> ourTimings = new ConcurrentHashMap<ID<?, ?>, IndexTiming>();
+  private static final AtomicLong ourLexerScans = new AtomicLong();
+  private static final AtomicLong ourLexerScansTime = new AtomicLong();
+  private static final AtomicLong ourSharedLexerScans = new AtomicLong();
+
+  private static class IndexTiming {
+    final AtomicLong files = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+  }
+
+  private IndexingStatistics() {
+  }
+
+  static void indexUpdated(@NotNull ID<?, ?> indexId, long nanos) {
+    IndexTiming timing = ourTimings.get(indexId);
+    if (timing == null) {
+      final IndexTiming newTiming = new IndexTiming();
+      timing = ourTimings.putIfAbsent(indexId, newTiming);
+      if (timing == null) timing = newTiming;
+    }
+    timing.files.incrementAndGet();
+    timing.nanos.addAndGet(nanos);
+  }
+
+  /**
+   * A file was lexed for the lexer based id and todo indexers
+   */
+  public static void lexerScanPerformed(long nanos) {
+    ourLexerScans.incrementAndGet();
+    ourLexerScansTime.addAndGet(nanos);
+  }
+
+  /**
+   * An indexer got the result of the lexer pass performed for another indexer of the same file
+   */
+  public static void lexerScanShared() {
+    ourSharedLexerScans.incrementAndGet();
+  }
+
+  public static long getIndexingTime(@NotNull ID<?, ?> indexId) {
+    final IndexTiming timing = ourTimings.get(indexId);
+    return timing == null ? 0 : TimeUnit.NANOSECONDS.toMillis(timing.nanos.get());
+  }
+
+  public static long getIndexedFilesCount(@NotNull ID<?, ?> indexId) {
+    final IndexTiming timing = ourTimings.get(indexId);
+    return timing == null ? 0 : timing.files.get();
+  }
+
+  public static long getLexerScansCount() {
+    return ourLexerScans.get();
+  }
+
+  public static long getLexerScansTime() {
+    return TimeUnit.NANOSECONDS.toMillis(ourLexerScansTime.get());
+  }
+
+  public static long getSharedLexerScansCount() {
+    return ourSharedLexerScans.get();
+  }
+
+  @NotNull
+  public static String dump() {
+    final List<Map.Entry<ID<?, ?>, IndexTiming>> entries = new ArrayList<Map.Entry<ID<?, ?>, IndexTiming>>(ourTimings.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<ID<?, ?>, IndexTiming>>() {
+      @Override
+      public int compare(Map.Entry<ID<?, ?>, IndexTiming> o1, Map.Entry<ID<?, ?>, IndexTiming> o2) {
+        final long nanos1 = o1.getValue().nanos.get();
+        final long nanos2 = o2.getValue().nanos.get();
+        return nanos1 < nanos2 ? 1 : nanos1 == nanos2 ? 0 : -1;
+      }
+    });
+
+    final StringBuilder builder = new StringBuilder("Indexing time:");
+    for (Map.Entry<ID<?, ?>, IndexTiming> entry : entries) {
+      builder.append(' ').append(entry.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue().nanos.get()))
+        .append("ms/").append(entry.getValue().files.get());
+    }
+    builder.append("; lexer passes: ").append(getLexerScansCount()).append(" in ").append(getLexerScansTime()).append("ms, shared: ")
+      .append(getSharedLexerScansCount());
+    return builder.toString();
+  }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.FileTypeRegistry;
+import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.*;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import com.intellij.util.containers.ConcurrentHashSet;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Pre-built data of library jars shared between installations through a directory set by {@code idea.library.index.shards.dir}.
+ * <p/>
+ * A shard holds data of the portable indices (see {@link FileBasedIndexExtension#isPortable()}) for all entries of one jar and is
+ * named by SHA-1 of the jar content, so identical jars at different paths or on different machines share it.
+ * When the indexing meets a jar with unindexed entries its shard is imported in background, entries which are imported before
+ * their content is loaded are not indexed locally; jars which had no shard are exported when the indexing finishes. Data of other indices (e.g. stubs, which depend on locally enumerated serializer names) is built locally.
+ * <p/>
+ * Shard layout: magic, format version, indices (name and version), then for every jar entry: its relative path followed by
+ * the data of every index as [length][map size][keys and values], length is -1 if the index does not apply to the entry.
+ */
+class LibraryIndexShards {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.LibraryIndexShards");
+
+  private static final String SHARDS_DIR_PROPERTY = "idea.library.index.shards.dir";
+  private static final String SHARD_EXTENSION = ".shard";
+  private static final int MAGIC = 0x1d5a4d01;
+  private static final int FORMAT_VERSION = 1;
+
+  private final FileBasedIndexImpl myIndex;
+  private final File myDirectory;
+  private final List<FileBasedIndexExtension<?, ?>> myExtensions;
+  private final String myVersionsStamp; // shards are not shared between different sets of index versions, indexers and file types
+
+  private final ConcurrentHashMap<String, Boolean> myProcessedJars = new ConcurrentHashMap<String, Boolean>();
+  private final ConcurrentHashSet<String> myJarsToExport = new ConcurrentHashSet<String>();
+  private final ConcurrentHashMap<String, String> myJarHashes = new ConcurrentHashMap<String, String>();
+  // imports write to the same indices, so running them one by one is enough to keep ahead of the local indexing
+  private final BoundedTaskExecutor myImportExecutor = new BoundedTaskExecutor(new Executor() {
+    @Override
+    public void execute(@NotNull Runnable command) {
+      ApplicationManager.getApplication().executeOnPooledThread(command);
+    }
+  }, 1);
+
+  private LibraryIndexShards(@NotNull FileBasedIndexImpl index, @NotNull File directory, @NotNull List<FileBasedIndexExtension<?, ?>> extensions) {
+    myIndex = index;
+    myDirectory = directory;
+    myExtensions = extensions;
+
+    final StringBuilder versions = new StringBuilder();
+    for (FileBasedIndexExtension<?, ?> extension : extensions) {
+      versions.append(extension.getName()).append(':').append(extension.getVersion()).append(':')
+        .append(extension.getPortableDataStamp()).append(';');
+    }
+    // file types decide which entries the indices accept and how their content is read
+    final Set<String> fileTypes = new TreeSet<String>();
+    for (FileType fileType : FileTypeRegistry.getInstance().getRegisteredFileTypes()) {
+      fileTypes.add(fileType.getName() + ":" + fileType.getClass().getName());
+    }
+    versions.append(fileTypes);
+    myVersionsStamp = Integer.toHexString(versions.toString().hashCode());
+  }
+
+  @Nullable
+  static LibraryIndexShards create(@NotNull FileBasedIndexImpl index, @NotNull FileBasedIndexExtension[] extensions) {
+    final String path = System.getProperty(SHARDS_DIR_PROPERTY);
+    if (StringUtil.isEmptyOrSpaces(path)) return null;
+
+    final List<FileBasedIndexExtension<?, ?>> portable = new ArrayList<FileBasedIndexExtension<?, ?>>();
+    for (FileBasedIndexExtension<?, ?> extension : extensions) {
+      if (extension.isPortable()) portable.add(extension);
+    }
+    final File directory = new File(path);
+    if (portable.isEmpty() || !directory.isDirectory() && !directory.mkdirs()) {
+      LOG.info("Library index shards are disabled, directory: " + path + ", portable indices: " + portable.size());
+      return null;
+    }
+    return new LibraryIndexShards(index, directory, portable);
+  }
+
+  /**
+   * Schedules import of the shard of the jar containing the file, once per jar and only if the file needs indexing by the portable indices
+   */
+  void importShardFor(@NotNull VirtualFile file) {
+    if (!(file.getFileSystem() instanceof JarFileSystem) || !needsIndexing(file)) return;
+    final VirtualFile jarRoot = getJarRoot(file);
+    if (jarRoot == null) return;
+
+    final String url = jarRoot.getUrl();
+    if (myProcessedJars.putIfAbsent(url, Boolean.FALSE) != null) return;
+
+    myImportExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        importShardOrScheduleExport(jarRoot, url);
+      }
+    });
+  }
+
+  private void importShardOrScheduleExport(@NotNull VirtualFile jarRoot, @NotNull String url) {
+    boolean imported = false;
+    try {
+      imported = importShard(jarRoot);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot import index shard for " + url, e);
+    }
+    catch (StorageException e) {
+      LOG.info("Cannot import index shard for " + url, e);
+    }
+    myProcessedJars.put(url, imported);
+    if (!imported) myJarsToExport.add(url);
+  }
+
+  private boolean needsIndexing(@NotNull VirtualFile file) {
+    for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+      if (myIndex.shouldIndexFile(file, extension.getName())) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Exports shards of the jars which were indexed locally, in background
+   */
+  void exportPendingShards() {
+    if (myJarsToExport.isEmpty()) return;
+    final List<String> urls = new ArrayList<String>(myJarsToExport);
+    myJarsToExport.removeAll(urls);
+
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        for (final String url : urls) {
+          final VirtualFile jarRoot = ApplicationManager.getApplication().runReadAction(new Computable<VirtualFile>() {
+            @Override
+            public VirtualFile compute() {
+              return VirtualFileManager.getInstance().findFileByUrl(url);
+            }
+          });
+          if (jarRoot == null) continue;
+          try {
+            exportShard(jarRoot);
+          }
+          catch (IOException e) {
+            LOG.info("Cannot export index shard for " + url, e);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * @return false if there is no shard for the jar
+   */
+  boolean importShard(@NotNull final VirtualFile jarRoot) throws IOException, StorageException {
+    final File shard = getShardFile(jarRoot);
+    if (shard == null || !shard.isFile()) return false;
+
+    final long started = System.currentTimeMillis();
+    int imported = 0;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(shard))));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        LOG.info("Unsupported index shard format: " + shard.getPath());
+        return false;
+      }
+
+      final int indicesCount = in.readInt();
+      final FileBasedIndexExtension<?, ?>[] extensions = new FileBasedIndexExtension<?, ?>[indicesCount];
+      for (int i = 0; i < indicesCount; i++) {
+        final String name = in.readUTF();
+        final int version = in.readInt();
+        for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+          if (extension.getName().toString().equals(name) && extension.getVersion() == version) {
+            extensions[i] = extension;
+          }
+        }
+      }
+
+      while (in.readBoolean()) {
+        final String path = in.readUTF();
+        final VirtualFile file = ApplicationManager.getApplication().runReadAction(new Computable<VirtualFile>() {
+          @Override
+          public VirtualFile compute() {
+            return jarRoot.isValid() ? jarRoot.findFileByRelativePath(path) : null;
+          }
+        });
+        boolean updated = false;
+        for (FileBasedIndexExtension<?, ?> extension : extensions) {
+          final int length = in.readInt();
+          if (length < 0) continue;
+          if (extension == null || file == null) {
+            skipFully(in, length);
+            continue;
+          }
+          updated |= importData(extension, file, in);
+        }
+        if (updated) {
+          imported++;
+          IndexingStamp.flushCache(file);
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    LOG.info("Imported index data of " + imported + " files of " + jarRoot.getPresentableUrl() + " from " + shard.getName() + " in " +
+             (System.currentTimeMillis() - started) + " ms");
+    return true;
+  }
+
+  private <K, V> boolean importData(@NotNull FileBasedIndexExtension<K, V> extension, @NotNull VirtualFile file, @NotNull DataInputStream in)
+    throws IOException, StorageException {
+    final int size = in.readInt();
+    final Map<K, V> data = new THashMap<K, V>(size);
+    for (int i = 0; i < size; i++) {
+      final K key = extension.getKeyDescriptor().read(in);
+      data.put(key, extension.getValueExternalizer().read(in));
+    }
+    return myIndex.importIndexedData(extension.getName(), file, data);
+  }
+
+  private static void skipFully(@NotNull DataInputStream in, int length) throws IOException {
+    while (length > 0) {
+      final int skipped = in.skipBytes(length);
+      if (skipped <= 0) throw new EOFException();
+      length -= skipped;
+    }
+  }
+
+  /**
+   * Exports data of all entries of the jar, if there is no shard for the jar yet. The data is built from the content of the entries,
+   * entries which are never indexed (too large ones or those no portable index applies to) are left out.
+   * @return true if the shard was written
+   */
+  boolean exportShard(@NotNull final VirtualFile jarRoot) throws IOException {
+    final File shard = getShardFile(jarRoot);
+    if (shard == null || shard.exists()) return false;
+
+    final long started = System.currentTimeMillis();
+    final List<VirtualFile> files = ApplicationManager.getApplication().runReadAction(new Computable<List<VirtualFile>>() {
+      @Override
+      public List<VirtualFile> compute() {
+        final List<VirtualFile> files = new ArrayList<VirtualFile>();
+        VfsUtilCore.visitChildrenRecursively(jarRoot, new VirtualFileVisitor() {
+          @Override
+          public boolean visitFile(@NotNull VirtualFile file) {
+            if (!file.isDirectory() && !myIndex.isTooLarge(file)) files.add(file);
+            return true;
+          }
+        });
+        return files;
+      }
+    });
+
+    final File temp = FileUtil.createTempFile(myDirectory, shard.getName(), ".tmp", true);
+    int exported = 0;
+    boolean complete = false;
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(temp))));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(myExtensions.size());
+        for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+          out.writeUTF(extension.getName().toString());
+          out.writeInt(extension.getVersion());
+        }
+
+        final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+        for (VirtualFile file : files) {
+          final Map<FileBasedIndexExtension<?, ?>, Map<?, ?>> fileData = getFileData(file);
+          if (fileData == null) return false; // the jar has changed, will be exported next time
+          if (fileData.isEmpty()) continue;
+
+          out.writeBoolean(true);
+          out.writeUTF(VfsUtilCore.getRelativePath(file, jarRoot, '/'));
+          exported++;
+          for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+            final Map<?, ?> data = fileData.get(extension);
+            if (data == null) {
+              out.writeInt(-1);
+              continue;
+            }
+            bytes.reset();
+            saveData(extension, data, new DataOutputStream(bytes));
+            out.writeInt(bytes.size());
+            out.write(bytes.getInternalBuffer(), 0, bytes.size());
+          }
+        }
+        out.writeBoolean(false);
+        complete = true;
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      if (!complete) FileUtil.delete(temp);
+    }
+
+    // the same shard may be written concurrently by another installation, any of the copies is fine
+    if (shard.exists() || !temp.renameTo(shard)) {
+      FileUtil.delete(temp);
+      return false;
+    }
+    LOG.info("Exported index data of " + exported + " files of " + jarRoot.getPresentableUrl() + " to " + shard.getName() + " in " +
+             (System.currentTimeMillis() - started) + " ms");
+    return true;
+  }
+
+  /**
+   * @return data the portable indices which apply to the file build for its content, or null if the file is no longer valid
+   */
+  @Nullable
+  Map<FileBasedIndexExtension<?, ?>, Map<?, ?>> getFileData(@NotNull final VirtualFile file) throws IOException {
+    final IOException[] exception = new IOException[1];
+    final Map<FileBasedIndexExtension<?, ?>, Map<?, ?>> result =
+      ApplicationManager.getApplication().runReadAction(new Computable<Map<FileBasedIndexExtension<?, ?>, Map<?, ?>>>() {
+        @Override
+        public Map<FileBasedIndexExtension<?, ?>, Map<?, ?>> compute() {
+          if (!file.isValid()) return null;
+          final Map<FileBasedIndexExtension<?, ?>, Map<?, ?>> result = new THashMap<FileBasedIndexExtension<?, ?>, Map<?, ?>>();
+          FileContentImpl content = null;
+          try {
+            for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+              if (!extension.getInputFilter().acceptInput(file)) continue;
+              if (content == null) {
+                content = new FileContentImpl(file, file.contentsToByteArray());
+                content.putUserData(IndexingDataKeys.PROJECT, ProjectUtil.guessProjectForFile(file));
+              }
+              result.put(extension, extension.getIndexer().map(content));
+            }
+          }
+          catch (IOException e) {
+            exception[0] = e;
+          }
+          return result;
+        }
+      });
+    if (exception[0] != null) throw exception[0];
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> void saveData(@NotNull FileBasedIndexExtension<K, V> extension, @NotNull Map<?, ?> data, @NotNull DataOutput out)
+    throws IOException {
+    out.writeInt(data.size());
+    for (Map.Entry<K, V> entry : ((Map<K, V>)data).entrySet()) {
+      extension.getKeyDescriptor().save(out, entry.getKey());
+      extension.getValueExternalizer().save(out, entry.getValue());
+    }
+  }
+
+  @Nullable
+  private static VirtualFile getJarRoot(@NotNull VirtualFile entry) {
+    final JarFileSystem jarFileSystem = JarFileSystem.getInstance();
+    final VirtualFile jar = jarFileSystem.getVirtualFileForJar(entry);
+    return jar != null ? jarFileSystem.getJarRootForLocalFile(jar) : null;
+  }
+
+  @Nullable
+  private File getShardFile(@NotNull VirtualFile jarRoot) throws IOException {
+    final VirtualFile jar = JarFileSystem.getInstance().getVirtualFileForJar(jarRoot);
+    if (jar == null || !jar.isInLocalFileSystem()) return null;
+    final File file = VfsUtilCore.virtualToIoFile(jar);
+    if (!file.isFile()) return null;
+    return new File(myDirectory, getContentHash(file) + "-" + myVersionsStamp + SHARD_EXTENSION);
+  }
+
+  @NotNull
+  private String getContentHash(@NotNull File jar) throws IOException {
+    final String cacheKey = jar.getPath() + ":" + jar.length() + ":" + jar.lastModified();
+    String hash = myJarHashes.get(cacheKey);
+    if (hash != null) return hash;
+
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+    final InputStream in = new FileInputStream(jar);
+    try {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    final StringBuilder builder = new StringBuilder();
+    for (byte b : digest.digest()) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    hash = builder.toString();
+    myJarHashes.put(cacheKey, hash);
+    return hash;
+  }
+}
@@ -16,10 +16,13 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
@@ -41,6 +44,7 @@ import java.util.concurrent.locks.ReentrantLock;
 */
 public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Value>{
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.MapIndexStorage");
+  static final boolean BACKGROUND_COMPACTION = SystemProperties.getBooleanProperty("idea.indices.background.compaction", true);
   private PersistentMap<Key, ValueContainer<Value>> myMap;
   private SLRUCache<Key, ChangeTrackingValueContainer<Value>> myCache;
   private final File myStorageFile;
@@ -50,6 +54,7 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
   private final Lock l = new ReentrantLock();
   private final DataExternalizer<Value> myDataExternalizer;
   private boolean myHighKeySelectivity;
+  private final boolean myCompressedValues;
 
   public MapIndexStorage(@NotNull File storageFile,
                          @NotNull KeyDescriptor<Key> keyDescriptor,
@@ -64,17 +69,27 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
                          @NotNull DataExternalizer<Value> valueExternalizer,
                          final int cacheSize,
                          boolean highKeySelectivity) throws IOException {
+    this(storageFile, keyDescriptor, valueExternalizer, cacheSize, highKeySelectivity, false);
+  }
+
+  public MapIndexStorage(@NotNull File storageFile,
+                         @NotNull KeyDescriptor<Key> keyDescriptor,
+                         @NotNull DataExternalizer<Value> valueExternalizer,
+                         final int cacheSize,
+                         boolean highKeySelectivity,
+                         boolean compressedValues) throws IOException {
 
     myStorageFile = storageFile;
     myKeyDescriptor = keyDescriptor;
     myCacheSize = cacheSize;
     myDataExternalizer = valueExternalizer;
     myHighKeySelectivity = highKeySelectivity;
+    myCompressedValues = compressedValues;
     initMapAndCache();
   }
 
   private void initMapAndCache() throws IOException {
-    final ValueContainerMap<Key, Value> map = new ValueContainerMap<Key, Value>(myStorageFile, myKeyDescriptor, myDataExternalizer);
+    final ValueContainerMap<Key, Value> map = new ValueContainerMap<Key, Value>(myStorageFile, myKeyDescriptor, myDataExternalizer, myCompressedValues);
     myCache = new SLRUCache<Key, ChangeTrackingValueContainer<Value>>(myCacheSize, (int)(Math.ceil(myCacheSize * 0.25)) /* 25% from the main cache size*/) {
       @Override
       @NotNull
@@ -118,6 +133,30 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     };
 
     myMap = map;
+
+    if (BACKGROUND_COMPACTION && map.makesSenseToCompact()) {
+      scheduleCompaction(map);
+    }
+  }
+
+  private static void scheduleCompaction(@NotNull final ValueContainerMap<?, ?> map) throws IOException {
+    final Application application = ApplicationManager.getApplication();
+    if (application == null || application.isUnitTestMode()) {
+      map.compact();
+      return;
+    }
+
+    application.executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          map.compactIncrementally();
+        }
+        catch (IOException e) {
+          LOG.info("Incremental compaction of " + map.getBaseFile().getPath() + " failed", e);
+        }
+      }
+    });
   }
 
   @Override
@@ -214,13 +214,26 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
     final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
 
-    updateWithMap(inputId, data, new Callable<Collection<Key>>() {
+    updateWithMap(inputId, data, getOldKeysGetter(inputId));
+  }
+
+  /**
+   * Replaces data of the input with the data built elsewhere, e.g. imported from a pre-built library index
+   */
+  final void updateWithData(final int inputId, @NotNull Map<Key, Value> data) throws StorageException {
+    assert myInputsIndex != null;
+    updateWithMap(inputId, data, getOldKeysGetter(inputId));
+  }
+
+  @NotNull
+  private Callable<Collection<Key>> getOldKeysGetter(final int inputId) {
+    return new Callable<Collection<Key>>() {
       @Override
       public Collection<Key> call() throws Exception {
         final Collection<Key> oldKeys = myInputsIndex.get(inputId);
         return oldKeys == null? Collections.<Key>emptyList() : oldKeys;
       }
-    });
+    };
   }
 
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
@@ -20,10 +20,13 @@ import com.intellij.openapi.application.impl.ApplicationInfoImpl;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.EmptyIterator;
+import com.intellij.util.containers.IntPostingList;
 import gnu.trove.THashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIterator;
+import gnu.trove.TObjectFunction;
 import gnu.trove.TObjectObjectProcedure;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
 
@@ -37,9 +40,13 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   // there is no volatile as we modify under write lock and read under read lock
   // Most often (80%) we store 0 or one mapping, then we store them in two fields: myInputIdMapping, myInputIdMappingValue
   // when there are several value mapped, myInputIdMapping is THashMap<Value, Data>, myInputIdMappingValue = null
+  // input ids of a value are Integer, IdSet or, for large containers loaded from disk, IntPostingList which is turned back to IdSet on modification
   private Object myInputIdMapping;
   private Object myInputIdMappingValue;
 
+  // ids sets of this size and larger are kept compressed
+  static final int COMPRESSION_THRESHOLD = 64;
+
   @Override
   public void addValue(int inputId, Value value) {
     final Object input = getInput(value);
@@ -66,6 +73,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = idSet;
         else ((THashMap<Value, Object>)myInputIdMapping).put(value, idSet);
       }
+      else if (input instanceof IntPostingList) {
+        idSet = decompress(value, (IntPostingList)input);
+      }
       else {
         idSet = (TIntHashSet)input;
       }
@@ -73,6 +83,74 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
+  /**
+   * Adds several input ids of the value at once, a new large ids set is stored compressed right away
+   */
+  void addValues(@NotNull int[] inputIds, Value value) {
+    if (inputIds.length >= COMPRESSION_THRESHOLD && getInput(value) == null) {
+      setInput(value, IntPostingList.create(inputIds));
+      return;
+    }
+    for (int inputId : inputIds) {
+      addValue(inputId, value);
+    }
+  }
+
+  /**
+   * Replaces large ids sets with their compressed form, which is 10+ times smaller and is iterated in ascending order
+   */
+  void compressIds() {
+    if (myInputIdMapping instanceof THashMap) {
+      ((THashMap<Value, Object>)myInputIdMapping).transformValues(new TObjectFunction<Object, Object>() {
+        @Override
+        public Object execute(Object input) {
+          return compress(input);
+        }
+      });
+    }
+    else if (myInputIdMapping != null) {
+      myInputIdMappingValue = compress(myInputIdMappingValue);
+    }
+  }
+
+  private static Object compress(Object input) {
+    if (input instanceof TIntHashSet && ((TIntHashSet)input).size() >= COMPRESSION_THRESHOLD) {
+      return IntPostingList.create(((TIntHashSet)input).toArray());
+    }
+    return input;
+  }
+
+  @NotNull
+  private TIntHashSet decompress(Value value, @NotNull IntPostingList ids) {
+    final TIntHashSet idSet = new IdSet(ids.size() + 1, 0.98f);
+    for (IntPostingList.Cursor cursor = ids.cursor(); cursor.hasNext();) {
+      idSet.add(cursor.next());
+    }
+    setInput(value, idSet);
+    return idSet;
+  }
+
+  private void setInput(Value value, @NotNull Object input) {
+    final Value key = value != null ? value : (Value)myNullValue;
+    if (myInputIdMapping == null) {
+      myInputIdMapping = key;
+      myInputIdMappingValue = input;
+    }
+    else if (myInputIdMapping instanceof THashMap) {
+      ((THashMap<Value, Object>)myInputIdMapping).put(key, input);
+    }
+    else if (myInputIdMapping == key || myInputIdMapping.equals(key)) {
+      myInputIdMappingValue = input;
+    }
+    else {
+      final THashMap<Value, Object> mapping = new THashMap<Value, Object>(2);
+      mapping.put((Value)myInputIdMapping, myInputIdMappingValue);
+      mapping.put(key, input);
+      myInputIdMapping = mapping;
+      myInputIdMappingValue = null;
+    }
+  }
+
   @Override
   public int size() {
     return myInputIdMapping != null ? myInputIdMapping instanceof THashMap ? ((THashMap)myInputIdMapping).size(): 1 : 0;
@@ -101,11 +179,18 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   }
 
   public boolean removeValue(int inputId, Value value) {
-    final Object input = getInput(value);
+    Object input = getInput(value);
     if (input == null) {
       return false;
     }
 
+    if (input instanceof IntPostingList) {
+      if (!((IntPostingList)input).contains(inputId)) {
+        return false;
+      }
+      input = decompress(value, (IntPostingList)input);
+    }
+
     if (input instanceof TIntHashSet) {
       final TIntHashSet idSet = (TIntHashSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
@@ -205,6 +290,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       return ((TIntHashSet)input).contains(inputId);
     }
+    if (input instanceof IntPostingList) {
+      return ((IntPostingList)input).contains(inputId);
+    }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
     }
@@ -224,6 +312,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         }
       };
     }
+    if (input instanceof IntPostingList) {
+      return new IntPredicate() {
+        final IntPostingList myIds = (IntPostingList)input;
+        @Override
+        boolean contains(int id) {
+          return myIds.contains(id);
+        }
+      };
+    }
     return new IntPredicate() {
       final TIntHashSet mySet = (TIntHashSet)input;
       @Override
@@ -240,6 +337,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       it = new IntSetIterator((TIntHashSet)input);
     }
+    else if (input instanceof IntPostingList) {
+      it = new PostingListIterator((IntPostingList)input);
+    }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
     }
@@ -376,6 +476,31 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
+  private static class PostingListIterator implements IntIterator {
+    private final IntPostingList.Cursor myCursor;
+    private final int mySize;
+
+    public PostingListIterator(final IntPostingList ids) {
+      myCursor = ids.cursor();
+      mySize = ids.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myCursor.hasNext();
+    }
+
+    @Override
+    public int next() {
+      return myCursor.next();
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+  }
+
   private THashMap<Value, Object> mapCopy(final THashMap<Value, Object> map) {
     if (map == null) {
       return null;
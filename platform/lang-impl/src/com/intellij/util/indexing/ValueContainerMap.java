@@ -7,6 +7,7 @@ import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -18,12 +19,18 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
 
   ValueContainerMap(@NotNull final File file,
                     @NotNull KeyDescriptor<Key> keyKeyDescriptor,
-                    @NotNull DataExternalizer<Value> valueExternalizer) throws IOException {
+                    @NotNull DataExternalizer<Value> valueExternalizer,
+                    boolean compressedValues) throws IOException {
 
-    super(file, keyKeyDescriptor, new ValueContainerExternalizer<Value>(valueExternalizer));
+    super(file, keyKeyDescriptor, new ValueContainerExternalizer<Value>(valueExternalizer), INITIAL_INDEX_SIZE, null, compressedValues);
     myValueContainerExternalizer = (ValueContainerExternalizer<Value>)myValueExternalizer;
   }
 
+  @Override
+  protected boolean compactOnOpen() {
+    return !MapIndexStorage.BACKGROUND_COMPACTION;
+  }
+
   @NotNull
   Object getDataAccessLock() {
     return myEnumerator;
@@ -86,7 +93,21 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids != null && ids.size() >= ValueContainerImpl.COMPRESSION_THRESHOLD) {
+          // negative count marks ascending ids written as gaps
+          final int[] sorted = new int[ids.size()];
+          for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ids.next();
+          }
+          Arrays.sort(sorted);
+          DataInputOutputUtil.writeSINT(out, -sorted.length);
+          int prev = 0;
+          for (int id : sorted) {
+            DataInputOutputUtil.writeINT(out, id - prev);
+            prev = id;
+          }
+        }
+        else if (ids != null) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -115,13 +136,25 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
-              valueContainer.addValue(id, value);
+            if (idCount < 0) {
+              final int[] ids = new int[-idCount];
+              int prev = 0;
+              for (int i = 0; i < ids.length; i++) {
+                prev += DataInputOutputUtil.readINT(in);
+                ids[i] = prev;
+              }
+              valueContainer.addValues(ids, value);
+            }
+            else {
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
       }
+      valueContainer.compressIds();
       return valueContainer;
     }
   }
@@ -24,11 +24,13 @@ import com.intellij.openapi.progress.impl.ProgressManagerImpl;
 import com.intellij.openapi.progress.util.ProgressWrapper;
 import com.intellij.util.Consumer;
 import com.intellij.util.Processor;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author cdr
@@ -37,19 +39,30 @@ import java.util.concurrent.Future;
 public class JobLauncherImpl extends JobLauncher {
   private static final Logger LOG = Logger.getInstance("#com.intellij.concurrency.JobLauncher");
 
+  // each chunk takes this share of the items remaining per thread
+  private static final int CHUNKS_PER_THREAD = 2;
+  // but no more than this share of all the items per thread, so that the first chunks don't leave the rest of the threads idle
+  private static final int MIN_CHUNKS_PER_THREAD = 20;
+
   private <T> boolean invokeConcurrentlyForAll(@NotNull final List<T> things,
                                                       boolean failFastOnAcquireReadAction,
                                                       @NotNull final Processor<T> thingProcessor) throws ProcessCanceledException {
     final Job<String> job = new JobImpl<String>(Job.DEFAULT_PRIORITY, failFastOnAcquireReadAction);
 
-    final int chunkSize = Math.max(1, things.size() / JobSchedulerImpl.CORES_COUNT / 20);
-    for (int i = 0; i < things.size(); i += chunkSize) {
-      // this job chunk is i..i+chunkSize-1
-      final int finalI = i;
+    final int[] chunkStarts = splitIntoChunks(things.size(), JobSchedulerImpl.CORES_COUNT);
+    final int chunkCount = chunkStarts.length - 1;
+    final AtomicInteger nextChunk = new AtomicInteger();
+    final Statistics statistics = LOG.isDebugEnabled() ? new Statistics(things.size(), chunkCount) : null;
+    final Thread callerThread = Thread.currentThread();
+    for (int i = 0; i < chunkCount; i++) {
       job.addTask(new Runnable() {
         public void run() {
+          // the tasks are taken from the queue in no particular order, so a task claims the next chunk when it starts
+          // and the big chunks are processed first whichever tasks run
+          int chunk = nextChunk.getAndIncrement();
+          if (statistics != null) statistics.chunkClaimed(chunk, Thread.currentThread() == callerThread);
           try {
-            for (int k = finalI; k < finalI + chunkSize && k < things.size(); k++) {
+            for (int k = chunkStarts[chunk]; k < chunkStarts[chunk + 1]; k++) {
               T thing = things.get(k);
               if (!thingProcessor.process(thing)) {
                 job.cancel();
@@ -66,6 +79,7 @@ public class JobLauncherImpl extends JobLauncher {
     }
     try {
       job.scheduleAndWaitForResults();
+      if (statistics != null) statistics.log(job.isCanceled());
     }
     catch (RuntimeException e) {
       job.cancel();
@@ -78,6 +92,59 @@ public class JobLauncherImpl extends JobLauncher {
     return !job.isCanceled();
   }
 
+  /**
+   * Splits the items into chunks for guided self-scheduling: every chunk is a fixed share of the items left, so the chunks shrink
+   * towards the end of the list and a few expensive items at the end don't leave the other threads idle while one thread
+   * processes a big chunk. The chunks are capped by a share of all the items, otherwise the first chunks would be as big as
+   * a half of the items per thread and a thread would process a lot of expensive items at the beginning of the list alone.
+   *
+   * @return chunk start indices followed by the number of items
+   */
+  @NotNull
+  static int[] splitIntoChunks(int size, int threads) {
+    TIntArrayList starts = new TIntArrayList();
+    int maxChunkSize = Math.max(1, size / (threads * MIN_CHUNKS_PER_THREAD));
+    int start = 0;
+    while (start < size) {
+      starts.add(start);
+      start += Math.max(1, Math.min(maxChunkSize, (size - start) / (threads * CHUNKS_PER_THREAD)));
+    }
+    starts.add(size);
+    return starts.toNativeArray();
+  }
+
+  /**
+   * Timings of a single {@link #invokeConcurrentlyForAll} call, logged in debug mode to tune the chunk sizes.
+   */
+  private static class Statistics {
+    private final long myStartTime = System.nanoTime();
+    private final int myItemCount;
+    private final int myChunkCount;
+    // chunks processed by the calling thread, which steals tasks from the queue while waiting for the job
+    private final AtomicInteger myStolenChunkCount = new AtomicInteger();
+    private volatile long myLastChunkClaimTime;
+
+    private Statistics(int itemCount, int chunkCount) {
+      myItemCount = itemCount;
+      myChunkCount = chunkCount;
+    }
+
+    private void chunkClaimed(int chunk, boolean byCallerThread) {
+      if (byCallerThread) myStolenChunkCount.incrementAndGet();
+      if (chunk == myChunkCount - 1) myLastChunkClaimTime = System.nanoTime();
+    }
+
+    private void log(boolean canceled) {
+      long endTime = System.nanoTime();
+      long elapsed = Math.max(1, endTime - myStartTime);
+      // the time since the last chunk was taken, i.e. while some of the threads had nothing to do
+      long tail = myLastChunkClaimTime == 0 ? 0 : endTime - myLastChunkClaimTime;
+      LOG.debug("Processed " + myItemCount + " items in " + myChunkCount + " chunks" + (canceled ? " (canceled)" : "") +
+                ": " + elapsed / 1000000 + "ms, " + myItemCount * 1000000000L / elapsed + " items/s" +
+                ", tail " + tail / 1000000 + "ms, stolen chunks " + myStolenChunkCount.get());
+    }
+  }
+
   /**
    * Schedules concurrent execution of #thingProcessor over each element of #things and waits for completion
    * With checkCanceled in each thread delegated to our current progress
@@ -58,5 +58,9 @@ public interface MarkupModelEx extends MarkupModel {
   // runs change attributes action and fires highlighterChanged event if there were changes
   void changeAttributesInBatch(@NotNull RangeHighlighterEx highlighter, @NotNull Consumer<RangeHighlighterEx> changeAttributesAction);
 
+  // optimization: highlighters added by the action are put into the highlighter tree at once, which is much cheaper for many of them;
+  // the listeners are notified about the added and changed highlighters after that
+  void runBatchUpdate(@NotNull Runnable action);
+
   boolean sweep(int start, int end, @NotNull final SweepProcessor<RangeHighlighterEx> sweepProcessor);
 }
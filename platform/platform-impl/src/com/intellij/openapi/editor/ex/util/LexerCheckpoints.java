@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Full lexer states at the starts of some tokens, sorted by offset. {@link SegmentArrayWithData} keeps only whether a token starts
+ * in the initial lexer state, so the checkpoints allow {@link LexerEditorHighlighter} to restart and to stop relexing inside
+ * long-lived lexer states.
+ * <p/>
+ * Not thread-safe.
+ */
+class LexerCheckpoints {
+  private int[] myOffsets = ArrayUtil.EMPTY_INT_ARRAY;
+  private int[] myStates = ArrayUtil.EMPTY_INT_ARRAY;
+  private int myCount;
+
+  void clear() {
+    myOffsets = ArrayUtil.EMPTY_INT_ARRAY;
+    myStates = ArrayUtil.EMPTY_INT_ARRAY;
+    myCount = 0;
+  }
+
+  int getCount() {
+    return myCount;
+  }
+
+  int getOffset(int index) {
+    return myOffsets[index];
+  }
+
+  int getState(int index) {
+    return myStates[index];
+  }
+
+  /**
+   * Offsets of the added checkpoints must increase.
+   */
+  void add(int offset, int state) {
+    if (myCount == myOffsets.length) {
+      final int capacity = Math.max(16, myCount * 3 / 2);
+      myOffsets = ArrayUtil.realloc(myOffsets, capacity);
+      myStates = ArrayUtil.realloc(myStates, capacity);
+    }
+    myOffsets[myCount] = offset;
+    myStates[myCount] = state;
+    myCount++;
+  }
+
+  /**
+   * Removes the checkpoints at the offset and after it.
+   */
+  void truncate(int offset) {
+    myCount = findBefore(offset - 1) + 1;
+  }
+
+  /**
+   * @return index of the last checkpoint at or before the offset, -1 if there is none
+   */
+  int findBefore(int offset) {
+    int low = 0;
+    int high = myCount - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      if (myOffsets[middle] <= offset) {
+        low = middle + 1;
+      }
+      else {
+        high = middle - 1;
+      }
+    }
+    return high;
+  }
+
+  /**
+   * @return index of the checkpoint at the offset, -1 if there is none
+   */
+  int find(int offset) {
+    final int index = findBefore(offset);
+    return index >= 0 && myOffsets[index] == offset ? index : -1;
+  }
+
+  /**
+   * Replaces the checkpoints within <code>[startOffset, endOffset)</code> by the new ones and shifts the following ones.
+   *
+   * @param newCheckpoints checkpoints of the relexed text, offsets are the ones after the change
+   */
+  void replace(int startOffset, int endOffset, int shift, @NotNull LexerCheckpoints newCheckpoints) {
+    final int first = findBefore(startOffset - 1) + 1;
+    final int end = findBefore(endOffset - 1) + 1;
+    final int newCount = myCount - (end - first) + newCheckpoints.myCount;
+
+    final int[] offsets = newCount <= myOffsets.length ? myOffsets : new int[newCount];
+    final int[] states = newCount <= myStates.length ? myStates : new int[newCount];
+    if (offsets != myOffsets) {
+      System.arraycopy(myOffsets, 0, offsets, 0, first);
+      System.arraycopy(myStates, 0, states, 0, first);
+    }
+    final int tail = myCount - end;
+    System.arraycopy(myOffsets, end, offsets, first + newCheckpoints.myCount, tail);
+    System.arraycopy(myStates, end, states, first + newCheckpoints.myCount, tail);
+    System.arraycopy(newCheckpoints.myOffsets, 0, offsets, first, newCheckpoints.myCount);
+    System.arraycopy(newCheckpoints.myStates, 0, states, first, newCheckpoints.myCount);
+    for (int i = first + newCheckpoints.myCount; i < newCount; i++) {
+      offsets[i] += shift;
+    }
+
+    myOffsets = offsets;
+    myStates = states;
+    myCount = newCount;
+  }
+}
@@ -16,6 +16,7 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.lexer.RestartableLexer;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
@@ -52,6 +53,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private final SyntaxHighlighter myHighlighter;
   private EditorColorsScheme myScheme;
   private final int myInitialState;
+  // full lexer state is remembered for every CHECKPOINT_INTERVAL-th token since the last one starting in the initial state,
+  // if the lexer can be restarted in that state
+  private static final int CHECKPOINT_INTERVAL = 16;
+  private final LexerCheckpoints myCheckpoints = new LexerCheckpoints();
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -143,6 +148,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
       mySegments.removeAll();
+      myCheckpoints.clear();
       return;
     }
 
@@ -173,9 +179,23 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     while (true);
 
     int startOffset = mySegments.getSegmentStart(startIndex);
+    int startState = myInitialState;
+
+    // restart from a checkpoint if it's closer to the change
+    final int checkpoint = myCheckpoints.findBefore(mySegments.getSegmentStart(oldStartIndex));
+    if (checkpoint >= 0 && myCheckpoints.getOffset(checkpoint) > startOffset) {
+      final int checkpointOffset = myCheckpoints.getOffset(checkpoint);
+      final int checkpointIndex = mySegments.findSegmentIndex(checkpointOffset);
+      if (mySegments.getSegmentStart(checkpointIndex) == checkpointOffset) {
+        startIndex = checkpointIndex;
+        startOffset = checkpointOffset;
+        startState = myCheckpoints.getState(checkpoint);
+      }
+    }
+
     int newEndOffset = e.getOffset() + e.getNewLength();
 
-    myLexer.start(text, startOffset, text.length(), myInitialState);
+    myLexer.start(text, startOffset, text.length(), startState);
 
     int lastTokenStart = -1;
     int lastLexerState = -1;
@@ -208,6 +228,8 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int insertSegmentCount = 0;
     int oldEndIndex = -1;
     SegmentArrayWithData insertSegments = new SegmentArrayWithData();
+    LexerCheckpoints insertCheckpoints = new LexerCheckpoints();
+    int tokensSinceCheckpoint = CHECKPOINT_INTERVAL;
 
     while(myLexer.getTokenType() != null) {
       int tokenStart = myLexer.getTokenStart();
@@ -222,17 +244,21 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
       int tokenEnd = myLexer.getTokenEnd();
       data = packData(myLexer.getTokenType(), lexerState);
-      if(tokenStart >= newEndOffset && lexerState == myInitialState) {
+      if(tokenStart >= newEndOffset) {
         int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
-        int index = mySegments.findSegmentIndex(shiftedTokenStart);
-        if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
-          repaintEnd = tokenStart;
-          oldEndIndex = index;
-          break;
+        // the rest of the old tokens is valid once the lexer is in the same state at the same token, i.e. the initial one or a checkpoint
+        if (lexerState == myInitialState || isCheckpoint(shiftedTokenStart, lexerState)) {
+          int index = mySegments.findSegmentIndex(shiftedTokenStart);
+          if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
+            repaintEnd = tokenStart;
+            oldEndIndex = index;
+            break;
+          }
         }
       }
       insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data);
       insertSegmentCount++;
+      tokensSinceCheckpoint = addCheckpointIfNeeded(insertCheckpoints, tokensSinceCheckpoint, tokenStart, lexerState);
       myLexer.advance();
     }
 
@@ -256,6 +282,12 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     if (oldEndIndex < 0){
       oldEndIndex = mySegments.getSegmentCount();
     }
+    int oldEndOffset = oldEndIndex < mySegments.getSegmentCount() ? mySegments.getSegmentStart(oldEndIndex) : Integer.MAX_VALUE;
+    if (oldEndOffset != Integer.MAX_VALUE) {
+      // drop the checkpoints of the new tokens which turned out to be equal to the old ones
+      insertCheckpoints.truncate(oldEndOffset + shift);
+    }
+    myCheckpoints.replace(startOffset, oldEndOffset, shift, insertCheckpoints);
     mySegments.shiftSegments(oldEndIndex, shift);
     mySegments.replace(startIndex, oldEndIndex, insertSegments);
 
@@ -267,6 +299,24 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     myEditor.repaint(startOffset, repaintEnd);
   }
 
+  private boolean isCheckpoint(int offset, int lexerState) {
+    final int index = myCheckpoints.find(offset);
+    return index >= 0 && myCheckpoints.getState(index) == lexerState;
+  }
+
+  /**
+   * @return the number of tokens since the last checkpoint or the last token in the initial state
+   */
+  private int addCheckpointIfNeeded(@NotNull LexerCheckpoints checkpoints, int tokensSinceCheckpoint, int tokenStart, int lexerState) {
+    if (lexerState == myInitialState) return 0;
+    if (tokensSinceCheckpoint < CHECKPOINT_INTERVAL) return tokensSinceCheckpoint + 1;
+    if (!(myLexer instanceof RestartableLexer) || !((RestartableLexer)myLexer).isRestartableState(lexerState)) {
+      return tokensSinceCheckpoint;
+    }
+    checkpoints.add(tokenStart, lexerState);
+    return 0;
+  }
+
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
   }
@@ -306,13 +356,17 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
+    myCheckpoints.clear();
     int i = 0;
+    int tokensSinceCheckpoint = 0;
     while (true) {
       final IElementType tokenType = myLexer.getTokenType();
       if (tokenType == null) break;
 
-      int data = packData(tokenType, myLexer.getState());
+      final int lexerState = myLexer.getState();
+      int data = packData(tokenType, lexerState);
       processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
+      tokensSinceCheckpoint = addCheckpointIfNeeded(myCheckpoints, tokensSinceCheckpoint, myLexer.getTokenStart(), lexerState);
       i++;
       myLexer.advance();
     }
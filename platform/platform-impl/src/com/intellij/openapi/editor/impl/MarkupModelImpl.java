@@ -55,6 +55,9 @@ public class MarkupModelImpl extends UserDataHolderBase implements MarkupModelEx
   private RangeHighlighter[] myCachedHighlighters;
   private final List<MarkupModelListener> myListeners = ContainerUtil.createEmptyCOWList();
   private final RangeHighlighterTree myHighlighterTree;
+  // not null during runBatchUpdate(); the events are fired when the highlighters added in the batch are in the tree
+  private List<RangeHighlighterEx> myAddedInBatch;
+  private List<RangeHighlighterEx> myChangedInBatch;
 
   MarkupModelImpl(@NotNull DocumentImpl document) {
     myDocument = document;
@@ -153,6 +156,37 @@ public class MarkupModelImpl extends UserDataHolderBase implements MarkupModelEx
     }
   }
 
+  @Override
+  public void runBatchUpdate(@NotNull Runnable action) {
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    if (myAddedInBatch != null) {
+      // nested batch
+      action.run();
+      return;
+    }
+    List<RangeHighlighterEx> added = myAddedInBatch = new ArrayList<RangeHighlighterEx>();
+    List<RangeHighlighterEx> changed = myChangedInBatch = new ArrayList<RangeHighlighterEx>();
+    try {
+      myHighlighterTree.runBatchUpdate(action);
+    }
+    finally {
+      myAddedInBatch = null;
+      myChangedInBatch = null;
+    }
+
+    // listeners querying the markup model would insert the pending highlighters one by one, so they are notified after the batch
+    for (RangeHighlighterEx highlighter : added) {
+      if (highlighter.isValid()) {
+        fireAfterAdded(highlighter);
+      }
+    }
+    for (RangeHighlighterEx highlighter : changed) {
+      if (highlighter.isValid()) {
+        fireAttributesChanged(highlighter);
+      }
+    }
+  }
+
   IntervalTreeImpl.IntervalNode addRangeHighlighter(RangeHighlighterEx marker,
                                                     int start,
                                                     int end,
@@ -219,12 +253,20 @@ public class MarkupModelImpl extends UserDataHolderBase implements MarkupModelEx
   }
 
   protected void fireAttributesChanged(RangeHighlighterEx segmentHighlighter) {
+    if (myChangedInBatch != null) {
+      myChangedInBatch.add(segmentHighlighter);
+      return;
+    }
     for (MarkupModelListener listener : myListeners) {
       listener.attributesChanged(segmentHighlighter);
     }
   }
 
   private void fireAfterAdded(RangeHighlighterEx segmentHighlighter) {
+    if (myAddedInBatch != null) {
+      myAddedInBatch.add(segmentHighlighter);
+      return;
+    }
     for (MarkupModelListener listener : myListeners) {
       listener.afterAdded(segmentHighlighter);
     }
@@ -232,7 +232,7 @@ public class ProgressIndicatorBase extends UserDataHolderBase implements Progres
   }
 
   @Override
-  public final void checkCanceled() {
+  public void checkCanceled() {
     if (isCanceled() && isCancelable()) {
       throw new ProcessCanceledException();
     }
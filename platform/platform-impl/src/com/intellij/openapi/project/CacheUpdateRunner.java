@@ -30,19 +30,36 @@ import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Consumer;
+import com.intellij.util.TimeoutUtil;
 import gnu.trove.THashSet;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class CacheUpdateRunner {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.project.CacheUpdateRunner");
   private static final int PROC_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final int INITIAL_INDEXER_THREADS = Math.min(PROC_COUNT, 4);
+  private static final int MAX_CONTENT_LOADING_THREADS = Math.min(PROC_COUNT, 4);
+  private static final long ADJUST_INTERVAL = 1000; // ms
+  private static final int GROWTH_PAUSE_INTERVALS = 10;
+
   private final Project myProject;
   private final Collection<CacheUpdater> myUpdaters;
   private CacheUpdateSession mySession;
 
+  // adaptive number of indexer threads, it survives restarts of the indexing caused by write actions
+  private volatile int myIndexerThreads = INITIAL_INDEXER_THREADS;
+  private int myMaxIndexerThreadsUsed;
+  private final AtomicInteger myRunningIndexers = new AtomicInteger();
+  private final AtomicLong myProcessedFiles = new AtomicLong();
+  private final AtomicLong myProcessedBytes = new AtomicLong();
+
   CacheUpdateRunner(Project project, Collection<CacheUpdater> updaters) {
     myProject = project;
     myUpdaters = updaters;
@@ -66,10 +83,15 @@ class CacheUpdateRunner {
   public void processFiles(final ProgressIndicator indicator, boolean processInReadAction) {
     try {
       indicator.checkCanceled();
+      myProcessedFiles.set(0);
+      myProcessedBytes.set(0);
+      myMaxIndexerThreadsUsed = 0;
       final FileContentQueue queue = new FileContentQueue();
       Collection<VirtualFile> files = mySession.getFilesToUpdate();
       final double total = files.size();
-      queue.queue(files, indicator);
+      final long started = System.currentTimeMillis();
+      int loadersCount = Registry.intValue("caches.contentLoaderThreadsCount");
+      queue.queue(files, indicator, loadersCount <= 0 ? MAX_CONTENT_LOADING_THREADS : loadersCount);
 
       Consumer<VirtualFile> progressUpdater = new Consumer<VirtualFile>() {
         // need set here to handle queue.pushbacks after checkCancelled() in order
@@ -103,6 +125,7 @@ class CacheUpdateRunner {
         indicator.cancel();
         indicator.checkCanceled();
       }
+      logThroughput(queue, System.currentTimeMillis() - started);
     }
     catch (ProcessCanceledException e) {
       mySession.canceled();
@@ -141,21 +164,26 @@ class CacheUpdateRunner {
     final Ref<Boolean> isFinished = new Ref<Boolean>(Boolean.FALSE);
     try {
       int threadsCount = Registry.intValue("caches.indexerThreadsCount");
+      final boolean adaptive = threadsCount <= 0 && PROC_COUNT > 1;
       if (threadsCount <= 0) {
-        threadsCount = Math.min(PROC_COUNT, 4);
+        threadsCount = myIndexerThreads;
       }
-      if (threadsCount == 1) {
+      else {
+        myIndexerThreads = threadsCount;
+      }
+      if (threadsCount == 1 && !adaptive) {
+        myMaxIndexerThreadsUsed = 1;
         Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, application);
         ProgressManager.getInstance().runProcess(process, innerIndicator);
       }
       else {
-        final Ref[] finishedRefs = new Ref[threadsCount];
-        Future<?>[] futures = new Future<?>[threadsCount];
+        final List<Ref<Boolean>> finishedRefs = new ArrayList<Ref<Boolean>>();
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
         for (int i = 0; i < threadsCount; i++) {
-          final Ref<Boolean> ref = new Ref<Boolean>(Boolean.FALSE);
-          finishedRefs[i] = ref;
-          Runnable process = new MyRunnable(innerIndicator, queue, ref, progressUpdater, processInReadAction, application);
-          futures[i] = ApplicationManager.getApplication().executeOnPooledThread(getProcessWrapper(process));
+          startIndexer(innerIndicator, queue, progressUpdater, processInReadAction, application, finishedRefs, futures);
+        }
+        if (adaptive) {
+          adjustIndexers(innerIndicator, queue, progressUpdater, processInReadAction, application, finishedRefs, futures);
         }
         isFinished.set(waitForAll(finishedRefs, futures));
       }
@@ -167,15 +195,116 @@ class CacheUpdateRunner {
     return isFinished.get();
   }
 
-  private static boolean waitForAll(Ref[] finishedRefs, Future<?>[] futures) {
+  private void startIndexer(ProgressIndicatorBase innerIndicator,
+                            FileContentQueue queue,
+                            Consumer<VirtualFile> progressUpdater,
+                            boolean processInReadAction,
+                            Application application,
+                            List<Ref<Boolean>> finishedRefs,
+                            List<Future<?>> futures) {
+    final Ref<Boolean> ref = new Ref<Boolean>(Boolean.FALSE);
+    finishedRefs.add(ref);
+    Runnable process = new MyRunnable(innerIndicator, queue, ref, progressUpdater, processInReadAction, application);
+    myRunningIndexers.incrementAndGet();
+    myMaxIndexerThreadsUsed = Math.max(myMaxIndexerThreadsUsed, myRunningIndexers.get());
+    futures.add(ApplicationManager.getApplication().executeOnPooledThread(getProcessWrapper(process)));
+  }
+
+  /**
+   * Hill climbing on the indexing throughput: while loaded files pile up in the queue the indexers are the bottleneck,
+   * so one more indexer is started; if that does not make the throughput better, the indexer is retired and growth is paused for a while.
+   * When the queue is empty the content loading is the bottleneck and the queue starts more loading threads itself.
+   */
+  private void adjustIndexers(ProgressIndicatorBase innerIndicator,
+                              FileContentQueue queue,
+                              Consumer<VirtualFile> progressUpdater,
+                              boolean processInReadAction,
+                              Application application,
+                              List<Ref<Boolean>> finishedRefs,
+                              List<Future<?>> futures) {
+    long lastFiles = myProcessedFiles.get();
+    long lastTime = System.nanoTime();
+    double lastRate = -1;
+    boolean lastGrown = false;
+    int pause = 0;
+
+    while (waitForInterval(innerIndicator, futures)) {
+      final long files = myProcessedFiles.get();
+      final long time = System.nanoTime();
+      final double rate = (files - lastFiles) * 1e9 / Math.max(time - lastTime, 1);
+      lastFiles = files;
+      lastTime = time;
+
+      if (lastGrown && rate <= lastRate * 1.05) {
+        // more threads only add contention
+        myIndexerThreads = Math.max(1, myIndexerThreads - 1);
+        pause = GROWTH_PAUSE_INTERVALS;
+        lastGrown = false;
+      }
+      else if (pause > 0) {
+        pause--;
+        lastGrown = false;
+      }
+      else if (queue.getLoadedQueueSize() >= myIndexerThreads && myIndexerThreads < PROC_COUNT) {
+        myIndexerThreads++;
+        startIndexer(innerIndicator, queue, progressUpdater, processInReadAction, application, finishedRefs, futures);
+        lastGrown = true;
+      }
+      else {
+        lastGrown = false;
+      }
+      lastRate = rate;
+    }
+  }
+
+  /**
+   * @return false if the indexers are done or canceled before the interval passes
+   */
+  private static boolean waitForInterval(ProgressIndicatorBase indicator, List<Future<?>> futures) {
+    final long deadline = System.currentTimeMillis() + ADJUST_INTERVAL;
+    while (System.currentTimeMillis() < deadline) {
+      if (indicator.isCanceled() || allDone(futures)) return false;
+      TimeoutUtil.sleep(10);
+    }
+    return true;
+  }
+
+  private static boolean allDone(List<Future<?>> futures) {
+    for (Future<?> future : futures) {
+      if (!future.isDone()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return number of files processed by the last {@link #processFiles} call
+   */
+  long getProcessedFilesCount() {
+    return myProcessedFiles.get();
+  }
+
+  long getProcessedBytesCount() {
+    return myProcessedBytes.get();
+  }
+
+  private void logThroughput(FileContentQueue queue, long time) {
+    final long files = getProcessedFilesCount();
+    final long bytes = getProcessedBytesCount();
+    final double seconds = Math.max(time, 1) / 1000.0;
+    LOG.info("Indexed " + files + " files (" + bytes + " bytes) in " + time + " ms: " + (long)(files / seconds) + " files/s, " +
+             (long)(bytes / seconds) + " bytes/s; indexing threads: " + myMaxIndexerThreadsUsed +
+             ", content loading threads: " + queue.getContentLoadingThreadsUsed());
+  }
+
+  private static boolean waitForAll(List<Ref<Boolean>> finishedRefs, List<Future<?>> futures) {
     try {
       for (Future<?> future : futures) {
         future.get();
       }
 
       boolean allFinished = true;
-      for (Ref ref : finishedRefs) {
-        if (!(Boolean)ref.get()) {
+      for (Ref<Boolean> ref : finishedRefs) {
+        if (!ref.get()) {
           allFinished = false;
           break;
         }
@@ -211,15 +340,32 @@ class CacheUpdateRunner {
     }
 
     public void run() {
+      boolean retired = false;
+      try {
+        retired = doRun();
+      }
+      finally {
+        if (!retired) myRunningIndexers.decrementAndGet();
+      }
+    }
+
+    /**
+     * @return true if the thread has retired because there are more indexer threads than needed
+     */
+    private boolean doRun() {
       while (true) {
         if (myProject.isDisposed() || myInnerIndicator.isCanceled()) {
-          return;
+          return false;
+        }
+        if (retire()) {
+          myFinished.set(Boolean.TRUE); // the others complete the work
+          return true;
         }
         try {
           final FileContent fileContent = myQueue.take(myInnerIndicator);
           if (fileContent == null) {
             myFinished.set(Boolean.TRUE);
-            return;
+            return false;
           }
 
           final Runnable action = new Runnable() {
@@ -229,6 +375,8 @@ class CacheUpdateRunner {
                 final VirtualFile file = fileContent.getVirtualFile();
                 myProgressUpdater.consume(file);
                 mySession.processFile(fileContent);
+                myProcessedFiles.incrementAndGet();
+                myProcessedBytes.addAndGet(fileContent.getLength());
               }
             }
           };
@@ -242,19 +390,27 @@ class CacheUpdateRunner {
           }
           catch (ProcessCanceledException e) {
             myQueue.pushback(fileContent);
-            return;
+            return false;
           }
           finally {
             myQueue.release(fileContent);
           }
         }
         catch (ProcessCanceledException e) {
-          return;
+          return false;
         }
       }
     }
   }
 
+  private boolean retire() {
+    while (true) {
+      final int running = myRunningIndexers.get();
+      if (running <= myIndexerThreads) return false;
+      if (myRunningIndexers.compareAndSet(running, running - 1)) return true;
+    }
+  }
+
   private static Runnable getProcessWrapper(final Runnable process) {
     // launching thread will hold read access for workers
     return ApplicationManager.getApplication().isReadAccessAllowed() ? new Runnable() {
@@ -28,6 +28,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +42,7 @@ public class FileContentQueue {
   private static final long SIZE_THRESHOLD = 1024*1024;
   private static final long TAKEN_FILES_THRESHOLD = 1024*1024*3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = TAKEN_FILES_THRESHOLD - 1024 * 300; // 300k for other threads
+  private static final long ADD_LOADER_INTERVAL = 500; // ms
 
   private long myTotalSize;
   private long myTakenSize;
@@ -50,27 +52,84 @@ public class FileContentQueue {
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  // content is loaded by one thread, more loading threads are started (up to myMaxLoaders) while the consumers find the queue empty
+  private final Object myLoadersLock = new Object();
+  private Iterator<VirtualFile> myFilesToLoad;
+  private ProgressIndicator myLoadingIndicator;
+  private int myMaxLoaders = 1;
+  private int myLoaders;
+  private int myLoadersUsed;
+  private boolean myLoadingCanceled;
+  private long myLastLoaderStarted;
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
-    final Runnable contentLoadingRunnable = new Runnable() {
+    queue(files, indicator, 1);
+  }
+
+  public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator, int maxLoaders) {
+    synchronized (myLoadersLock) {
+      myFilesToLoad = files.iterator();
+      myLoadingIndicator = indicator;
+      myMaxLoaders = Math.max(1, maxLoaders);
+      startLoader();
+    }
+  }
+
+  // under myLoadersLock
+  private void startLoader() {
+    myLoaders++;
+    myLoadersUsed = Math.max(myLoadersUsed, myLoaders);
+    myLastLoaderStarted = System.currentTimeMillis();
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
       public void run() {
-        try {
-          for (VirtualFile file : files) {
-            if (indicator != null) {
-              indicator.checkCanceled();
-            }
-            addLast(file, indicator);
-          }
+        loadContents();
+      }
+    });
+  }
+
+  private void maybeStartLoader() {
+    synchronized (myLoadersLock) {
+      if (myLoaders > 0 && myLoaders < myMaxLoaders && !myLoadingCanceled && myFilesToLoad.hasNext() &&
+          System.currentTimeMillis() - myLastLoaderStarted > ADD_LOADER_INTERVAL) {
+        startLoader();
+      }
+    }
+  }
+
+  @Nullable
+  private VirtualFile nextFileToLoad() {
+    synchronized (myLoadersLock) {
+      return myFilesToLoad.hasNext() && !myLoadingCanceled ? myFilesToLoad.next() : null;
+    }
+  }
 
+  private void loadContents() {
+    boolean canceled = false;
+    try {
+      VirtualFile file;
+      while ((file = nextFileToLoad()) != null) {
+        myLoadingIndicator.checkCanceled();
+        addLast(file, myLoadingIndicator);
+      }
+    }
+    catch (ProcessCanceledException e) {
+      // Do nothing, exit the thread.
+      canceled = true;
+    }
+    catch (InterruptedException e) {
+      canceled = true;
+      LOG.error(e);
+    }
+    finally {
+      final boolean last;
+      synchronized (myLoadersLock) {
+        if (canceled) myLoadingCanceled = true;
+        last = --myLoaders == 0;
+      }
+      if (last) {
+        try {
           // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
-          }
-        }
-        catch (ProcessCanceledException e) {
-          // Do nothing, exit the thread.
+          if (!myLoadingCanceled) myQueue.put(new FileContent(null));
         }
         catch (InterruptedException e) {
           LOG.error(e);
@@ -79,9 +138,20 @@ public class FileContentQueue {
           myContentLoadingThreadTerminated = true;
         }
       }
-    };
+    }
+  }
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+  /**
+   * @return number of loaded files waiting for the consumers
+   */
+  public int getLoadedQueueSize() {
+    return myQueue.size();
+  }
+
+  public int getContentLoadingThreadsUsed() {
+    synchronized (myLoadersLock) {
+      return myLoadersUsed;
+    }
   }
 
   private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
@@ -188,6 +258,9 @@ public class FileContentQueue {
     }
 
     try {
+      if (myQueue.isEmpty()) {
+        maybeStartLoader(); // the consumers are faster than content loading
+      }
       while (result == null) {
         result = myQueue.poll(300L, TimeUnit.MILLISECONDS);
         if (result == null && myContentLoadingThreadTerminated) {
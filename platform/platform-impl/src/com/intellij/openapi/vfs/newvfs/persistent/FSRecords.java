@@ -30,6 +30,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
@@ -91,6 +92,12 @@ public class FSRecords implements Forceable {
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
+  /**
+   * Fixed-size record fields (parent, name, flags, timestamp, length, mod count) are read without {@link #r} lock,
+   * see {@link RecordsTable}. Modifications still take {@link #w} lock.
+   */
+  private static final boolean ourLockFreeRecords = SystemProperties.getBooleanProperty("idea.vfs.lock.free.records", false);
+
   private static final int FREE_RECORD_FLAG = 0x100;
   private static final int ALL_VALID_FLAGS = PersistentFS.ALL_VALID_FLAGS | FREE_RECORD_FLAG;
 
@@ -110,7 +117,7 @@ public class FSRecords implements Forceable {
     private static PersistentStringEnumerator myNames;
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
-    private static ResizeableMappedFile myRecords;
+    private static RecordsTable myRecords;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static boolean myDirty = false;
@@ -209,10 +216,7 @@ public class FSRecords implements Forceable {
         myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
         myAttributes = new Storage(attributesFile.getCanonicalPath(), REASONABLY_SMALL);
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
-        boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
-        assert aligned; // for performance
-        myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext,
-                                             PagedFileStorage.BUFFER_SIZE, aligned);
+        myRecords = new RecordsTable(recordsFile, RECORD_SIZE, 20 * 1024, storageLockContext, ourLockFreeRecords);
 
         if (myRecords.length() == 0) {
           cleanRecord(0); // Clean header
@@ -417,7 +421,7 @@ public class FSRecords implements Forceable {
       return myNames;
     }
 
-    public static ResizeableMappedFile getRecords() {
+    public static RecordsTable getRecords() {
       return myRecords;
     }
 
@@ -512,7 +516,7 @@ public class FSRecords implements Forceable {
     }
   }
 
-  private static ResizeableMappedFile getRecords() {
+  private static RecordsTable getRecords() {
     return DbConnection.getRecords();
   }
 
@@ -883,6 +887,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
+    if (ourLockFreeRecords) return getRecords().getIntLockFree(HEADER_GLOBAL_MOD_COUNT_OFFSET);
     try {
       r.lock();
       return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
@@ -894,19 +899,13 @@ public class FSRecords implements Forceable {
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = readRecordInt(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -934,6 +933,11 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
+      if (ourLockFreeRecords) {
+        final int nameId = getRecords().getIntLockFree(getOffset(id, NAME_OFFSET));
+        return nameId != 0 ? getNames().valueOf(nameId) : "";
+      }
+
       r.lock();
       try {
         final int nameId = getRecordInt(id, NAME_OFFSET);
@@ -963,13 +967,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
@@ -989,13 +987,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
@@ -1013,13 +1005,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
@@ -1037,13 +1023,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, MOD_COUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -1066,6 +1046,29 @@ public class FSRecords implements Forceable {
     putRecordInt(id, ATTR_REF_OFFSET, value);
   }
 
+  // takes r lock unless records are read lock-free
+  private static int readRecordInt(int id, int offset) {
+    if (ourLockFreeRecords) return getRecords().getIntLockFree(getOffset(id, offset));
+    try {
+      r.lock();
+      return getRecordInt(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    if (ourLockFreeRecords) return getRecords().getLongLockFree(getOffset(id, offset));
+    try {
+      r.lock();
+      return getRecords().getLong(getOffset(id, offset));
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
   private static int getRecordInt(int id, int offset) {
     return getRecords().getInt(getOffset(id, offset));
   }
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.Forceable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Storage of the fixed-size VFS records.
+ * <p/>
+ * By default it is a thin wrapper over {@link ResizeableMappedFile} and all the synchronization is done by {@link FSRecords}.
+ * In lock-free mode the file is memory mapped by chunks which are never unmapped while the table is open, and every record
+ * has a version stamp (seqlock): writers, which are still serialized by the caller, make the stamp odd for the time of modification,
+ * so readers can get a consistent value of a record field via {@link #getIntLockFree(int)}/{@link #getLongLockFree(int)}
+ * without taking any lock, retrying if the record was changed under them.
+ * <p/>
+ * Both modes share the on-disk format, including the {@code .len} file with the logical length.
+ */
+class RecordsTable implements Forceable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vfs.persistent.RecordsTable");
+
+  private final File myFile;
+  private final int myRecordSize;
+
+  // default mode
+  private final ResizeableMappedFile myStorage;
+
+  // lock-free mode
+  private final boolean myLockFree;
+  private final int myChunkSize;
+  private final int myRecordsPerChunk;
+  private volatile Chunk[] myChunks = new Chunk[0];
+  private volatile long myLength;
+  private boolean myLengthDirty;
+  private FileChannel myChannel;
+
+  private static class Chunk {
+    final MappedByteBuffer buffer;
+    final AtomicIntegerArray stamps;
+    volatile boolean dirty;
+
+    Chunk(MappedByteBuffer buffer, int records) {
+      this.buffer = buffer;
+      stamps = new AtomicIntegerArray(records);
+    }
+  }
+
+  RecordsTable(@NotNull File file, int recordSize, int initialSize, @NotNull PagedFileStorage.StorageLockContext lockContext, boolean lockFree)
+    throws IOException {
+    myFile = file;
+    myRecordSize = recordSize;
+    myLockFree = lockFree;
+    myChunkSize = PagedFileStorage.BUFFER_SIZE / recordSize * recordSize;
+    myRecordsPerChunk = myChunkSize / recordSize;
+
+    if (!lockFree) {
+      boolean aligned = PagedFileStorage.BUFFER_SIZE % recordSize == 0;
+      assert aligned; // for performance
+      myStorage = new ResizeableMappedFile(file, initialSize, lockContext, PagedFileStorage.BUFFER_SIZE, aligned);
+      return;
+    }
+
+    myStorage = null;
+    if (!file.exists()) FileUtil.createParentDirs(file);
+    myChannel = new RandomAccessFile(file, "rw").getChannel();
+    myLength = readLength();
+    mapChunks(myLength);
+  }
+
+  boolean isLockFree() {
+    return myLockFree;
+  }
+
+  public long length() {
+    return myLockFree ? myLength : myStorage.length();
+  }
+
+  public int getInt(int addr) {
+    if (!myLockFree) return myStorage.getInt(addr);
+    return getChunk(addr).buffer.getInt(addr % myChunkSize);
+  }
+
+  public long getLong(int addr) {
+    if (!myLockFree) return myStorage.getLong(addr);
+    return getChunk(addr).buffer.getLong(addr % myChunkSize);
+  }
+
+  /**
+   * Can be called without any lock in lock-free mode, the value is guaranteed not to be torn by a concurrent write of the same record.
+   */
+  public int getIntLockFree(int addr) {
+    assert myLockFree;
+    final Chunk chunk = getChunk(addr);
+    final int offset = addr % myChunkSize;
+    final int record = offset / myRecordSize;
+    while (true) {
+      final int stamp = waitForStableStamp(chunk, record);
+      final int value = chunk.buffer.getInt(offset);
+      if (validateStamp(chunk, record, stamp)) return value;
+    }
+  }
+
+  public long getLongLockFree(int addr) {
+    assert myLockFree;
+    final Chunk chunk = getChunk(addr);
+    final int offset = addr % myChunkSize;
+    final int record = offset / myRecordSize;
+    while (true) {
+      final int stamp = waitForStableStamp(chunk, record);
+      final long value = chunk.buffer.getLong(offset);
+      if (validateStamp(chunk, record, stamp)) return value;
+    }
+  }
+
+  private static int waitForStableStamp(@NotNull Chunk chunk, int record) {
+    int stamp;
+    while (((stamp = chunk.stamps.get(record)) & 1) != 0) {
+      Thread.yield();
+    }
+    return stamp;
+  }
+
+  private static boolean validateStamp(@NotNull Chunk chunk, int record, int stamp) {
+    // CAS instead of a plain volatile read: it is a full fence, so the buffer read above cannot be reordered after the check
+    return chunk.stamps.compareAndSet(record, stamp, stamp);
+  }
+
+  public void putInt(int addr, int value) {
+    if (!myLockFree) {
+      myStorage.putInt(addr, value);
+      return;
+    }
+    final Chunk chunk = ensureChunk(addr, 4);
+    final int offset = addr % myChunkSize;
+    final int record = offset / myRecordSize;
+    chunk.stamps.incrementAndGet(record);
+    try {
+      chunk.buffer.putInt(offset, value);
+    }
+    finally {
+      chunk.stamps.incrementAndGet(record);
+    }
+  }
+
+  public void putLong(int addr, long value) {
+    if (!myLockFree) {
+      myStorage.putLong(addr, value);
+      return;
+    }
+    final Chunk chunk = ensureChunk(addr, 8);
+    final int offset = addr % myChunkSize;
+    final int record = offset / myRecordSize;
+    chunk.stamps.incrementAndGet(record);
+    try {
+      chunk.buffer.putLong(offset, value);
+    }
+    finally {
+      chunk.stamps.incrementAndGet(record);
+    }
+  }
+
+  public void put(int addr, byte[] src, int off, int length) {
+    if (!myLockFree) {
+      myStorage.put(addr, src, off, length);
+      return;
+    }
+    while (length > 0) {
+      final int offset = addr % myChunkSize;
+      final int record = offset / myRecordSize;
+      final int toCopy = Math.min(length, (record + 1) * myRecordSize - offset); // one record at a time
+      final Chunk chunk = ensureChunk(addr, toCopy);
+      chunk.stamps.incrementAndGet(record);
+      try {
+        for (int i = 0; i < toCopy; i++) {
+          chunk.buffer.put(offset + i, src[off + i]);
+        }
+      }
+      finally {
+        chunk.stamps.incrementAndGet(record);
+      }
+      addr += toCopy;
+      off += toCopy;
+      length -= toCopy;
+    }
+  }
+
+  @NotNull
+  private Chunk getChunk(int addr) {
+    final Chunk[] chunks = myChunks;
+    final int index = addr / myChunkSize;
+    if (index >= chunks.length) throw new IndexOutOfBoundsException("addr=" + addr + " length=" + myLength);
+    return chunks[index];
+  }
+
+  // callers are serialized, as for any modification of the table
+  @NotNull
+  private Chunk ensureChunk(int addr, int size) {
+    final long end = (long)addr + size;
+    if (end > Integer.MAX_VALUE) throw new RuntimeException("FATAL ERROR: Can't get over 2^32 address space");
+    if (end > myLength) {
+      try {
+        mapChunks(end);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      myLength = end;
+      myLengthDirty = true;
+    }
+    final Chunk chunk = getChunk(addr);
+    chunk.dirty = true;
+    return chunk;
+  }
+
+  private void mapChunks(long length) throws IOException {
+    Chunk[] chunks = myChunks;
+    final int required = (int)((length + myChunkSize - 1) / myChunkSize);
+    if (required <= chunks.length) return;
+
+    final Chunk[] newChunks = new Chunk[required];
+    System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+    for (int i = chunks.length; i < required; i++) {
+      // mapping past the end of file extends it with zeroes
+      newChunks[i] = new Chunk(myChannel.map(FileChannel.MapMode.READ_WRITE, (long)i * myChunkSize, myChunkSize), myRecordsPerChunk);
+    }
+    myChunks = newChunks; // published only when all the chunks are mapped
+  }
+
+  private File getLengthFile() {
+    return new File(myFile.getPath() + ".len");
+  }
+
+  private long readLength() throws IOException {
+    final File lengthFile = getLengthFile();
+    if (!lengthFile.exists()) return myChannel.size();
+    final DataInputStream stream = new DataInputStream(new FileInputStream(lengthFile));
+    try {
+      return stream.readLong();
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read length of " + myFile.getPath(), e);
+      return myChannel.size();
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private void writeLength() throws IOException {
+    final DataOutputStream stream = new DataOutputStream(new FileOutputStream(getLengthFile()));
+    try {
+      stream.writeLong(myLength);
+    }
+    finally {
+      stream.close();
+    }
+    myLengthDirty = false;
+  }
+
+  @Override
+  public boolean isDirty() {
+    if (!myLockFree) return myStorage.isDirty();
+    if (myLengthDirty) return true;
+    for (Chunk chunk : myChunks) {
+      if (chunk.dirty) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void force() {
+    if (!myLockFree) {
+      myStorage.force();
+      return;
+    }
+    for (Chunk chunk : myChunks) {
+      if (chunk.dirty) {
+        chunk.dirty = false;
+        chunk.buffer.force();
+      }
+    }
+    if (myLengthDirty) {
+      try {
+        writeLength();
+      }
+      catch (IOException e) {
+        LOG.error(e);
+      }
+    }
+  }
+
+  public void close() {
+    if (!myLockFree) {
+      myStorage.close();
+      return;
+    }
+    try {
+      force();
+    }
+    finally {
+      try {
+        myChannel.close();
+      }
+      catch (IOException e) {
+        LOG.error(e);
+      }
+      // mapped chunks are not unmapped explicitly: lock-free readers may still access them, they are released when collected
+    }
+  }
+}
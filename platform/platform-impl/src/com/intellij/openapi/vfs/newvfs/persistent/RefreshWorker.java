@@ -15,6 +15,7 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.io.FileAttributes;
@@ -27,14 +28,18 @@ import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.Queue;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 
 import static com.intellij.openapi.diagnostic.LogUtil.debug;
 import static com.intellij.util.containers.ContainerUtil.newHashSet;
@@ -45,11 +50,35 @@ import static com.intellij.util.containers.ContainerUtil.newHashSet;
 public class RefreshWorker {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker");
 
+  /**
+   * In parallel mode files of the same depth are scanned by a bounded pool; results are merged in the queue order,
+   * so the produced events are the same as of the sequential scan.
+   */
+  private static boolean ourParallel = SystemProperties.getBooleanProperty("idea.vfs.parallel.refresh", false);
+  private static final int PARALLELISM = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  private static final int FILES_PER_TASK = 16;
+  private static final BoundedTaskExecutor ourExecutor = new BoundedTaskExecutor(new Executor() {
+    @Override
+    public void execute(@NotNull Runnable command) {
+      ApplicationManager.getApplication().executeOnPooledThread(command);
+    }
+  }, PARALLELISM);
+
   private final boolean myIsRecursive;
   private final Queue<VirtualFile> myRefreshQueue = new Queue<VirtualFile>(100);
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled = false;
 
+  private NewVirtualFileSystem myFs;
+  private PersistentFS myPersistence;
+  private NewVirtualFile myRoot;
+  private FileAttributes myRootAttributes;
+
+  @TestOnly
+  static void setParallel(final boolean parallel) {
+    ourParallel = parallel;
+  }
+
   public RefreshWorker(final VirtualFile refreshRoot, final boolean isRecursive) {
     myIsRecursive = isRecursive;
     myRefreshQueue.addLast(refreshRoot);
@@ -70,7 +99,8 @@ public class RefreshWorker {
     final FileAttributes rootAttributes = fs.getAttributes(root);
 
     if (rootAttributes == null) {
-      scheduleDeletion(root);
+      debug(LOG, "delete file=%s", root);
+      myEvents.add(new VFileDeleteEvent(null, root, true));
       root.markClean();
       debug(LOG, "root=%s time=%d", root, System.currentTimeMillis() - t);
       return;
@@ -80,198 +110,300 @@ public class RefreshWorker {
       fs = PersistentFS.replaceWithNativeFS(fs);
     }
 
-    final PersistentFS persistence = PersistentFS.getInstance();
+    myFs = fs;
+    myPersistence = PersistentFS.getInstance();
+    myRoot = root;
+    myRootAttributes = rootAttributes;
+
+    if (ourParallel && myIsRecursive && ApplicationManager.getApplication() != null) {
+      scanParallel();
+    }
+    else {
+      while (!myRefreshQueue.isEmpty() && !myCancelled) {
+        if (!merge(scanFile((VirtualFileSystemEntry)myRefreshQueue.pullFirst()))) break;
+      }
+    }
+
+    debug(LOG, "root=%s time=%d", root, System.currentTimeMillis() - t);
+  }
 
-    main:
+  private void scanParallel() {
     while (!myRefreshQueue.isEmpty() && !myCancelled) {
-      final VirtualFileSystemEntry file = (VirtualFileSystemEntry)myRefreshQueue.pullFirst();
-      final boolean fileDirty = file.isDirty();
-      debug(LOG, "file=%s dirty=%b", file, fileDirty);
-      if (!fileDirty) continue;
-
-      final FileAttributes attributes = Comparing.equal(file, root) ? rootAttributes : fs.getAttributes(file);
-      if (attributes == null) {
-        scheduleDeletion(file);
-        continue;
+      final List<VirtualFileSystemEntry> level = new ArrayList<VirtualFileSystemEntry>();
+      while (!myRefreshQueue.isEmpty()) {
+        level.add((VirtualFileSystemEntry)myRefreshQueue.pullFirst());
       }
 
-      boolean checkFurther = true;
-      final VirtualFileSystemEntry parent = file.getParent();
-      if (parent != null &&
-          (checkAndScheduleAttributesChange(parent, file, attributes) ||
-           checkAndScheduleSymLinkTargetChange(parent, file, attributes, fs))) {
-        // ignore everything else
-        checkFurther = false;
+      if (level.size() <= FILES_PER_TASK) {
+        for (VirtualFileSystemEntry file : level) {
+          if (!merge(scanFile(file))) return;
+        }
+        continue;
       }
-      else if (file.isDirectory()) {
-        final VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
-        final boolean fullSync = dir.allChildrenLoaded();
-        if (fullSync) {
-          final Set<String> currentNames = newHashSet(persistence.list(file));
-          final Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
-          final Set<String> newNames = newHashSet(upToDateNames);
-          newNames.removeAll(currentNames);
-          final Set<String> deletedNames = newHashSet(currentNames);
-          deletedNames.removeAll(upToDateNames);
-          debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
-
-          for (String name : deletedNames) {
-            scheduleDeletion(file.findChild(name));
-          }
 
-          for (String name : newNames) {
-            if (myCancelled) break main;
-            final FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
-            if (childAttributes != null) {
-              scheduleCreation(file, name, childAttributes.isDirectory());
-            }
-            else {
-              LOG.warn("fs=" + fs + " dir=" + file + " name=" + name);
+      final List<Future<List<FileScan>>> futures = new ArrayList<Future<List<FileScan>>>();
+      for (int i = 0; i < level.size(); i += FILES_PER_TASK) {
+        final List<VirtualFileSystemEntry> files = level.subList(i, Math.min(level.size(), i + FILES_PER_TASK));
+        futures.add(ourExecutor.submit(new Callable<List<FileScan>>() {
+          @Override
+          public List<FileScan> call() {
+            final List<FileScan> scans = new ArrayList<FileScan>(files.size());
+            for (VirtualFileSystemEntry file : files) {
+              final FileScan scan = scanFile(file);
+              scans.add(scan);
+              if (scan.cancelled) break;
             }
+            return scans;
           }
+        }));
+      }
 
-          for (VirtualFile child : file.getChildren()) {
-            if (myCancelled) break main;
-            if (!deletedNames.contains(child.getName())) {
-              final FileAttributes childAttributes = fs.getAttributes(child);
-              if (childAttributes != null) {
-                checkAndScheduleChildRefresh(file, child, childAttributes);
-              }
-              else {
-                LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
-                scheduleDeletion(child);
-              }
-            }
-          }
+      // merging in submission order keeps events deterministic, all the tasks are waited for even if the scan is cancelled
+      boolean cancelled = false;
+      for (Future<List<FileScan>> future : futures) {
+        for (FileScan scan : getResult(future)) {
+          if (!cancelled && !merge(scan)) cancelled = true;
         }
-        else {
-          final Collection<VirtualFile> cachedChildren = file.getCachedChildren();
-          debug(LOG, "cached=%s", cachedChildren);
-          for (VirtualFile child : cachedChildren) {
-            if (myCancelled) break main;
-            final FileAttributes childAttributes = fs.getAttributes(child);
-            if (childAttributes != null) {
-              checkAndScheduleChildRefresh(file, child, childAttributes);
-            }
-            else {
-              scheduleDeletion(child);
-            }
-          }
+      }
+      if (cancelled) return;
+    }
+  }
 
-          final List<String> names = dir.getSuspiciousNames();
-          debug(LOG, "suspicious=%s", names);
-          for (String name : names) {
-            if (myCancelled) break main;
-            if (name.isEmpty()) continue;
+  @NotNull
+  private static List<FileScan> getResult(@NotNull Future<List<FileScan>> future) {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+  }
 
-            final VirtualFile fake = new FakeVirtualFile(file, name);
-            final FileAttributes childAttributes = fs.getAttributes(fake);
-            if (childAttributes != null) {
-              scheduleCreation(file, name, childAttributes.isDirectory());
-            }
-          }
+  /**
+   * @return false if the scan was cancelled
+   */
+  private boolean merge(@NotNull FileScan scan) {
+    myEvents.addAll(scan.events);
+    if (scan.cancelled) return false;
+    for (VirtualFile child : scan.children) {
+      myRefreshQueue.addLast(child);
+    }
+    return true;
+  }
+
+  /**
+   * Result of a single file check: events and children to check next. Does not touch the worker state,
+   * so different files can be scanned concurrently.
+   */
+  private class FileScan {
+    private final List<VFileEvent> events = new ArrayList<VFileEvent>();
+    private final List<VirtualFile> children = new ArrayList<VirtualFile>();
+    private boolean cancelled;
+
+    private void checkAndScheduleChildRefresh(@NotNull VirtualFileSystemEntry parent,
+                                              @NotNull VirtualFile child,
+                                              @NotNull FileAttributes childAttributes) {
+      if (!checkAndScheduleAttributesChange(parent, child, childAttributes)) {
+        final boolean upToDateIsDirectory = childAttributes.isDirectory();
+        if (myIsRecursive || !upToDateIsDirectory) {
+          children.add(child);
         }
       }
+    }
+
+    private boolean checkAndScheduleAttributesChange(@NotNull VirtualFileSystemEntry parent,
+                                                     @NotNull VirtualFile child,
+                                                     @NotNull FileAttributes childAttributes) {
+      final boolean currentIsDirectory = child.isDirectory();
+      final boolean currentIsSymlink = child.isSymLink();
+      final boolean currentIsSpecial = child.isSpecialFile();
+      final boolean upToDateIsDirectory = childAttributes.isDirectory();
+      final boolean upToDateIsSymlink = childAttributes.isSymLink();
+      final boolean upToDateIsSpecial = child.isSpecialFile();
+
+      if (currentIsDirectory != upToDateIsDirectory ||
+          currentIsSymlink != upToDateIsSymlink ||
+          currentIsSpecial != upToDateIsSpecial) {
+        scheduleDeletion(child);
+        scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
+        return true;
+      }
       else {
-        final long currentTimestamp = persistence.getTimeStamp(file);
-        final long upToDateTimestamp = attributes.lastModified;
-        final long currentLength = persistence.getLength(file);
-        final long upToDateLength = attributes.length;
+        return false;
+      }
+    }
 
-        if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
-          scheduleUpdateContent(file);
+    private boolean checkAndScheduleSymLinkTargetChange(@NotNull VirtualFileSystemEntry parent,
+                                                        @NotNull VirtualFile child,
+                                                        @NotNull FileAttributes childAttributes,
+                                                        @NotNull NewVirtualFileSystem fs) {
+      if (childAttributes.isSymLink()) {
+        final String currentTarget = child.getCanonicalPath();
+        final String upToDateTarget = fs.resolveSymLink(child);
+        final String upToDateVfsTarget = upToDateTarget != null ? FileUtil.toSystemIndependentName(upToDateTarget) : null;
+        if (!Comparing.equal(currentTarget, upToDateVfsTarget)) {
+          scheduleDeletion(child);
+          scheduleReCreation(parent, child.getName(), childAttributes.isDirectory());
+          return true;
         }
       }
+      return false;
+    }
 
-      if (checkFurther) {
-        final boolean currentWritable = persistence.isWritable(file);
-        final boolean upToDateWritable = attributes.isWritable();
+    private void scheduleWritableAttributeChange(@NotNull VirtualFileSystemEntry file, boolean currentWritable, boolean upToDateWritable) {
+      debug(LOG, "update r/w file=%s", file);
+      events.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
+    }
 
-        if (currentWritable != upToDateWritable) {
-          scheduleWritableAttributeChange(file, currentWritable, upToDateWritable);
-        }
-      }
+    private void scheduleUpdateContent(@NotNull VirtualFileSystemEntry file) {
+      debug(LOG, "update file=%s", file);
+      events.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
+    }
 
-      file.markClean();
+    private void scheduleCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
+      debug(LOG, "create parent=%s name=%s dir=%b", parent, childName, isDirectory);
+      events.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
     }
 
-    debug(LOG, "root=%s time=%d", root, System.currentTimeMillis() - t);
-  }
+    private void scheduleReCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
+      debug(LOG, "re-create parent=%s name=%s dir=%b", parent, childName, isDirectory);
+      events.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+    }
 
-  private void checkAndScheduleChildRefresh(@NotNull VirtualFileSystemEntry parent,
-                                            @NotNull VirtualFile child,
-                                            @NotNull FileAttributes childAttributes) {
-    if (!checkAndScheduleAttributesChange(parent, child, childAttributes)) {
-      final boolean upToDateIsDirectory = childAttributes.isDirectory();
-      if (myIsRecursive || !upToDateIsDirectory) {
-        myRefreshQueue.addLast(child);
-      }
+    private void scheduleDeletion(@Nullable final VirtualFile file) {
+      if (file == null) return;
+      debug(LOG, "delete file=%s", file);
+      events.add(new VFileDeleteEvent(null, file, true));
     }
   }
 
-  private boolean checkAndScheduleAttributesChange(@NotNull VirtualFileSystemEntry parent,
-                                                   @NotNull VirtualFile child,
-                                                   @NotNull FileAttributes childAttributes) {
-    final boolean currentIsDirectory = child.isDirectory();
-    final boolean currentIsSymlink = child.isSymLink();
-    final boolean currentIsSpecial = child.isSpecialFile();
-    final boolean upToDateIsDirectory = childAttributes.isDirectory();
-    final boolean upToDateIsSymlink = childAttributes.isSymLink();
-    final boolean upToDateIsSpecial = child.isSpecialFile();
-
-    if (currentIsDirectory != upToDateIsDirectory ||
-        currentIsSymlink != upToDateIsSymlink ||
-        currentIsSpecial != upToDateIsSpecial) {
-      scheduleDeletion(child);
-      scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
-      return true;
+  @NotNull
+  private FileScan scanFile(@NotNull VirtualFileSystemEntry file) {
+    final FileScan scan = new FileScan();
+    final NewVirtualFileSystem fs = myFs;
+    final PersistentFS persistence = myPersistence;
+
+    final boolean fileDirty = file.isDirty();
+    debug(LOG, "file=%s dirty=%b", file, fileDirty);
+    if (!fileDirty) return scan;
+
+    final FileAttributes attributes = Comparing.equal(file, myRoot) ? myRootAttributes : fs.getAttributes(file);
+    if (attributes == null) {
+      scan.scheduleDeletion(file);
+      return scan;
     }
-    else {
-      return false;
+
+    boolean checkFurther = true;
+    final VirtualFileSystemEntry parent = file.getParent();
+    if (parent != null &&
+        (scan.checkAndScheduleAttributesChange(parent, file, attributes) ||
+         scan.checkAndScheduleSymLinkTargetChange(parent, file, attributes, fs))) {
+      // ignore everything else
+      checkFurther = false;
     }
-  }
+    else if (file.isDirectory()) {
+      final VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
+      final boolean fullSync = dir.allChildrenLoaded();
+      if (fullSync) {
+        final Set<String> currentNames = newHashSet(persistence.list(file));
+        final Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
+        final Set<String> newNames = newHashSet(upToDateNames);
+        newNames.removeAll(currentNames);
+        final Set<String> deletedNames = newHashSet(currentNames);
+        deletedNames.removeAll(upToDateNames);
+        debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
+
+        for (String name : deletedNames) {
+          scan.scheduleDeletion(file.findChild(name));
+        }
 
-  private boolean checkAndScheduleSymLinkTargetChange(@NotNull VirtualFileSystemEntry parent,
-                                                      @NotNull VirtualFile child,
-                                                      @NotNull FileAttributes childAttributes,
-                                                      @NotNull NewVirtualFileSystem fs) {
-    if (childAttributes.isSymLink()) {
-      final String currentTarget = child.getCanonicalPath();
-      final String upToDateTarget = fs.resolveSymLink(child);
-      final String upToDateVfsTarget = upToDateTarget != null ? FileUtil.toSystemIndependentName(upToDateTarget) : null;
-      if (!Comparing.equal(currentTarget, upToDateVfsTarget)) {
-        scheduleDeletion(child);
-        scheduleReCreation(parent, child.getName(), childAttributes.isDirectory());
-        return true;
+        for (String name : newNames) {
+          if (myCancelled) return cancelled(scan);
+          final FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
+          if (childAttributes != null) {
+            scan.scheduleCreation(file, name, childAttributes.isDirectory());
+          }
+          else {
+            LOG.warn("fs=" + fs + " dir=" + file + " name=" + name);
+          }
+        }
+
+        for (VirtualFile child : file.getChildren()) {
+          if (myCancelled) return cancelled(scan);
+          if (!deletedNames.contains(child.getName())) {
+            final FileAttributes childAttributes = fs.getAttributes(child);
+            if (childAttributes != null) {
+              scan.checkAndScheduleChildRefresh(file, child, childAttributes);
+            }
+            else {
+              LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
+              scan.scheduleDeletion(child);
+            }
+          }
+        }
+      }
+      else {
+        final Collection<VirtualFile> cachedChildren = file.getCachedChildren();
+        debug(LOG, "cached=%s", cachedChildren);
+        for (VirtualFile child : cachedChildren) {
+          if (myCancelled) return cancelled(scan);
+          final FileAttributes childAttributes = fs.getAttributes(child);
+          if (childAttributes != null) {
+            scan.checkAndScheduleChildRefresh(file, child, childAttributes);
+          }
+          else {
+            scan.scheduleDeletion(child);
+          }
+        }
+
+        final List<String> names = dir.getSuspiciousNames();
+        debug(LOG, "suspicious=%s", names);
+        for (String name : names) {
+          if (myCancelled) return cancelled(scan);
+          if (name.isEmpty()) continue;
+
+          final VirtualFile fake = new FakeVirtualFile(file, name);
+          final FileAttributes childAttributes = fs.getAttributes(fake);
+          if (childAttributes != null) {
+            scan.scheduleCreation(file, name, childAttributes.isDirectory());
+          }
+        }
       }
     }
-    return false;
-  }
+    else {
+      final long currentTimestamp = persistence.getTimeStamp(file);
+      final long upToDateTimestamp = attributes.lastModified;
+      final long currentLength = persistence.getLength(file);
+      final long upToDateLength = attributes.length;
 
-  private void scheduleWritableAttributeChange(@NotNull VirtualFileSystemEntry file, boolean currentWritable, boolean upToDateWritable) {
-    debug(LOG, "update r/w file=%s", file);
-    myEvents.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
-  }
+      if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
+        scan.scheduleUpdateContent(file);
+      }
+    }
 
-  private void scheduleUpdateContent(@NotNull VirtualFileSystemEntry file) {
-    debug(LOG, "update file=%s", file);
-    myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
-  }
+    if (checkFurther) {
+      final boolean currentWritable = persistence.isWritable(file);
+      final boolean upToDateWritable = attributes.isWritable();
 
-  private void scheduleCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
-    debug(LOG, "create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
-  }
+      if (currentWritable != upToDateWritable) {
+        scan.scheduleWritableAttributeChange(file, currentWritable, upToDateWritable);
+      }
+    }
 
-  private void scheduleReCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
-    debug(LOG, "re-create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+    file.markClean();
+    return scan;
   }
 
-  private void scheduleDeletion(@Nullable final VirtualFile file) {
-    if (file == null) return;
-    debug(LOG, "delete file=%s", file);
-    myEvents.add(new VFileDeleteEvent(null, file, true));
+  @NotNull
+  private static FileScan cancelled(@NotNull FileScan scan) {
+    scan.cancelled = true;
+    return scan;
   }
 
   @NotNull
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeHighlighting.HighlightingPass;
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import com.intellij.concurrency.JobSchedulerImpl;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.impl.text.TextEditorProvider;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.testFramework.LightPlatformCodeInsightTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PassExecutorServiceTest extends LightPlatformCodeInsightTestCase {
+  private static final long TIMEOUT_SECONDS = 30;
+  private static final int BLOCKERS_PRIORITY = 5;
+
+  private final List<String> myEvents = Collections.synchronizedList(new ArrayList<String>());
+  private PassExecutorService myService;
+  private FileEditor myFileEditor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    configureFromFileText("a.txt", "text");
+    myFileEditor = TextEditorProvider.getInstance().getTextEditor(getEditor());
+    myService = new PassExecutorService(getProject()) {
+      @Override
+      protected void afterApplyInformationToEditor(TextEditorHighlightingPass pass, FileEditor fileEditor, ProgressIndicator updateProgress) {
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Disposer.dispose(myService);
+    myService = null;
+    myFileEditor = null;
+    super.tearDown();
+  }
+
+  @Override
+  protected boolean isRunInWriteAction() {
+    return false;
+  }
+
+  public void testMoreImportantPassRunsFirst() throws Exception {
+    final List<BlockingPass> blockers = occupyJobThreads(false);
+    try {
+      final RecordingPass low = new RecordingPass("low");
+      final RecordingPass high = new RecordingPass("high");
+      submit(low, 10);
+      submit(high, 0);
+
+      // the only free thread takes the ready passes one by one
+      blockers.get(0).release();
+      low.waitFor();
+      high.waitFor();
+      assertEquals(Arrays.asList("blocker0 finished", "high", "low"), myEvents.subList(myEvents.indexOf("blocker0 finished"), myEvents.size()));
+      assertSame(blockers.get(0).myThread, high.myThread);
+      assertSame(blockers.get(0).myThread, low.myThread);
+    }
+    finally {
+      releaseAll(blockers);
+    }
+  }
+
+  public void testUrgentPassPreemptsRunningPass() throws Exception {
+    final List<BlockingPass> blockers = occupyJobThreads(true);
+    try {
+      final RecordingPass urgent = new RecordingPass("urgent");
+      final RecordingPass low = new RecordingPass("low");
+      submit(urgent, 0);
+      submit(low, 10);
+
+      // the blockers call checkCanceled() all this time, and one of them runs the urgent pass inside
+      urgent.waitFor();
+      final Set<Thread> threads = new HashSet<Thread>();
+      for (BlockingPass blocker : blockers) {
+        threads.add(blocker.myThread);
+      }
+      assertTrue(threads.contains(urgent.myThread));
+      // but not the pass which is less important than them
+      assertFalse(low.waitFor(500));
+      for (BlockingPass blocker : blockers) {
+        assertFalse(myEvents.contains(blocker + " finished"));
+      }
+
+      blockers.get(0).release();
+      low.waitFor();
+    }
+    finally {
+      releaseAll(blockers);
+    }
+  }
+
+  public void testCheapPassRunsBeforeExpensiveOne() throws Exception {
+    final RecordingPass slow = new SlowPass("slow");
+    submit(slow, 0);
+    slow.waitFor();
+
+    // the thread which has run the slow pass is among the occupied ones, so the time it took is known
+    final List<BlockingPass> blockers = occupyJobThreads(false);
+    try {
+      final RecordingPass expensive = new SlowPass("expensive");
+      final RecordingPass cheap = new RecordingPass("cheap");
+      submit(expensive, 0);
+      submit(cheap, 0);
+
+      blockers.get(0).release();
+      expensive.waitFor();
+      cheap.waitFor();
+      assertEquals(Arrays.asList("blocker0 finished", "cheap", "expensive"),
+                   myEvents.subList(myEvents.indexOf("blocker0 finished"), myEvents.size()));
+    }
+    finally {
+      releaseAll(blockers);
+    }
+  }
+
+  /**
+   * @param preempting whether the passes call checkCanceled() and so run more important passes inside
+   * @return passes which have started in every job thread and run until released
+   */
+  private List<BlockingPass> occupyJobThreads(boolean preempting) throws InterruptedException {
+    final List<BlockingPass> blockers = new ArrayList<BlockingPass>();
+    for (int i = 0; i < JobSchedulerImpl.CORES_COUNT; i++) {
+      final BlockingPass blocker = new BlockingPass("blocker" + i, preempting);
+      blocker.setId(i + 1);
+      blockers.add(blocker);
+    }
+    submit(blockers.toArray(new HighlightingPass[blockers.size()]), BLOCKERS_PRIORITY);
+    final Set<Thread> threads = new HashSet<Thread>();
+    for (BlockingPass blocker : blockers) {
+      blocker.waitFor();
+      threads.add(blocker.myThread);
+    }
+    assertEquals(blockers.size(), threads.size());
+    return blockers;
+  }
+
+  private static void releaseAll(List<BlockingPass> blockers) {
+    for (BlockingPass blocker : blockers) {
+      blocker.release();
+    }
+  }
+
+  private void submit(RecordingPass pass, int priority) {
+    submit(new HighlightingPass[]{pass}, priority);
+  }
+
+  private void submit(HighlightingPass[] passes, int priority) {
+    final DaemonProgressIndicator progress = new DaemonProgressIndicator();
+    progress.start();
+    myService.submitPasses(Collections.singletonMap(myFileEditor, passes), progress, priority);
+  }
+
+  private class RecordingPass extends TextEditorHighlightingPass {
+    private final String myName;
+    private final CountDownLatch myStarted = new CountDownLatch(1);
+    volatile Thread myThread;
+
+    private RecordingPass(String name) {
+      super(getProject(), getEditor().getDocument(), false);
+      myName = name;
+    }
+
+    @Override
+    public void doCollectInformation(@NotNull ProgressIndicator progress) {
+      myThread = Thread.currentThread();
+      myEvents.add(myName);
+      myStarted.countDown();
+    }
+
+    @Override
+    public void doApplyInformationToEditor() {
+    }
+
+    void waitFor() throws InterruptedException {
+      assertTrue(myName + " has not started", waitFor(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+    }
+
+    boolean waitFor(long millis) throws InterruptedException {
+      return myStarted.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return myName;
+    }
+  }
+
+  private class SlowPass extends RecordingPass {
+    private SlowPass(String name) {
+      super(name);
+    }
+
+    @Override
+    public void doCollectInformation(@NotNull ProgressIndicator progress) {
+      super.doCollectInformation(progress);
+      try {
+        Thread.sleep(300);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private class BlockingPass extends RecordingPass {
+    private final CountDownLatch myRelease = new CountDownLatch(1);
+    private final boolean myPreempting;
+
+    private BlockingPass(String name, boolean preempting) {
+      super(name);
+      myPreempting = preempting;
+    }
+
+    @Override
+    public void doCollectInformation(@NotNull ProgressIndicator progress) {
+      super.doCollectInformation(progress);
+      try {
+        while (!myRelease.await(10, TimeUnit.MILLISECONDS)) {
+          if (myPreempting) {
+            progress.checkCanceled();
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      myEvents.add(this + " finished");
+    }
+
+    private void release() {
+      myRelease.countDown();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.concurrency;
+
+import junit.framework.TestCase;
+
+public class JobLauncherImplTest extends TestCase {
+  private static final int[] SIZES = {1, 2, 7, 40, 100, 1000, 12345, 100000};
+  private static final int[] THREADS = {1, 2, 3, 4, 8, 16};
+
+  public void testNoItems() {
+    for (int threads : THREADS) {
+      int[] starts = JobLauncherImpl.splitIntoChunks(0, threads);
+      assertEquals(1, starts.length);
+      assertEquals(0, starts[0]);
+    }
+  }
+
+  public void testChunksCoverAllItems() {
+    for (int size : SIZES) {
+      for (int threads : THREADS) {
+        int[] starts = JobLauncherImpl.splitIntoChunks(size, threads);
+        String message = size + " items, " + threads + " threads";
+        assertEquals(message, 0, starts[0]);
+        assertEquals(message, size, starts[starts.length - 1]);
+        for (int i = 1; i < starts.length; i++) {
+          assertTrue(message, starts[i] > starts[i - 1]);
+        }
+      }
+    }
+  }
+
+  public void testChunksShrinkTowardsTheEnd() {
+    for (int size : SIZES) {
+      for (int threads : THREADS) {
+        int[] starts = JobLauncherImpl.splitIntoChunks(size, threads);
+        String message = size + " items, " + threads + " threads";
+        for (int i = 2; i < starts.length; i++) {
+          assertTrue(message, starts[i] - starts[i - 1] <= starts[i - 1] - starts[i - 2]);
+        }
+        // the last items are taken one by one
+        assertEquals(message, 1, starts[starts.length - 1] - starts[starts.length - 2]);
+      }
+    }
+  }
+
+  public void testFirstChunksAreCapped() {
+    for (int size : SIZES) {
+      for (int threads : THREADS) {
+        int[] starts = JobLauncherImpl.splitIntoChunks(size, threads);
+        String message = size + " items, " + threads + " threads";
+        int maxChunkSize = Math.max(1, size / (threads * 20));
+        assertTrue(message, starts[1] - starts[0] <= maxChunkSize);
+        // every thread gets several chunks unless there are too few items
+        assertTrue(message, starts.length - 1 >= Math.min(size, threads * 20));
+      }
+    }
+  }
+
+  public void testChunksOfLargeList() {
+    int[] starts = JobLauncherImpl.splitIntoChunks(100000, 4);
+    assertEquals(1250, starts[1]);
+    // the tail doesn't add much more chunks than the capped ones
+    assertTrue(String.valueOf(starts.length), starts.length < 80 + 100);
+  }
+}
@@ -25,7 +25,9 @@ import com.intellij.psi.PsiFile;
 import com.intellij.psi.TokenType;
 import com.intellij.psi.impl.DebugUtil;
 import com.intellij.psi.impl.source.tree.ASTStructure;
+import com.intellij.psi.impl.source.tree.CompositeElement;
 import com.intellij.psi.tree.*;
+import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
 import com.intellij.testFramework.PlatformTestCase;
 import com.intellij.util.ThreeState;
@@ -147,6 +149,110 @@ public class PsiBuilderQuickTest extends LightPlatformTestCase {
     );
   }
 
+  public void testCompactTree() {
+    final Parser parser = new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        PsiBuilderUtil.advance(builder, 1);
+        final PsiBuilder.Marker marker1 = builder.mark();
+        PsiBuilderUtil.advance(builder, 4);
+        marker1.done(OTHER);
+        PsiBuilderUtil.advance(builder, 1);
+        final PsiBuilder.Marker marker2 = builder.mark();
+        PsiBuilderUtil.advance(builder, 1);
+        builder.mark().done(OTHER);
+        PsiBuilderUtil.advance(builder, 2);
+        marker2.done(OTHER);
+      }
+    };
+
+    PsiBuilderImpl.setCompactTree(true);
+    try {
+      final PsiBuilder builder = createBuilder("1(ab)2(c)");
+      final PsiBuilder.Marker rootMarker = builder.mark();
+      parser.parse(builder);
+      rootMarker.done(ROOT);
+      final ASTNode root = builder.getTreeBuilt();
+
+      final CompositeElement packed = (CompositeElement)root.getChildren(null)[1];
+      assertTrue(packed.hasPackedLeaves());
+      assertEquals("1(ab)2(c)", root.getText());
+      assertEquals("(ab)", packed.getText());
+      assertEquals(4, packed.getTextLength());
+      assertEquals(1, packed.getStartOffset());
+      assertTrue(packed.textContains('b'));
+      assertTrue(packed.textMatches("(ab)"));
+      assertFalse(packed.textMatches("(ac)"));
+      assertTrue(packed.hasPackedLeaves());
+
+      assertEquals("Element(ROOT)\n" +
+                   "  PsiElement(DIGIT)('1')\n" +
+                   "  Element(OTHER)\n" +
+                   "    PsiElement(OTHER)('(')\n" +
+                   "    PsiElement(LETTER)('a')\n" +
+                   "    PsiElement(LETTER)('b')\n" +
+                   "    PsiElement(OTHER)(')')\n" +
+                   "  PsiElement(DIGIT)('2')\n" +
+                   "  Element(OTHER)\n" +
+                   "    PsiElement(OTHER)('(')\n" +
+                   "    Element(OTHER)\n" +
+                   "      <empty list>\n" +
+                   "    PsiElement(LETTER)('c')\n" +
+                   "    PsiElement(OTHER)(')')\n",
+                   DebugUtil.nodeTreeToString(root, false));
+      assertFalse(packed.hasPackedLeaves());
+      assertEquals(4, packed.getLastChildNode().getStartOffset());
+      assertEquals("(ab)", packed.getText());
+    }
+    finally {
+      PsiBuilderImpl.setCompactTree(false);
+    }
+  }
+
+  public void testStructureCheckCreatesPackedLeaves() {
+    PsiBuilderImpl.setCompactTree(true);
+    try {
+      final PsiBuilder builder = createBuilder("1(ab)");
+      final PsiBuilder.Marker rootMarker = builder.mark();
+      PsiBuilderUtil.advance(builder, 1);
+      final PsiBuilder.Marker marker = builder.mark();
+      PsiBuilderUtil.advance(builder, 4);
+      marker.done(OTHER);
+      rootMarker.done(ROOT);
+      final ASTNode root = builder.getTreeBuilt();
+
+      final CompositeElement packed = (CompositeElement)root.getLastChildNode();
+      assertTrue(packed.hasPackedLeaves());
+      DebugUtil.doCheckTreeStructure(root);
+      assertFalse(packed.hasPackedLeaves());
+      assertEquals(4, packed.getChildren(null).length);
+      assertSame(packed, packed.getFirstChildNode().getTreeParent());
+    }
+    finally {
+      PsiBuilderImpl.setCompactTree(false);
+    }
+  }
+
+  public void testPackedLeavesDoNotReferBuilder() {
+    PsiBuilderImpl.setCompactTree(true);
+    try {
+      final PsiBuilder builder = createBuilder("1(ab)");
+      final PsiBuilder.Marker rootMarker = builder.mark();
+      PsiBuilderUtil.advance(builder, 1);
+      final PsiBuilder.Marker marker = builder.mark();
+      PsiBuilderUtil.advance(builder, 4);
+      marker.done(OTHER);
+      rootMarker.done(ROOT);
+      final ASTNode root = builder.getTreeBuilt();
+
+      assertTrue(((CompositeElement)root.getLastChildNode()).hasPackedLeaves());
+      LeakHunter.checkLeak(root, PsiBuilderImpl.class);
+    }
+    finally {
+      PsiBuilderImpl.setCompactTree(false);
+    }
+  }
+
   public void testDoneAndError() {
     doTest("a2b",
            new Parser() {
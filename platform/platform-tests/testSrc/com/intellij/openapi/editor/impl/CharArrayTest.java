@@ -40,6 +40,7 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -80,7 +81,14 @@ public class CharArrayTest {
       });
     }});
     
-    init(10);
+    final boolean rope = myConfig != null && myConfig.rope();
+    final boolean oldRope = CharArray.setUseRope(rope);
+    try {
+      init(rope ? 0 : 10);
+    }
+    finally {
+      CharArray.setUseRope(oldRope);
+    }
     if (myConfig != null) {
       myArray.insert(myConfig.text(), 0);
       myArray.setDeferredChangeMode(myConfig.deferred());
@@ -141,6 +149,57 @@ public class CharArrayTest {
     assertArrayEquals("1".toCharArray(), subsSequence.getChars());
   }
   
+  @Config(text = "0123456789", rope = true)
+  @Test
+  public void ropeEditsUpdateRequestedArray() {
+    final char[] chars = myArray.getChars();
+    replace(2, 4, "a");
+    assertSame(chars, myArray.getChars());
+    checkChars("01a456789");
+
+    myArray.remove(0, 1, "0");
+    assertSame(chars, myArray.getChars());
+    checkChars("1a456789");
+
+    myArray.insert("xyz", 8);
+    checkChars("1a456789xyz");
+    checkText("1a456789xyz");
+  }
+
+  @Config(rope = true)
+  @Test
+  public void ropeRandomEdits() {
+    final Random random = new Random(42);
+    final StringBuilder expected = new StringBuilder();
+    CharSequence snapshot = myArray.getImmutableCharSequence();
+    String snapshotText = "";
+    for (int i = 0; i < 2000; i++) {
+      final int start = random.nextInt(expected.length() + 1);
+      final int end = start + random.nextInt(Math.min(20, expected.length() - start) + 1);
+      final String text = random.nextInt(3) == 0 ? "" : String.valueOf((char)('a' + random.nextInt(26))) + i;
+      replace(start, end, text);
+      expected.replace(start, end, text);
+
+      assertEquals(expected.length(), myArray.length());
+      if (random.nextInt(5) == 0) {
+        checkChars(expected.toString());
+      }
+      if (random.nextInt(50) == 0) {
+        assertEquals(snapshotText, snapshot.toString());
+        snapshot = myArray.getImmutableCharSequence();
+        snapshotText = expected.toString();
+      }
+    }
+    assertEquals(expected.toString(), myArray.toString());
+    checkChars(expected.toString());
+  }
+
+  private void checkChars(@NotNull String expected) {
+    assertEquals(expected.length(), myArray.length());
+    final char[] chars = myArray.getChars();
+    assertEquals(expected, new String(chars, 0, expected.length()));
+  }
+
   private void init(int size) {
     myArray = new CharArray(size, new char[0], 0) {
       @NotNull
@@ -239,5 +298,6 @@ public class CharArrayTest {
   private @interface Config {
     String text() default "";
     boolean deferred() default false;
+    boolean rope() default false;
   }
 }
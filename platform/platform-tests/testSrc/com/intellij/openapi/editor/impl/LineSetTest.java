@@ -0,0 +1,151 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.text.ImmutableText;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+/**
+ * Drives {@link LineSet} directly with document events; the text is kept in a rope, so the editing cost is the line set's one.
+ */
+public class LineSetTest extends TestCase {
+  private static final String[] FRAGMENTS = {"a", "bc", "\n", "x\ny", "\n\n", "line\n"};
+
+  private ImmutableText myText;
+  private LineSet myLines;
+  private Document myDocument;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDocument = (Document)Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Document.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("getLineNumber".equals(method.getName())) return myLines.findLineIndex((Integer)args[0]);
+        if ("getTextLength".equals(method.getName())) return myText.length();
+        if ("getCharsSequence".equals(method.getName())) return myText;
+        if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  private void init(String text) {
+    myText = ImmutableText.valueOf(text);
+    myLines = new LineSet();
+    myLines.documentCreated(myDocument);
+  }
+
+  private void replace(int start, int end, String newText) {
+    final DocumentEventImpl event = new DocumentEventImpl(myDocument, start, myText.subSequence(start, end), newText, 0, false);
+    // the old line is calculated lazily, it must be done before the text is changed
+    event.getStartOldIndex();
+    myText = myText.replace(start, end, newText);
+    myLines.changedUpdate(event);
+  }
+
+  private void assertLinesRebuiltFromScratch() {
+    final LineSet expected = new LineSet();
+    expected.documentCreated(myDocument);
+    assertEquals(expected.getLineCount(), myLines.getLineCount());
+    for (int i = 0; i < myLines.getLineCount(); i++) {
+      assertEquals(expected.getLineStart(i), myLines.getLineStart(i));
+      assertEquals(expected.getLineEnd(i), myLines.getLineEnd(i));
+      assertEquals(expected.getSeparatorLength(i), myLines.getSeparatorLength(i));
+    }
+  }
+
+  public void testLineLookups() {
+    init("a\nbc\n\ndef\n");
+    assertEquals(5, myLines.getLineCount());
+    assertEquals(2, myLines.getLineStart(1));
+    assertEquals(5, myLines.getLineEnd(1));
+    assertEquals(1, myLines.getSeparatorLength(1));
+    assertEquals(2, myLines.findLineIndex(5));
+    assertEquals(4, myLines.findLineIndex(myText.length()));
+
+    replace(3, 3, "x\ny");
+    assertEquals(6, myLines.getLineCount());
+    assertEquals(5, myLines.getLineStart(2));
+    assertEquals(1, myLines.findLineIndex(4));
+    assertTrue(myLines.isModified(2));
+    assertFalse(myLines.isModified(4));
+    assertLinesRebuiltFromScratch();
+  }
+
+  public void testRandomEditsMatchRebuiltLines() {
+    init("");
+    final Random random = new Random(17);
+    for (int i = 0; i < 3000; i++) {
+      final int start = random.nextInt(myText.length() + 1);
+      final int end = Math.min(myText.length(), start + (random.nextInt(20) == 0 ? random.nextInt(3000) : random.nextInt(5)));
+      final StringBuilder inserted = new StringBuilder();
+      for (int j = random.nextInt(5) == 0 ? random.nextInt(300) : random.nextInt(3); j > 0; j--) {
+        inserted.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+      replace(start, end, inserted.toString());
+      if (myText.length() > 0) {
+        assertLinesRebuiltFromScratch();
+        final int offset = random.nextInt(myText.length() + 1);
+        final int line = myLines.findLineIndex(offset);
+        assertTrue(myLines.getLineStart(line) <= offset);
+        assertTrue(offset < myLines.getLineEnd(line) || offset == myText.length());
+      }
+    }
+  }
+
+  public void testEditingHugeDocumentPerformance() {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000000; i++) {
+      text.append("line number ").append(i).append('\n');
+    }
+    final Random random = new Random(42);
+    PlatformTestUtil.startPerformanceTest("LineSet update on editing 1M lines document", 1000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < 20000; i++) {
+          final int line = random.nextInt(myLines.getLineCount());
+          final int offset = myLines.getLineStart(line);
+          switch (i % 10) {
+            case 0:
+              replace(offset, offset, "\n");
+              break;
+            case 1:
+              replace(offset, Math.min(myText.length(), myLines.getLineEnd(line) + 1), "");
+              break;
+            default:
+              replace(offset, offset, "x");
+          }
+          assertEquals(line, myLines.findLineIndex(offset));
+        }
+      }
+    }).setup(new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        init(text.toString());
+      }
+    }).cpuBound().assertTiming();
+  }
+}
@@ -10,9 +10,13 @@ import com.intellij.openapi.editor.*;
 import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
 import com.intellij.openapi.editor.ex.RangeMarkerEx;
+import com.intellij.openapi.editor.impl.event.MarkupModelListener;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.Trinity;
@@ -23,10 +27,13 @@ import com.intellij.psi.impl.PsiToDocumentSynchronizer;
 import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
 import com.intellij.testFramework.Timings;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Consumer;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -986,6 +993,110 @@ public class RangeMarkerTest extends LightPlatformTestCase {
       markupModel.removeAllHighlighters();
     }
   }
+  public void testBatchUpdateOfHighlighters() throws Exception {
+    Document document = EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol('x', 1000));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    final List<RangeHighlighter> highlighters = new ArrayList<RangeHighlighter>();
+    for (int i = 0; i < 10; i++) {
+      highlighters.add(markupModel.addRangeHighlighter(i * 50, i * 50 + 10, 0, null, HighlighterTargetArea.EXACT_RANGE));
+    }
+    document.insertString(0, "yyy");
+
+    final Random random = new Random(7);
+    markupModel.runBatchUpdate(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 300; i++) {
+          int start = random.nextInt(900);
+          RangeHighlighter highlighter = markupModel.addRangeHighlighter(start, start + random.nextInt(20), random.nextInt(3), null,
+                                                                         HighlighterTargetArea.EXACT_RANGE);
+          assertEquals(start, highlighter.getStartOffset());
+          highlighters.add(highlighter);
+          if (i == 100) {
+            highlighters.remove(5).dispose();
+          }
+        }
+      }
+    });
+
+    assertEquals(highlighters.size(), markupModel.getAllHighlighters().length);
+    for (RangeHighlighter highlighter : highlighters) {
+      assertTrue(markupModel.containsHighlighter(highlighter));
+    }
+    document.deleteString(0, 3);
+    for (int i = 0; i < 10; i++) {
+      if (i != 5) assertValidMarker(highlighters.get(i < 5 ? i : i - 1), i * 50, i * 50 + 10);
+    }
+  }
+
+  public void testListenersAreNotifiedAfterBatchUpdate() throws Exception {
+    Document document = EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol('x', 1000));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    final RangeHighlighter existing = markupModel.addRangeHighlighter(0, 10, 0, null, HighlighterTargetArea.EXACT_RANGE);
+    final List<RangeHighlighterEx> added = new ArrayList<RangeHighlighterEx>();
+    final List<RangeHighlighterEx> changed = new ArrayList<RangeHighlighterEx>();
+    final boolean[] inBatch = {false};
+    markupModel.addMarkupModelListener(getTestRootDisposable(), new MarkupModelListener() {
+      @Override
+      public void afterAdded(@NotNull RangeHighlighterEx highlighter) {
+        assertFalse(inBatch[0]);
+        assertTrue(markupModel.containsHighlighter(highlighter));
+        added.add(highlighter);
+      }
+
+      @Override
+      public void beforeRemoved(@NotNull RangeHighlighterEx highlighter) {
+      }
+
+      @Override
+      public void attributesChanged(@NotNull RangeHighlighterEx highlighter) {
+        assertFalse(inBatch[0]);
+        changed.add(highlighter);
+      }
+    });
+
+    final List<RangeHighlighter> highlighters = new ArrayList<RangeHighlighter>();
+    markupModel.runBatchUpdate(new Runnable() {
+      @Override
+      public void run() {
+        inBatch[0] = true;
+        for (int i = 0; i < 100; i++) {
+          highlighters.add(markupModel.addRangeHighlighter(i * 5, i * 5 + 3, 0, null, HighlighterTargetArea.EXACT_RANGE));
+        }
+        markupModel.changeAttributesInBatch((RangeHighlighterEx)existing, new Consumer<RangeHighlighterEx>() {
+          @Override
+          public void consume(RangeHighlighterEx highlighter) {
+            highlighter.setErrorStripeTooltip("changed");
+          }
+        });
+
+        // the tree is not locked while the batch runs, other threads see it as it was before the batch
+        final int[] found = {-1};
+        Thread reader = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            CommonProcessors.CollectProcessor<RangeHighlighterEx> processor = new CommonProcessors.CollectProcessor<RangeHighlighterEx>();
+            markupModel.processRangeHighlightersOverlappingWith(0, 1000, processor);
+            found[0] = processor.getResults().size();
+          }
+        });
+        reader.start();
+        try {
+          reader.join(10000);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        assertEquals(1, found[0]);
+        inBatch[0] = false;
+      }
+    });
+
+    assertEquals(highlighters, added);
+    assertEquals(Collections.singletonList(existing), changed);
+    assertEquals(101, markupModel.getAllHighlighters().length);
+  }
+
   public void testValidationBug() throws Exception {
     Document document = EditorFactory.getInstance().createDocument("[xxxxxxxxxxxxxx]");
     final Editor editor = EditorFactory.getInstance().createEditor(document);
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.LightPlatformTestCase;
+
+import java.util.Random;
+
+public class RopeDocumentTest extends LightPlatformTestCase {
+  private boolean myOldUseRope;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOldUseRope = CharArray.setUseRope(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    CharArray.setUseRope(myOldUseRope);
+    super.tearDown();
+  }
+
+  public void testRandomEdits() throws Exception {
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        final String initial = "first line\nsecond line\n\nfourth line";
+        final DocumentImpl document = new DocumentImpl(initial);
+        final StringBuilder expected = new StringBuilder(initial);
+        final Random random = new Random(17);
+        for (int i = 0; i < 1000; i++) {
+          final CharSequence snapshot = document.getImmutableCharSequence();
+          final String snapshotText = snapshot.toString();
+
+          final int start = random.nextInt(expected.length() + 1);
+          final int end = start + random.nextInt(Math.min(10, expected.length() - start) + 1);
+          final String text = random.nextInt(3) == 0 ? "" : StringUtil.repeat(random.nextBoolean() ? "a\n" : "bc", random.nextInt(5));
+          if (start == end) {
+            document.insertString(start, text);
+          }
+          else if (text.isEmpty()) {
+            document.deleteString(start, end);
+          }
+          else {
+            document.replaceString(start, end, text);
+          }
+          expected.replace(start, end, text);
+
+          assertEquals(snapshotText, snapshot.toString());
+          // alternate between edits with and without the array being requested in between
+          if (i % 3 == 0) {
+            assertEquals(expected.toString(), new String(document.getChars()));
+          }
+          checkDocument(expected.toString(), document);
+        }
+      }
+    }.execute().throwException();
+  }
+
+  public void testEditDoesNotUpdateRequestedArray() throws Exception {
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        final DocumentImpl document = new DocumentImpl("first line\nsecond line");
+        final char[] chars = document.getChars();
+        assertEquals("first line\nsecond line", new String(chars));
+
+        document.insertString(0, "zero line\n");
+        // the array isn't shifted by the edit but built again when requested
+        assertEquals("first line\nsecond line", new String(chars));
+        final char[] newChars = document.getChars();
+        assertNotSame(chars, newChars);
+        assertEquals("zero line\nfirst line\nsecond line", new String(newChars));
+        assertSame(newChars, document.getChars());
+        checkDocument("zero line\nfirst line\nsecond line", document);
+      }
+    }.execute().throwException();
+  }
+
+  private static void checkDocument(String expected, DocumentImpl document) {
+    assertEquals(expected, document.getText());
+    assertEquals(expected, document.getCharsSequence().toString());
+    assertEquals(expected.length(), document.getTextLength());
+    int line = 0;
+    int lineStart = 0;
+    for (int offset = 0; offset <= expected.length(); offset++) {
+      if (offset > 0 && expected.charAt(offset - 1) == '\n') {
+        line++;
+        lineStart = offset;
+      }
+      assertEquals(line, document.getLineNumber(offset));
+      assertEquals(lineStart, document.getLineStartOffset(line));
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.project;
+
+import com.intellij.ide.caches.CacheUpdater;
+import com.intellij.ide.caches.FileContent;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.LightVirtualFile;
+
+import java.util.*;
+
+public class CacheUpdateRunnerTest extends LightPlatformTestCase {
+  private static final int FILES_COUNT = 300;
+
+  private VirtualFile[] myFiles;
+  private long myTotalLength;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFiles = new VirtualFile[FILES_COUNT];
+    for (int i = 0; i < FILES_COUNT; i++) {
+      final LightVirtualFile file = new LightVirtualFile("file" + i + ".txt", "content of the file " + i);
+      myFiles[i] = file;
+      myTotalLength += file.getLength();
+    }
+  }
+
+  public void testEveryFileIsProcessedOnce() {
+    final CountingUpdater updater = new CountingUpdater();
+    final CacheUpdateRunner runner = new CacheUpdateRunner(getProject(), Collections.<CacheUpdater>singletonList(updater));
+    assertEquals(FILES_COUNT, runner.queryNeededFiles(new EmptyProgressIndicator()));
+
+    runner.processFiles(new EmptyProgressIndicator(), false);
+    runner.updatingDone();
+
+    assertEquals(new HashSet<VirtualFile>(Arrays.asList(myFiles)), updater.myProcessed);
+    assertEquals(FILES_COUNT, updater.myProcessedCount);
+    assertTrue(updater.myDone);
+  }
+
+  public void testCountersAreResetForEveryRun() {
+    final CountingUpdater updater = new CountingUpdater();
+    final CacheUpdateRunner runner = new CacheUpdateRunner(getProject(), Collections.<CacheUpdater>singletonList(updater));
+    runner.queryNeededFiles(new EmptyProgressIndicator());
+
+    for (int i = 0; i < 2; i++) {
+      runner.processFiles(new EmptyProgressIndicator(), false);
+      assertEquals(FILES_COUNT, runner.getProcessedFilesCount());
+      assertEquals(myTotalLength, runner.getProcessedBytesCount());
+    }
+  }
+
+  public void testContentIsLoadedOnceBySeveralLoaders() {
+    final FileContentQueue queue = new FileContentQueue();
+    final ProgressIndicator indicator = new EmptyProgressIndicator();
+    queue.queue(Arrays.asList(myFiles), indicator, 4);
+
+    final Set<VirtualFile> taken = new HashSet<VirtualFile>();
+    FileContent content;
+    while ((content = queue.take(indicator)) != null) {
+      assertTrue(taken.add(content.getVirtualFile()));
+      assertEquals(content.getLength(), content.getBytes().length);
+      queue.release(content);
+    }
+    assertEquals(FILES_COUNT, taken.size());
+    assertNull(queue.take(indicator));
+    assertTrue(queue.getContentLoadingThreadsUsed() >= 1);
+  }
+
+  private class CountingUpdater implements CacheUpdater {
+    private final Set<VirtualFile> myProcessed = new HashSet<VirtualFile>();
+    private int myProcessedCount;
+    private boolean myDone;
+
+    @Override
+    public int getNumberOfPendingUpdateJobs() {
+      return 0;
+    }
+
+    @Override
+    public VirtualFile[] queryNeededFiles(ProgressIndicator indicator) {
+      return myFiles;
+    }
+
+    @Override
+    public synchronized void processFile(FileContent fileContent) {
+      myProcessed.add(fileContent.getVirtualFile());
+      myProcessedCount++;
+    }
+
+    @Override
+    public void updatingDone() {
+      myDone = true;
+    }
+
+    @Override
+    public void canceled() {
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecordsTableTest extends TestCase {
+  private static final int RECORD_SIZE = 40;
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("records", "table");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testFormatIsSharedBetweenModes() throws IOException {
+    final File file = new File(myDir, "records.dat");
+    RecordsTable table = createTable(file, false);
+    for (int i = 0; i < 1000; i++) {
+      table.put(i * RECORD_SIZE, new byte[RECORD_SIZE], 0, RECORD_SIZE);
+      table.putInt(i * RECORD_SIZE, i);
+      table.putLong(i * RECORD_SIZE + 8, -i);
+    }
+    table.close();
+
+    table = createTable(file, true);
+    assertEquals(1000 * RECORD_SIZE, table.length());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, table.getIntLockFree(i * RECORD_SIZE));
+      assertEquals(-i, table.getLongLockFree(i * RECORD_SIZE + 8));
+    }
+    table.put(1000 * RECORD_SIZE, new byte[RECORD_SIZE], 0, RECORD_SIZE);
+    table.putInt(1000 * RECORD_SIZE + 4, 42);
+    table.close();
+
+    table = createTable(file, false);
+    try {
+      assertEquals(1001 * RECORD_SIZE, table.length());
+      assertEquals(999, table.getInt(999 * RECORD_SIZE));
+      assertEquals(42, table.getInt(1000 * RECORD_SIZE + 4));
+    }
+    finally {
+      table.close();
+    }
+  }
+
+  public void testLockFreeReadsAreNotTorn() throws Exception {
+    final RecordsTable table = createTable(new File(myDir, "records.dat"), true);
+    try {
+      table.put(0, new byte[RECORD_SIZE], 0, RECORD_SIZE);
+      final AtomicInteger failures = new AtomicInteger();
+      final Thread reader = new Thread("reader") {
+        @Override
+        public void run() {
+          for (int i = 0; i < 1000000; i++) {
+            final long value = table.getLongLockFree(8);
+            if ((int)(value >>> 32) != (int)value) failures.incrementAndGet();
+          }
+        }
+      };
+      reader.start();
+      for (int i = 0; reader.isAlive(); i++) {
+        table.putLong(8, ((long)i << 32) | (i & 0xFFFFFFFFL));
+      }
+      reader.join();
+      assertEquals(0, failures.get());
+    }
+    finally {
+      table.close();
+    }
+  }
+
+  private static RecordsTable createTable(File file, boolean lockFree) throws IOException {
+    return new RecordsTable(file, RECORD_SIZE, 20 * 1024, new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext, lockFree);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
+import com.intellij.testFramework.PlatformLangTestCase;
+import com.intellij.util.SystemProperties;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RefreshWorkerTest extends PlatformLangTestCase {
+  private static final int FILES_PER_DIR = 40;
+
+  private File myDir;
+  private VirtualFile myVDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDirectory();
+    for (int i = 0; i < FILES_PER_DIR; i++) {
+      final File subDir = new File(myDir, "dir" + i);
+      for (int j = 0; j < FILES_PER_DIR; j++) {
+        FileUtil.writeToFile(new File(subDir, "file" + j + ".txt"), "content");
+      }
+      FileUtil.writeToFile(new File(myDir, "file" + i + ".txt"), "content");
+    }
+    myVDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(myDir);
+    assertNotNull(myVDir);
+    loadChildren(myVDir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    RefreshWorker.setParallel(SystemProperties.getBooleanProperty("idea.vfs.parallel.refresh", false));
+    super.tearDown();
+  }
+
+  public void testNoChanges() throws Exception {
+    assertEquals(0, refresh(false).size());
+    assertEquals(0, refresh(true).size());
+  }
+
+  public void testParallelRefreshProducesSequentialEvents() throws Exception {
+    for (int i = 0; i < FILES_PER_DIR; i += 3) {
+      final File subDir = new File(myDir, "dir" + i);
+      FileUtil.writeToFile(new File(subDir, "file" + i + ".txt"), "changed content");
+      FileUtil.delete(new File(subDir, "file" + (i + 1) + ".txt"));
+      FileUtil.writeToFile(new File(subDir, "new" + i + ".txt"), "new");
+      assertTrue(new File(subDir, "newDir" + i).mkdir());
+    }
+    FileUtil.delete(new File(myDir, "dir1"));
+    FileUtil.delete(new File(myDir, "file2.txt"));
+    assertTrue(new File(myDir, "file4.txt").setWritable(false));
+
+    final List<String> sequential = refresh(false);
+    assertTrue(sequential.size() > FILES_PER_DIR);
+    assertEquals(sequential, refresh(true));
+  }
+
+  private List<String> refresh(final boolean parallel) {
+    RefreshWorker.setParallel(parallel);
+    ((VirtualFileSystemEntry)myVDir).markDirtyRecursively();
+    final RefreshWorker worker = new RefreshWorker(myVDir, true);
+    worker.scan();
+
+    // the events aren't applied, so every refresh sees the same differences
+    final List<String> events = new ArrayList<String>();
+    for (VFileEvent event : worker.getEvents()) {
+      events.add(event.toString());
+    }
+    return events;
+  }
+
+  private static void loadChildren(final VirtualFile dir) {
+    for (VirtualFile child : dir.getChildren()) {
+      if (child.isDirectory()) {
+        loadChildren(child);
+      }
+    }
+  }
+}
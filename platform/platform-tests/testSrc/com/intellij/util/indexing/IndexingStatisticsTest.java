@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class IndexingStatisticsTest extends TestCase {
+  private static final ID<String, Void> FAST = ID.create("IndexingStatisticsTest.fast");
+  private static final ID<String, Void> SLOW = ID.create("IndexingStatisticsTest.slow");
+  private static final ID<String, Void> UNUSED = ID.create("IndexingStatisticsTest.unused");
+
+  public void testTimesAreAggregatedPerIndex() {
+    final long fastFiles = IndexingStatistics.getIndexedFilesCount(FAST);
+    final long fastTime = IndexingStatistics.getIndexingTime(FAST);
+    final long slowFiles = IndexingStatistics.getIndexedFilesCount(SLOW);
+    final long slowTime = IndexingStatistics.getIndexingTime(SLOW);
+
+    IndexingStatistics.indexUpdated(FAST, TimeUnit.MILLISECONDS.toNanos(2));
+    IndexingStatistics.indexUpdated(FAST, TimeUnit.MILLISECONDS.toNanos(3));
+    IndexingStatistics.indexUpdated(SLOW, TimeUnit.MILLISECONDS.toNanos(50));
+
+    assertEquals(fastFiles + 2, IndexingStatistics.getIndexedFilesCount(FAST));
+    assertEquals(fastTime + 5, IndexingStatistics.getIndexingTime(FAST));
+    assertEquals(slowFiles + 1, IndexingStatistics.getIndexedFilesCount(SLOW));
+    assertEquals(slowTime + 50, IndexingStatistics.getIndexingTime(SLOW));
+    assertEquals(0, IndexingStatistics.getIndexedFilesCount(UNUSED));
+    assertEquals(0, IndexingStatistics.getIndexingTime(UNUSED));
+
+    // the slowest indices go first
+    final String dump = IndexingStatistics.dump();
+    final int slowIndex = dump.indexOf(" " + SLOW + "=" + IndexingStatistics.getIndexingTime(SLOW) + "ms/" +
+                                       IndexingStatistics.getIndexedFilesCount(SLOW));
+    final int fastIndex = dump.indexOf(" " + FAST + "=" + IndexingStatistics.getIndexingTime(FAST) + "ms/" +
+                                       IndexingStatistics.getIndexedFilesCount(FAST));
+    assertTrue(dump, slowIndex >= 0);
+    assertTrue(dump, fastIndex > slowIndex);
+    assertFalse(dump, dump.contains(UNUSED.toString()));
+  }
+
+  public void testLexerScansAreCounted() {
+    final long scans = IndexingStatistics.getLexerScansCount();
+    final long time = IndexingStatistics.getLexerScansTime();
+    final long shared = IndexingStatistics.getSharedLexerScansCount();
+
+    IndexingStatistics.lexerScanPerformed(TimeUnit.MILLISECONDS.toNanos(7));
+    IndexingStatistics.lexerScanPerformed(TimeUnit.MILLISECONDS.toNanos(4));
+    IndexingStatistics.lexerScanShared();
+
+    assertEquals(scans + 2, IndexingStatistics.getLexerScansCount());
+    assertEquals(time + 11, IndexingStatistics.getLexerScansTime());
+    assertEquals(shared + 1, IndexingStatistics.getSharedLexerScansCount());
+
+    final String dump = IndexingStatistics.dump();
+    assertTrue(dump, dump.contains("; lexer passes: " + (scans + 2) + " in " + IndexingStatistics.getLexerScansTime() + "ms, shared: " + (shared + 1)));
+  }
+}
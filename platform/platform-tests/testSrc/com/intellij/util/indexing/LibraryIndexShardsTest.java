@@ -0,0 +1,237 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.extensions.Extensions;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.ex.FakeFileType;
+import com.intellij.openapi.fileTypes.ex.FileTypeManagerEx;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.*;
+import com.intellij.psi.search.EverythingGlobalScope;
+import com.intellij.testFramework.PlatformLangTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class LibraryIndexShardsTest extends PlatformLangTestCase {
+  private static final String SHARDS_DIR_PROPERTY = "idea.library.index.shards.dir";
+  private static final int MAX_INDEXED_SIZE = 1000;
+
+  private File myShardsDir;
+  private String myOldShardsDir;
+  private int myOldMaxSize;
+  private FileBasedIndexImpl myIndex;
+  private LibraryIndexShards myShards;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myShardsDir = createTempDirectory();
+    myOldShardsDir = System.getProperty(SHARDS_DIR_PROPERTY);
+    System.setProperty(SHARDS_DIR_PROPERTY, myShardsDir.getPath());
+    myOldMaxSize = PersistentFSConstants.getMaxIntellisenseFileSize();
+    PersistentFSConstants.setMaxIntellisenseFileSize(MAX_INDEXED_SIZE);
+
+    myIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    myShards = LibraryIndexShards.create(myIndex, Extensions.getExtensions(FileBasedIndexExtension.EXTENSION_POINT_NAME));
+    assertNotNull(myShards);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    PersistentFSConstants.setMaxIntellisenseFileSize(myOldMaxSize);
+    if (myOldShardsDir != null) {
+      System.setProperty(SHARDS_DIR_PROPERTY, myOldShardsDir);
+    }
+    else {
+      System.clearProperty(SHARDS_DIR_PROPERTY);
+    }
+    super.tearDown();
+  }
+
+  public void testExportAndImport() throws Exception {
+    final File dir = createTempDirectory();
+    final File jar = createJar(new File(dir, "lib.jar"));
+    final VirtualFile jarRoot = getJarRoot(jar);
+    final List<VirtualFile> entries = indexEntries(jarRoot);
+    assertTrue(myShards.exportShard(jarRoot));
+    assertEquals(1, myShardsDir.list().length);
+    assertFalse(myShards.exportShard(jarRoot));
+
+    // the same content at another path shares the shard
+    final File copy = new File(dir, "copy.jar");
+    FileUtil.copy(jar, copy);
+    final VirtualFile copyRoot = getJarRoot(copy);
+    for (VirtualFile entry : entries) {
+      final VirtualFile copyEntry = copyRoot.findFileByRelativePath(VfsUtilCore.getRelativePath(entry, jarRoot, '/'));
+      assertNotNull(copyEntry);
+      assertTrue(needsIndexing(copyEntry));
+    }
+
+    assertTrue(myShards.importShard(copyRoot));
+    for (VirtualFile entry : entries) {
+      final VirtualFile copyEntry = copyRoot.findFileByRelativePath(VfsUtilCore.getRelativePath(entry, jarRoot, '/'));
+      assertNotNull(copyEntry);
+      assertFalse(copyEntry.getPath(), needsIndexing(copyEntry));
+      final Map<FileBasedIndexExtension<?, ?>, Map<?, ?>> data = myShards.getFileData(entry);
+      assertNotNull(data);
+      for (Map.Entry<FileBasedIndexExtension<?, ?>, Map<?, ?>> indexData : data.entrySet()) {
+        assertStored(indexData.getKey(), indexData.getValue(), copyEntry);
+      }
+    }
+  }
+
+  public void testVersionsStampDependsOnFileTypes() throws Exception {
+    final VirtualFile jarRoot = getJarRoot(createJar(new File(createTempDirectory(), "lib.jar")));
+    indexEntries(jarRoot);
+    assertTrue(myShards.exportShard(jarRoot));
+
+    final FileType fileType = new FakeFileType() {
+      @Override
+      public boolean isMyFileType(VirtualFile file) {
+        return false;
+      }
+
+      @NotNull
+      @Override
+      public String getName() {
+        return "shard";
+      }
+
+      @NotNull
+      @Override
+      public String getDescription() {
+        return "";
+      }
+    };
+    FileTypeManagerEx.getInstanceEx().registerFileType(fileType);
+    try {
+      final LibraryIndexShards shards = LibraryIndexShards.create(myIndex, Extensions.getExtensions(FileBasedIndexExtension.EXTENSION_POINT_NAME));
+      assertNotNull(shards);
+      assertFalse(shards.importShard(jarRoot));
+    }
+    finally {
+      FileTypeManagerEx.getInstanceEx().unregisterFileType(fileType);
+    }
+  }
+
+  public void testTooLargeEntriesDoNotPreventExport() throws Exception {
+    final File jar = createJar(new File(createTempDirectory(), "lib.jar"));
+    final VirtualFile jarRoot = getJarRoot(jar);
+    indexEntries(jarRoot);
+
+    final VirtualFile large = jarRoot.findFileByRelativePath("large.txt");
+    assertNotNull(large);
+    assertTrue(myIndex.isTooLarge(large));
+    assertTrue(needsIndexing(large));
+    assertTrue(myShards.exportShard(jarRoot));
+  }
+
+  public void testNoShardToImport() throws Exception {
+    final VirtualFile jarRoot = getJarRoot(createJar(new File(createTempDirectory(), "lib.jar")));
+    assertFalse(myShards.importShard(jarRoot));
+    assertEquals(0, myShardsDir.list().length);
+  }
+
+  private static File createJar(File jar) throws IOException {
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      addEntry(out, "a/first.txt", "first words of the library");
+      addEntry(out, "a/b/second.txt", "second words");
+      addEntry(out, "empty.txt", "");
+      addEntry(out, "large.txt", StringUtil.repeat("large content ", MAX_INDEXED_SIZE));
+    }
+    finally {
+      out.close();
+    }
+    return jar;
+  }
+
+  private static void addEntry(ZipOutputStream out, String path, String text) throws IOException {
+    out.putNextEntry(new ZipEntry(path));
+    out.write(text.getBytes("UTF-8"));
+    out.closeEntry();
+  }
+
+  private static VirtualFile getJarRoot(File jar) {
+    final VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(jar);
+    assertNotNull(file);
+    final VirtualFile root = JarFileSystem.getInstance().getJarRootForLocalFile(file);
+    assertNotNull(root);
+    return root;
+  }
+
+  /**
+   * @return entries which can be indexed
+   */
+  private List<VirtualFile> indexEntries(VirtualFile jarRoot) {
+    final List<VirtualFile> entries = new ArrayList<VirtualFile>();
+    VfsUtilCore.visitChildrenRecursively(jarRoot, new VirtualFileVisitor() {
+      @Override
+      public boolean visitFile(VirtualFile file) {
+        if (!file.isDirectory() && !myIndex.isTooLarge(file)) {
+          myIndex.indexFileContent(getProject(), new com.intellij.ide.caches.FileContent(file));
+          assertFalse(file.getPath(), needsIndexing(file));
+          entries.add(file);
+        }
+        return true;
+      }
+    });
+    assertEquals(3, entries.size());
+    return entries;
+  }
+
+  private boolean needsIndexing(VirtualFile file) {
+    for (FileBasedIndexExtension<?, ?> extension : getPortableExtensions()) {
+      if (myIndex.shouldIndexFile(file, extension.getName())) return true;
+    }
+    return false;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <K, V> void assertStored(FileBasedIndexExtension<K, V> extension, Map<?, ?> data, final VirtualFile file) {
+    for (Map.Entry<K, V> entry : ((Map<K, V>)data).entrySet()) {
+      final List<V> values = new ArrayList<V>();
+      myIndex.processValues(extension.getName(), entry.getKey(), file, new FileBasedIndex.ValueProcessor<V>() {
+        @Override
+        public boolean process(VirtualFile f, V value) {
+          assertEquals(file, f);
+          values.add(value);
+          return true;
+        }
+      }, new EverythingGlobalScope(getProject()));
+      assertEquals(String.valueOf(entry.getKey()), Collections.singletonList(entry.getValue()), values);
+    }
+  }
+
+  private static List<FileBasedIndexExtension<?, ?>> getPortableExtensions() {
+    final List<FileBasedIndexExtension<?, ?>> result = new ArrayList<FileBasedIndexExtension<?, ?>>();
+    for (FileBasedIndexExtension<?, ?> extension : Extensions.getExtensions(FileBasedIndexExtension.EXTENSION_POINT_NAME)) {
+      if (extension.isPortable()) result.add(extension);
+    }
+    return result;
+  }
+}
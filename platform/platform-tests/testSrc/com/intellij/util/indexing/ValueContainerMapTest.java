@@ -0,0 +1,139 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Random;
+
+public class ValueContainerMapTest extends TestCase {
+  private static final String KEY = "key";
+  private static final String SMALL = "small";
+  private static final String LARGE = "large";
+
+  private File myDir;
+  private MapIndexStorage<String, String> myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("valueContainers", null);
+    myStorage = open();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myStorage.close();
+    }
+    finally {
+      FileUtil.delete(myDir);
+      super.tearDown();
+    }
+  }
+
+  public void testSmallIdSetsUsePlainEncoding() throws Exception {
+    final TIntHashSet ids = randomIds(ValueContainerImpl.COMPRESSION_THRESHOLD - 1, 0);
+    addAll(SMALL, ids);
+    reopen();
+    assertIds(SMALL, ids);
+  }
+
+  public void testLargeIdSetsUseGapEncoding() throws Exception {
+    final TIntHashSet ids = randomIds(ValueContainerImpl.COMPRESSION_THRESHOLD * 10, 0);
+    addAll(LARGE, ids);
+    reopen();
+    assertIds(LARGE, ids);
+  }
+
+  public void testBothEncodingsInOneRecord() throws Exception {
+    final TIntHashSet small = randomIds(3, 1);
+    final TIntHashSet large = randomIds(ValueContainerImpl.COMPRESSION_THRESHOLD, 2);
+    addAll(SMALL, small);
+    addAll(LARGE, large);
+    reopen();
+    assertIds(SMALL, small);
+    assertIds(LARGE, large);
+  }
+
+  public void testAppendedChangesOfCompressedIds() throws Exception {
+    final TIntHashSet ids = randomIds(ValueContainerImpl.COMPRESSION_THRESHOLD * 2, 3);
+    addAll(LARGE, ids);
+    reopen();
+
+    // the delta records appended to the stored container keep the plain encoding
+    final int[] stored = ids.toArray();
+    for (int i = 0; i < 10; i++) {
+      myStorage.removeAllValues(KEY, stored[i]);
+      ids.remove(stored[i]);
+    }
+    myStorage.addValue(KEY, 1000001, LARGE);
+    ids.add(1000001);
+    myStorage.addValue(KEY, 1000002, SMALL);
+    assertIds(LARGE, ids);
+
+    reopen();
+    assertIds(LARGE, ids);
+    assertIds(SMALL, new TIntHashSet(new int[]{1000002}));
+  }
+
+  private MapIndexStorage<String, String> open() throws Exception {
+    return new MapIndexStorage<String, String>(new File(myDir, "storage"), new EnumeratorStringDescriptor(),
+                                               new EnumeratorStringDescriptor(), 16);
+  }
+
+  private void reopen() throws Exception {
+    myStorage.close();
+    myStorage = open();
+  }
+
+  private void addAll(String value, TIntHashSet ids) throws Exception {
+    for (int id : ids.toArray()) {
+      myStorage.addValue(KEY, id, value);
+    }
+  }
+
+  private void assertIds(String value, TIntHashSet expected) throws Exception {
+    final ValueContainer<String> container = myStorage.read(KEY);
+    final ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
+    assertEquals(expected.size(), iterator.size());
+    final TIntHashSet actual = new TIntHashSet();
+    while (iterator.hasNext()) {
+      actual.add(iterator.next());
+    }
+    assertEquals(expected, actual);
+
+    final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
+    for (int id : expected.toArray()) {
+      assertTrue(predicate.contains(id));
+      assertTrue(container.isAssociated(value, id));
+    }
+    assertFalse(predicate.contains(Integer.MAX_VALUE));
+  }
+
+  private static TIntHashSet randomIds(int count, long seed) {
+    final Random random = new Random(seed);
+    final TIntHashSet ids = new TIntHashSet();
+    while (ids.size() < count) {
+      ids.add(random.nextInt(1000000) + 1);
+    }
+    return ids;
+  }
+}
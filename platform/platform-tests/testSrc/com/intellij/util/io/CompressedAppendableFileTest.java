@@ -0,0 +1,170 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CompressedAppendableFileTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("compressed", "data");
+    FileUtil.delete(myFile);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    CompressedAppendableFile.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testReadAfterReopening() throws IOException {
+    final byte[] data = createData(CompressedAppendableFile.CHUNK_SIZE * 3 + 1000);
+    CompressedAppendableFile file = new CompressedAppendableFile(myFile);
+    file.append(data, 0, data.length);
+    file.dispose();
+
+    file = new CompressedAppendableFile(myFile);
+    try {
+      assertContent(file, data);
+    }
+    finally {
+      file.dispose();
+    }
+  }
+
+  public void testForceDoesNotGrowDataFile() throws IOException {
+    final byte[] data = createData(CompressedAppendableFile.CHUNK_SIZE * 2 + 500);
+    final CompressedAppendableFile file = new CompressedAppendableFile(myFile);
+    long dataFileLength = myFile.length();
+    int chunks = 0;
+    for (int offset = 0; offset < data.length; offset += 5000) {
+      file.append(data, offset, Math.min(5000, data.length - offset));
+      file.force();
+      // only full chunks are written to the data file, the tail is replaced in its own file
+      final int fullChunks = (offset + 5000) / CompressedAppendableFile.CHUNK_SIZE;
+      if (fullChunks == chunks) {
+        assertEquals(dataFileLength, myFile.length());
+      }
+      chunks = fullChunks;
+      dataFileLength = myFile.length();
+    }
+    file.dispose();
+
+    FileUtil.delete(CompressedAppendableFile.getChunksFile(myFile));
+    assertReopenedContent(data);
+  }
+
+  public void testStaleTailIsDropped() throws IOException {
+    final byte[] data = createData(CompressedAppendableFile.CHUNK_SIZE + 700);
+    CompressedAppendableFile file = new CompressedAppendableFile(myFile);
+    file.append(data, 0, 1000);
+    file.force();
+    final byte[] savedTail = FileUtil.loadFileBytes(CompressedAppendableFile.getTailFile(myFile));
+    // fills the first chunk, the tail isn't saved again before the crash
+    file.append(data, 1000, CompressedAppendableFile.CHUNK_SIZE - 1000);
+    file.append(data, CompressedAppendableFile.CHUNK_SIZE, 700);
+    file.dispose();
+    FileUtil.writeToFile(CompressedAppendableFile.getTailFile(myFile), savedTail);
+
+    assertReopenedContent(Arrays.copyOf(data, CompressedAppendableFile.CHUNK_SIZE));
+  }
+
+  public void testTornTailIsDropped() throws IOException {
+    final byte[] data = createData(CompressedAppendableFile.CHUNK_SIZE + 700);
+    final CompressedAppendableFile file = new CompressedAppendableFile(myFile);
+    file.append(data, 0, data.length);
+    file.dispose();
+
+    final File tailFile = CompressedAppendableFile.getTailFile(myFile);
+    final byte[] tail = FileUtil.loadFileBytes(tailFile);
+    FileUtil.writeToFile(tailFile, Arrays.copyOf(tail, tail.length - 100));
+
+    assertReopenedContent(Arrays.copyOf(data, CompressedAppendableFile.CHUNK_SIZE));
+  }
+
+  public void testTornWriteKeepsCommittedData() throws IOException {
+    final byte[] data = createData(CompressedAppendableFile.CHUNK_SIZE + 700);
+    final CompressedAppendableFile file = new CompressedAppendableFile(myFile);
+    file.append(data, 0, data.length);
+    file.dispose();
+
+    // a chunk header promising more bytes than were written before the crash
+    final RandomAccessFile raf = new RandomAccessFile(myFile, "rw");
+    try {
+      raf.seek(raf.length());
+      raf.writeInt(1000);
+      raf.writeInt(CompressedAppendableFile.CHUNK_SIZE);
+      raf.write(new byte[100]);
+    }
+    finally {
+      raf.close();
+    }
+
+    assertReopenedContent(data);
+  }
+
+  private void assertReopenedContent(byte[] data) throws IOException {
+    final CompressedAppendableFile file = new CompressedAppendableFile(myFile);
+    try {
+      assertContent(file, data);
+
+      final byte[] more = createData(100);
+      file.append(more, 0, more.length);
+      final byte[] read = new byte[more.length];
+      file.get(data.length, read, 0, read.length);
+      assertTrue(Arrays.equals(more, read));
+    }
+    finally {
+      file.dispose();
+    }
+  }
+
+  private static void assertContent(CompressedAppendableFile file, byte[] data) throws IOException {
+    assertEquals(data.length, file.length());
+    final byte[] read = new byte[data.length];
+    file.get(0, read, 0, read.length);
+    assertTrue(Arrays.equals(data, read));
+
+    // random reads crossing chunk boundaries
+    final Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      final int offset = random.nextInt(data.length);
+      final int length = random.nextInt(data.length - offset) + 1;
+      final byte[] part = new byte[length];
+      file.get(offset, part, 0, length);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + length), part));
+    }
+  }
+
+  private static byte[] createData(int length) {
+    final byte[] data = new byte[length];
+    final Random random = new Random(length);
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte)('a' + random.nextInt(8));
+    }
+    return data;
+  }
+}
@@ -0,0 +1,176 @@
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.NotNullFactory;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrentPersistentMapTest extends TestCase {
+  private static final int KEYS_COUNT = 50000;
+  private static final int READS_PER_THREAD = 50000;
+
+  private static final NotNullFactory<EnumeratorStringDescriptor> STRING_DESCRIPTOR_FACTORY = new NotNullFactory<EnumeratorStringDescriptor>() {
+    @NotNull
+    @Override
+    public EnumeratorStringDescriptor create() {
+      return new EnumeratorStringDescriptor();
+    }
+  };
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("concurrent", "map");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testMap() throws IOException {
+    ConcurrentPersistentHashMap<String, String> map = createMap(new File(myDir, "map"), 4);
+    try {
+      map.put("AAA", "AAA_VALUE");
+      map.put("BBB", "BBB_VALUE");
+      assertEquals("AAA_VALUE", map.get("AAA"));
+      assertEquals("BBB_VALUE", map.get("BBB"));
+      assertNull(map.get("CCC"));
+      assertEquals(new HashSet<String>(Arrays.asList("AAA", "BBB")), new HashSet<String>(map.getAllKeysWithExistingMapping()));
+
+      map.remove("AAA");
+      assertNull(map.get("AAA"));
+      assertFalse(map.containsMapping("AAA"));
+      assertTrue(map.containsMapping("BBB"));
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testReopening() throws IOException {
+    final File file = new File(myDir, "map");
+    ConcurrentPersistentHashMap<String, String> map = createMap(file, 4);
+    for (int i = 0; i < 1000; i++) {
+      map.put("key" + i, "value" + i);
+    }
+    map.close();
+
+    map = createMap(file, 4);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        assertEquals("value" + i, map.get("key" + i));
+      }
+    }
+    finally {
+      map.close();
+    }
+
+    map = createMap(file, 8);
+    try {
+      assertNull(map.get("key0"));
+      assertTrue(map.getAllKeysWithExistingMapping().isEmpty());
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testConcurrentReadPerformance() throws Exception {
+    final List<String> keys = new ArrayList<String>(KEYS_COUNT);
+    for (int i = 0; i < KEYS_COUNT; i++) {
+      keys.add(StringEnumeratorTest.createRandomString());
+    }
+    final int threadsCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    final PersistentHashMap<String, String> plainMap =
+      new PersistentHashMap<String, String>(new File(myDir, "plain"), new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    final ConcurrentPersistentHashMap<String, String> concurrentMap = createMap(new File(myDir, "concurrent"),
+                                                                                 ConcurrentPersistentHashMap.DEFAULT_SEGMENTS_COUNT);
+    try {
+      for (String key : keys) {
+        plainMap.put(key, key + "_value");
+        concurrentMap.put(key, key + "_value");
+      }
+      plainMap.force();
+      concurrentMap.force();
+
+      // the same reads of the same data, the plain map serializes them on its single lock
+      final long plain = measureReads(plainMap, keys, threadsCount);
+      final long concurrent = measureReads(concurrentMap, keys, threadsCount);
+      final String message = threadsCount + " threads: PersistentHashMap " + plain + "ms, ConcurrentPersistentHashMap " + concurrent + "ms";
+      System.out.println(message);
+      if (threadsCount >= 4) {
+        assertTrue(message, concurrent < plain);
+      }
+
+      PlatformTestUtil.startPerformanceTest("concurrent reads", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          assertEquals(0, readConcurrently(concurrentMap, keys, threadsCount));
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      plainMap.close();
+      concurrentMap.close();
+    }
+  }
+
+  /**
+   * @return the best time of several concurrent reading passes, in milliseconds
+   */
+  private static long measureReads(PersistentMap<String, String> map, List<String> keys, int threadsCount) throws Exception {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 3; i++) {
+      final long started = System.currentTimeMillis();
+      assertEquals(0, readConcurrently(map, keys, threadsCount));
+      best = Math.min(best, System.currentTimeMillis() - started);
+    }
+    return best;
+  }
+
+  /**
+   * @return number of reads which returned a wrong value
+   */
+  private static long readConcurrently(final PersistentMap<String, String> map, final List<String> keys, int threadsCount) throws Exception {
+    final AtomicLong failures = new AtomicLong();
+    final Thread[] threads = new Thread[threadsCount];
+    for (int t = 0; t < threadsCount; t++) {
+      final int seed = t;
+      threads[t] = new Thread("reader " + t) {
+        @Override
+        public void run() {
+          final Random random = new Random(seed);
+          try {
+            for (int i = 0; i < READS_PER_THREAD; i++) {
+              final String key = keys.get(random.nextInt(keys.size()));
+              if (!(key + "_value").equals(map.get(key))) failures.incrementAndGet();
+            }
+          }
+          catch (IOException e) {
+            failures.incrementAndGet();
+          }
+        }
+      };
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    return failures.get();
+  }
+
+  private static ConcurrentPersistentHashMap<String, String> createMap(File file, int segments) throws IOException {
+    return new ConcurrentPersistentHashMap<String, String>(file, STRING_DESCRIPTOR_FACTORY, STRING_DESCRIPTOR_FACTORY, segments);
+  }
+}
@@ -7,6 +7,7 @@ import com.intellij.util.containers.IntObjectCache;
 import com.intellij.util.io.storage.Storage;
 import junit.framework.TestCase;
 
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
@@ -117,6 +118,114 @@ public class PersistentMapTest extends TestCase {
     assertTrue(myMap.isDirty());
   }
 
+  public void testCompressedValues() throws IOException {
+    final File file = FileUtil.createTempFile("compressed", "map");
+    PersistentHashMap<String, String> map = createCompressedMap(file);
+    try {
+      Map<String, String> expected = new HashMap<String, String>();
+      for (int i = 0; i < 20000; ++i) {
+        final String key = createRandomString();
+        final String value = key + "_value_" + i;
+        expected.put(key, value);
+        map.put(key, value);
+        if (i % 3 == 0) {
+          map.appendData(key, new PersistentHashMap.ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              out.writeUTF("");
+            }
+          });
+        }
+      }
+      for (Map.Entry<String, String> entry : expected.entrySet()) {
+        assertEquals(entry.getValue(), map.get(entry.getKey()));
+      }
+
+      map.close();
+      map = createCompressedMap(file);
+      for (Map.Entry<String, String> entry : expected.entrySet()) {
+        assertEquals(entry.getValue(), map.get(entry.getKey()));
+      }
+
+      map.compact();
+      map.close();
+      map = createCompressedMap(file);
+      for (Map.Entry<String, String> entry : expected.entrySet()) {
+        assertEquals(entry.getValue(), map.get(entry.getKey()));
+      }
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  private static PersistentHashMap<String, String> createCompressedMap(File file) throws IOException {
+    return new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(),
+                                                 PersistentHashMap.INITIAL_INDEX_SIZE, null, true);
+  }
+
+  public void testIncrementalCompactionWithConcurrentUpdates() throws Exception {
+    final Map<String, String> expected = new HashMap<String, String>();
+    final List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < 5000; ++i) {
+      final String key = createRandomString();
+      keys.add(key);
+      for (int j = 0; j < 5; j++) {
+        myMap.put(key, key + "_value" + j);
+      }
+      expected.put(key, key + "_value4");
+    }
+    final long sizeBeforeCompaction = myDataFile.length();
+
+    final boolean[] compacted = new boolean[1];
+    final Throwable[] failure = new Throwable[1];
+    final Thread compactor = new Thread("compactor") {
+      @Override
+      public void run() {
+        try {
+          compacted[0] = myMap.compactIncrementally();
+        }
+        catch (Throwable t) {
+          failure[0] = t;
+        }
+      }
+    };
+    compactor.start();
+
+    final Random random = new Random(17);
+    for (int i = 0; i < 3000; ++i) {
+      final String key = keys.get(random.nextInt(keys.size()));
+      switch (random.nextInt(3)) {
+        case 0:
+          myMap.put(key, key + "_updated" + i);
+          expected.put(key, key + "_updated" + i);
+          break;
+        case 1:
+          myMap.remove(key);
+          expected.remove(key);
+          break;
+        default:
+          assertEquals(expected.get(key), myMap.get(key));
+      }
+    }
+    compactor.join();
+
+    assertNull(failure[0]);
+    assertTrue(compacted[0]);
+    assertEquals(expected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+    for (String key : keys) {
+      assertEquals(expected.get(key), myMap.get(key));
+    }
+    myMap.force();
+    assertTrue(myDataFile.length() < sizeBeforeCompaction);
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    for (String key : keys) {
+      assertEquals(expected.get(key), myMap.get(key));
+    }
+  }
+
   public void testOpeningWithCompact() throws IOException {
     final int stringsCount = 5/*1000000*/;
     Set<String> strings = new HashSet<String>(stringsCount);
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.util.text;
+
+import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Turns a {@link java.util.regex.Pattern} into trigrams which any text matching it must contain, in the form of alternatives:
+ * a text can match only if it contains all trigrams of at least one alternative.
+ * <p/>
+ * Only literal runs which are certainly present in every match are taken into account; everything the planner does not understand
+ * (classes, optional parts, too many alternatives) just breaks a literal run, so the result never excludes a matching text.
+ *
+ * @see TrigramBuilder
+ */
+public class RegExpTrigramPlanner {
+  private static final int MAX_ALTERNATIVES = 16;
+
+  private static final int NONE = 0;
+  private static final int OPTIONAL = 1;
+  private static final int REPEATED = 2;
+
+  private final String myRegExp;
+  private int myPos;
+
+  private RegExpTrigramPlanner(@NotNull String regExp) {
+    myRegExp = regExp;
+  }
+
+  /**
+   * @return trigrams of alternatives or null if the expression does not restrict texts it matches by any trigram
+   */
+  @Nullable
+  public static List<TIntHashSet> plan(@NotNull String regExp) {
+    try {
+      Pattern.compile(regExp);
+    }
+    catch (PatternSyntaxException e) {
+      return null;
+    }
+
+    final RegExpTrigramPlanner planner = new RegExpTrigramPlanner(regExp);
+    final List<Set<String>> alternatives;
+    try {
+      alternatives = planner.parseAlternation();
+    }
+    catch (UnsupportedSyntax e) {
+      return null;
+    }
+    if (planner.myPos != regExp.length()) return null;
+
+    final List<TIntHashSet> result = new ArrayList<TIntHashSet>(alternatives.size());
+    for (Set<String> literals : alternatives) {
+      final TIntHashSet trigrams = new TIntHashSet();
+      for (String literal : literals) {
+        trigrams.addAll(TrigramBuilder.buildTrigram(literal).toArray());
+      }
+      if (trigrams.isEmpty()) return null;
+      result.add(trigrams);
+    }
+    return result;
+  }
+
+  private static class UnsupportedSyntax extends Exception {
+  }
+
+  // alternatives of literals sets, an empty set means no restriction
+  @NotNull
+  private List<Set<String>> parseAlternation() throws UnsupportedSyntax {
+    final List<Set<String>> result = new ArrayList<Set<String>>();
+    while (true) {
+      result.addAll(parseSequence());
+      if (myPos < myRegExp.length() && myRegExp.charAt(myPos) == '|') {
+        myPos++;
+        continue;
+      }
+      break;
+    }
+    return result.size() > MAX_ALTERNATIVES ? anything() : result;
+  }
+
+  @NotNull
+  private List<Set<String>> parseSequence() throws UnsupportedSyntax {
+    List<Set<String>> alternatives = anything();
+    final StringBuilder run = new StringBuilder();
+
+    while (myPos < myRegExp.length()) {
+      final char c = myRegExp.charAt(myPos);
+      if (c == '|' || c == ')') break;
+      myPos++;
+
+      switch (c) {
+        case '\\':
+          final String escaped = parseEscape();
+          if (escaped != null) {
+            appendLiteral(alternatives, run, escaped);
+          }
+          else {
+            parseQuantifier();
+            flush(alternatives, run);
+          }
+          break;
+
+        case '[':
+          skipClass();
+          parseQuantifier();
+          flush(alternatives, run);
+          break;
+
+        case '(':
+          flush(alternatives, run);
+          final List<Set<String>> group = parseGroup();
+          if (parseQuantifier() != OPTIONAL && group != null) {
+            alternatives = and(alternatives, group);
+          }
+          break;
+
+        case '.':
+        case '^':
+        case '$':
+          parseQuantifier();
+          flush(alternatives, run);
+          break;
+
+        default:
+          appendLiteral(alternatives, run, String.valueOf(c));
+      }
+    }
+
+    flush(alternatives, run);
+    return alternatives;
+  }
+
+  private void appendLiteral(@NotNull List<Set<String>> alternatives, @NotNull StringBuilder run, @NotNull String literal) throws UnsupportedSyntax {
+    if (literal.isEmpty()) return;
+    final int quantifier = parseQuantifier();
+    if (quantifier == OPTIONAL) {
+      // quantifier applies to the last char only
+      run.append(literal, 0, literal.length() - 1);
+      flush(alternatives, run);
+    }
+    else {
+      run.append(literal);
+      if (quantifier == REPEATED) flush(alternatives, run);
+    }
+  }
+
+  private static void flush(@NotNull List<Set<String>> alternatives, @NotNull StringBuilder run) {
+    if (run.length() >= 3) {
+      final String literal = run.toString();
+      for (Set<String> literals : alternatives) {
+        literals.add(literal);
+      }
+    }
+    run.setLength(0);
+  }
+
+  @NotNull
+  private static List<Set<String>> and(@NotNull List<Set<String>> left, @NotNull List<Set<String>> right) {
+    if (left.size() * right.size() > MAX_ALTERNATIVES) {
+      return left.size() <= right.size() ? left : right;
+    }
+    final List<Set<String>> result = new ArrayList<Set<String>>(left.size() * right.size());
+    for (Set<String> l : left) {
+      for (Set<String> r : right) {
+        final Set<String> both = new THashSet<String>(l);
+        both.addAll(r);
+        result.add(both);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static List<Set<String>> anything() {
+    final List<Set<String>> result = new ArrayList<Set<String>>(1);
+    result.add(new THashSet<String>());
+    return result;
+  }
+
+  /**
+   * @return group alternatives or null if the group does not consume text (look-around, flags)
+   */
+  @Nullable
+  private List<Set<String>> parseGroup() throws UnsupportedSyntax {
+    boolean consuming = true;
+    if (lookingAt("?")) {
+      myPos++;
+      if (lookingAt(":") || lookingAt(">")) {
+        myPos++;
+      }
+      else if (lookingAt("=") || lookingAt("!") || lookingAt("<=") || lookingAt("<!")) {
+        myPos += lookingAt("<") ? 2 : 1;
+        consuming = false;
+      }
+      else if (lookingAt("<")) {
+        skipPast('>'); // named group
+      }
+      else {
+        // inline flags: (?idmsux-idmsux) or (?idmsux-idmsux:X)
+        while (myPos < myRegExp.length() && Character.isLetter(myRegExp.charAt(myPos)) || lookingAt("-")) {
+          if (myRegExp.charAt(myPos) == 'x') throw new UnsupportedSyntax(); // comments mode changes the meaning of whitespaces
+          myPos++;
+        }
+        if (lookingAt(")")) {
+          myPos++;
+          return null;
+        }
+        if (!lookingAt(":")) throw new UnsupportedSyntax();
+        myPos++;
+      }
+    }
+
+    final List<Set<String>> alternatives = parseAlternation();
+    if (!lookingAt(")")) throw new UnsupportedSyntax();
+    myPos++;
+    return consuming ? alternatives : null;
+  }
+
+  /**
+   * @return escaped literal text or null if the escape is not a literal (class, back reference, boundary)
+   */
+  @Nullable
+  private String parseEscape() throws UnsupportedSyntax {
+    if (myPos >= myRegExp.length()) throw new UnsupportedSyntax();
+    final char c = myRegExp.charAt(myPos++);
+    switch (c) {
+      case 't': return "\t";
+      case 'n': return "\n";
+      case 'r': return "\r";
+      case 'f': return "\f";
+      case 'a': return "\u0007";
+      case 'e': return "\u001B";
+      case 'Q':
+        final int end = myRegExp.indexOf("\\E", myPos);
+        final String quoted = myRegExp.substring(myPos, end < 0 ? myRegExp.length() : end);
+        myPos = end < 0 ? myRegExp.length() : end + 2;
+        return quoted;
+      case 'x':
+      case 'p':
+      case 'P':
+        if (lookingAt("{")) {
+          skipPast('}');
+        }
+        else {
+          myPos += c == 'x' ? 2 : 1;
+        }
+        return null;
+      case 'u':
+        myPos += 4;
+        return null;
+      case 'c':
+        myPos++;
+        return null;
+      case 'k':
+        skipPast('>');
+        return null;
+    }
+    if (Character.isDigit(c)) {
+      // back reference or octal escape
+      while (myPos < myRegExp.length() && Character.isDigit(myRegExp.charAt(myPos))) myPos++;
+      return null;
+    }
+    if (Character.isLetter(c)) return null; // \d, \w, \b, \Z and so on
+    return String.valueOf(c);
+  }
+
+  private int parseQuantifier() throws UnsupportedSyntax {
+    if (myPos >= myRegExp.length()) return NONE;
+    final int quantifier;
+    final char c = myRegExp.charAt(myPos);
+    if (c == '*' || c == '?') {
+      myPos++;
+      quantifier = OPTIONAL;
+    }
+    else if (c == '+') {
+      myPos++;
+      quantifier = REPEATED;
+    }
+    else if (c == '{') {
+      final int end = myRegExp.indexOf('}', myPos);
+      if (end < 0) throw new UnsupportedSyntax();
+      final String min = StringUtil.trimEnd(myRegExp.substring(myPos + 1, end).split(",", -1)[0], " ");
+      myPos = end + 1;
+      quantifier = "0".equals(min) ? OPTIONAL : REPEATED;
+    }
+    else {
+      return NONE;
+    }
+
+    if (lookingAt("?") || lookingAt("+")) myPos++; // reluctant or possessive
+    return quantifier;
+  }
+
+  private void skipClass() throws UnsupportedSyntax {
+    int depth = 1;
+    if (lookingAt("^")) myPos++;
+    if (lookingAt("]")) myPos++; // leading ']' is a literal
+    while (myPos < myRegExp.length()) {
+      final char c = myRegExp.charAt(myPos++);
+      if (c == '\\') {
+        myPos++;
+      }
+      else if (c == '[') {
+        depth++;
+      }
+      else if (c == ']' && --depth == 0) {
+        return;
+      }
+    }
+    throw new UnsupportedSyntax();
+  }
+
+  private void skipPast(char c) throws UnsupportedSyntax {
+    final int end = myRegExp.indexOf(c, myPos);
+    if (end < 0) throw new UnsupportedSyntax();
+    myPos = end + 1;
+  }
+
+  private boolean lookingAt(@NotNull String s) {
+    return myRegExp.startsWith(s, myPos);
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable sorted set of non-negative ints (e.g. file ids) which keeps the gaps between consecutive values as var-ints,
+ * usually 1-2 bytes per value instead of ~20 for a {@link gnu.trove.TIntHashSet}.
+ * <p/>
+ * Every {@link #SKIP_INTERVAL}-th value is also remembered in a skip table, so {@link Cursor#advance(int)} does not decode
+ * the whole list, which makes {@link #intersect(List)} of a small list with large ones cheap.
+ */
+public class IntPostingList {
+  public static final IntPostingList EMPTY = new IntPostingList(ArrayUtil.EMPTY_BYTE_ARRAY, 0);
+  static final int SKIP_INTERVAL = 64;
+
+  private final byte[] myBytes;
+  private final int mySize;
+  // for every block of SKIP_INTERVAL values: its first value and the offset of the second value encoding
+  private final int[] mySkipValues;
+  private final int[] mySkipOffsets;
+
+  private IntPostingList(@NotNull byte[] bytes, int size) {
+    myBytes = bytes;
+    mySize = size;
+
+    final int blocks = (size + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+    mySkipValues = blocks > 1 ? new int[blocks] : ArrayUtil.EMPTY_INT_ARRAY;
+    mySkipOffsets = blocks > 1 ? new int[blocks] : ArrayUtil.EMPTY_INT_ARRAY;
+    if (blocks > 1) {
+      int offset = 0;
+      int value = 0;
+      for (int i = 0; i < size; i++) {
+        int delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = bytes[offset++];
+          delta |= (b & 0x7F) << shift;
+          shift += 7;
+        }
+        while (b < 0);
+        value += delta;
+        if (i % SKIP_INTERVAL == 0) {
+          mySkipValues[i / SKIP_INTERVAL] = value;
+          mySkipOffsets[i / SKIP_INTERVAL] = offset;
+        }
+      }
+    }
+  }
+
+  @NotNull
+  public static IntPostingList create(@NotNull TIntArrayList values) {
+    return create(values.toNativeArray());
+  }
+
+  /**
+   * @param values non-negative values in any order, duplicates are allowed; the array is sorted in place
+   */
+  @NotNull
+  public static IntPostingList create(@NotNull int[] values) {
+    if (values.length == 0) return EMPTY;
+    Arrays.sort(values);
+    if (values[0] < 0) throw new IllegalArgumentException("Negative value: " + values[0]);
+
+    final ByteArrayList bytes = new ByteArrayList(values.length + values.length / 2);
+    int size = 0;
+    int prev = 0;
+    for (int i = 0; i < values.length; i++) {
+      final int value = values[i];
+      if (i > 0 && value == prev) continue;
+      int delta = value - prev;
+      while ((delta & ~0x7F) != 0) {
+        bytes.add((byte)((delta & 0x7F) | 0x80));
+        delta >>>= 7;
+      }
+      bytes.add((byte)delta);
+      prev = value;
+      size++;
+    }
+    return new IntPostingList(bytes.toNativeArray(), size);
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  /**
+   * @return size of the encoded values in bytes
+   */
+  public int getEncodedSize() {
+    return myBytes.length;
+  }
+
+  public boolean contains(int value) {
+    if (value < 0 || mySize == 0) return false;
+
+    // decodes the values from the start of the block the value falls into
+    int index = 0;
+    int current = 0;
+    int offset = 0;
+    if (mySkipValues.length > 0) {
+      int block = Arrays.binarySearch(mySkipValues, value);
+      if (block >= 0) return true;
+      block = -block - 2;
+      if (block < 0) return false;
+      index = block * SKIP_INTERVAL + 1;
+      current = mySkipValues[block];
+      offset = mySkipOffsets[block];
+    }
+
+    while (index < mySize) {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = myBytes[offset++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      }
+      while (b < 0);
+      current += delta;
+      index++;
+      if (current >= value) return current == value;
+    }
+    return false;
+  }
+
+  @NotNull
+  public int[] toArray() {
+    final int[] result = new int[mySize];
+    final Cursor cursor = cursor();
+    for (int i = 0; i < mySize; i++) {
+      result[i] = cursor.next();
+    }
+    return result;
+  }
+
+  @NotNull
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  public class Cursor {
+    private int myIndex = -1;
+    private int myValue;
+    private int myOffset;
+
+    public boolean hasNext() {
+      return myIndex + 1 < mySize;
+    }
+
+    public int next() {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = myBytes[myOffset++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      }
+      while (b < 0);
+      myIndex++;
+      myValue += delta;
+      return myValue;
+    }
+
+    /**
+     * Moves the cursor to the first value which is not less than the target, the cursor never goes back.
+     * @return the value or -1 if there is no such value
+     */
+    public int advance(int target) {
+      if (myIndex >= mySize) return -1;
+      if (myIndex >= 0 && myValue >= target) return myValue;
+
+      if (mySkipValues.length > 0) {
+        int block = Arrays.binarySearch(mySkipValues, target);
+        if (block < 0) block = -block - 2;
+        if (block >= 0 && block * SKIP_INTERVAL > myIndex) {
+          myIndex = block * SKIP_INTERVAL;
+          myValue = mySkipValues[block];
+          myOffset = mySkipOffsets[block];
+        }
+      }
+
+      while (myIndex < 0 || myValue < target) {
+        if (!hasNext()) {
+          myIndex = mySize;
+          return -1;
+        }
+        next();
+      }
+      return myValue;
+    }
+  }
+
+  /**
+   * @return sorted values present in all the lists
+   */
+  @NotNull
+  public static int[] intersect(@NotNull List<IntPostingList> lists) {
+    if (lists.isEmpty()) return ArrayUtil.EMPTY_INT_ARRAY;
+    final List<IntPostingList> sorted = new ArrayList<IntPostingList>(lists);
+    Collections.sort(sorted, new Comparator<IntPostingList>() {
+      @Override
+      public int compare(IntPostingList o1, IntPostingList o2) {
+        return o1.size() - o2.size();
+      }
+    });
+    if (sorted.get(0).isEmpty()) return ArrayUtil.EMPTY_INT_ARRAY;
+    if (sorted.size() == 1) return sorted.get(0).toArray();
+
+    final int count = sorted.size();
+    final Cursor[] cursors = new Cursor[count];
+    for (int i = 0; i < count; i++) {
+      cursors[i] = sorted.get(i).cursor();
+    }
+
+    // leapfrog: every list in turn jumps to the current candidate, the candidate is accepted when all of them agree on it
+    final TIntArrayList result = new TIntArrayList();
+    int target = 0;
+    int agreed = 0;
+    for (int i = 0; ; i = (i + 1) % count) {
+      final int value = cursors[i].advance(target);
+      if (value < 0) break;
+      if (value == target) {
+        if (++agreed == count) {
+          result.add(value);
+          if (value == Integer.MAX_VALUE) break;
+          target = value + 1;
+          agreed = 0;
+        }
+      }
+      else {
+        target = value;
+        agreed = 1;
+      }
+    }
+    return result.toNativeArray();
+  }
+
+  public void write(@NotNull DataOutput out) throws IOException {
+    out.writeInt(mySize);
+    out.writeInt(myBytes.length);
+    out.write(myBytes);
+  }
+
+  @NotNull
+  public static IntPostingList read(@NotNull DataInput in) throws IOException {
+    final int size = in.readInt();
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return size == 0 ? EMPTY : new IntPostingList(bytes, size);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof IntPostingList)) return false;
+    final IntPostingList list = (IntPostingList)o;
+    return mySize == list.mySize && Arrays.equals(myBytes, list.myBytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(myBytes);
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.containers.SLRUMap;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only file which keeps its content as a sequence of independently compressed chunks of {@link #CHUNK_SIZE} bytes,
+ * while exposing random access by uncompressed (logical) offset.
+ * <p/>
+ * File layout: magic, then full chunks of [compressed length][uncompressed length][deflated bytes]. Chunks are only appended, so
+ * a crash during a write can't damage the data written before. The last, partial chunk is saved uncompressed to a companion
+ * {@link #TAIL_EXTENSION} file on {@link #force()}, which replaces the previous tail, so frequent flushes of a slowly growing
+ * file don't leave garbage in it. Offsets of the chunks are saved to a companion {@link #CHUNKS_EXTENSION} file on
+ * {@link #force()}. Both companion files are validated against the data file length on open: stale chunk offsets make the data
+ * file rescanned, which drops a torn chunk at the end, and a stale tail is dropped as it was superseded by a chunk written
+ * after it. Recently decompressed chunks are kept in a cache.
+ * <p/>
+ * The class is not thread safe, the owner is responsible for synchronization.
+ */
+class CompressedAppendableFile {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.CompressedAppendableFile");
+
+  static final int CHUNK_SIZE = 32 * 1024;
+  static final String CHUNKS_EXTENSION = ".chunks";
+  static final String TAIL_EXTENSION = ".tail";
+  private static final int MAGIC = 0xc0de2a60;
+  private static final int CHUNK_HEADER_SIZE = 8;
+  private static final int CACHED_CHUNKS = 16;
+
+  private final File myFile;
+  private final TLongArrayList myChunkOffsets = new TLongArrayList(); // offsets of full chunks in the data file
+  private long myFileLength;
+
+  private final byte[] myTail = new byte[CHUNK_SIZE];
+  private int myTailLength;
+  private boolean myTailDirty;
+
+  private final SLRUMap<Integer, byte[]> myDecompressedChunks = new SLRUMap<Integer, byte[]>(CACHED_CHUNKS, CACHED_CHUNKS);
+  private final Deflater myDeflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater myInflater = new Inflater();
+  private byte[] myCompressionBuffer = new byte[CHUNK_SIZE];
+  private boolean myChunkOffsetsDirty;
+  private final RandomAccessFile myRaf; // kept open until dispose, so reads of uncached chunks don't reopen the file
+
+  CompressedAppendableFile(@NotNull File file) throws IOException {
+    myFile = file;
+    myRaf = new RandomAccessFile(file, "rw");
+    boolean initialized = false;
+    try {
+      init();
+      initialized = true;
+    }
+    finally {
+      if (!initialized) myRaf.close();
+    }
+  }
+
+  private void init() throws IOException {
+    final RandomAccessFile raf = myRaf;
+    myFileLength = raf.length();
+
+    if (myFileLength == 0) {
+      raf.writeInt(MAGIC);
+      myFileLength = 4;
+      return;
+    }
+
+    if (myFileLength < 4 || raf.readInt() != MAGIC) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+
+    if (!loadChunkOffsets()) {
+      scanChunks(raf);
+      myChunkOffsetsDirty = true;
+    }
+    loadTail();
+  }
+
+  private void scanChunks(@NotNull RandomAccessFile raf) throws IOException {
+    myChunkOffsets.clear();
+    long offset = 4;
+    while (offset + CHUNK_HEADER_SIZE <= myFileLength) {
+      raf.seek(offset);
+      final int compressedLength = raf.readInt();
+      final int uncompressedLength = raf.readInt();
+      if (compressedLength < 0 || uncompressedLength != CHUNK_SIZE) {
+        throw new PersistentEnumeratorBase.CorruptedException(myFile);
+      }
+      if (offset + CHUNK_HEADER_SIZE + compressedLength > myFileLength) break; // torn write
+
+      myChunkOffsets.add(offset);
+      offset += CHUNK_HEADER_SIZE + compressedLength;
+    }
+
+    if (offset != myFileLength) {
+      LOG.info("Dropping incomplete chunk at the end of " + myFile.getPath());
+      myFileLength = offset;
+      raf.setLength(offset);
+    }
+  }
+
+  private boolean loadChunkOffsets() {
+    final File chunksFile = getChunksFile(myFile);
+    if (!chunksFile.exists()) return false;
+
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunksFile)));
+      try {
+        if (in.readLong() != myFileLength) return false;
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          myChunkOffsets.add(in.readLong());
+        }
+        return true;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read chunk offsets of " + myFile.getPath() + ", rescanning", e);
+      myChunkOffsets.clear();
+      return false;
+    }
+  }
+
+  private void saveChunkOffsets() throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getChunksFile(myFile))));
+    try {
+      out.writeLong(myFileLength);
+      out.writeInt(myChunkOffsets.size());
+      for (int i = 0; i < myChunkOffsets.size(); i++) {
+        out.writeLong(myChunkOffsets.get(i));
+      }
+    }
+    finally {
+      out.close();
+    }
+    myChunkOffsetsDirty = false;
+  }
+
+  private void loadTail() {
+    final File tailFile = getTailFile(myFile);
+    if (!tailFile.exists()) return;
+
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tailFile)));
+      try {
+        // the tail is superseded by the chunks written after it was saved
+        if (in.readLong() != myFileLength) return;
+        final int length = in.readInt();
+        if (length < 0 || length >= CHUNK_SIZE) throw new IOException("Invalid tail length: " + length);
+        in.readFully(myTail, 0, length);
+        myTailLength = length;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read the tail of " + myFile.getPath() + ", dropping it", e);
+      myTailLength = 0;
+    }
+  }
+
+  /**
+   * Replaces the saved tail, the new one is written to a temporary file first so a crash can't leave a torn tail
+   */
+  private void saveTail() throws IOException {
+    final File tailFile = getTailFile(myFile);
+    final File tempFile = new File(tailFile.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeLong(myFileLength);
+      out.writeInt(myTailLength);
+      out.write(myTail, 0, myTailLength);
+    }
+    finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(tailFile)) {
+      FileUtil.delete(tailFile);
+      FileUtil.rename(tempFile, tailFile);
+    }
+  }
+
+  @NotNull
+  static File getChunksFile(@NotNull File file) {
+    return new File(file.getParentFile(), file.getName() + CHUNKS_EXTENSION);
+  }
+
+  @NotNull
+  static File getTailFile(@NotNull File file) {
+    return new File(file.getParentFile(), file.getName() + TAIL_EXTENSION);
+  }
+
+  static void rename(@NotNull File from, @NotNull File to) throws IOException {
+    FileUtil.rename(from, to);
+    renameCompanion(getChunksFile(from), getChunksFile(to));
+    renameCompanion(getTailFile(from), getTailFile(to));
+  }
+
+  private static void renameCompanion(@NotNull File from, @NotNull File to) throws IOException {
+    if (from.exists()) {
+      FileUtil.rename(from, to);
+    }
+    else {
+      FileUtil.delete(to);
+    }
+  }
+
+  static void delete(@NotNull File file) {
+    FileUtil.delete(file);
+    FileUtil.delete(getChunksFile(file));
+    FileUtil.delete(getTailFile(file));
+  }
+
+  public long length() {
+    return (long)myChunkOffsets.size() * CHUNK_SIZE + myTailLength;
+  }
+
+  public void append(@NotNull byte[] data, int offset, int length) throws IOException {
+    while (length > 0) {
+      final int toCopy = Math.min(length, CHUNK_SIZE - myTailLength);
+      System.arraycopy(data, offset, myTail, myTailLength, toCopy);
+      myTailLength += toCopy;
+      myTailDirty = true;
+      offset += toCopy;
+      length -= toCopy;
+
+      if (myTailLength == CHUNK_SIZE) {
+        // the saved tail becomes stale as the data file grows, no need to update it until there is a new tail
+        myChunkOffsets.add(writeChunk());
+        myTailLength = 0;
+        myTailDirty = false;
+      }
+    }
+  }
+
+  public void get(long address, @NotNull byte[] dst, int offset, int length) throws IOException {
+    while (length > 0) {
+      final int chunk = (int)(address / CHUNK_SIZE);
+      final int inChunk = (int)(address % CHUNK_SIZE);
+      final byte[] chunkBytes;
+      final int chunkLength;
+      if (chunk == myChunkOffsets.size()) {
+        chunkBytes = myTail;
+        chunkLength = myTailLength;
+      }
+      else {
+        chunkBytes = getDecompressedChunk(chunk);
+        chunkLength = CHUNK_SIZE;
+      }
+
+      final int toCopy = Math.min(length, chunkLength - inChunk);
+      if (toCopy <= 0) throw new EOFException("Reading past the end of " + myFile.getPath() + ": " + address);
+      System.arraycopy(chunkBytes, inChunk, dst, offset, toCopy);
+      address += toCopy;
+      offset += toCopy;
+      length -= toCopy;
+    }
+  }
+
+  @NotNull
+  private byte[] getDecompressedChunk(int chunk) throws IOException {
+    byte[] bytes = myDecompressedChunks.get(chunk);
+    if (bytes != null) return bytes;
+
+    final long chunkOffset = myChunkOffsets.get(chunk);
+    final RandomAccessFile raf = myRaf;
+    raf.seek(chunkOffset);
+    final int compressedLength = raf.readInt();
+    final int uncompressedLength = raf.readInt();
+    if (uncompressedLength != CHUNK_SIZE || compressedLength < 0 || chunkOffset + CHUNK_HEADER_SIZE + compressedLength > myFileLength) {
+      throw new PersistentEnumeratorBase.CorruptedException(myFile);
+    }
+    if (myCompressionBuffer.length < compressedLength) myCompressionBuffer = new byte[compressedLength];
+    raf.readFully(myCompressionBuffer, 0, compressedLength);
+
+    bytes = new byte[CHUNK_SIZE];
+    if (inflate(myCompressionBuffer, compressedLength, bytes) != CHUNK_SIZE) {
+      throw new PersistentEnumeratorBase.CorruptedException(myFile);
+    }
+    myDecompressedChunks.put(chunk, bytes);
+    return bytes;
+  }
+
+  private int inflate(@NotNull byte[] compressed, int compressedLength, @NotNull byte[] result) throws IOException {
+    myInflater.reset();
+    myInflater.setInput(compressed, 0, compressedLength);
+    try {
+      int length = 0;
+      while (length < result.length && !myInflater.finished()) {
+        final int inflated = myInflater.inflate(result, length, result.length - length);
+        if (inflated == 0 && (myInflater.needsInput() || myInflater.needsDictionary())) break;
+        length += inflated;
+      }
+      return length;
+    }
+    catch (DataFormatException e) {
+      throw new PersistentEnumeratorBase.CorruptedException(myFile);
+    }
+  }
+
+  /**
+   * Compresses current tail, which is a full chunk, and appends it to the file.
+   * @return offset of the written chunk
+   */
+  private long writeChunk() throws IOException {
+    myDeflater.reset();
+    myDeflater.setInput(myTail, 0, myTailLength);
+    myDeflater.finish();
+    int compressedLength = 0;
+    while (!myDeflater.finished()) {
+      if (compressedLength == myCompressionBuffer.length) {
+        final byte[] newBuffer = new byte[myCompressionBuffer.length * 2];
+        System.arraycopy(myCompressionBuffer, 0, newBuffer, 0, compressedLength);
+        myCompressionBuffer = newBuffer;
+      }
+      compressedLength += myDeflater.deflate(myCompressionBuffer, compressedLength, myCompressionBuffer.length - compressedLength);
+    }
+
+    final long chunkOffset = myFileLength;
+    final RandomAccessFile raf = myRaf;
+    raf.seek(chunkOffset);
+    raf.writeInt(compressedLength);
+    raf.writeInt(myTailLength);
+    raf.write(myCompressionBuffer, 0, compressedLength);
+    myFileLength = chunkOffset + CHUNK_HEADER_SIZE + compressedLength;
+    myChunkOffsetsDirty = true;
+    return chunkOffset;
+  }
+
+  public void force() throws IOException {
+    if (myTailDirty) {
+      saveTail();
+      myTailDirty = false;
+    }
+    if (myChunkOffsetsDirty) {
+      saveChunkOffsets();
+    }
+  }
+
+  public void dispose() throws IOException {
+    try {
+      force();
+    }
+    finally {
+      myDeflater.end();
+      myInflater.end();
+      myRaf.close();
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.NotNullFactory;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link PersistentMap} which stripes its keys over several independent {@link PersistentHashMap} segments.
+ * Every segment has its own key enumerator, value storage with its own file accessors and {@link PagedFileStorage.StorageLockContext},
+ * so operations on keys that fall into different segments (reads in particular) never contend on the same lock, unlike a single
+ * {@link PersistentHashMap} where all threads serialize on the enumerator.
+ *
+ * The number of segments is persisted next to the map; reopening the map with a different segment count discards its contents.
+ */
+public class ConcurrentPersistentHashMap<Key, Value> implements PersistentMap<Key, Value> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.ConcurrentPersistentHashMap");
+  private static final int VERSION = 1;
+  public static final int DEFAULT_SEGMENTS_COUNT = Math.max(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2);
+
+  private final File myFile;
+  private final KeyDescriptor<Key> myKeyDescriptor;
+  private final PersistentHashMap<Key, Value>[] mySegments;
+  private final int mySegmentMask;
+
+  public ConcurrentPersistentHashMap(@NotNull File file,
+                                     @NotNull NotNullFactory<? extends KeyDescriptor<Key>> keyDescriptorFactory,
+                                     @NotNull NotNullFactory<? extends DataExternalizer<Value>> valueExternalizerFactory) throws IOException {
+    this(file, keyDescriptorFactory, valueExternalizerFactory, DEFAULT_SEGMENTS_COUNT);
+  }
+
+  /**
+   * Descriptors and externalizers are usually not thread safe (e.g. {@link EnumeratorStringDescriptor} reuses its buffer),
+   * so every segment gets its own instances created by the passed factories.
+   */
+  public ConcurrentPersistentHashMap(@NotNull File file,
+                                     @NotNull NotNullFactory<? extends KeyDescriptor<Key>> keyDescriptorFactory,
+                                     @NotNull NotNullFactory<? extends DataExternalizer<Value>> valueExternalizerFactory,
+                                     int segmentsCount) throws IOException {
+    assert segmentsCount > 0 && (segmentsCount & (segmentsCount - 1)) == 0 : "Segments count must be a power of two: " + segmentsCount;
+    myFile = file;
+    myKeyDescriptor = keyDescriptorFactory.create(); // used for hashing only
+    mySegmentMask = segmentsCount - 1;
+
+    checkLayout(file, segmentsCount);
+
+    //noinspection unchecked
+    mySegments = new PersistentHashMap[segmentsCount];
+    try {
+      for (int i = 0; i < segmentsCount; i++) {
+        final PagedFileStorage.StorageLockContext lockContext = new PagedFileStorage.StorageLockContext(PersistentEnumeratorBase.ourLock);
+        mySegments[i] = new PersistentHashMap<Key, Value>(getSegmentFile(file, i), keyDescriptorFactory.create(), valueExternalizerFactory.create(),
+                                                          PersistentHashMap.INITIAL_INDEX_SIZE, lockContext);
+      }
+    }
+    catch (IOException e) {
+      closeSegments();
+      throw e;
+    }
+  }
+
+  private static void checkLayout(@NotNull File file, int segmentsCount) throws IOException {
+    if (file.exists()) {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      boolean matches = false;
+      try {
+        matches = in.readInt() == VERSION && in.readInt() == segmentsCount;
+      }
+      catch (IOException ignored) {
+      }
+      finally {
+        in.close();
+      }
+      if (matches) return;
+      LOG.info("Segments layout of " + file.getPath() + " changed, map is rebuilt");
+      PersistentHashMap.deleteFilesStartingWith(file);
+    }
+
+    FileUtil.createParentDirs(file);
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(segmentsCount);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @NotNull
+  private static File getSegmentFile(@NotNull File file, int segment) {
+    return new File(file.getParentFile(), file.getName() + ".segment" + segment);
+  }
+
+  @NotNull
+  private PersistentHashMap<Key, Value> getSegment(Key key) {
+    int h = myKeyDescriptor.getHashCode(key);
+    // spread the bits, keys with close hash codes (e.g. enumerated ids) should still fall into different segments
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return mySegments[h & mySegmentMask];
+  }
+
+  public int getSegmentsCount() {
+    return mySegments.length;
+  }
+
+  public File getBaseFile() {
+    return myFile;
+  }
+
+  @Override
+  public Value get(Key key) throws IOException {
+    return getSegment(key).get(key);
+  }
+
+  @Override
+  public void put(Key key, Value value) throws IOException {
+    getSegment(key).put(key, value);
+  }
+
+  public void appendData(Key key, @NotNull PersistentHashMap.ValueDataAppender appender) throws IOException {
+    getSegment(key).appendData(key, appender);
+  }
+
+  public boolean containsMapping(Key key) throws IOException {
+    return getSegment(key).containsMapping(key);
+  }
+
+  public void remove(Key key) throws IOException {
+    getSegment(key).remove(key);
+  }
+
+  @Override
+  public boolean processKeys(Processor<Key> processor) throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (!segment.processKeys(processor)) return false;
+    }
+    return true;
+  }
+
+  public boolean processKeysWithExistingMapping(Processor<Key> processor) throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (!segment.processKeysWithExistingMapping(processor)) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public Collection<Key> getAllKeysWithExistingMapping() throws IOException {
+    final List<Key> keys = new ArrayList<Key>();
+    processKeysWithExistingMapping(new CommonProcessors.CollectProcessor<Key>(keys));
+    return keys;
+  }
+
+  public void dropMemoryCaches() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.dropMemoryCaches();
+    }
+  }
+
+  public void compact() throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.compact();
+    }
+  }
+
+  @Override
+  public boolean isClosed() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment == null || segment.isClosed()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isDirty() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment.isDirty()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void force() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.force();
+    }
+  }
+
+  @Override
+  public void markDirty() throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.markDirty();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException exception = closeSegments();
+    if (exception != null) throw exception;
+  }
+
+  @Nullable
+  private IOException closeSegments() {
+    IOException exception = null;
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment == null) continue;
+      try {
+        segment.close();
+      }
+      catch (IOException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    return exception;
+  }
+}
@@ -2,13 +2,61 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 
-class IOStatistics {
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance("#com.intellij.io.IOStatistics");
   static final int KEYS_FACTOR_MASK = 0xFFFF;
 
+  private static final AtomicLong ourCompactionsCount = new AtomicLong();
+  private static final AtomicLong ourCompactionsTime = new AtomicLong();
+  private static final AtomicLong ourBytesReclaimed = new AtomicLong();
+  private static final AtomicLong ourLiveKeysCompacted = new AtomicLong();
+  private static final AtomicLong ourGarbageKeysCompacted = new AtomicLong();
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  /**
+   * @param liveAndGarbageKeys {@link PersistentHashMap} keys counter before compaction: live keys count in high int, garbage in low int
+   */
+  static void compactionFinished(long liveAndGarbageKeys, long sizeBefore, long sizeAfter, long time) {
+    final int liveKeys = (int)(liveAndGarbageKeys >>> 32);
+    final int garbageKeys = (int)(liveAndGarbageKeys & 0xFFFFFFFFL);
+
+    ourCompactionsCount.incrementAndGet();
+    ourCompactionsTime.addAndGet(time);
+    ourBytesReclaimed.addAndGet(Math.max(0, sizeBefore - sizeAfter));
+    ourLiveKeysCompacted.addAndGet(liveKeys);
+    ourGarbageKeysCompacted.addAndGet(garbageKeys);
+
+    if (DEBUG) {
+      dump("Compaction: live keys:" + liveKeys + ", garbage keys:" + garbageKeys + ", reclaimed:" + (sizeBefore - sizeAfter) +
+           ", total reclaimed:" + ourBytesReclaimed.get() + ", time:" + time);
+    }
+  }
+
+  public static long getCompactionsCount() {
+    return ourCompactionsCount.get();
+  }
+
+  public static long getCompactionsTime() {
+    return ourCompactionsTime.get();
+  }
+
+  public static long getBytesReclaimedByCompaction() {
+    return ourBytesReclaimed.get();
+  }
+
+  /**
+   * @return share of garbage among all keys seen by compactions so far
+   */
+  public static double getCompactedGarbageRatio() {
+    final long garbage = ourGarbageKeysCompacted.get();
+    final long total = garbage + ourLiveKeysCompacted.get();
+    return total == 0 ? 0 : (double)garbage / total;
+  }
 }
@@ -23,6 +23,9 @@ import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntLongHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -42,7 +45,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private PersistentHashMapValueStorage myValueStorage;
   protected final DataExternalizer<Value> myValueExternalizer;
   private static final long NULL_ADDR = 0;
-  private static final int INITIAL_INDEX_SIZE;
+  protected static final int INITIAL_INDEX_SIZE;
   static {
     String property = System.getProperty("idea.initialIndexSize");
     INITIAL_INDEX_SIZE = property == null ? 4 * 1024 : Integer.valueOf(property);
@@ -59,9 +62,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @NotNull private final byte[] myRecordBuffer;
   @NotNull private final byte[] mySmallRecordBuffer;
   private final boolean myCanReEnumerate;
+  private final boolean myCompressedValues;
+  private final boolean myOwnValueAccessors;
   private int myLargeIndexWatermarkId;  // starting with this id we store offset in adjacent file in long format
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
+  private static final int INCREMENTAL_COMPACTION_BATCH_SIZE = 1000;
+  @Nullable private TIntHashSet myCompactionUpdatedIds; // not null while incremental compaction is in progress
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -134,7 +141,33 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
   
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
-    super(checkDataFiles(file), keyDescriptor, initialSize);
+    this(file, keyDescriptor, valueExternalizer, initialSize, null);
+  }
+
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           @Nullable PagedFileStorage.StorageLockContext lockContext) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, initialSize, lockContext, false);
+  }
+
+  /**
+   * @param lockContext      the map gets its own value storage file accessors as well if the lock context is given, so maps locked
+   *                         independently don't contend on the accessor caches shared by other maps
+   * @param compressedValues whether values should be stored in block compressed form, see {@link CompressedAppendableFile}.
+   *                         Compressed storage trades some CPU for smaller files and less I/O; the flag must not change between
+   *                         openings of the same map.
+   */
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           @Nullable PagedFileStorage.StorageLockContext lockContext,
+                           boolean compressedValues) throws IOException {
+    super(checkDataFiles(file), keyDescriptor, initialSize, lockContext);
+    myCompressedValues = compressedValues;
+    myOwnValueAccessors = lockContext != null;
 
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
@@ -174,14 +207,14 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
     try {
       myValueExternalizer = valueExternalizer;
-      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(file).getPath());
+      myValueStorage = createValueStorage(getDataFile(file).getPath());
       myLiveAndGarbageKeysCounter = myEnumerator.getMetaData();
       long data2 = myEnumerator.getMetaData2();
       myLargeIndexWatermarkId = (int)(data2 & 0xFFFFFFFF);
       myReadCompactionGarbageSize = (int)(data2 >>> 32);
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
-      if (makesSenseToCompact()) {
+      if (compactOnOpen() && makesSenseToCompact()) {
         compact();
       }
     }
@@ -226,7 +259,15 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return myEnumerator.myFile;
   }
 
-  private boolean makesSenseToCompact() {
+  /**
+   * Invoked from the constructor, so implementations must not depend on the state of the subclass.
+   * Owners that return false are expected to call {@link #compactIncrementally()} themselves when {@link #makesSenseToCompact()}.
+   */
+  protected boolean compactOnOpen() {
+    return true;
+  }
+
+  public boolean makesSenseToCompact() {
     final long fileSize = getDataFile(myEnumerator.myFile).length();
     final int megabyte = 1024 * 1024;
 
@@ -527,12 +568,20 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  @NotNull
+  private PersistentHashMapValueStorage createValueStorage(@NotNull String path) throws IOException {
+    return PersistentHashMapValueStorage.create(path, myCompressedValues, myOwnValueAccessors);
+  }
+
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      myCompactionUpdatedIds = null; // incremental compaction in progress (if any) will notice that and give up
       final long now = System.currentTimeMillis();
+      final long sizeBefore = myValueStorage.getSize();
+      final long keysBefore = myLiveAndGarbageKeysCounter;
       final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
-      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
+      final PersistentHashMapValueStorage newStorage = createValueStorage(newPath);
       myValueStorage.switchToCompactionMode();
       myLiveAndGarbageKeysCounter = 0;
       myReadCompactionGarbageSize = 0;
@@ -558,15 +607,140 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
       myValueStorage.dispose();
 
-      FileUtil.rename(new File(newPath), getDataFile(myEnumerator.myFile));
+      PersistentHashMapValueStorage.rename(new File(newPath), getDataFile(myEnumerator.myFile), myCompressedValues);
 
-      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+      myValueStorage = createValueStorage(getDataFile(myEnumerator.myFile).getPath());
       LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - now) + "ms.");
+      IOStatistics.compactionFinished(keysBefore, sizeBefore, myValueStorage.getSize(), System.currentTimeMillis() - now);
 
       myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
     }
   }
 
+  /**
+   * Same as {@link #compact()} but the map stays available while live values are copied: they are moved to the new storage
+   * in batches, each under the map lock, and only the final switch to the new storage holds the lock for the whole pass over the keys
+   * (re-reading values modified in the meantime). Meant to be run on a background thread.
+   *
+   * @return false if compaction was abandoned because the map has been closed or compacted by other means meanwhile
+   */
+  public boolean compactIncrementally() throws IOException {
+    final long started = System.currentTimeMillis();
+    final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
+    final TIntArrayList keyIds = new TIntArrayList();
+    final TIntHashSet updatedIds = new TIntHashSet();
+    final long sizeBefore;
+    final long keysBefore;
+    final PersistentHashMapValueStorage newStorage;
+
+    synchronized (myEnumerator) {
+      if (myEnumerator.isClosed() || myCompactionUpdatedIds != null) return false;
+      myEnumerator.lockStorage();
+      try {
+        myAppendCache.clear();
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            if (readValueId(keyId) != NULL_ADDR) keyIds.add(keyId);
+            return true;
+          }
+        });
+        sizeBefore = myValueStorage.getSize();
+        keysBefore = myLiveAndGarbageKeysCounter;
+        PersistentHashMapValueStorage.delete(new File(newPath), myCompressedValues); // leftovers of interrupted compaction
+        newStorage = createValueStorage(newPath);
+        myCompactionUpdatedIds = updatedIds;
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+
+    boolean completed = false;
+    try {
+      final TIntLongHashMap movedRecords = new TIntLongHashMap(keyIds.size());
+
+      for (int batchStart = 0; batchStart < keyIds.size(); batchStart += INCREMENTAL_COMPACTION_BATCH_SIZE) {
+        synchronized (myEnumerator) {
+          if (myEnumerator.isClosed() || myCompactionUpdatedIds != updatedIds) return false;
+          myEnumerator.lockStorage();
+          try {
+            final int batchEnd = Math.min(keyIds.size(), batchStart + INCREMENTAL_COMPACTION_BATCH_SIZE);
+            for (int i = batchStart; i < batchEnd; i++) {
+              final int keyId = keyIds.get(i);
+              if (updatedIds.contains(keyId)) continue; // will be copied on switch
+              final long record = readValueId(keyId);
+              if (record == NULL_ADDR) continue;
+              // chain merged on read (if any) is left as is: old storage is dropped on switch anyway
+              final PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+              movedRecords.put(keyId, newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0));
+            }
+          }
+          finally {
+            myEnumerator.unlockStorage();
+          }
+        }
+      }
+
+      synchronized (myEnumerator) {
+        if (myEnumerator.isClosed() || myCompactionUpdatedIds != updatedIds) return false;
+        myEnumerator.lockStorage();
+        try {
+          myAppendCache.clear();
+          myCompactionUpdatedIds = null;
+          myValueStorage.switchToCompactionMode();
+          myLiveAndGarbageKeysCounter = 0;
+          myReadCompactionGarbageSize = 0;
+
+          traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+            @Override
+            public boolean process(final int keyId) throws IOException {
+              final long record = readValueId(keyId);
+              if (record != NULL_ADDR) {
+                long newRecord;
+                if (!updatedIds.contains(keyId) && movedRecords.containsKey(keyId)) {
+                  newRecord = movedRecords.get(keyId);
+                }
+                else {
+                  PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+                  newRecord = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+                }
+                updateValueId(keyId, newRecord, record, null, getCurrentKey());
+                myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+              }
+              return true;
+            }
+          });
+
+          newStorage.dispose();
+          myValueStorage.dispose();
+          PersistentHashMapValueStorage.rename(new File(newPath), getDataFile(myEnumerator.myFile), myCompressedValues);
+          myValueStorage = createValueStorage(getDataFile(myEnumerator.myFile).getPath());
+          myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+          myEnumerator.markDirty(true);
+          completed = true;
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+      }
+
+      final long elapsed = System.currentTimeMillis() - started;
+      LOG.info("Incrementally compacted " + myEnumerator.myFile.getPath() + " in " + elapsed + "ms.");
+      IOStatistics.compactionFinished(keysBefore, sizeBefore, myValueStorage.getSize(), elapsed);
+      return true;
+    }
+    finally {
+      if (!completed) {
+        synchronized (myEnumerator) {
+          if (myCompactionUpdatedIds == updatedIds) myCompactionUpdatedIds = null;
+        }
+        newStorage.dispose();
+        PersistentHashMapValueStorage.delete(new File(newPath), myCompressedValues);
+      }
+    }
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -590,6 +764,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   private int updateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
     final boolean newKey = oldValue == NULL_ADDR;
+    if (myCompactionUpdatedIds != null) myCompactionUpdatedIds.add(keyId);
     if (newKey) ++requests;
     boolean defaultSizeInfo = true;
 
@@ -606,6 +781,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
           // keyId is result of enumerate, if we do reenumerate then it is no longer accessible unless somebody cached it
           myIntAddressForNewRecord = false;
           keyId = myEnumerator.reenumerate(key == null ? myEnumerator.getValue(keyId, processingKey) : key);
+          if (myCompactionUpdatedIds != null) myCompactionUpdatedIds.add(keyId);
           ++transformedKeys;
         }
       }
@@ -19,7 +19,9 @@
  */
 package com.intellij.util.io;
 
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.containers.SLRUCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -34,33 +36,74 @@ public class PersistentHashMapValueStorage {
   private final File myFile;
   private final String myPath;
   private boolean myCompactionMode = false;
+  @Nullable private final CompressedAppendableFile myCompressedFile;
+  @Nullable private final BufferExposingByteArrayOutputStream myCompressedRecordBytes;
+  @Nullable private final DataOutputStream myCompressedRecordStream;
 
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
 
-  private static final FileAccessorCache<DataOutputStream> ourAppendersCache = new FileAccessorCache<DataOutputStream>(CACHE_PROTECTED_QUEUE_SIZE, CACHE_PROBATIONAL_QUEUE_SIZE) {
-    @NotNull
-    public CacheValue<DataOutputStream> createValue(String path) {
-      try {
-        return new CachedAppender(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true))));
-      }
-      catch (FileNotFoundException e) {
-        throw new RuntimeException(e);
+  private static final FileAccessorCache<DataOutputStream> ourAppendersCache =
+    createAppendersCache(CACHE_PROTECTED_QUEUE_SIZE, CACHE_PROBATIONAL_QUEUE_SIZE);
+  private static final FileAccessorCache<RAReader> ourReadersCache = createReadersCache(CACHE_PROTECTED_QUEUE_SIZE, CACHE_PROBATIONAL_QUEUE_SIZE);
+
+  private final FileAccessorCache<DataOutputStream> myAppendersCache;
+  private final FileAccessorCache<RAReader> myReadersCache;
+
+  private static FileAccessorCache<DataOutputStream> createAppendersCache(int protectedQueueSize, int probationalQueueSize) {
+    return new FileAccessorCache<DataOutputStream>(protectedQueueSize, probationalQueueSize) {
+      @NotNull
+      public CacheValue<DataOutputStream> createValue(String path) {
+        try {
+          return new CachedAppender(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true))));
+        }
+        catch (FileNotFoundException e) {
+          throw new RuntimeException(e);
+        }
       }
-    }
-  };
+    };
+  }
 
-  private static final FileAccessorCache<RAReader> ourReadersCache = new FileAccessorCache<RAReader>(CACHE_PROTECTED_QUEUE_SIZE, CACHE_PROBATIONAL_QUEUE_SIZE) {
-    @NotNull
-    public CacheValue<RAReader> createValue(String path) {
-      return new CachedReader(new FileReader(new File(path)));
-    }
-  };
+  private static FileAccessorCache<RAReader> createReadersCache(int protectedQueueSize, int probationalQueueSize) {
+    return new FileAccessorCache<RAReader>(protectedQueueSize, probationalQueueSize) {
+      @NotNull
+      public CacheValue<RAReader> createValue(String path) {
+        return new CachedReader(new FileReader(new File(path)));
+      }
+    };
+  }
 
   public PersistentHashMapValueStorage(String path) throws IOException {
+    this(path, false);
+  }
+
+  public PersistentHashMapValueStorage(String path, boolean compressed) throws IOException {
+    this(path, compressed, false);
+  }
+
+  /**
+   * @param compressed whether the values should be kept in block compressed {@link CompressedAppendableFile},
+   *                   the same mode must be used each time the storage is opened
+   * @param ownAccessors whether the storage keeps its file reader and appender itself instead of the caches shared by all storages,
+   *                     so it doesn't contend with other storages on the caches' lock and its accessors aren't evicted by theirs
+   */
+  public PersistentHashMapValueStorage(String path, boolean compressed, boolean ownAccessors) throws IOException {
     myPath = path;
     myFile = new File(path);
-    mySize = myFile.length();
+    myAppendersCache = ownAccessors ? createAppendersCache(1, 1) : ourAppendersCache;
+    myReadersCache = ownAccessors ? createReadersCache(1, 1) : ourReadersCache;
+    if (compressed) {
+      myCompressedFile = new CompressedAppendableFile(myFile);
+      myCompressedRecordBytes = new BufferExposingByteArrayOutputStream();
+      myCompressedRecordStream = new DataOutputStream(myCompressedRecordBytes);
+      mySize = myCompressedFile.length();
+    }
+    else {
+      myCompressedFile = null;
+      myCompressedRecordBytes = null;
+      myCompressedRecordStream = null;
+      mySize = myFile.length();
+    }
 
     if (mySize == 0) {
       appendBytes(new ByteSequence("Header Record For PersistentHashMapValuStorage".getBytes()), 0);
@@ -84,11 +127,11 @@ public class PersistentHashMapValueStorage {
   public long appendBytes(byte[] data, int offset, int dataLength, long prevChunkAddress) throws IOException {
     assert !myCompactionMode;
     long result = mySize;
-    final CacheValue<DataOutputStream> appender = ourAppendersCache.get(myPath);
+    final CacheValue<DataOutputStream> appender = myCompressedFile == null ? myAppendersCache.get(myPath) : null;
     int serviceFieldsSizeIncrease;
 
     try {
-      DataOutputStream dataOutputStream = appender.get();
+      DataOutputStream dataOutputStream = appender != null ? appender.get() : myCompressedRecordStream;
       ++requests;
       
       if (dataLength + POSITIVE_VALUE_SHIFT < 0x80 && prevChunkAddress < Integer.MAX_VALUE) {
@@ -105,13 +148,17 @@ public class PersistentHashMapValueStorage {
         serviceFieldsSizeIncrease = INT_LENGTH_LONG_ADDRESS;
       }
       dataOutputStream.write(data, offset, dataLength);
+      if (myCompressedFile != null) {
+        myCompressedFile.append(myCompressedRecordBytes.getInternalBuffer(), 0, myCompressedRecordBytes.size());
+        myCompressedRecordBytes.reset();
+      }
       if (IOStatistics.DEBUG && (requests % IOStatistics.KEYS_FACTOR_MASK) == 0) {
         IOStatistics.dump("Small writes:"+smallWritesCount +", bytes:"+smallWrites + ", largeWrites:"+largeWritesCount
                           + ", bytes:"+largeWrites+", total:"+requests + "@"+myFile.getPath());
       }
     }
     finally {
-      appender.release();
+      if (appender != null) appender.release();
     }
     mySize += dataLength + serviceFieldsSizeIncrease;
 
@@ -134,16 +181,17 @@ public class PersistentHashMapValueStorage {
    * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
-    force();
+    // compressed file serves not yet written data from memory, no need to flush it
+    if (myCompressedFile == null) force();
 
     long chunk = tailChunkAddress;
     int chunkCount = 0;
 
     byte[] result = null;
-    RAReader reader = myCompactionModeReader;
+    RAReader reader = myCompressedFile != null ? myCompressedReader : myCompactionModeReader;
     CacheValue<RAReader> readerHandle = null;
     if (reader == null) {
-      readerHandle = ourReadersCache.get(myPath);
+      readerHandle = myReadersCache.get(myPath);
       reader = readerHandle.get();
     }
 
@@ -223,7 +271,16 @@ public class PersistentHashMapValueStorage {
   }
 
   public void force() {
-    final CacheValue<DataOutputStream> cached = ourAppendersCache.getIfCached(myPath);
+    if (myCompressedFile != null) {
+      try {
+        myCompressedFile.force();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+    final CacheValue<DataOutputStream> cached = myAppendersCache.getIfCached(myPath);
     if (cached != null) {
       try {
         cached.get().flush();
@@ -238,8 +295,16 @@ public class PersistentHashMapValueStorage {
   }
 
   public void dispose() {
-    ourReadersCache.remove(myPath);
-    ourAppendersCache.remove(myPath);
+    if (myCompressedFile != null) {
+      try {
+        myCompressedFile.dispose();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    myReadersCache.remove(myPath);
+    myAppendersCache.remove(myPath);
 
     if (myCompactionModeReader != null) {
       myCompactionModeReader.dispose();
@@ -248,16 +313,58 @@ public class PersistentHashMapValueStorage {
   }
 
   public void switchToCompactionMode() {
-    ourReadersCache.remove(myPath);
+    myCompactionMode = true;
+    if (myCompressedFile != null) return; // compressed file is read directly anyway
+    myReadersCache.remove(myPath);
     // in compaction mode use faster reader
     myCompactionModeReader = new FileReader(myFile);
-    myCompactionMode = true;
   }
 
   public static PersistentHashMapValueStorage create(final String path) throws IOException {
     return new PersistentHashMapValueStorage(path);
   }
 
+  public static PersistentHashMapValueStorage create(final String path, boolean compressed) throws IOException {
+    return new PersistentHashMapValueStorage(path, compressed);
+  }
+
+  public static PersistentHashMapValueStorage create(final String path, boolean compressed, boolean ownAccessors) throws IOException {
+    return new PersistentHashMapValueStorage(path, compressed, ownAccessors);
+  }
+
+  /**
+   * Moves storage files created with {@link #create(String, boolean)} to the new location
+   */
+  public static void rename(@NotNull File from, @NotNull File to, boolean compressed) throws IOException {
+    if (compressed) {
+      CompressedAppendableFile.rename(from, to);
+    }
+    else {
+      FileUtil.rename(from, to);
+    }
+  }
+
+  public static void delete(@NotNull File file, boolean compressed) {
+    if (compressed) {
+      CompressedAppendableFile.delete(file);
+    }
+    else {
+      FileUtil.delete(file);
+    }
+  }
+
+  private final RAReader myCompressedReader = new RAReader() {
+    @Override
+    public void get(long addr, byte[] dst, int off, int len) throws IOException {
+      assert myCompressedFile != null;
+      myCompressedFile.get(addr, dst, off, len);
+    }
+
+    @Override
+    public void dispose() {
+    }
+  };
+
   private interface RAReader {
     void get(long addr, byte[] dst, int off, int len) throws IOException;
     void dispose();
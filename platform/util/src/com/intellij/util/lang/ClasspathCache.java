@@ -24,26 +24,29 @@ import com.intellij.util.ArrayUtil;
 import com.intellij.util.BloomFilterBase;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.HashMap;
-import gnu.trove.THashMap;
-import gnu.trove.THashSet;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongProcedure;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import sun.misc.Resource;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class ClasspathCache {
-  private static final boolean doDebug = false;
+  static final boolean doDebug = false;
   private final DebugInfo myDebugInfo;
 
   private final TIntObjectHashMap<Object> myResourcePackagesCache = new TIntObjectHashMap<Object>();
   private final TIntObjectHashMap<Object> myClassPackagesCache = new TIntObjectHashMap<Object>();
 
-  private THashMap<String, Set<Loader>> myResources2LoadersTempMap = new THashMap<String, Set<Loader>>();
+  // (name hash, loader index) pairs registered before the name filter is built
+  private TLongHashSet myNameLoaderPairsTempSet = new TLongHashSet();
   private static final double PROBABILITY = 0.005d;
+  private static final int NAME_SEED = 31;
   private Name2LoaderFilter myNameFilter;
   private boolean myTempMapMode = true;
 
@@ -58,10 +61,33 @@ public class ClasspathCache {
   public void addResourceEntry(String resourcePath, Loader loader) {
     if (doDebug) myDebugInfo.addResourceEntry(resourcePath, loader);
 
-    String packageName = getPackageName(resourcePath);
     TIntObjectHashMap<Object> map = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION) ?
                                     myClassPackagesCache : myResourcePackagesCache;
-    int hash = packageName.hashCode();
+    addPackageHash(map, getPackageName(resourcePath).hashCode(), loader);
+  }
+
+  /**
+   * Registers the entries of a loader collected (or loaded from the disk) in advance.
+   */
+  void applyLoaderData(@NotNull LoaderData data, @NotNull Loader loader) {
+    if (doDebug) {
+      for (String name : data.myDebugNames) {
+        myDebugInfo.addResourceEntry(name, loader);
+        myDebugInfo.addNameEntry(transformName(name), loader);
+      }
+    }
+    for (int hash : data.myClassPackageHashes.toArray()) {
+      addPackageHash(myClassPackagesCache, hash, loader);
+    }
+    for (int hash : data.myResourcePackageHashes.toArray()) {
+      addPackageHash(myResourcePackagesCache, hash, loader);
+    }
+    for (int hash : data.myNameHashes.toArray()) {
+      addNameHash(hash, loader);
+    }
+  }
+
+  private static void addPackageHash(TIntObjectHashMap<Object> map, int hash, Loader loader) {
     Object o = map.get(hash);
     if (o == null) map.put(hash, loader);
     else if (o instanceof Loader) {
@@ -102,7 +128,7 @@ public class ClasspathCache {
     return null;
   }
 
-  private static String getPackageName(String resourcePath) {
+  static String getPackageName(String resourcePath) {
     final int idx = resourcePath.lastIndexOf('/');
     return idx > 0 ? resourcePath.substring(0, idx) : "";
   }
@@ -112,29 +138,39 @@ public class ClasspathCache {
   public void addNameEntry(String name, Loader loader) {
     name = transformName(name);
     if (doDebug) myDebugInfo.addNameEntry(name, loader);
+    addNameHash(StringHash.murmur(name, NAME_SEED), loader);
+  }
+
+  private void addNameHash(int nameHash, Loader loader) {
     if (myTempMapMode) {
-      Set<Loader> loaders = myResources2LoadersTempMap.get(name);
-      if (loaders == null) myResources2LoadersTempMap.put(name, loaders = new THashSet<Loader>());
-      boolean added = loaders.add(loader);
+      boolean added = myNameLoaderPairsTempSet.add(nameLoaderPair(nameHash, loader.getIndex()));
       if (UrlClassLoader.doDebug && added) ++registeredBeforeClose;
     } else {
       if (UrlClassLoader.doDebug) {
-        if (!myNameFilter.maybeContains(name, loader)) ++registeredAfterClose;
+        if (!myNameFilter.maybeContainsName(nameHash, loader.getIndex())) ++registeredAfterClose;
       }
 
-      myNameFilter.add(name, loader);
+      myNameFilter.add(nameHash, loader.getIndex());
     }
   }
 
+  private static long nameLoaderPair(int nameHash, int loaderIndex) {
+    return ((long)nameHash << 32) | (loaderIndex & 0xFFFFFFFFL);
+  }
+
+  static int nameHash(String name) {
+    return StringHash.murmur(transformName(name), NAME_SEED);
+  }
+
   public boolean loaderHasName(String name, Loader loader) {
     String origName = name;
     boolean result;
     name = transformName(name);
-    
+    int nameHash = StringHash.murmur(name, NAME_SEED);
+
     if (myTempMapMode) {
       ++requests;
-      Set<Loader> loaders = myResources2LoadersTempMap.get(name);
-      result = loaders != null && loaders.contains(loader);
+      result = myNameLoaderPairsTempSet.contains(nameLoaderPair(nameHash, loader.getIndex()));
 
       if (!result) ++hits;
 
@@ -154,7 +190,7 @@ public class ClasspathCache {
       }
     } else {
       ++requests2;
-      result = myNameFilter.maybeContains(name, loader);
+      result = myNameFilter.maybeContainsName(nameHash, loader.getIndex());
       if (!result) ++hits2;
 
       if (doDebug) {
@@ -163,8 +199,7 @@ public class ClasspathCache {
           ++diffs2;
         }
 
-        Set<Loader> loaders = myResources2LoadersTempMap.get(name);
-        if (result != (loaders != null && loaders.contains(loader))) {
+        if (result != myNameLoaderPairsTempSet.contains(nameLoaderPair(nameHash, loader.getIndex()))) {
           ++diffs;
         }
 
@@ -185,7 +220,7 @@ public class ClasspathCache {
     return result;
   }
   
-  private String transformName(String name) {
+  private static String transformName(String name) {
     if (name.endsWith("/")) {
       name = name.substring(0, name.length() - 1);
     }
@@ -220,29 +255,23 @@ public class ClasspathCache {
 
     myTempMapMode = false;
 
-    int nBits = 0, uniques = 0;
-    for(Map.Entry<String, Set<Loader>> e:myResources2LoadersTempMap.entrySet()) {
-      int size = e.getValue().size();
-      if (size == 1) {
-        ++uniques;
-      }
-      nBits += size;
-    }
+    int nBits = myNameLoaderPairsTempSet.size();
     if (nBits > 20000) {
       nBits += (int)(nBits * 0.03d); // allow some growth for Idea main loader
     }
 
-    myNameFilter = new Name2LoaderFilter(nBits, PROBABILITY);
-
-    for(Map.Entry<String, Set<Loader>> e:myResources2LoadersTempMap.entrySet()) {
-      final String name = e.getKey();
-      for(Loader loader: e.getValue()) {
-        myNameFilter.add(name, loader);
+    final Name2LoaderFilter filter = new Name2LoaderFilter(nBits, PROBABILITY);
+    myNameLoaderPairsTempSet.forEach(new TLongProcedure() {
+      @Override
+      public boolean execute(long pair) {
+        filter.add((int)(pair >> 32), (int)pair);
+        return true;
       }
-    }
+    });
+    myNameFilter = filter;
 
     if (!doDebug) {
-      myResources2LoadersTempMap = null;
+      myNameLoaderPairsTempSet = null;
     }
   }
 
@@ -253,29 +282,67 @@ public class ClasspathCache {
       super(nBits, probability);
     }
 
-    private boolean maybeContains(String name, Loader loader) {
-      int hash = hashFromNameAndLoader(name, loader, StringHash.murmur(name, SEED));
-      int hash2 = hashFromNameAndLoader(name, loader, hash);
+    private boolean maybeContainsName(int nameHash, int loaderIndex) {
+      int hash = hashFromNameAndLoader(nameHash, loaderIndex, SEED);
+      int hash2 = hashFromNameAndLoader(nameHash, loaderIndex, hash);
 
       return maybeContains(hash, hash2);
     }
 
-    void add(String name, Loader loader) {
-      int hash = hashFromNameAndLoader(name, loader, StringHash.murmur(name, SEED));
-      int hash2 = hashFromNameAndLoader(name, loader, hash);
+    void add(int nameHash, int loaderIndex) {
+      int hash = hashFromNameAndLoader(nameHash, loaderIndex, SEED);
+      int hash2 = hashFromNameAndLoader(nameHash, loaderIndex, hash);
 
       addIt(hash, hash2);
     }
 
-    private int hashFromNameAndLoader(String name, Loader loader, int n) {
-      int hash = StringHash.murmur(name, n);
-      int i = loader.getIndex();
+    private static int hashFromNameAndLoader(int nameHash, int loaderIndex, int n) {
+      int hash = mix(nameHash + n);
+      int i = loaderIndex;
       while (i > 0) {
         hash = hash * n + ((i % 10) + '0');
         i /= 10;
       }
       return hash;
     }
+
+    // murmur3 finalizer
+    private static int mix(int h) {
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+    }
+  }
+
+  /**
+   * Entries of a loader reduced to the hashes the cache needs: package hashes of its classes and resources and name hashes.
+   * Collecting them requires to enumerate all the entries, so for jars it's persisted by {@link ClasspathCacheStorage}.
+   */
+  static class LoaderData {
+    final TIntHashSet myClassPackageHashes;
+    final TIntHashSet myResourcePackageHashes;
+    final TIntHashSet myNameHashes;
+    final List<String> myDebugNames = doDebug ? new ArrayList<String>() : null;
+
+    LoaderData() {
+      this(new TIntHashSet(), new TIntHashSet(), new TIntHashSet());
+    }
+
+    LoaderData(@NotNull TIntHashSet classPackageHashes, @NotNull TIntHashSet resourcePackageHashes, @NotNull TIntHashSet nameHashes) {
+      myClassPackageHashes = classPackageHashes;
+      myResourcePackageHashes = resourcePackageHashes;
+      myNameHashes = nameHashes;
+    }
+
+    void addEntry(String name) {
+      if (doDebug) myDebugNames.add(name);
+      int packageHash = getPackageName(name).hashCode();
+      (name.endsWith(UrlClassLoader.CLASS_EXTENSION) ? myClassPackageHashes : myResourcePackageHashes).add(packageHash);
+      myNameHashes.add(nameHash(name));
+    }
   }
 
   static class DebugInfo {
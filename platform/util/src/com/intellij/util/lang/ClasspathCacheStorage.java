@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.application.PathManager;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.io.*;
+
+/**
+ * Keeps {@link ClasspathCache.LoaderData} of jars between IDE starts, so that entries of every jar needn't be enumerated and hashed
+ * on each start. The data of a jar is stored in a separate file of the system directory and is used only while the jar path, length
+ * and timestamp match the stored ones.
+ * <p/>
+ * Can be switched off with <code>-Didea.classpath.index=false</code>.
+ */
+class ClasspathCacheStorage {
+  private static final int VERSION = 1;
+  private static final String DIR_NAME = "classpath";
+
+  private static final boolean ourEnabled = !"false".equals(System.getProperty("idea.classpath.index")) && !ClasspathCache.doDebug;
+  private static File ourDir;
+
+  private ClasspathCacheStorage() {
+  }
+
+  @Nullable
+  static ClasspathCache.LoaderData load(@NotNull File jar) {
+    File file = getStorageFile(jar);
+    if (file == null || !file.isFile()) return null;
+    try {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (input.readInt() != VERSION ||
+            !jar.getPath().equals(input.readUTF()) ||
+            input.readLong() != jar.length() ||
+            input.readLong() != jar.lastModified()) {
+          return null;
+        }
+        int maxSize = (int)Math.min(Integer.MAX_VALUE, file.length() / 4);
+        TIntHashSet classPackages = readHashes(input, maxSize);
+        TIntHashSet resourcePackages = readHashes(input, maxSize);
+        TIntHashSet names = readHashes(input, maxSize);
+        return new ClasspathCache.LoaderData(classPackages, resourcePackages, names);
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException e) {
+      return null; // broken or being written, will be rebuilt
+    }
+  }
+
+  static void save(@NotNull File jar, @NotNull ClasspathCache.LoaderData data) {
+    File file = getStorageFile(jar);
+    if (file == null) return;
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        output.writeInt(VERSION);
+        output.writeUTF(jar.getPath());
+        output.writeLong(jar.length());
+        output.writeLong(jar.lastModified());
+        writeHashes(output, data.myClassPackageHashes);
+        writeHashes(output, data.myResourcePackageHashes);
+        writeHashes(output, data.myNameHashes);
+      }
+      finally {
+        output.close();
+      }
+      if (!temp.renameTo(file)) {
+        // can't rename over an existing file on Windows
+        file.delete();
+        if (!temp.renameTo(file)) temp.delete();
+      }
+    }
+    catch (IOException e) {
+      temp.delete();
+    }
+  }
+
+  @NotNull
+  private static TIntHashSet readHashes(@NotNull DataInputStream input, int maxSize) throws IOException {
+    int size = input.readInt();
+    if (size < 0 || size > maxSize) throw new IOException("Corrupted hashes count: " + size);
+    TIntHashSet hashes = new TIntHashSet(size);
+    for (int i = 0; i < size; i++) {
+      hashes.add(input.readInt());
+    }
+    return hashes;
+  }
+
+  private static void writeHashes(@NotNull DataOutputStream output, @NotNull TIntHashSet hashes) throws IOException {
+    int[] values = hashes.toArray();
+    output.writeInt(values.length);
+    for (int value : values) {
+      output.writeInt(value);
+    }
+  }
+
+  @Nullable
+  static File getStorageFile(@NotNull File jar) {
+    File dir = getStorageDir();
+    return dir == null ? null : new File(dir, jar.getName() + "." + Integer.toHexString(jar.getPath().hashCode()));
+  }
+
+  @TestOnly
+  static synchronized void setStorageDir(@Nullable File dir) {
+    ourDir = dir;
+  }
+
+  @Nullable
+  private static synchronized File getStorageDir() {
+    if (!ourEnabled) return null;
+    if (ourDir == null) {
+      // the system path defaults to the installation directory, don't litter there when it's not configured
+      if (System.getProperty(PathManager.PROPERTY_SYSTEM_PATH) == null && PathManager.getPathsSelector() == null) return null;
+      File dir = new File(PathManager.getSystemPath(), DIR_NAME);
+      if (!dir.isDirectory() && !dir.mkdirs()) return null;
+      ourDir = dir;
+    }
+    return ourDir;
+  }
+}
@@ -124,22 +124,29 @@ class JarLoader extends Loader {
   }
 
   void buildCache(final ClasspathCache cache) throws IOException {
-    ZipFile zipFile = null;
-    try {
-      zipFile = acquireZipFile();
-      if (zipFile == null) return;
-      final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    File file = FILE_PROTOCOL.equals(myURL.getProtocol()) ? new File(FileUtil.unquote(myURL.getFile())) : null;
+    ClasspathCache.LoaderData data = file != null ? ClasspathCacheStorage.load(file) : null;
+    if (data == null) {
+      ZipFile zipFile = null;
+      try {
+        zipFile = acquireZipFile();
+        if (zipFile == null) return;
+        data = new ClasspathCache.LoaderData();
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
 
-      while (entries.hasMoreElements()) {
-        ZipEntry zipEntry = entries.nextElement();
-        String name = zipEntry.getName();
-        cache.addResourceEntry(name, this);
-        cache.addNameEntry(name, this);
+        while (entries.hasMoreElements()) {
+          ZipEntry zipEntry = entries.nextElement();
+          data.addEntry(zipEntry.getName());
+        }
+      }
+      finally {
+        releaseZipFile(zipFile);
+      }
+      if (file != null) {
+        ClasspathCacheStorage.save(file, data);
       }
     }
-    finally {
-      releaseZipFile(zipFile);
-    }
+    cache.applyLoaderData(data, this);
   }
 
   @Nullable
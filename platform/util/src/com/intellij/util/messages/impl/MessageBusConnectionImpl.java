@@ -94,12 +94,26 @@ public class MessageBusConnectionImpl implements MessageBusConnection {
     }
   }
 
+  @NotNull
+  MessageBusImpl getBus() {
+    return myBus;
+  }
+
   void deliverMessage(@NotNull Message message) {
     final Message messageOnLocalQueue = myPendingMessages.get().poll();
     assert messageOnLocalQueue == message;
 
+    invokeListener(message);
+  }
+
+  /**
+   * Delivers the message bypassing the queue of pending messages.
+   */
+  void invokeListener(@NotNull Message message) {
     final Topic topic = message.getTopic();
     final Object handler = mySubscriptions.get(topic);
+    final MessageBusImpl.TopicStatistics statistics = MessageBusImpl.getStatistics(topic);
+    final long start = statistics == null ? 0 : System.nanoTime();
 
     try {
       Method listenerMethod = message.getListenerMethod();
@@ -117,6 +131,11 @@ public class MessageBusConnectionImpl implements MessageBusConnection {
     catch(Throwable e) {
       LOG.error(e.getCause() == null ? e : e.getCause());
     }
+    finally {
+      if (statistics != null) {
+        statistics.messageDelivered(System.nanoTime() - start);
+      }
+    }
   }
 
   void scheduleMessageDelivery(Message message) {
@@ -29,16 +29,17 @@ import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.util.messages.Topic;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MessageBusImpl implements MessageBus {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.messages.impl.MessageBusImpl");
@@ -47,6 +48,14 @@ public class MessageBusImpl implements MessageBus {
   private final ConcurrentMap<Topic, Object> myAsyncPublishers = new ConcurrentHashMap<Topic, Object>();
   private final ConcurrentMap<Topic, List<MessageBusConnectionImpl>> mySubscribers = new ConcurrentHashMap<Topic, List<MessageBusConnectionImpl>>();
   private final List<MessageBusImpl> myChildBuses = ContainerUtil.createEmptyCOWList();
+  // subscribers of the topics published to this bus, including the ones of the buses the topics are broadcast to
+  private final ConcurrentMap<Topic, Subscribers> mySubscribersCache = new ConcurrentHashMap<Topic, Subscribers>();
+
+  // incremented after any change of subscriptions or of bus hierarchy, invalidates the subscribers cached by all buses
+  private static final AtomicInteger ourSubscriptionsVersion = new AtomicInteger();
+
+  private static volatile boolean ourCollectStatistics = Boolean.getBoolean("idea.message.bus.statistics");
+  private static final ConcurrentMap<Topic, TopicStatistics> ourStatistics = new ConcurrentHashMap<Topic, TopicStatistics>();
 
   private static final Object NA = new Object();
   private MessageBusImpl myParentBus;
@@ -77,14 +86,75 @@ public class MessageBusImpl implements MessageBus {
 
   private void notifyChildBusCreated(final MessageBusImpl childBus) {
     myChildBuses.add(childBus);
+    ourSubscriptionsVersion.incrementAndGet();
     LOG.assertTrue(childBus.myParentBus == this);
   }
 
   private void notifyChildBusDisposed(final MessageBusImpl childBus) {
     boolean removed = myChildBuses.remove(childBus);
+    ourSubscriptionsVersion.incrementAndGet();
     LOG.assertTrue(removed);
   }
 
+  private static class Subscribers {
+    private final int myVersion;
+    private final MessageBusConnectionImpl[] myConnections;
+
+    private Subscribers(int version, @NotNull MessageBusConnectionImpl[] connections) {
+      myVersion = version;
+      myConnections = connections;
+    }
+  }
+
+  /**
+   * Publishing counters of a topic summed over all buses. Collected only when enabled by {@link #setCollectStatistics(boolean)}
+   * or <code>-Didea.message.bus.statistics=true</code>, rates can be obtained by sampling the counters.
+   */
+  public static class TopicStatistics {
+    private final AtomicLong myPublishCount = new AtomicLong();
+    private final AtomicLong myDeliveryCount = new AtomicLong();
+    private final AtomicLong myDeliveryTime = new AtomicLong();
+
+    public long getPublishCount() {
+      return myPublishCount.get();
+    }
+
+    public long getDeliveryCount() {
+      return myDeliveryCount.get();
+    }
+
+    /**
+     * @return nanoseconds spent in the listeners, including the delivery of the messages they publish
+     */
+    public long getDeliveryTime() {
+      return myDeliveryTime.get();
+    }
+
+    void messageDelivered(long time) {
+      myDeliveryCount.incrementAndGet();
+      myDeliveryTime.addAndGet(time);
+    }
+  }
+
+  public static void setCollectStatistics(boolean collectStatistics) {
+    ourCollectStatistics = collectStatistics;
+  }
+
+  @NotNull
+  public static Map<Topic, TopicStatistics> getStatistics() {
+    return Collections.unmodifiableMap(ourStatistics);
+  }
+
+  @Nullable
+  static TopicStatistics getStatistics(@NotNull Topic topic) {
+    if (!ourCollectStatistics) return null;
+    TopicStatistics statistics = ourStatistics.get(topic);
+    if (statistics == null) {
+      statistics = ConcurrencyUtil.cacheOrGet(ourStatistics, topic, new TopicStatistics());
+    }
+    return statistics;
+  }
+
   private static class DeliveryJob {
     public DeliveryJob(final MessageBusConnectionImpl connection, final Message message) {
       this.connection = connection;
@@ -161,6 +231,7 @@ public class MessageBusImpl implements MessageBus {
   @Override
   public void dispose() {
     checkNotDisposed();
+    mySubscribersCache.clear();
     Queue<DeliveryJob> jobs = myMessageQueue.get();
     if (!jobs.isEmpty()) {
       LOG.error("Not delivered events in the queue: " + jobs);
@@ -179,35 +250,77 @@ public class MessageBusImpl implements MessageBus {
 
   private void postMessage(Message message) {
     checkNotDisposed();
-    final Topic topic = message.getTopic();
+    countPublished(message);
+    queueMessage(message, getSubscribers(message.getTopic()));
+  }
+
+  private static void queueMessage(@NotNull Message message, @NotNull MessageBusConnectionImpl[] subscribers) {
+    for (MessageBusConnectionImpl subscriber : subscribers) {
+      subscriber.getBus().myMessageQueue.get().offer(new DeliveryJob(subscriber, message));
+      subscriber.scheduleMessageDelivery(message);
+    }
+  }
+
+  private void sendMessage(Message message) {
+    pumpMessages();
+    checkNotDisposed();
+    countPublished(message);
+    MessageBusConnectionImpl[] subscribers = getSubscribers(message.getTopic());
+    if (subscribers.length == 1) {
+      // all the queues are empty after pumping, so the only subscriber can get the message at once
+      subscribers[0].invokeListener(message);
+    }
+    else {
+      queueMessage(message, subscribers);
+    }
+    pumpMessages();
+  }
+
+  private static void countPublished(@NotNull Message message) {
+    TopicStatistics statistics = getStatistics(message.getTopic());
+    if (statistics != null) {
+      statistics.myPublishCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return subscribers of the bus and of the buses the topic is broadcast to, in the order of delivery
+   */
+  @NotNull
+  private MessageBusConnectionImpl[] getSubscribers(@NotNull Topic topic) {
+    int version = ourSubscriptionsVersion.get();
+    Subscribers cached = mySubscribersCache.get(topic);
+    if (cached != null && cached.myVersion == version) {
+      return cached.myConnections;
+    }
+
+    List<MessageBusConnectionImpl> result = new ArrayList<MessageBusConnectionImpl>();
+    collectSubscribers(topic, result);
+    MessageBusConnectionImpl[] connections = result.toArray(new MessageBusConnectionImpl[result.size()]);
+    // a concurrent change of subscriptions increments the version, so the result won't be used
+    mySubscribersCache.put(topic, new Subscribers(version, connections));
+    return connections;
+  }
+
+  private void collectSubscribers(@NotNull Topic topic, @NotNull List<MessageBusConnectionImpl> result) {
     final List<MessageBusConnectionImpl> topicSubscribers = mySubscribers.get(topic);
     if (topicSubscribers != null) {
-      Queue<DeliveryJob> queue = myMessageQueue.get();
-      for (MessageBusConnectionImpl subscriber : topicSubscribers) {
-        queue.offer(new DeliveryJob(subscriber, message));
-        subscriber.scheduleMessageDelivery(message);
-      }
+      result.addAll(topicSubscribers);
     }
 
     Topic.BroadcastDirection direction = topic.getBroadcastDirection();
 
     if (direction == Topic.BroadcastDirection.TO_CHILDREN) {
       for (MessageBusImpl childBus : myChildBuses) {
-        childBus.postMessage(message);
+        childBus.collectSubscribers(topic, result);
       }
     }
 
     if (direction == Topic.BroadcastDirection.TO_PARENT && myParentBus != null) {
-      myParentBus.postMessage(message);
+      myParentBus.collectSubscribers(topic, result);
     }
   }
 
-  private void sendMessage(Message message) {
-    pumpMessages();
-    postMessage(message);
-    pumpMessages();
-  }
-
   private void pumpMessages() {
     checkNotDisposed();
     if (myParentBus != null) {
@@ -242,12 +355,14 @@ public class MessageBusImpl implements MessageBus {
     }
 
     topicSubscribers.add(connection);
+    ourSubscriptionsVersion.incrementAndGet();
   }
 
   void notifyConnectionTerminated(final MessageBusConnectionImpl connection) {
     for (List<MessageBusConnectionImpl> topicSubscribers : mySubscribers.values()) {
       topicSubscribers.remove(connection);
     }
+    ourSubscriptionsVersion.incrementAndGet();
     if (myDisposed) return;
 
     final Iterator<DeliveryJob> i = myMessageQueue.get().iterator();
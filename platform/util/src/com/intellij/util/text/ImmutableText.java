@@ -0,0 +1,315 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Persistent text (rope): a height balanced tree of char array leaves.
+ * <p/>
+ * {@link #insert(int, CharSequence)}, {@link #delete(int, int)}, {@link #concat(ImmutableText)} and {@link #subSequence(int, int)}
+ * take O(log n) time and share the unchanged leaves with the original text, which is never modified, so an instance can be
+ * handed out as a snapshot of the text for free.
+ * <p/>
+ * Random {@link #charAt(int)} is O(log n), but the last accessed leaf is remembered, so sequential access is nearly as cheap as
+ * for a plain array.
+ */
+public final class ImmutableText implements CharSequence {
+  static final int LEAF_SIZE = 1 << 10;
+
+  public static final ImmutableText EMPTY = new ImmutableText(new Leaf(ArrayUtil.EMPTY_CHAR_ARRAY));
+
+  private final Node myRoot;
+  private volatile LeafAccess myLastLeaf;
+
+  private ImmutableText(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    return text.length() == 0 ? EMPTY : new ImmutableText(build(text, 0, text.length()));
+  }
+
+  @NotNull
+  private static Node build(@NotNull CharSequence text, int start, int end) {
+    if (end - start <= LEAF_SIZE) {
+      final char[] chars = new char[end - start];
+      CharArrayUtil.getChars(text, chars, start, 0, end - start);
+      return new Leaf(chars);
+    }
+    final int middle = (start + end) >>> 1;
+    return new Composite(build(text, start, middle), build(text, middle, end));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    LeafAccess access = myLastLeaf;
+    if (access == null || index < access.offset || index >= access.offset + access.leaf.myChars.length) {
+      if (index < 0 || index >= length()) {
+        throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + length());
+      }
+      myLastLeaf = access = findLeaf(index);
+    }
+    return access.leaf.myChars[index - access.offset];
+  }
+
+  @NotNull
+  private LeafAccess findLeaf(int index) {
+    Node node = myRoot;
+    int offset = 0;
+    while (node instanceof Composite) {
+      final Composite composite = (Composite)node;
+      final int headLength = composite.myHead.length();
+      if (index < offset + headLength) {
+        node = composite.myHead;
+      }
+      else {
+        offset += headLength;
+        node = composite.myTail;
+      }
+    }
+    return new LeafAccess((Leaf)node, offset);
+  }
+
+  @NotNull
+  @Override
+  public ImmutableText subSequence(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myRoot.subNode(start, end));
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull ImmutableText text) {
+    if (text.length() == 0) return this;
+    if (length() == 0) return text;
+    return new ImmutableText(concatNodes(myRoot, text.myRoot));
+  }
+
+  @NotNull
+  public ImmutableText insert(int index, @NotNull CharSequence text) {
+    checkRange(index, index);
+    if (text.length() == 0) return this;
+    return subSequence(0, index).concat(valueOf(text)).concat(subSequence(index, length()));
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    checkRange(start, end);
+    if (start == end) return this;
+    return subSequence(0, start).concat(subSequence(end, length()));
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    return delete(start, end).insert(start, text);
+  }
+
+  /**
+   * Copies chars from the given range to the <code>dest</code> array starting at <code>destPos</code>.
+   */
+  public void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+    checkRange(start, end);
+    myRoot.getChars(start, end, dest, destPos);
+  }
+
+  @NotNull
+  public char[] toCharArray() {
+    final char[] result = new char[length()];
+    myRoot.getChars(0, result.length, result, 0);
+    return result;
+  }
+
+  /**
+   * @return height of the leaves tree, exposed for testing
+   */
+  int getDepth() {
+    return myRoot.depth();
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return new String(toCharArray());
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + length());
+    }
+  }
+
+  @NotNull
+  private static Node concatNodes(@NotNull Node head, @NotNull Node tail) {
+    if (head.length() == 0) return tail;
+    if (tail.length() == 0) return head;
+
+    final int length = head.length() + tail.length();
+    if (length <= LEAF_SIZE) {
+      final char[] chars = new char[length];
+      head.getChars(0, head.length(), chars, 0);
+      tail.getChars(0, tail.length(), chars, head.length());
+      return new Leaf(chars);
+    }
+
+    final int headDepth = head.depth();
+    final int tailDepth = tail.depth();
+    if (headDepth > tailDepth + 1) {
+      final Composite composite = (Composite)head;
+      return balance(composite.myHead, concatNodes(composite.myTail, tail));
+    }
+    if (tailDepth > headDepth + 1) {
+      final Composite composite = (Composite)tail;
+      return balance(concatNodes(head, composite.myHead), composite.myTail);
+    }
+    return new Composite(head, tail);
+  }
+
+  // rotates the nodes if their depths differ by two, falls back to concatenation of the subtrees if they are even less balanced
+  @NotNull
+  private static Node balance(@NotNull Node head, @NotNull Node tail) {
+    final int headDepth = head.depth();
+    final int tailDepth = tail.depth();
+    if (Math.abs(headDepth - tailDepth) > 2) {
+      return concatNodes(head, tail);
+    }
+    if (headDepth == tailDepth + 2) {
+      final Composite composite = (Composite)head;
+      if (composite.myHead.depth() >= composite.myTail.depth()) {
+        return new Composite(composite.myHead, new Composite(composite.myTail, tail));
+      }
+      final Composite inner = (Composite)composite.myTail;
+      return new Composite(new Composite(composite.myHead, inner.myHead), new Composite(inner.myTail, tail));
+    }
+    if (tailDepth == headDepth + 2) {
+      final Composite composite = (Composite)tail;
+      if (composite.myTail.depth() >= composite.myHead.depth()) {
+        return new Composite(new Composite(head, composite.myHead), composite.myTail);
+      }
+      final Composite inner = (Composite)composite.myHead;
+      return new Composite(new Composite(head, inner.myHead), new Composite(inner.myTail, composite.myTail));
+    }
+    return new Composite(head, tail);
+  }
+
+  private static class LeafAccess {
+    final Leaf leaf;
+    final int offset;
+
+    LeafAccess(@NotNull Leaf leaf, int offset) {
+      this.leaf = leaf;
+      this.offset = offset;
+    }
+  }
+
+  private abstract static class Node {
+    abstract int length();
+
+    abstract int depth();
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+
+    abstract void getChars(int start, int end, @NotNull char[] dest, int destPos);
+  }
+
+  private static class Leaf extends Node {
+    private final char[] myChars;
+
+    Leaf(@NotNull char[] chars) {
+      myChars = chars;
+    }
+
+    @Override
+    int length() {
+      return myChars.length;
+    }
+
+    @Override
+    int depth() {
+      return 0;
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myChars.length) return this;
+      final char[] chars = new char[end - start];
+      System.arraycopy(myChars, start, chars, 0, end - start);
+      return new Leaf(chars);
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      System.arraycopy(myChars, start, dest, destPos, end - start);
+    }
+  }
+
+  private static class Composite extends Node {
+    private final Node myHead;
+    private final Node myTail;
+    private final int myLength;
+    private final int myDepth;
+
+    Composite(@NotNull Node head, @NotNull Node tail) {
+      myHead = head;
+      myTail = tail;
+      myLength = head.length() + tail.length();
+      myDepth = Math.max(head.depth(), tail.depth()) + 1;
+    }
+
+    @Override
+    int length() {
+      return myLength;
+    }
+
+    @Override
+    int depth() {
+      return myDepth;
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myLength) return this;
+      final int headLength = myHead.length();
+      if (end <= headLength) return myHead.subNode(start, end);
+      if (start >= headLength) return myTail.subNode(start - headLength, end - headLength);
+      return concatNodes(myHead.subNode(start, headLength), myTail.subNode(0, end - headLength));
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      final int headLength = myHead.length();
+      if (start < headLength) {
+        myHead.getChars(start, Math.min(end, headLength), dest, destPos);
+      }
+      if (end > headLength) {
+        final int tailStart = Math.max(start, headLength);
+        myTail.getChars(tailStart - headLength, end - headLength, dest, destPos + tailStart - start);
+      }
+    }
+  }
+}
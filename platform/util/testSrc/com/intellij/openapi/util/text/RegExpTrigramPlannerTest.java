@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.util.text;
+
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class RegExpTrigramPlannerTest extends TestCase {
+  public void testLiteral() {
+    assertPlan("foobar", "foobar");
+  }
+
+  public void testNoRestriction() {
+    assertNull(RegExpTrigramPlanner.plan("fo.*"));
+    assertNull(RegExpTrigramPlanner.plan("[a-z]+"));
+    assertNull(RegExpTrigramPlanner.plan("foobar|x"));
+    assertNull(RegExpTrigramPlanner.plan("(?x)foo bar"));
+    assertNull(RegExpTrigramPlanner.plan("foo("));
+  }
+
+  public void testBrokenRuns() {
+    assertPlan("foo.*bar", "foo bar");
+    assertPlan("foox?bar", "foo bar");
+    assertPlan("foo\\d+barbaz", "foo barbaz");
+    assertPlan("[abc]foobar\\b", "foobar");
+    assertPlan("fooo+bar", "fooo bar");
+    assertPlan("foo\\x41bar", "foo bar");
+    assertPlan("\\Qa.b\\E.c", "a.b");
+    assertPlan("foo\\.bar", "foo.bar");
+  }
+
+  public void testGroups() {
+    assertPlan("(?:foo)bar(baz)", "foo bar baz");
+    assertPlan("foo(bar)?baz", "foo baz");
+    assertPlan("foo(?=bar)baz", "foo baz");
+    assertPlan("(?i)foo(?<name>bar)", "foo bar");
+  }
+
+  public void testAlternatives() {
+    List<TIntHashSet> plan = RegExpTrigramPlanner.plan("get(Foo|Bar)Value");
+    assertNotNull(plan);
+    assertEquals(2, plan.size());
+    assertEquals(trigrams("Foo Value"), plan.get(0));
+    assertEquals(trigrams("Bar Value"), plan.get(1));
+  }
+
+  private static void assertPlan(String regExp, String requiredWords) {
+    List<TIntHashSet> plan = RegExpTrigramPlanner.plan(regExp);
+    assertNotNull(regExp, plan);
+    assertEquals(regExp, 1, plan.size());
+    assertEquals(regExp, trigrams(requiredWords), plan.get(0));
+  }
+
+  private static TIntHashSet trigrams(String words) {
+    TIntHashSet result = new TIntHashSet();
+    for (String word : words.split(" ")) {
+      result.addAll(TrigramBuilder.buildTrigram(word).toArray());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+public class IntPostingListTest extends TestCase {
+  public void testCreate() {
+    IntPostingList list = IntPostingList.create(new int[]{5, 1, 300, 5, 0, 100000});
+    assertEquals(5, list.size());
+    assertTrue(Arrays.equals(new int[]{0, 1, 5, 300, 100000}, list.toArray()));
+    assertTrue(list.contains(300));
+    assertFalse(list.contains(301));
+    assertTrue(IntPostingList.create(new int[0]).isEmpty());
+  }
+
+  public void testAdvance() {
+    int[] values = new int[1000];
+    for (int i = 0; i < values.length; i++) values[i] = i * 3;
+    IntPostingList list = IntPostingList.create(values.clone());
+
+    IntPostingList.Cursor cursor = list.cursor();
+    assertEquals(0, cursor.advance(0));
+    assertEquals(0, cursor.advance(0));
+    assertEquals(303, cursor.advance(301));
+    assertEquals(303, cursor.advance(10)); // never goes back
+    assertEquals(2997, cursor.advance(2997));
+    assertEquals(-1, cursor.advance(2998));
+    assertEquals(-1, cursor.advance(0));
+  }
+
+  public void testContains() {
+    Random random = new Random(42);
+    for (int size : new int[]{1, IntPostingList.SKIP_INTERVAL - 1, IntPostingList.SKIP_INTERVAL, IntPostingList.SKIP_INTERVAL + 1, 1000}) {
+      TIntHashSet set = new TIntHashSet();
+      TIntArrayList values = new TIntArrayList();
+      for (int i = 0; i < size; i++) {
+        int value = random.nextInt(size * 4);
+        set.add(value);
+        values.add(value);
+      }
+      IntPostingList list = IntPostingList.create(values);
+      for (int value = -1; value <= size * 4 + 1; value++) {
+        assertEquals(size + ": " + value, set.contains(value), list.contains(value));
+      }
+    }
+    assertFalse(IntPostingList.EMPTY.contains(0));
+  }
+
+  public void testIntersect() {
+    Random random = new Random(42);
+    TIntHashSet[] sets = new TIntHashSet[3];
+    IntPostingList[] lists = new IntPostingList[3];
+    for (int i = 0; i < sets.length; i++) {
+      sets[i] = new TIntHashSet();
+      TIntArrayList values = new TIntArrayList();
+      int count = 100 * (i + 1) * (i + 1);
+      for (int j = 0; j < count; j++) {
+        int value = random.nextInt(5000);
+        sets[i].add(value);
+        values.add(value);
+      }
+      lists[i] = IntPostingList.create(values);
+    }
+
+    TIntArrayList expected = new TIntArrayList();
+    for (int value : sets[0].toArray()) {
+      if (sets[1].contains(value) && sets[2].contains(value)) expected.add(value);
+    }
+    expected.sort();
+
+    assertTrue(Arrays.equals(expected.toNativeArray(), IntPostingList.intersect(Arrays.asList(lists))));
+    assertTrue(Arrays.equals(lists[1].toArray(), IntPostingList.intersect(Arrays.asList(lists[1]))));
+    assertEquals(0, IntPostingList.intersect(Arrays.asList(lists[0], IntPostingList.EMPTY)).length);
+  }
+
+  public void testCompactness() {
+    int[] values = new int[10000];
+    for (int i = 0; i < values.length; i++) values[i] = 100000 + i * 10;
+    IntPostingList list = IntPostingList.create(values);
+    assertTrue(list.getEncodedSize() < values.length + 10);
+  }
+
+  public void testSerialization() throws IOException {
+    IntPostingList list = IntPostingList.create(new int[]{1, 2, 1000, 1 << 30});
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    list.write(new DataOutputStream(bytes));
+    IntPostingList read = IntPostingList.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(list, read);
+    assertTrue(Arrays.equals(list.toArray(), read.toArray()));
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClasspathCacheStorageTest extends TestCase {
+  private File myDir;
+  private File myJar;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("classpath-cache", null);
+    ClasspathCacheStorage.setStorageDir(new File(myDir, "storage"));
+    new File(myDir, "storage").mkdirs();
+    myJar = createJar(new File(myDir, "lib.jar"), "a/b/First.class", "a/Second.class", "res/data.txt");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ClasspathCacheStorage.setStorageDir(null);
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testSaveAndLoad() throws Exception {
+    final ClasspathCache.LoaderData data = createData("a/b/First.class", "a/Second.class", "res/data.txt");
+    ClasspathCacheStorage.save(myJar, data);
+    assertTrue(ClasspathCacheStorage.getStorageFile(myJar).isFile());
+    assertFalse(new File(ClasspathCacheStorage.getStorageFile(myJar).getPath() + ".tmp").exists());
+
+    final ClasspathCache.LoaderData loaded = ClasspathCacheStorage.load(myJar);
+    assertNotNull(loaded);
+    assertEquals(data.myClassPackageHashes, loaded.myClassPackageHashes);
+    assertEquals(data.myResourcePackageHashes, loaded.myResourcePackageHashes);
+    assertEquals(data.myNameHashes, loaded.myNameHashes);
+
+    // the data of another jar is kept apart
+    final File other = createJar(new File(myDir, "other.jar"), "b/Third.class");
+    assertNull(ClasspathCacheStorage.load(other));
+  }
+
+  public void testChangedJarIsRejected() throws Exception {
+    ClasspathCacheStorage.save(myJar, createData("a/b/First.class"));
+    assertNotNull(ClasspathCacheStorage.load(myJar));
+
+    assertTrue(myJar.setLastModified(myJar.lastModified() - 10000));
+    assertNull(ClasspathCacheStorage.load(myJar));
+
+    ClasspathCacheStorage.save(myJar, createData("a/b/First.class"));
+    assertNotNull(ClasspathCacheStorage.load(myJar));
+    final long lastModified = myJar.lastModified();
+    final RandomAccessFile file = new RandomAccessFile(myJar, "rw");
+    try {
+      file.setLength(file.length() + 1);
+    }
+    finally {
+      file.close();
+    }
+    assertTrue(myJar.setLastModified(lastModified));
+    assertNull(ClasspathCacheStorage.load(myJar));
+  }
+
+  public void testTruncatedFile() throws Exception {
+    ClasspathCacheStorage.save(myJar, createData("a/b/First.class", "a/Second.class", "res/data.txt"));
+    final File storageFile = ClasspathCacheStorage.getStorageFile(myJar);
+    final RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+    try {
+      file.setLength(file.length() - 5);
+    }
+    finally {
+      file.close();
+    }
+    assertNull(ClasspathCacheStorage.load(myJar));
+
+    // and is rewritten
+    ClasspathCacheStorage.save(myJar, createData("a/b/First.class"));
+    assertNotNull(ClasspathCacheStorage.load(myJar));
+  }
+
+  public void testCorruptedFile() throws Exception {
+    ClasspathCacheStorage.save(myJar, createData("a/b/First.class"));
+    final File storageFile = ClasspathCacheStorage.getStorageFile(myJar);
+    final byte[] bytes = FileUtil.loadFileBytes(storageFile);
+    // the file ends with the class package hashes (count and hash), resource package hashes (count) and name hashes (count and hash)
+    final int countOffset = bytes.length - 4 * 5;
+    bytes[countOffset] = 0x7f;
+    FileUtil.writeToFile(storageFile, bytes);
+    assertNull(ClasspathCacheStorage.load(myJar));
+
+    FileUtil.writeToFile(storageFile, new byte[]{1, 2, 3});
+    assertNull(ClasspathCacheStorage.load(myJar));
+  }
+
+  public void testJarLoaderUsesStoredData() throws Exception {
+    // builds the data from the jar and stores it
+    assertTrue(hasName(myJar, "a/b/First.class"));
+    assertFalse(hasName(myJar, "b/Missing.class"));
+    assertTrue(ClasspathCacheStorage.getStorageFile(myJar).isFile());
+
+    // the stored data is used while the jar is the same
+    ClasspathCacheStorage.save(myJar, createData("b/Missing.class"));
+    assertTrue(hasName(myJar, "b/Missing.class"));
+    assertFalse(hasName(myJar, "a/b/First.class"));
+
+    // and is built again once it has changed
+    assertTrue(myJar.setLastModified(myJar.lastModified() - 10000));
+    assertTrue(hasName(myJar, "a/b/First.class"));
+    assertFalse(hasName(myJar, "b/Missing.class"));
+  }
+
+  private static boolean hasName(File jar, String name) throws IOException {
+    final JarLoader loader = new JarLoader(jar.toURI().toURL(), false, 0);
+    final ClasspathCache cache = new ClasspathCache();
+    loader.buildCache(cache);
+    return cache.loaderHasName(name, loader);
+  }
+
+  private static ClasspathCache.LoaderData createData(String... names) {
+    final ClasspathCache.LoaderData data = new ClasspathCache.LoaderData(new TIntHashSet(), new TIntHashSet(), new TIntHashSet());
+    for (String name : names) {
+      data.addEntry(name);
+    }
+    return data;
+  }
+
+  private static File createJar(File jar, String... names) throws IOException {
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String name : names) {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(name.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return jar;
+  }
+}
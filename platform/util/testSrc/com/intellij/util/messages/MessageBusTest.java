@@ -20,6 +20,7 @@
 package com.intellij.util.messages;
 
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.messages.impl.MessageBusImpl;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
@@ -196,7 +197,56 @@ public class MessageBusTest extends TestCase {
                  "inside:t11:done",
                  "C2T1Handler:t12");
   }
-  
+
+  public void testSubscribersChangeAfterPublishing() {
+    final MessageBusConnection c1 = myBus.connect();
+    c1.subscribe(TOPIC1, new T1Handler("c1"));
+    myBus.syncPublisher(TOPIC1).t11();
+
+    final MessageBusConnection c2 = myBus.connect();
+    c2.subscribe(TOPIC1, new T1Handler("c2"));
+    myBus.syncPublisher(TOPIC1).t12();
+
+    c1.disconnect();
+    myBus.syncPublisher(TOPIC1).t11();
+
+    assertEvents("c1:t11", "c1:t12", "c2:t12", "c2:t11");
+  }
+
+  public void testChildBusCreatedAfterPublishing() {
+    myBus.connect().subscribe(TOPIC1, new T1Handler("parent"));
+    myBus.syncPublisher(TOPIC1).t11();
+
+    final MessageBus childBus = MessageBusFactory.newMessageBus("child", myBus);
+    childBus.connect().subscribe(TOPIC1, new T1Handler("child"));
+    myBus.syncPublisher(TOPIC1).t12();
+
+    childBus.dispose();
+    myBus.syncPublisher(TOPIC1).t11();
+
+    assertEvents("parent:t11", "parent:t12", "child:t12", "parent:t11");
+  }
+
+  public void testStatistics() {
+    final Topic<T1Listener> topic = new Topic<T1Listener>("statistics", T1Listener.class);
+    myBus.connect().subscribe(topic, new T1Handler("c1"));
+    MessageBusImpl.setCollectStatistics(true);
+    try {
+      myBus.syncPublisher(topic).t11();
+      myBus.connect().subscribe(topic, new T1Handler("c2"));
+      myBus.syncPublisher(topic).t12();
+    }
+    finally {
+      MessageBusImpl.setCollectStatistics(false);
+    }
+
+    final MessageBusImpl.TopicStatistics statistics = MessageBusImpl.getStatistics().get(topic);
+    assertEquals(2, statistics.getPublishCount());
+    assertEquals(3, statistics.getDeliveryCount());
+    assertTrue(statistics.getDeliveryTime() >= 0);
+    assertEvents("c1:t11", "c1:t12", "c2:t12");
+  }
+
   private void assertEvents(String... expected) {
     String joinExpected = StringUtil.join(expected, "\n");
     String joinActual = StringUtil.join(myLog, "\n");
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ImmutableTextTest extends TestCase {
+  public void testEmpty() {
+    assertEquals(0, ImmutableText.EMPTY.length());
+    assertSame(ImmutableText.EMPTY, ImmutableText.valueOf(""));
+    assertEquals("abc", ImmutableText.EMPTY.insert(0, "abc").toString());
+  }
+
+  public void testEditsOfSmallText() {
+    ImmutableText text = ImmutableText.valueOf("hello world");
+    assertEquals("hello, world", text.insert(5, ",").toString());
+    assertEquals("hello", text.delete(5, 11).toString());
+    assertEquals("hello there", text.replace(6, 11, "there").toString());
+    assertEquals("llo w", text.subSequence(2, 7).toString());
+    assertEquals("hello world", text.toString());
+  }
+
+  public void testSnapshotsAreNotAffectedByEdits() {
+    final String original = randomText(new Random(1), 10 * ImmutableText.LEAF_SIZE);
+    final ImmutableText snapshot = ImmutableText.valueOf(original);
+    ImmutableText text = snapshot;
+    for (int i = 0; i < 100; i++) {
+      text = text.insert(i * 7, "xyz").delete(i, i + 2);
+    }
+    assertEquals(original, snapshot.toString());
+  }
+
+  public void testRandomEditsMatchStringBuilder() {
+    final Random random = new Random(42);
+    final StringBuilder expected = new StringBuilder(randomText(random, 5 * ImmutableText.LEAF_SIZE));
+    ImmutableText text = ImmutableText.valueOf(expected);
+
+    for (int i = 0; i < 3000; i++) {
+      final int start = random.nextInt(expected.length() + 1);
+      switch (random.nextInt(3)) {
+        case 0:
+          final String inserted = randomText(random, random.nextInt(10) == 0 ? 3 * ImmutableText.LEAF_SIZE : random.nextInt(20));
+          expected.insert(start, inserted);
+          text = text.insert(start, inserted);
+          break;
+        case 1:
+          final int end = Math.min(expected.length(), start + random.nextInt(50));
+          expected.delete(start, end);
+          text = text.delete(start, end);
+          break;
+        default:
+          final int subEnd = start + random.nextInt(expected.length() - start + 1);
+          assertEquals(expected.substring(start, subEnd), text.subSequence(start, subEnd).toString());
+      }
+      assertEquals(expected.length(), text.length());
+      if (expected.length() > 0) {
+        final int index = random.nextInt(expected.length());
+        assertEquals(expected.charAt(index), text.charAt(index));
+      }
+    }
+    assertEquals(expected.toString(), text.toString());
+  }
+
+  public void testDepthStaysLogarithmic() {
+    ImmutableText text = ImmutableText.EMPTY;
+    for (int i = 0; i < 20000; i++) {
+      text = text.insert(text.length(), "some line of text " + i + "\n");
+    }
+    final int leaves = text.length() / ImmutableText.LEAF_SIZE + 1;
+    final int log = 32 - Integer.numberOfLeadingZeros(leaves);
+    assertTrue("depth " + text.getDepth() + " for " + leaves + " leaves", text.getDepth() <= 2 * log + 2);
+  }
+
+  public void testGetChars() {
+    final String original = randomText(new Random(3), 3 * ImmutableText.LEAF_SIZE + 17);
+    final ImmutableText text = ImmutableText.valueOf(original).insert(100, "inserted");
+    final String expected = text.toString();
+    final char[] dest = new char[2000];
+    text.getChars(50, 2050, dest, 0);
+    assertEquals(expected.substring(50, 2050), new String(dest));
+  }
+
+  private static String randomText(Random random, int length) {
+    final StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char)('a' + random.nextInt(26)));
+    }
+    return builder.toString();
+  }
+}
@@ -26,6 +26,9 @@ public class DtdLexer extends MergingLexerAdapter {
     TokenSet.create(XmlTokenType.XML_DATA_CHARACTERS, XmlTokenType.XML_ATTRIBUTE_VALUE_TOKEN, XmlTokenType.XML_PI_TARGET);
 
   public DtdLexer(boolean highlightingMode) {
-    super(new FlexAdapter(new _DtdLexer(highlightingMode)), TOKENS_TO_MERGE);
+    // the markup declarations and comments may be long, but the flex lexer keeps nothing but the state while lexing them
+    super(new FlexAdapter(new _DtdLexer(highlightingMode), _DtdLexer.YYINITIAL, _DtdLexer.DOCTYPE_MARKUP, _DtdLexer.DOCTYPE_MARKUP_DQ,
+                          _DtdLexer.DOCTYPE_MARKUP_SQ, _DtdLexer.DOCTYPE_COMMENT, _DtdLexer.COMMENT, _DtdLexer.CDATA,
+                          _DtdLexer.TAG_ATTRIBUTES), TOKENS_TO_MERGE);
   }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lexer;
+
+import com.intellij.ide.highlighter.XmlFileHighlighter;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.ex.util.LexerEditorHighlighter;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.project.Project;
+import com.intellij.testFramework.LightPlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the editor highlighter relexes the long markup sections of DTD files from the lexer checkpoints
+ */
+public class DtdLexerHighlightingTest extends LightPlatformTestCase {
+  public void testMarkupStatesAreRestartable() {
+    final DtdLexer lexer = new DtdLexer(true);
+    assertTrue(lexer.isRestartableState(_DtdLexer.DOCTYPE_MARKUP));
+    assertTrue(lexer.isRestartableState(_DtdLexer.COMMENT));
+    assertFalse(lexer.isRestartableState(_DtdLexer.DOCTYPE_MARKUP_STARTED));
+    assertFalse(new XmlLexer().isRestartableState(0));
+  }
+
+  public void testEditsInsideConditionalSections() {
+    final String text = "<!-- elements -->\n" + getConditionalSection(0, 20) + "<!ENTITY % e 'x'>\n" + getConditionalSection(20, 10);
+    final CountingHighlighter syntaxHighlighter = new CountingHighlighter();
+    final Document document = EditorFactory.getInstance().createDocument(text);
+    final LexerEditorHighlighter highlighter = createHighlighter(syntaxHighlighter, document);
+    document.addDocumentListener(highlighter, getTestRootDisposable());
+    final String[] insertions = {" ", "\n", "<!ELEMENT ", ">", "\"", "'", "--", "<!--", "-->", "]]>", "<![INCLUDE[", "(", "|", "#PCDATA", "name"};
+    final Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      final int offset = random.nextInt(document.getTextLength() + 1);
+      if (random.nextInt(3) == 0 && offset < document.getTextLength()) {
+        document.deleteString(offset, Math.min(document.getTextLength(), offset + random.nextInt(5) + 1));
+      }
+      else {
+        document.insertString(offset, insertions[random.nextInt(insertions.length)]);
+      }
+      assertEquals(document.getText(), getTokens(createHighlighter(syntaxHighlighter, document)), getTokens(highlighter));
+    }
+  }
+
+  public void testCheckpointsShortenRelexing() {
+    final CountingHighlighter syntaxHighlighter = new CountingHighlighter();
+    final Document document = EditorFactory.getInstance().createDocument(getConditionalSection(0, 200));
+    final LexerEditorHighlighter highlighter = createHighlighter(syntaxHighlighter, document);
+    document.addDocumentListener(highlighter, getTestRootDisposable());
+    final CountingDtdLexer lexer = syntaxHighlighter.myLastLexer;
+    final int tokenCount = lexer.myTokenCount;
+
+    lexer.myTokenCount = 0;
+    document.insertString(document.getText().indexOf("<!ELEMENT e100 "), " ");
+    // the section is relexed from the checkpoint before the change to the one after it
+    assertTrue(lexer.myTokenCount + " of " + tokenCount, lexer.myTokenCount < 100);
+    assertEquals(getTokens(createHighlighter(syntaxHighlighter, document)), getTokens(highlighter));
+  }
+
+  private static String getConditionalSection(int from, int count) {
+    final StringBuilder text = new StringBuilder("<![INCLUDE[\n");
+    for (int i = from; i < from + count; i++) {
+      text.append("  <!ELEMENT e").append(i).append(" (#PCDATA | a | b)*>\n")
+        .append("  <!ATTLIST e").append(i).append(" id ID #IMPLIED name CDATA \"value ").append(i).append("\">\n");
+    }
+    return text.append("]]>\n").toString();
+  }
+
+  private LexerEditorHighlighter createHighlighter(SyntaxHighlighter syntaxHighlighter, final Document document) {
+    final LexerEditorHighlighter highlighter =
+      new LexerEditorHighlighter(syntaxHighlighter, EditorColorsManager.getInstance().getGlobalScheme());
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return LightPlatformTestCase.getProject();
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    return highlighter;
+  }
+
+  private static List<String> getTokens(LexerEditorHighlighter highlighter) {
+    final List<String> tokens = new ArrayList<String>();
+    for (HighlighterIterator iterator = highlighter.createIterator(0); !iterator.atEnd(); iterator.advance()) {
+      tokens.add(iterator.getTokenType() + "[" + iterator.getStart() + "," + iterator.getEnd() + "]");
+    }
+    return tokens;
+  }
+
+  private static class CountingHighlighter extends XmlFileHighlighter {
+    private CountingDtdLexer myLastLexer;
+
+    private CountingHighlighter() {
+      super(true);
+    }
+
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      myLastLexer = new CountingDtdLexer();
+      return myLastLexer;
+    }
+  }
+
+  private static class CountingDtdLexer extends DtdLexer {
+    private int myTokenCount;
+
+    private CountingDtdLexer() {
+      super(true);
+    }
+
+    @Override
+    public void advance() {
+      myTokenCount++;
+      super.advance();
+    }
+  }
+}